@@ -1,50 +1,263 @@
+import cache.AssetManifest;
+import cache.OpenFileCache;
 import pluginAPI.ARequestHandler;
+import protocol.HeaderName;
+import protocol.HttpDate;
 import protocol.HttpRequest;
 import protocol.HttpResponse;
 import protocol.HttpResponseType;
 import protocol.Protocol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
+/**
+ * Serves the files under a document root, e.g. <tt>/FileRequestPlugin/css/site.css</tt> from
+ * <tt>&lt;root&gt;/css/site.css</tt>. Responses carry the file itself, so the server can send it
+ * without copying, with <tt>Last-Modified</tt>, <tt>ETag</tt> and <tt>Cache-Control</tt>
+ * headers, and conditional requests are answered with 304.
+ * <p/>
+ * Every file but the pages is also served under a fingerprinted name from the
+ * {@link AssetManifest}, e.g. <tt>js/app.3f2a9c1b.js</tt>, with a <tt>Cache-Control</tt> that
+ * lets clients keep it for a year; the manifest itself is served as
+ * <tt>/FileRequestPlugin/asset-manifest.json</tt>. Before a page is sent, the stylesheets and
+ * scripts it uses are announced with <tt>103 Early Hints</tt>, so the client can start fetching
+ * them while it waits.
+ * <p/>
+ * Configured with system properties:
+ * <ul>
+ * <li><tt>sws.files.root</tt>: the document root, the working directory by default.</li>
+ * <li><tt>sws.files.index</tt>: comma separated files to serve for a directory,
+ * <tt>index.html</tt> by default.</li>
+ * <li><tt>sws.files.cacheControl</tt>: the <tt>Cache-Control</tt> header,
+ * <tt>public, max-age=3600</tt> by default.</li>
+ * <li><tt>sws.files.immutableCacheControl</tt>: the <tt>Cache-Control</tt> header of
+ * fingerprinted files, <tt>public, max-age=31536000, immutable</tt> by default.</li>
+ * </ul>
+ */
 public class FileRequestHandler extends ARequestHandler {
-    public FileRequestHandler()
-    {
-        roots.add("/FileRequestPlugin");
+    public static final String ROOT_PROPERTY = "sws.files.root";
+    public static final String INDEX_PROPERTY = "sws.files.index";
+    public static final String CACHE_CONTROL_PROPERTY = "sws.files.cacheControl";
+    public static final String IMMUTABLE_CACHE_CONTROL_PROPERTY = "sws.files.immutableCacheControl";
+
+    private static final String PREFIX = "/FileRequestPlugin";
+    private static final String MANIFEST_NAME = "asset-manifest.json";
+
+    private final Path root;
+    private final String[] indexFiles;
+    private final String cacheControl;
+    private final String immutableCacheControl;
+    private final AssetManifest manifest;
+
+    public FileRequestHandler() {
+        roots.add(PREFIX);
+
+        root = Paths.get(System.getProperty(ROOT_PROPERTY, ".")).toAbsolutePath().normalize();
+        indexFiles = System.getProperty(INDEX_PROPERTY, Protocol.DEFAULT_FILE).split(",");
+        for (int i = 0; i < indexFiles.length; i++) {
+            indexFiles[i] = indexFiles[i].trim();
+        }
+        cacheControl = System.getProperty(CACHE_CONTROL_PROPERTY, "public, max-age=3600");
+        immutableCacheControl = System.getProperty(IMMUTABLE_CACHE_CONTROL_PROPERTY,
+                "public, max-age=31536000, immutable");
+        manifest = AssetManifest.forRoot(root, PREFIX + "/");
     }
 
     @Override
     public HttpResponse handleGET(HttpRequest request) {
-        if(validatePath(request.getRelativeUri())){
-            if(request.getHeaders().containsKey("if-none-match")){
-                String oldTag = request.getHeader("if-none-match");
-                File f = new File(request.getRelativeUri().substring(1));
-                String lastModified =  f.lastModified()+"";
-                if(lastModified.equals(oldTag)){
-                   return  HttpResponse.create304NotModified(
-                           "Welcome to the FileRequestPlugin handler. You requested " + request.getUri() + " (relative: " + request.getRelativeUri() + ")!");
-                }
+        String connection = Protocol.OPEN.equalsIgnoreCase(request.getHeader(HeaderName.CONNECTION))
+                ? Protocol.OPEN : Protocol.CLOSE;
+
+        Path path = resolve(request.getRelativeUri());
+        if (path == null) {
+            // The access log has the request, its client and the 403; any client can send these
+            return HttpResponse.createResponse(HttpResponseType.Forbidden, connection,
+                    "You tried to access an invalid location: " + request.getUri());
+        }
+
+        File file = path.toFile();
+        String responseCacheControl = cacheControl;
+        if (!file.exists()) {
+            String relative = relativize(path);
+            if (relative.equals(MANIFEST_NAME)) {
+                HttpResponse response = HttpResponse.createResponse(HttpResponseType.OK, connection, manifest.toJson());
+                response.addHeader(Protocol.CONTENT_TYPE, "application/json");
+                response.addHeader(HeaderName.CACHE_CONTROL.getName(), "no-cache");
+                return response;
+            }
+
+            // A fingerprinted name is only good while the file is what was fingerprinted
+            AssetManifest.Asset asset = manifest.getFingerprinted(relative);
+            if (asset == null)
+                return HttpResponse.create404NotFound(connection);
+            file = root.resolve(asset.getPath()).toFile();
+            if (!asset.isCurrent(file))
+                return HttpResponse.create404NotFound(connection);
+            responseCacheControl = immutableCacheControl;
+        } else if (file.isDirectory()) {
+            // Relative links in the index only work from a URI that ends with a slash
+            if (!request.getUri().endsWith("/")) {
+                String location = request.getUri() + "/";
+                if (request.getQueryString() != null)
+                    location += "?" + request.getQueryString();
+                HttpResponse response = HttpResponse.create301MovedPermanently(connection);
+                response.addHeader("Location", location);
+                return response;
             }
-            HttpResponse response =  HttpResponse.createResponse(HttpResponseType.OK, "Close",
-                    "Welcome to the FileRequestPlugin handler. You requested " + request.getUri() + " (relative: " + request.getRelativeUri() + ")!");
-            File f = new File(request.getRelativeUri().substring(1));
-            response.putETag(f.lastModified()+"");
+            file = findIndex(file);
+        }
+        if (file == null || !file.isFile() || !file.canRead())
+            return HttpResponse.create404NotFound(connection);
+
+        // The validators describe the snapshot of the file the response holds and sends
+        HttpResponse response = HttpResponse.create200OK(file, connection);
+        long lastModified;
+        long size;
+        try {
+            OpenFileCache.Handle handle = response.getFileHandle();
+            lastModified = handle.getLastModified();
+            size = handle.getSize();
+        } catch (IOException e) {
+            return HttpResponse.create404NotFound(connection);
+        }
+        String etag = getETag(lastModified, size);
+        if (isNotModified(request, lastModified, etag)) {
+            response.release();
+            response = HttpResponse.create304NotModified(connection);
+            response.putETag(etag);
+            response.addHeader(Protocol.LAST_MODIFIED, HttpDate.format(lastModified));
+            response.addHeader(HeaderName.CACHE_CONTROL.getName(), responseCacheControl);
             return response;
-        }else{
-            return HttpResponse.createResponse(HttpResponseType.Forbidden, "Close",
-                    "You tried to access an invalid location. your ip has been reported " + request.getUri() + " (relative: " + request.getRelativeUri() + ")!");
+        }
+
+        String links = getPreloadLinks(file);
+        if (links != null)
+            request.sendInterimResponse(HttpResponse.create103EarlyHints(links));
+
+        response.putETag(etag);
+        response.addHeader(HeaderName.CACHE_CONTROL.getName(), responseCacheControl);
+        // Also for clients and proxies that drop the early hints
+        if (links != null)
+            response.addHeader(Protocol.LINK, links);
+        return response;
+    }
+
+    /**
+     * @return the <tt>Link</tt> header announcing the assets a page uses, or null if it is not
+     * a page or uses none
+     */
+    private String getPreloadLinks(File file) {
+        List<AssetManifest.Preload> preloads = manifest.getPreloads(relativize(file.toPath()));
+        if (preloads.isEmpty())
+            return null;
+
+        StringBuilder links = new StringBuilder();
+        for (AssetManifest.Preload preload : preloads) {
+            if (links.length() > 0)
+                links.append(", ");
+            links.append('<').append(preload.getUrl()).append(">; rel=preload; as=").append(preload.getAs());
+        }
+        return links.toString();
+    }
+
+    private String relativize(Path path) {
+        String relative = root.relativize(path).toString();
+        return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Maps a relative URI to a path under the document root.
+     *
+     * @return the path, or null if the URI is malformed or leads outside the root
+     */
+    private Path resolve(String relativeUri) {
+        String decoded = decode(relativeUri);
+        if (decoded == null || decoded.indexOf('\0') >= 0)
+            return null;
 
+        int start = 0;
+        while (start < decoded.length() && decoded.charAt(start) == '/') {
+            start++;
         }
 
+        try {
+            Path path = root.resolve(decoded.substring(start)).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
     }
 
-    private boolean validatePath(String path){
-        File f = new File("." + path);
-        String absolutePath = f.getAbsolutePath();
-        final String separator =  "file.separator";
-        String p = System.getProperty(separator);
-        String serverRoot =  p +"." + p;
-        if(absolutePath.contains(serverRoot)){
-            return true;
+    private File findIndex(File directory) {
+        for (String name : indexFiles) {
+            File index = new File(directory, name);
+            if (index.isFile())
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the percent-encoded UTF-8 of a URI path.
+     *
+     * @return the path, or null if an escape is malformed
+     */
+    private static String decode(String uri) {
+        if (uri.indexOf('%') < 0)
+            return uri;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(uri.length());
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c != '%') {
+                bytes.write(c);
+                continue;
+            }
+            if (i + 2 >= uri.length())
+                return null;
+            int high = Character.digit(uri.charAt(i + 1), 16);
+            int low = Character.digit(uri.charAt(i + 2), 16);
+            if (high < 0 || low < 0)
+                return null;
+            bytes.write((high << 4) | low);
+            i += 2;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String getETag(long lastModified, long size) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    /**
+     * Checks <tt>If-None-Match</tt>, or <tt>If-Modified-Since</tt> if there is no
+     * <tt>If-None-Match</tt>.
+     */
+    private static boolean isNotModified(HttpRequest request, long lastModified, String etag) {
+        String match = request.getHeader(HeaderName.IF_NONE_MATCH);
+        if (match != null) {
+            for (String tag : match.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals(etag) || tag.equals("*"))
+                    return true;
+            }
+            return false;
+        }
+
+        String since = request.getHeader(HeaderName.IF_MODIFIED_SINCE);
+        if (since != null) {
+            long time = HttpDate.parse(since);
+            // The header has whole seconds only
+            return time >= 0 && lastModified / 1000 <= time / 1000;
         }
         return false;
     }
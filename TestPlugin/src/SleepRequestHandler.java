@@ -0,0 +1,29 @@
+import pluginAPI.ARequestHandler;
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseType;
+
+/**
+ * A blocking handler for load tests: sleeps for <tt>?ms=</tt> milliseconds (100 by default),
+ * like a plugin waiting on a slow database or remote service. The server interrupts it if it
+ * gives up on the request.
+ */
+public class SleepRequestHandler extends ARequestHandler {
+    public SleepRequestHandler()
+    {
+        roots.add("/TestPlugin/Sleep");
+    }
+
+    @Override
+    public HttpResponse handleGET(HttpRequest request) {
+        long millis = TestParameters.getLong(request, "ms", 100);
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return HttpResponse.createResponse(HttpResponseType.OK, "Close",
+                String.format("Slept %d ms", (System.nanoTime() - start) / 1000000));
+    }
+}
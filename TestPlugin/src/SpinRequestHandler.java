@@ -0,0 +1,31 @@
+import pluginAPI.ARequestHandler;
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseType;
+
+/**
+ * A CPU-bound handler for load tests: hashes in a loop for <tt>?ms=</tt> milliseconds (10 by
+ * default), like a plugin rendering or compressing. It stops early if the request is cancelled.
+ */
+public class SpinRequestHandler extends ARequestHandler {
+    public SpinRequestHandler()
+    {
+        roots.add("/TestPlugin/Spin");
+    }
+
+    @Override
+    public HttpResponse handleGET(HttpRequest request) {
+        long millis = TestParameters.getLong(request, "ms", 10);
+        long end = System.nanoTime() + millis * 1000000L;
+        long hash = 17;
+        long rounds = 0;
+        while (System.nanoTime() < end && !request.isCancelled()) {
+            for (int i = 0; i < 1000; i++) {
+                hash = hash * 31 + (hash >>> 7) + i;
+            }
+            rounds++;
+        }
+        return HttpResponse.createResponse(HttpResponseType.OK, "Close",
+                String.format("Spun %d rounds (%x)", rounds, hash));
+    }
+}
@@ -0,0 +1,20 @@
+import protocol.HttpRequest;
+
+/**
+ * Reads the numeric query parameters of the load-test handlers.
+ */
+final class TestParameters {
+    private TestParameters() {
+    }
+
+    static long getLong(HttpRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
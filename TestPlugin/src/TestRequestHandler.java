@@ -2,6 +2,9 @@ import pluginAPI.ARequestHandler;
 import protocol.HttpRequest;
 import protocol.HttpResponse;
 import protocol.HttpResponseType;
+import protocol.Part;
+
+import java.io.File;
 
 public class TestRequestHandler extends ARequestHandler {
     public TestRequestHandler()
@@ -15,4 +18,33 @@ public class TestRequestHandler extends ARequestHandler {
         return HttpResponse.createResponse(HttpResponseType.OK, "Close",
                 "Welcome to the test handler. You requested " + request.getUri() + " (relative: " + request.getRelativeUri() + ")!");
     }
+
+    @Override
+    public HttpResponse handlePOST(HttpRequest request) {
+        StringBuilder body = new StringBuilder("Received");
+        try {
+            if (request.isMultipart()) {
+                for (Part part : request.getParts()) {
+                    body.append(String.format(" %s(%s, %d bytes)", part.getName(), part.getFileName(), part.getSize()));
+                }
+            } else {
+                body.append(" ").append(request.getParameters().asMap());
+            }
+        } catch (Exception e) {
+            return HttpResponse.createResponse(HttpResponseType.BadRequest, "Close", e.toString());
+        }
+        return HttpResponse.createResponse(HttpResponseType.OK, "Close", body.toString());
+    }
+
+    @Override
+    public HttpResponse handlePUT(HttpRequest request) {
+        File destination = new File(System.getProperty("java.io.tmpdir"), "TestPlugin-upload");
+        try {
+            long length = request.transferBodyTo(destination);
+            return HttpResponse.createResponse(HttpResponseType.Created, "Close",
+                    String.format("Stored %d bytes in %s", length, destination));
+        } catch (Exception e) {
+            return HttpResponse.createResponse(HttpResponseType.InternalServerError, "Close", e.toString());
+        }
+    }
 }
@@ -0,0 +1,306 @@
+package buffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s used for socket and file I/O.
+ * <p/>
+ * Buffers are handed out in fixed size classes ({@link #SMALL}, {@link #MEDIUM} and {@link #LARGE}).
+ * Each thread keeps a few buffers of every class in a local cache, so a worker that borrows and
+ * returns a buffer per request does not touch any shared state; only cache misses and overflows go
+ * to the bounded shared free list of each class.
+ * <p/>
+ * When the <tt>sws.buffer.debug</tt> system property is set, every borrowed buffer is tracked together
+ * with the stack trace of the code that borrowed it. Buffers that are garbage collected without being
+ * released, and buffers that are released twice, are reported.
+ */
+public final class BufferPool {
+    public static final String DEBUG_PROPERTY = "sws.buffer.debug";
+
+    public static final int SMALL = 4096;     // 4KB
+    public static final int MEDIUM = 16384;   // 16KB
+    public static final int LARGE = 65536;    // 64KB
+
+    private static final int[] SIZE_CLASSES = {SMALL, MEDIUM, LARGE};
+
+    /**
+     * Number of buffers of each size class cached per thread.
+     */
+    private static final int THREAD_CACHE_SIZE = 4;
+
+    /**
+     * Maximum number of free buffers of each size class kept in the shared free list.
+     */
+    private static final int SHARED_POOL_SIZE = 256;
+
+    private static final BufferPool defaultPool = new BufferPool(Boolean.getBoolean(DEBUG_PROPERTY));
+
+    private final ThreadLocal<ThreadCache> threadCache;
+    private final Queue<ByteBuffer>[] sharedFree;
+    private final AtomicInteger[] sharedCount;
+
+    private final AtomicLong allocations;
+    private final AtomicLong acquisitions;
+
+    private final boolean debug;
+    private final ReferenceQueue<ByteBuffer> leakQueue;
+    private final Map<Integer, List<LeakTracker>> outstanding;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param debug Whether borrowed buffers should be tracked for leaks.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean debug) {
+        this.debug = debug;
+        this.threadCache = new ThreadLocal<ThreadCache>() {
+            @Override
+            protected ThreadCache initialValue() {
+                return new ThreadCache();
+            }
+        };
+
+        this.sharedFree = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASSES.length];
+        this.sharedCount = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            this.sharedFree[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            this.sharedCount[i] = new AtomicInteger();
+        }
+
+        this.allocations = new AtomicLong();
+        this.acquisitions = new AtomicLong();
+
+        this.leakQueue = debug ? new ReferenceQueue<ByteBuffer>() : null;
+        this.outstanding = debug ? new HashMap<Integer, List<LeakTracker>>() : null;
+    }
+
+    /**
+     * The process-wide pool.
+     *
+     * @return the pool
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Borrows a cleared buffer with at least the requested capacity. Requests larger than
+     * {@link #LARGE} are served by a new, unpooled buffer.
+     *
+     * @param minCapacity The minimum capacity, in bytes.
+     * @return A buffer in write mode (position 0, limit at capacity)
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        acquisitions.incrementAndGet();
+
+        int sizeClass = sizeClassFor(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = threadCache.get().poll(sizeClass);
+            if (buffer == null) {
+                buffer = sharedFree[sizeClass].poll();
+                if (buffer != null)
+                    sharedCount[sizeClass].decrementAndGet();
+            }
+        }
+
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : minCapacity);
+        }
+
+        buffer.clear();
+
+        if (debug)
+            track(buffer);
+
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buffer The buffer, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+
+        if (debug && !untrack(buffer))
+            return;
+
+        int sizeClass = exactSizeClass(buffer);
+        if (sizeClass < 0)
+            return;
+
+        if (threadCache.get().offer(sizeClass, buffer))
+            return;
+
+        if (sharedCount[sizeClass].incrementAndGet() <= SHARED_POOL_SIZE) {
+            sharedFree[sizeClass].offer(buffer);
+        } else {
+            // Let the garbage collector have it
+            sharedCount[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of buffers this pool has had to allocate
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of buffers borrowed from this pool
+     */
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    /**
+     * Returns the number of borrowed buffers that have not been released yet. Only available in debug mode.
+     *
+     * @return the number of outstanding buffers, or -1 if leak detection is off
+     */
+    public int getOutstandingCount() {
+        if (!debug)
+            return -1;
+
+        synchronized (outstanding) {
+            int count = 0;
+            for (List<LeakTracker> trackers : outstanding.values()) {
+                count += trackers.size();
+            }
+            return count;
+        }
+    }
+
+    private static int sizeClassFor(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(ByteBuffer buffer) {
+        if (!buffer.isDirect())
+            return -1;
+
+        int capacity = buffer.capacity();
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+
+        LeakTracker tracker = new LeakTracker(buffer, leakQueue);
+        Integer key = System.identityHashCode(buffer);
+        synchronized (outstanding) {
+            List<LeakTracker> trackers = outstanding.get(key);
+            if (trackers == null) {
+                trackers = new ArrayList<LeakTracker>(1);
+                outstanding.put(key, trackers);
+            }
+            trackers.add(tracker);
+        }
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        Integer key = System.identityHashCode(buffer);
+        synchronized (outstanding) {
+            List<LeakTracker> trackers = outstanding.get(key);
+            if (trackers != null) {
+                for (Iterator<LeakTracker> it = trackers.iterator(); it.hasNext(); ) {
+                    if (it.next().get() == buffer) {
+                        it.remove();
+                        if (trackers.isEmpty())
+                            outstanding.remove(key);
+                        return true;
+                    }
+                }
+            }
+        }
+
+        new IllegalStateException("Buffer released twice or not borrowed from this pool").printStackTrace();
+        return false;
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            boolean leaked;
+            synchronized (outstanding) {
+                List<LeakTracker> trackers = outstanding.get(tracker.key);
+                leaked = trackers != null && trackers.remove(tracker);
+                if (trackers != null && trackers.isEmpty())
+                    outstanding.remove(tracker.key);
+            }
+
+            if (leaked) {
+                System.err.println("LEAK: a pooled buffer was garbage collected without being released");
+                tracker.acquiredAt.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Remembers where a buffer was borrowed. It is enqueued when the buffer becomes unreachable.
+     */
+    private static final class LeakTracker extends WeakReference<ByteBuffer> {
+        private final Integer key;
+        private final Throwable acquiredAt;
+
+        LeakTracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.key = System.identityHashCode(buffer);
+            this.acquiredAt = new Throwable("Buffer acquired here");
+        }
+    }
+
+    /**
+     * Small per-thread stacks of free buffers, one per size class.
+     */
+    private static final class ThreadCache {
+        private final ByteBuffer[][] buffers = new ByteBuffer[SIZE_CLASSES.length][THREAD_CACHE_SIZE];
+        private final int[] counts = new int[SIZE_CLASSES.length];
+
+        ByteBuffer poll(int sizeClass) {
+            int count = counts[sizeClass];
+            if (count == 0)
+                return null;
+
+            counts[sizeClass] = --count;
+            ByteBuffer buffer = buffers[sizeClass][count];
+            buffers[sizeClass][count] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            int count = counts[sizeClass];
+            if (count == THREAD_CACHE_SIZE)
+                return false;
+
+            buffers[sizeClass][count] = buffer;
+            counts[sizeClass] = count + 1;
+            return true;
+        }
+    }
+}
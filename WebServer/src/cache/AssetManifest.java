@@ -0,0 +1,508 @@
+package cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fingerprints the files under a document root by their content, so each can also be served
+ * under a name that changes whenever the file does, e.g. <tt>js/app.js</tt> as
+ * <tt>js/app.3f2a9c1b.js</tt>, which clients may then cache for good.
+ * <p/>
+ * The root is indexed when the manifest is created and checked again when it is used, at most
+ * every <tt>sws.assets.checkMillis</tt> (2000 by default). Only files whose size or modification
+ * time changed are hashed again; files over <tt>sws.assets.maxBytes</tt> (16MB) and hidden ones
+ * are left out. Pages (<tt>.html</tt>) are not fingerprinted, but the stylesheets and scripts
+ * they refer to are recorded, so they can be announced before the page is sent.
+ * <p/>
+ * Manifests live as long as the server, since plugins are loaded again and again.
+ */
+public final class AssetManifest {
+    public static final String CHECK_PROPERTY = "sws.assets.checkMillis";
+    public static final String MAX_BYTES_PROPERTY = "sws.assets.maxBytes";
+
+    // Hex digits of the SHA-256 of the content in a fingerprinted name
+    private static final int FINGERPRINT_LENGTH = 8;
+    // How much of a page is searched for the assets it uses, and how many are kept
+    private static final int MAX_PAGE_BYTES = 256 * 1024;
+    private static final int MAX_PRELOADS = 16;
+
+    private static final Pattern TAG = Pattern.compile("<(link|script)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE =
+            Pattern.compile("([a-zA-Z-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))");
+
+    private static final ConcurrentHashMap<String, AssetManifest> manifests =
+            new ConcurrentHashMap<String, AssetManifest>();
+
+    private final Path root;
+    private final String urlPrefix;
+    private final long checkNanos;
+    private final long maxBytes;
+
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private volatile Index index = new Index();
+    private volatile long checkedAt;
+
+    private AssetManifest(Path root, String urlPrefix, long checkMillis, long maxBytes) {
+        this.root = root;
+        this.urlPrefix = urlPrefix;
+        this.checkNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, checkMillis));
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the manifest of a document root, indexing the root the first time.
+     *
+     * @param root      The document root, absolute and normalized
+     * @param urlPrefix The URI path the root is served at, ending with a slash
+     * @return the manifest
+     */
+    public static AssetManifest forRoot(Path root, String urlPrefix) {
+        String key = root + "\n" + urlPrefix;
+        AssetManifest manifest = manifests.get(key);
+        if (manifest != null)
+            return manifest;
+
+        AssetManifest created = new AssetManifest(root, urlPrefix, Long.getLong(CHECK_PROPERTY, 2000),
+                Long.getLong(MAX_BYTES_PROPERTY, 16 * 1024 * 1024));
+        manifest = manifests.putIfAbsent(key, created);
+        if (manifest != null)
+            return manifest;
+        created.refresh(true);
+        return created;
+    }
+
+    /**
+     * Gets the asset a fingerprinted path names.
+     *
+     * @param path A path relative to the root, with <tt>/</tt> separators
+     * @return the asset, or null if no asset has that fingerprinted path
+     */
+    public Asset getFingerprinted(String path) {
+        refresh(false);
+        return index.byFingerprint.get(path);
+    }
+
+    /**
+     * Gets an asset by its own path.
+     *
+     * @param path A path relative to the root, with <tt>/</tt> separators
+     * @return the asset, or null if there is no such asset
+     */
+    public Asset getAsset(String path) {
+        refresh(false);
+        return index.assets.get(path);
+    }
+
+    /**
+     * Gets the stylesheets and scripts a page uses, as the page refers to them.
+     *
+     * @param page A path relative to the root, with <tt>/</tt> separators
+     * @return the assets to preload, empty if the page is unknown or uses none
+     */
+    public List<Preload> getPreloads(String page) {
+        refresh(false);
+        List<Preload> preloads = index.preloads.get(page);
+        return preloads == null ? Collections.<Preload>emptyList() : preloads;
+    }
+
+    /**
+     * @return the number of fingerprinted assets
+     */
+    public int size() {
+        return index.assets.size();
+    }
+
+    /**
+     * Writes the manifest as a JSON object mapping every asset's path to its fingerprinted path,
+     * for pages and build tools that need the fingerprinted names.
+     *
+     * @return the JSON
+     */
+    public String toJson() {
+        refresh(false);
+        TreeMap<String, Asset> sorted = new TreeMap<String, Asset>(index.assets);
+        StringBuilder json = new StringBuilder(64 + sorted.size() * 64);
+        json.append('{');
+        for (Asset asset : sorted.values()) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append("\n  ");
+            appendString(json, asset.path);
+            json.append(": ");
+            appendString(json, asset.fingerprintedPath);
+        }
+        json.append(sorted.isEmpty() ? "}\n" : "\n}\n");
+        return json.toString();
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    @Override
+    public String toString() {
+        Index current = index;
+        return String.format("%d assets, %d pages in %s", current.assets.size(), current.pages.size(), root);
+    }
+
+    /**
+     * Indexes the root again if it was checked long enough ago. Only one thread does so at a
+     * time, and the others keep using the previous index meanwhile, unless told to wait.
+     */
+    private void refresh(boolean wait) {
+        if (!wait && System.nanoTime() - checkedAt < checkNanos)
+            return;
+        if (wait)
+            indexLock.lock();
+        else if (!indexLock.tryLock())
+            return;
+
+        try {
+            if (!wait && System.nanoTime() - checkedAt < checkNanos)
+                return;
+            index = scan(index);
+            checkedAt = System.nanoTime();
+        } catch (IOException e) {
+            System.out.println("Could not index the assets in " + root + ": " + e.getMessage());
+            checkedAt = System.nanoTime();
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    private Index scan(final Index previous) throws IOException {
+        final Index next = new Index();
+        final Map<String, List<Reference>> references = new HashMap<String, List<Reference>>();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                return !dir.equals(root) && isHidden(dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (!attributes.isRegularFile() || isHidden(file))
+                    return FileVisitResult.CONTINUE;
+
+                String path = relativize(file);
+                long size = attributes.size();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+
+                try {
+                    if (isPage(path)) {
+                        Page page = previous.pages.get(path);
+                        if (page == null || page.size != size || page.lastModified != lastModified)
+                            page = new Page(size, lastModified, findReferences(file.toFile(), path));
+                        next.pages.put(path, page);
+                        references.put(path, page.references);
+                    } else if (size <= maxBytes) {
+                        Asset asset = previous.assets.get(path);
+                        if (asset == null || !asset.isCurrent(size, lastModified))
+                            asset = new Asset(path, hash(file.toFile()), size, lastModified);
+                        next.assets.put(path, asset);
+                        next.byFingerprint.put(asset.fingerprintedPath, asset);
+                    }
+                } catch (IOException e) {
+                    // Unreadable files are not served either
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Pages only announce assets that exist
+        for (Map.Entry<String, List<Reference>> entry : references.entrySet()) {
+            List<Preload> preloads = new ArrayList<Preload>();
+            for (Reference reference : entry.getValue()) {
+                if (next.assets.containsKey(reference.path) || next.byFingerprint.containsKey(reference.path))
+                    preloads.add(new Preload(reference.url, reference.as));
+            }
+            if (!preloads.isEmpty())
+                next.preloads.put(entry.getKey(), Collections.unmodifiableList(preloads));
+        }
+        return next;
+    }
+
+    private String relativize(Path file) {
+        String path = root.relativize(file).toString();
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+
+    private static boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    private static boolean isPage(String path) {
+        String lower = path.toLowerCase(Locale.ENGLISH);
+        return lower.endsWith(".html") || lower.endsWith(".htm");
+    }
+
+    /**
+     * @return the first hex digits of the SHA-256 of the file
+     */
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+
+        byte[] sum = digest.digest();
+        StringBuilder hex = new StringBuilder(FINGERPRINT_LENGTH);
+        for (int i = 0; hex.length() < FINGERPRINT_LENGTH; i++) {
+            hex.append(Character.forDigit((sum[i] >> 4) & 0xf, 16)).append(Character.forDigit(sum[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Finds the stylesheets and scripts of this site that a page links to.
+     */
+    private List<Reference> findReferences(File file, String page) throws IOException {
+        byte[] content = new byte[(int) Math.min(file.length(), MAX_PAGE_BYTES)];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            int count;
+            while (length < content.length && (count = in.read(content, length, content.length - length)) > 0) {
+                length += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        URI base;
+        try {
+            base = new URI(null, null, urlPrefix + page, null);
+        } catch (URISyntaxException e) {
+            return Collections.emptyList();
+        }
+
+        List<Reference> references = new ArrayList<Reference>();
+        Matcher tag = TAG.matcher(new String(content, StandardCharsets.UTF_8));
+        while (tag.find() && references.size() < MAX_PRELOADS) {
+            Map<String, String> attributes = new HashMap<String, String>();
+            Matcher attribute = ATTRIBUTE.matcher(tag.group(2));
+            while (attribute.find()) {
+                String value = attribute.group(2) != null ? attribute.group(2)
+                        : attribute.group(3) != null ? attribute.group(3) : attribute.group(4);
+                attributes.put(attribute.group(1).toLowerCase(Locale.ENGLISH), value);
+            }
+
+            String target;
+            String as;
+            if (tag.group(1).equalsIgnoreCase("script")) {
+                target = attributes.get("src");
+                as = "script";
+            } else {
+                String rel = attributes.get("rel");
+                if (rel == null || !(" " + rel.toLowerCase(Locale.ENGLISH) + " ").contains(" stylesheet "))
+                    continue;
+                target = attributes.get("href");
+                as = "style";
+            }
+            if (target == null || target.isEmpty())
+                continue;
+
+            Reference reference = resolve(base, target, as);
+            if (reference != null)
+                references.add(reference);
+        }
+        return references;
+    }
+
+    /**
+     * @return the reference, or null if it leads to another site or outside the root
+     */
+    private Reference resolve(URI base, String target, String as) {
+        URI resolved;
+        try {
+            resolved = base.resolve(new URI(target.trim()));
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (resolved.getScheme() != null || resolved.getAuthority() != null || resolved.getPath() == null
+                || !resolved.getPath().startsWith(urlPrefix))
+            return null;
+        return new Reference(resolved.getPath().substring(urlPrefix.length()), resolved.getRawPath(), as);
+    }
+
+    /**
+     * A fingerprinted file.
+     */
+    public static final class Asset {
+        private final String path;
+        private final String fingerprintedPath;
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        private Asset(String path, String hash, long size, long lastModified) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+
+            // The fingerprint goes before the extension, so the type of the file still shows
+            int slash = path.lastIndexOf('/');
+            int dot = path.lastIndexOf('.');
+            if (dot > slash + 1)
+                this.fingerprintedPath = path.substring(0, dot) + "." + hash + path.substring(dot);
+            else
+                this.fingerprintedPath = path + "." + hash;
+        }
+
+        /**
+         * @return the path relative to the root
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the path with the fingerprint, relative to the root
+         */
+        public String getFingerprintedPath() {
+            return fingerprintedPath;
+        }
+
+        /**
+         * @return the fingerprint
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Checks that the file still is what was fingerprinted, as far as its size and
+         * modification time tell.
+         *
+         * @param file The asset's file
+         * @return whether the fingerprint is still right
+         */
+        public boolean isCurrent(File file) {
+            return isCurrent(file.length(), file.lastModified());
+        }
+
+        private boolean isCurrent(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * An asset a page uses.
+     */
+    public static final class Preload {
+        private final String url;
+        private final String as;
+
+        private Preload(String url, String as) {
+            this.url = url;
+            this.as = as;
+        }
+
+        /**
+         * @return the URI path the page refers to the asset by
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the kind of asset, <tt>style</tt> or <tt>script</tt>
+         */
+        public String getAs() {
+            return as;
+        }
+    }
+
+    private static final class Reference {
+        private final String path;
+        private final String url;
+        private final String as;
+
+        private Reference(String path, String url, String as) {
+            this.path = path;
+            this.url = url;
+            this.as = as;
+        }
+    }
+
+    private static final class Page {
+        private final long size;
+        private final long lastModified;
+        private final List<Reference> references;
+
+        private Page(long size, long lastModified, List<Reference> references) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.references = references;
+        }
+    }
+
+    /**
+     * What a scan found; never changed once published.
+     */
+    private static final class Index {
+        private final Map<String, Asset> assets = new HashMap<String, Asset>();
+        private final Map<String, Asset> byFingerprint = new HashMap<String, Asset>();
+        private final Map<String, Page> pages = new HashMap<String, Page>();
+        private final Map<String, List<Preload>> preloads = new HashMap<String, List<Preload>>();
+    }
+}
@@ -0,0 +1,298 @@
+package cache;
+
+import log.AccessLog;
+import protocol.MimeTypes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the files that were served recently open, like nginx's <tt>open_file_cache</tt>, so a
+ * hot file costs no open, fstat and close per response.
+ * <p/>
+ * Responses for the same file share one {@link FileChannel} and must only use its positional
+ * <tt>read</tt> and <tt>transferTo</tt>. An entry counts the responses using it and is closed
+ * once it has been evicted and the last of them is done.
+ * <p/>
+ * An entry is checked against the file's size and modification time when it is older than
+ * <tt>sws.files.cacheValidMillis</tt> (1000 by default), and replaced if the file changed.
+ * Entries unused for <tt>sws.files.cacheInactiveMillis</tt> (20000) are evicted. When there are
+ * <tt>sws.files.cacheMaxEntries</tt> (1024) already, a clock hand goes round the entries and
+ * evicts the first one not used since it last passed, which approximates the least recently
+ * used one without a scan per miss; 0 turns the cache off.
+ */
+public final class OpenFileCache {
+    public static final String MAX_ENTRIES_PROPERTY = "sws.files.cacheMaxEntries";
+    public static final String VALID_PROPERTY = "sws.files.cacheValidMillis";
+    public static final String INACTIVE_PROPERTY = "sws.files.cacheInactiveMillis";
+
+    private static final OpenFileCache defaultCache = new OpenFileCache(
+            Integer.getInteger(MAX_ENTRIES_PROPERTY, 1024),
+            Long.getLong(VALID_PROPERTY, 1000),
+            Long.getLong(INACTIVE_PROPERTY, 20000));
+
+    private final int maxEntries;
+    private final long validNanos;
+    private final long inactiveNanos;
+
+    private final ConcurrentHashMap<String, Handle> entries = new ConcurrentHashMap<String, Handle>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // Where the clock hand is; a miss on a full cache moves it on
+    private final Object clockLock = new Object();
+    private Iterator<Map.Entry<String, Handle>> clockHand;
+    // Where errors go, off the request path; standard error if null
+    private volatile AccessLog errorLog;
+
+    /**
+     * @param maxEntries     The most files kept open, or 0 to open every file anew
+     * @param validMillis    How long an entry is trusted before the file is checked again
+     * @param inactiveMillis How long an unused entry is kept
+     */
+    public OpenFileCache(int maxEntries, long validMillis, long inactiveMillis) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.validNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, validMillis));
+        this.inactiveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, inactiveMillis));
+    }
+
+    /**
+     * The process-wide cache.
+     *
+     * @return the cache
+     */
+    public static OpenFileCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * @param errorLog The log errors go to, or null for standard error
+     */
+    public void setErrorLog(AccessLog errorLog) {
+        this.errorLog = errorLog;
+    }
+
+    /**
+     * Opens a file, or shares the channel of a cached one. The handle must be given back with
+     * {@link Handle#release()}.
+     *
+     * @param file The file
+     * @return the handle
+     * @throws IOException if the file cannot be opened
+     */
+    public Handle open(File file) throws IOException {
+        if (maxEntries == 0)
+            return new Handle(this, file, System.nanoTime(), 1);
+
+        String key = file.getPath();
+        long now = System.nanoTime();
+        sweep(now);
+
+        Handle handle = entries.get(key);
+        if (handle != null && now - handle.validatedAt > validNanos) {
+            // Trusted long enough: see whether the file changed underneath
+            if (handle.size == file.length() && handle.lastModified == file.lastModified()) {
+                handle.validatedAt = now;
+            } else {
+                evict(key, handle);
+                handle = null;
+            }
+        }
+        if (handle != null && handle.retain()) {
+            handle.lastUsed = now;
+            if (!handle.referenced)
+                handle.referenced = true;
+            hits.incrementAndGet();
+            return handle;
+        }
+
+        misses.incrementAndGet();
+        // One reference for the cache, one for the caller
+        Handle opened = new Handle(this, file, now, 2);
+        if ((entries.size() < maxEntries || evictUnreferenced()) && entries.putIfAbsent(key, opened) == null)
+            return opened;
+
+        // The cache is full of files in use, or another response opened this one meanwhile:
+        // the new channel serves this response only
+        opened.release();
+        return opened;
+    }
+
+    /**
+     * Evicts the entries unused for too long, at most a few times per inactivity period.
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < inactiveNanos / 4 || !lastSweep.compareAndSet(last, now))
+            return;
+
+        for (Map.Entry<String, Handle> entry : entries.entrySet()) {
+            if (now - entry.getValue().lastUsed > inactiveNanos)
+                evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Moves the clock hand to the next entry not used since the hand last passed it, clearing
+     * the marks of those that were, and evicts it.
+     *
+     * @return true if an entry was evicted
+     */
+    private boolean evictUnreferenced() {
+        synchronized (clockLock) {
+            // Twice round at most: the first time may only clear the marks
+            int limit = 2 * entries.size() + 1;
+            for (int i = 0; i < limit; i++) {
+                if (clockHand == null || !clockHand.hasNext()) {
+                    clockHand = entries.entrySet().iterator();
+                    if (!clockHand.hasNext())
+                        return false;
+                }
+                Map.Entry<String, Handle> entry = clockHand.next();
+                Handle handle = entry.getValue();
+                if (handle.referenced)
+                    handle.referenced = false;
+                else if (evict(entry.getKey(), handle))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private boolean evict(String key, Handle handle) {
+        if (!entries.remove(key, handle))
+            return false;
+        evictions.incrementAndGet();
+        // The cache's own reference
+        handle.release();
+        return true;
+    }
+
+    /**
+     * Closes every cached file that no response is using, and the others once they are done.
+     */
+    public void clear() {
+        for (Map.Entry<String, Handle> entry : entries.entrySet()) {
+            evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the number of files open in the cache
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return String.format("%d open, %d hits (%.1f%%), %d misses, %d evicted", size(), hits,
+                total == 0 ? 0.0 : hits * 100.0 / total, getMisses(), getEvictions());
+    }
+
+    /**
+     * An open file shared by the responses sending it.
+     */
+    public static final class Handle {
+        private final OpenFileCache cache;
+        private final FileChannel channel;
+        private final long size;
+        private final long lastModified;
+        private final String contentType;
+        private final AtomicInteger references;
+        private volatile long validatedAt;
+        private volatile long lastUsed;
+        // Used since the clock hand last passed
+        private volatile boolean referenced;
+
+        private Handle(OpenFileCache cache, File file, long now, int references) throws IOException {
+            this.cache = cache;
+            // Size and time before opening, so a change while opening shows at the next check
+            this.lastModified = file.lastModified();
+            this.size = file.length();
+            this.channel = new FileInputStream(file).getChannel();
+            this.contentType = MimeTypes.getContentType(file);
+            this.references = new AtomicInteger(references);
+            this.validatedAt = now;
+            this.lastUsed = now;
+        }
+
+        /**
+         * @return the channel, for positional reads and transfers only
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return the size of the file when it was opened
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the modification time of the file when it was opened
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the <tt>Content-Type</tt> for the file's extension, or null if it is unknown
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        private boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0)
+                    return false;
+                if (references.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Gives the handle back; the file is closed when nothing uses it any more.
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    AccessLog log = cache.errorLog;
+                    if (log != null)
+                        log.error(null, "Could not close a cached file", e);
+                    else
+                        e.printStackTrace();
+                }
+            }
+        }
+    }
+}
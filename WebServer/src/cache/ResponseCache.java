@@ -0,0 +1,798 @@
+package cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A response cache kept outside the heap in memory-mapped files, so that it is still warm
+ * after the server restarts.
+ * <p/>
+ * Responses are appended to a log of fixed-size segment files and never changed in place.
+ * An open-addressed hash index in direct memory maps the hash of a request key to the
+ * position of its newest record; a record superseded or expired stays in its segment until
+ * the whole segment is reclaimed. When the cache reaches its size limit the oldest segment is
+ * dropped: its records leave the index and its file is deleted. An entry that was looked up
+ * keeps its segment mapped until it is released, so a dropped segment is unmapped once the
+ * last response sending from it is done.
+ * <p/>
+ * Every record carries a CRC32. When the cache is opened the segments are scanned in order and
+ * the index is rebuilt from the records that check out; a scan stops at the first torn record,
+ * which is what a crash in the middle of an append leaves behind.
+ * <p/>
+ * Configured with system properties:
+ * <ul>
+ * <li><tt>sws.cache.dir</tt>: the directory of the segment files; the cache is off unless it is set.</li>
+ * <li><tt>sws.cache.maxBytes</tt>: the total size of the segments, 256MB by default.</li>
+ * <li><tt>sws.cache.segmentBytes</tt>: the size of one segment, 16MB by default.</li>
+ * <li><tt>sws.cache.maxEntryBytes</tt>: the largest response kept, 1MB by default.</li>
+ * <li><tt>sws.cache.indexSlots</tt>: the slots of the index, 65536 by default, rounded up to a
+ * power of two; it takes three entries per four slots.</li>
+ * </ul>
+ */
+public final class ResponseCache {
+    public static final String DIR_PROPERTY = "sws.cache.dir";
+    public static final String MAX_BYTES_PROPERTY = "sws.cache.maxBytes";
+    public static final String SEGMENT_BYTES_PROPERTY = "sws.cache.segmentBytes";
+    public static final String MAX_ENTRY_BYTES_PROPERTY = "sws.cache.maxEntryBytes";
+    public static final String INDEX_SLOTS_PROPERTY = "sws.cache.indexSlots";
+
+    private static final int RECORD = 0x53575352;
+    // A record whose write failed; skipped by the scan
+    private static final int HOLE = 0x53575348;
+    // Magic, length and CRC of the rest
+    private static final int RECORD_HEADER_LENGTH = 12;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int maxEntryBytes;
+
+    // Oldest first; the last one is appended to. Guarded by this.
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final Map<Integer, Segment> segmentsById = new HashMap<Integer, Segment>();
+    private Segment active;
+
+    // Pairs of (key hash, segment id << 32 | offset); a zero hash marks a free slot. Guarded by this.
+    private LongBuffer index;
+    private final int slots;
+    private int used;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    /**
+     * Opens the cache in a directory, recovering the segments already there.
+     *
+     * @param directory     The directory of the segment files
+     * @param maxBytes      The total size of the segments
+     * @param segmentBytes  The size of one segment
+     * @param maxEntryBytes The largest response kept
+     * @param indexSlots    The slots of the index
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    public ResponseCache(File directory, long maxBytes, int segmentBytes, int maxEntryBytes, int indexSlots)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create the cache directory " + directory);
+
+        this.directory = directory;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxSegments = (int) Math.max(2, maxBytes / this.segmentBytes);
+        this.maxEntryBytes = Math.min(Math.max(0, maxEntryBytes), this.segmentBytes - RECORD_HEADER_LENGTH);
+        this.slots = Integer.highestOneBit(Math.max(16, indexSlots - 1) << 1);
+        this.index = newIndex();
+
+        recover();
+    }
+
+    /**
+     * Opens the cache configured by the system properties.
+     *
+     * @return the cache, or null if it is off
+     * @throws IOException if the cache cannot be opened
+     */
+    public static ResponseCache fromSystemProperties() throws IOException {
+        String directory = System.getProperty(DIR_PROPERTY);
+        if (directory == null)
+            return null;
+
+        return new ResponseCache(new File(directory), Long.getLong(MAX_BYTES_PROPERTY, 256L * 1024 * 1024),
+                Integer.getInteger(SEGMENT_BYTES_PROPERTY, 16 * 1024 * 1024),
+                Integer.getInteger(MAX_ENTRY_BYTES_PROPERTY, 1024 * 1024),
+                Integer.getInteger(INDEX_SLOTS_PROPERTY, 65536));
+    }
+
+    /**
+     * Looks up the newest response stored for a key. The entry keeps its segment mapped until it
+     * is given back with {@link Entry#release()}.
+     *
+     * @param key The request key
+     * @return the response, or null if there is none or it has expired
+     */
+    public Entry get(String key) {
+        long hash = hash(key);
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            long location = find(hash);
+            segment = location < 0 ? null : segmentsById.get((int) (location >>> 32));
+            offset = (int) location;
+            if (segment != null)
+                segment.pins++;
+        }
+        if (segment == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        Entry entry = read(segment, offset);
+        if (entry == null || !entry.keyEquals(key.getBytes(StandardCharsets.UTF_8))
+                || entry.isExpired(System.currentTimeMillis())) {
+            unpin(segment);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Lets a segment go, and unmaps it if it was dropped and nothing else uses it.
+     */
+    private synchronized void unpin(Segment segment) {
+        if (--segment.pins == 0 && segment.dropped)
+            segment.unmap();
+    }
+
+    /**
+     * Stores a response with its body in memory.
+     *
+     * @return whether the response was stored
+     * @see #put(String, String, String, long, int, Map, FileChannel, long)
+     */
+    public boolean put(String key, String validator, String source, long expiresAt, int status,
+                       Map<String, String> headers, ByteBuffer body) throws IOException {
+        return append(key, validator, source, expiresAt, status, headers, body.remaining(), body.duplicate(), null);
+    }
+
+    /**
+     * Stores a response whose body is the contents of a file, copied straight into the segment.
+     *
+     * @param key       The request key
+     * @param validator What the response must still match to be used, e.g. the file's size and time
+     * @param source    The file the response was made from, or an empty string
+     * @param expiresAt When the response stops being fresh, in milliseconds since the epoch
+     * @param status    The status code
+     * @param headers   The headers, without <tt>Date</tt> and <tt>Connection</tt>
+     * @param file      The file, read by position only
+     * @param size      The number of bytes of the file to store
+     * @return whether the response was stored; it is not if it is too large or the index is full
+     * @throws IOException if the file cannot be read or a segment cannot be created
+     */
+    public boolean put(String key, String validator, String source, long expiresAt, int status,
+                       Map<String, String> headers, FileChannel file, long size) throws IOException {
+        if (size > maxEntryBytes) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        return append(key, validator, source, expiresAt, status, headers, (int) size, null, file);
+    }
+
+    private boolean append(String key, String validator, String source, long expiresAt, int status,
+                           Map<String, String> headers, int bodyLength, ByteBuffer body, FileChannel file)
+            throws IOException {
+        byte[] metadata = encodeMetadata(key, validator, source, expiresAt, status, headers, bodyLength);
+        long length = (long) RECORD_HEADER_LENGTH + metadata.length + bodyLength;
+        if (length > maxEntryBytes + RECORD_HEADER_LENGTH || length > segmentBytes) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        // Reserve the space, then fill it without holding up other requests
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (active == null || active.writePosition + length > active.buffer.capacity())
+                roll();
+            segment = active;
+            offset = segment.writePosition;
+            segment.writePosition += (int) length;
+            // Should it be dropped meanwhile, it stays mapped until the record is written
+            segment.pins++;
+        }
+
+        try {
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(offset + RECORD_HEADER_LENGTH);
+            record.limit(offset + (int) length);
+            boolean written = false;
+            try {
+                record.put(metadata);
+                if (body != null) {
+                    record.put(body);
+                } else {
+                    long position = 0;
+                    while (record.hasRemaining()) {
+                        int count = file.read(record, position);
+                        if (count < 0)
+                            throw new IOException("File truncated while caching it");
+                        position += count;
+                    }
+                }
+
+                CRC32 crc = new CRC32();
+                record.position(offset + RECORD_HEADER_LENGTH);
+                crc.update(record);
+                segment.buffer.putInt(offset + 8, (int) crc.getValue());
+                segment.buffer.putInt(offset + 4, (int) length - RECORD_HEADER_LENGTH);
+                segment.buffer.putInt(offset, RECORD);
+                written = true;
+            } finally {
+                if (!written) {
+                    segment.buffer.putInt(offset + 4, (int) length - RECORD_HEADER_LENGTH);
+                    segment.buffer.putInt(offset, HOLE);
+                }
+            }
+
+            synchronized (this) {
+                // The segment may have been dropped while the record was written
+                if (segment.dropped || !insert(hash(key), segment, offset)) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+            }
+            stores.incrementAndGet();
+            return true;
+        } finally {
+            unpin(segment);
+        }
+    }
+
+    /**
+     * Starts a new segment, dropping the oldest if the cache is full. Called with the lock held.
+     */
+    private void roll() throws IOException {
+        int id = active == null ? 1 : active.id + 1;
+        Segment segment = Segment.create(new File(directory, segmentName(id)), id, segmentBytes);
+        segments.addLast(segment);
+        segmentsById.put(id, segment);
+        active = segment;
+
+        while (segments.size() > maxSegments) {
+            drop(segments.removeFirst());
+        }
+    }
+
+    /**
+     * Takes the segment's records out of the index and deletes its file. Called with the lock held.
+     */
+    private void drop(Segment segment) {
+        segmentsById.remove(segment.id);
+        droppedSegments.incrementAndGet();
+
+        // Only the keys whose newest record is in this segment go
+        for (int i = 0; i < segment.hashCount; i++) {
+            remove(segment.hashes[i], segment.id);
+        }
+        segment.hashes = null;
+
+        if (!segment.file.delete())
+            segment.file.deleteOnExit();
+        segment.dropped = true;
+        if (segment.pins == 0)
+            segment.unmap();
+    }
+
+    /**
+     * Maps the segments found in the directory, checks their records and indexes the ones
+     * that are intact and fresh.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        List<Integer> ids = new ArrayList<Integer>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        long now = System.currentTimeMillis();
+        int records = 0;
+        long discarded = 0;
+        for (int id : ids) {
+            Segment segment = Segment.open(new File(directory, segmentName(id)), id);
+            segments.addLast(segment);
+            segmentsById.put(id, segment);
+            active = segment;
+
+            int offset = 0;
+            ByteBuffer buffer = segment.buffer;
+            while (offset + RECORD_HEADER_LENGTH <= buffer.capacity()) {
+                int magic = buffer.getInt(offset);
+                int length = buffer.getInt(offset + 4);
+                if ((magic != RECORD && magic != HOLE) || length < 0
+                        || length > buffer.capacity() - offset - RECORD_HEADER_LENGTH)
+                    break;
+                if (magic == RECORD) {
+                    if (!checksum(buffer, offset, length))
+                        break;
+                    Entry entry = read(segment, offset);
+                    if (entry != null && !entry.isExpired(now) && insert(hash(entry.getKey()), segment, offset))
+                        records++;
+                }
+                offset += RECORD_HEADER_LENGTH + length;
+            }
+            segment.writePosition = offset;
+
+            // Anything after the first bad record was being written when the server stopped.
+            // It is cleared, so that records appended over it cannot run into old ones.
+            for (int i = offset; i < Math.min(buffer.capacity(), offset + RECORD_HEADER_LENGTH); i++) {
+                if (buffer.get(i) != 0) {
+                    discarded += buffer.capacity() - offset;
+                    for (int j = offset; j < buffer.capacity(); j++) {
+                        buffer.put(j, (byte) 0);
+                    }
+                    break;
+                }
+            }
+        }
+
+        while (segments.size() > maxSegments) {
+            drop(segments.removeFirst());
+        }
+        if (!ids.isEmpty()) {
+            System.out.println(String.format("Response cache: recovered %d responses from %d segments%s",
+                    records, segments.size(), discarded > 0 ? String.format(", discarded %d torn bytes", discarded) : ""));
+        }
+    }
+
+    private static boolean checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER_LENGTH);
+        record.limit(offset + RECORD_HEADER_LENGTH + length);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue() == buffer.getInt(offset + 8);
+    }
+
+    private static byte[] encodeMetadata(String key, String validator, String source, long expiresAt, int status,
+                                         Map<String, String> headers, int bodyLength) {
+        int size = 8 + 2 + 4 + 2;
+        List<byte[]> strings = new ArrayList<byte[]>();
+        strings.add(key.getBytes(StandardCharsets.UTF_8));
+        strings.add(validator.getBytes(StandardCharsets.UTF_8));
+        strings.add(source.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            strings.add(header.getKey().getBytes(StandardCharsets.UTF_8));
+            strings.add(header.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        for (byte[] string : strings) {
+            size += 2 + Math.min(string.length, 0xFFFF);
+        }
+
+        ByteBuffer metadata = ByteBuffer.allocate(size);
+        metadata.putLong(expiresAt);
+        metadata.putShort((short) status);
+        metadata.putInt(bodyLength);
+        metadata.putShort((short) headers.size());
+        for (byte[] string : strings) {
+            int length = Math.min(string.length, 0xFFFF);
+            metadata.putShort((short) length);
+            metadata.put(string, 0, length);
+        }
+        return metadata.array();
+    }
+
+    /**
+     * Reads the fixed fields of the record at an offset of a segment; the strings are decoded
+     * when they are asked for.
+     *
+     * @return the entry, or null if there is no record
+     */
+    private Entry read(Segment segment, int offset) {
+        ByteBuffer record = segment.buffer.asReadOnlyBuffer();
+        if (record.getInt(offset) != RECORD)
+            return null;
+        record.position(offset + RECORD_HEADER_LENGTH);
+
+        long expiresAt = record.getLong();
+        int status = record.getShort() & 0xFFFF;
+        int bodyLength = record.getInt();
+        int headerCount = record.getShort() & 0xFFFF;
+        int strings = record.position();
+        int position = strings;
+        for (int i = 0; i < 3 + headerCount * 2; i++) {
+            position = skipString(record, position);
+        }
+
+        record.limit(position + bodyLength);
+        record.position(position);
+        return new Entry(this, segment, record.slice(), record, strings, expiresAt, status, headerCount);
+    }
+
+    /**
+     * @return the position just past the string at a position
+     */
+    private static int skipString(ByteBuffer record, int position) {
+        return position + 2 + (record.getShort(position) & 0xFFFF);
+    }
+
+    private static String readString(ByteBuffer record, int position) {
+        int length = record.getShort(position) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        ByteBuffer string = record.duplicate();
+        string.limit(position + 2 + length);
+        string.position(position + 2);
+        string.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private LongBuffer newIndex() {
+        return ByteBuffer.allocateDirect(slots * 16).asLongBuffer();
+    }
+
+    private long find(long hash) {
+        int mask = slots - 1;
+        for (int slot = (int) hash & mask, probes = 0; probes < slots; slot = (slot + 1) & mask, probes++) {
+            long found = index.get(slot * 2);
+            if (found == hash)
+                return index.get(slot * 2 + 1);
+            if (found == 0)
+                return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Points the key's slot at a record, and notes the key in the record's segment so that the
+     * slot can be cleared when the segment is dropped.
+     */
+    private boolean insert(long hash, Segment segment, int offset) {
+        long location = location(segment.id, offset);
+        int mask = slots - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            long found = index.get(slot * 2);
+            if (found == hash) {
+                index.put(slot * 2 + 1, location);
+                segment.addHash(hash);
+                return true;
+            }
+            if (found == 0) {
+                if (used >= slots / 4 * 3)
+                    return false;
+                index.put(slot * 2, hash);
+                index.put(slot * 2 + 1, location);
+                used++;
+                segment.addHash(hash);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Clears the key's slot if it points into the segment, shifting back the slots after it that
+     * would otherwise no longer be found.
+     */
+    private void remove(long hash, int segmentId) {
+        int mask = slots - 1;
+        int slot = (int) hash & mask;
+        while (true) {
+            long found = index.get(slot * 2);
+            if (found == 0)
+                return;
+            if (found == hash)
+                break;
+            slot = (slot + 1) & mask;
+        }
+        if ((int) (index.get(slot * 2 + 1) >>> 32) != segmentId)
+            return;
+
+        int hole = slot;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long moved = index.get(next * 2);
+            if (moved == 0)
+                break;
+            // A slot stays put if its home lies cyclically after the hole, up to the slot itself
+            int home = (int) moved & mask;
+            boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!stays) {
+                index.put(hole * 2, moved);
+                index.put(hole * 2 + 1, index.get(next * 2 + 1));
+                hole = next;
+            }
+        }
+        index.put(hole * 2, 0);
+        index.put(hole * 2 + 1, 0);
+        used--;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 64-bit FNV-1a, never zero.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static String segmentName(int id) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Writes the segments out to their files.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * @return the largest body the cache keeps
+     */
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStores() {
+        return stores.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return String.format("%d entries in %d segments, %d hits (%.1f%%), %d misses, %d stored, %d rejected, %d segments dropped",
+                used, segments.size(), hits, total == 0 ? 0.0 : hits * 100.0 / total, getMisses(), getStores(),
+                rejected.get(), droppedSegments.get());
+    }
+
+    /**
+     * A cached response. Its body is a view of the mapped segment, valid until the entry is
+     * released; its key, validator and headers are decoded from the segment when asked for.
+     */
+    public static final class Entry {
+        private final ResponseCache cache;
+        private final Segment segment;
+        private final ByteBuffer body;
+        private final ByteBuffer record;
+        // The position of the key, followed by the validator, the source and the headers
+        private final int strings;
+        private final long expiresAt;
+        private final int status;
+        private final int headerCount;
+        private boolean released;
+
+        private Entry(ResponseCache cache, Segment segment, ByteBuffer body, ByteBuffer record, int strings,
+                      long expiresAt, int status, int headerCount) {
+            this.cache = cache;
+            this.segment = segment;
+            this.body = body;
+            this.record = record;
+            this.strings = strings;
+            this.expiresAt = expiresAt;
+            this.status = status;
+            this.headerCount = headerCount;
+        }
+
+        public String getKey() {
+            return readString(record, strings);
+        }
+
+        public String getValidator() {
+            return readString(record, skipString(record, strings));
+        }
+
+        /**
+         * @return the file the response was made from, or an empty string
+         */
+        public String getSource() {
+            return readString(record, skipString(record, skipString(record, strings)));
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the header names and values, alternating
+         */
+        public String[] getHeaders() {
+            String[] headers = new String[headerCount * 2];
+            int position = headersStart();
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = readString(record, position);
+                position = skipString(record, position);
+            }
+            return headers;
+        }
+
+        /**
+         * @param name The header name, in any case
+         * @return the header's value, or null if the response does not have it
+         */
+        public String getHeader(String name) {
+            int position = headersStart();
+            for (int i = 0; i < headerCount; i++) {
+                int value = skipString(record, position);
+                if (asciiEqualsIgnoreCase(position, name))
+                    return readString(record, value);
+                position = skipString(record, value);
+            }
+            return null;
+        }
+
+        /**
+         * @return a read-only view of the body in the mapped segment
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+
+        /**
+         * Gives the entry back once nothing reads its body any more, so that the segment can be
+         * unmapped after it is dropped.
+         */
+        public void release() {
+            if (released)
+                return;
+            released = true;
+            cache.unpin(segment);
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+
+        private boolean keyEquals(byte[] key) {
+            if ((record.getShort(strings) & 0xFFFF) != key.length)
+                return false;
+            for (int i = 0; i < key.length; i++) {
+                if (record.get(strings + 2 + i) != key[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean asciiEqualsIgnoreCase(int position, String name) {
+            if ((record.getShort(position) & 0xFFFF) != name.length())
+                return false;
+            for (int i = 0; i < name.length(); i++) {
+                char c = (char) (record.get(position + 2 + i) & 0xFF);
+                if (Character.toLowerCase(c) != Character.toLowerCase(name.charAt(i)))
+                    return false;
+            }
+            return true;
+        }
+
+        private int headersStart() {
+            return skipString(record, skipString(record, skipString(record, strings)));
+        }
+    }
+
+    /**
+     * One mapped segment file.
+     */
+    private static final class Segment {
+        // Unmaps a buffer at once, where the JDK allows it; otherwise the collector does
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Exception e) {
+                // Before Java 9, or not permitted
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        // Guarded by the cache: the entries and writes still using the mapping, whether the
+        // segment was dropped, and the keys whose records it holds
+        int pins;
+        boolean dropped;
+        long[] hashes = new long[64];
+        int hashCount;
+
+        private Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void addHash(long hash) {
+            if (hashCount == hashes.length)
+                hashes = Arrays.copyOf(hashes, hashCount * 2);
+            hashes[hashCount++] = hash;
+        }
+
+        void unmap() {
+            if (INVOKE_CLEANER == null)
+                return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        static Segment create(File file, int id, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.setLength(size);
+                return new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            } finally {
+                // The mapping outlives the file descriptor
+                raf.close();
+            }
+        }
+
+        static Segment open(File file, int id) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return new Segment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541). One decoder belongs to each connection, since the
+ * dynamic table is shared by all header blocks the client sends on it.
+ * <p/>
+ * Decoded fields are checked against the size limit the server advertised in
+ * <tt>SETTINGS_MAX_HEADER_LIST_SIZE</tt>, so a block that expands into a huge list is rejected
+ * before it is materialized.
+ */
+final class HpackDecoder {
+    /**
+     * The static table, as name and value pairs. Index 1 is the first pair.
+     */
+    static final String[] STATIC_TABLE = {
+            ":authority", "",
+            ":method", "GET",
+            ":method", "POST",
+            ":path", "/",
+            ":path", "/index.html",
+            ":scheme", "http",
+            ":scheme", "https",
+            ":status", "200",
+            ":status", "204",
+            ":status", "206",
+            ":status", "304",
+            ":status", "400",
+            ":status", "404",
+            ":status", "500",
+            "accept-charset", "",
+            "accept-encoding", "gzip, deflate",
+            "accept-language", "",
+            "accept-ranges", "",
+            "accept", "",
+            "access-control-allow-origin", "",
+            "age", "",
+            "allow", "",
+            "authorization", "",
+            "cache-control", "",
+            "content-disposition", "",
+            "content-encoding", "",
+            "content-language", "",
+            "content-length", "",
+            "content-location", "",
+            "content-range", "",
+            "content-type", "",
+            "cookie", "",
+            "date", "",
+            "etag", "",
+            "expect", "",
+            "expires", "",
+            "from", "",
+            "host", "",
+            "if-match", "",
+            "if-modified-since", "",
+            "if-none-match", "",
+            "if-range", "",
+            "if-unmodified-since", "",
+            "last-modified", "",
+            "link", "",
+            "location", "",
+            "max-forwards", "",
+            "proxy-authenticate", "",
+            "proxy-authorization", "",
+            "range", "",
+            "referer", "",
+            "refresh", "",
+            "retry-after", "",
+            "server", "",
+            "set-cookie", "",
+            "strict-transport-security", "",
+            "transfer-encoding", "",
+            "user-agent", "",
+            "vary", "",
+            "via", "",
+            "www-authenticate", ""
+    };
+
+    static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length / 2;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // Per-entry overhead counted towards the table size
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+
+    // The dynamic table, a ring of name and value pairs; the newest entry has the lowest index
+    private String[] entries = new String[32];
+    private int head;
+    private int count;
+    private int tableSize;
+    private int capacity;
+
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(64);
+
+    /**
+     * @param maxTableSize      The dynamic table size advertised in SETTINGS_HEADER_TABLE_SIZE
+     * @param maxHeaderListSize The limit advertised in SETTINGS_MAX_HEADER_LIST_SIZE
+     */
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+        this.capacity = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block and appends the fields to the list, alternating names and values.
+     *
+     * @throws Http2Exception if the block is malformed or too large
+     */
+    void decode(byte[] block, int length, List<String> fields) throws Http2Exception {
+        int[] position = {0};
+        int listSize = 0;
+        boolean fieldSeen = false;
+
+        while (position[0] < length) {
+            int b = block[position[0]] & 0xff;
+            String name;
+            String value;
+
+            if ((b & 0x80) != 0) {
+                // Indexed header field
+                int index = readInteger(block, length, position, 7);
+                name = getName(index);
+                value = getValue(index);
+            } else if ((b & 0xe0) == 0x20) {
+                // Dynamic table size update, only allowed before the first field
+                int size = readInteger(block, length, position, 5);
+                if (fieldSeen || size > maxTableSize)
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid table size update");
+                capacity = size;
+                evict(0);
+                continue;
+            } else {
+                // Literal header field, with incremental indexing (01), without indexing (0000)
+                // or never indexed (0001)
+                boolean indexed = (b & 0xc0) == 0x40;
+                int index = readInteger(block, length, position, indexed ? 6 : 4);
+                name = index == 0 ? readString(block, length, position) : getName(index);
+                value = readString(block, length, position);
+                if (indexed)
+                    insert(name, value);
+            }
+
+            fieldSeen = true;
+            listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+            if (listSize > maxHeaderListSize)
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header list too large");
+
+            fields.add(name);
+            fields.add(value);
+        }
+    }
+
+    private String getName(int index) throws Http2Exception {
+        return lookup(index, 0);
+    }
+
+    private String getValue(int index) throws Http2Exception {
+        return lookup(index, 1);
+    }
+
+    private String lookup(int index, int part) throws Http2Exception {
+        if (index >= 1 && index <= STATIC_TABLE_LENGTH)
+            return STATIC_TABLE[(index - 1) * 2 + part];
+
+        int dynamic = index - STATIC_TABLE_LENGTH - 1;
+        if (index < 1 || dynamic >= count)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid table index " + index);
+
+        int slot = (head + dynamic) % (entries.length / 2);
+        return entries[slot * 2 + part];
+    }
+
+    private void insert(String name, String value) {
+        int size = name.length() + value.length() + ENTRY_OVERHEAD;
+        if (size > capacity) {
+            // An entry larger than the table empties it and is not added
+            evict(capacity);
+            return;
+        }
+        evict(capacity - size);
+
+        int slots = entries.length / 2;
+        if (count == slots) {
+            String[] grown = new String[entries.length * 2];
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % slots;
+                grown[i * 2] = entries[slot * 2];
+                grown[i * 2 + 1] = entries[slot * 2 + 1];
+            }
+            entries = grown;
+            head = 0;
+            slots = entries.length / 2;
+        }
+
+        head = (head - 1 + slots) % slots;
+        entries[head * 2] = name;
+        entries[head * 2 + 1] = value;
+        count++;
+        tableSize += size;
+    }
+
+    /**
+     * Drops the oldest entries until the table size is at most the supplied size.
+     */
+    private void evict(int size) {
+        int slots = entries.length / 2;
+        while (tableSize > size && count > 0) {
+            int slot = (head + count - 1) % slots;
+            tableSize -= entries[slot * 2].length() + entries[slot * 2 + 1].length() + ENTRY_OVERHEAD;
+            entries[slot * 2] = null;
+            entries[slot * 2 + 1] = null;
+            count--;
+        }
+    }
+
+    /**
+     * Reads an integer with an N-bit prefix (RFC 7541, section 5.1).
+     */
+    private static int readInteger(byte[] block, int length, int[] position, int prefix) throws Http2Exception {
+        int max = (1 << prefix) - 1;
+        int value = block[position[0]++] & max;
+        if (value < max)
+            return value;
+
+        int shift = 0;
+        int b;
+        do {
+            if (position[0] == length || shift > 21)
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid integer");
+            b = block[position[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Reads a string literal, Huffman-coded or not (RFC 7541, section 5.2).
+     */
+    private String readString(byte[] block, int length, int[] position) throws Http2Exception {
+        if (position[0] == length)
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int size = readInteger(block, length, position, 7);
+        if (size > length - position[0])
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+
+        int start = position[0];
+        position[0] += size;
+        if (!huffman)
+            return new String(block, start, size, ISO_8859_1);
+
+        scratch.reset();
+        Huffman.decode(block, start, size, scratch);
+        return new String(scratch.toByteArray(), ISO_8859_1);
+    }
+}
@@ -0,0 +1,75 @@
+package http2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes response header blocks with HPACK (RFC 7541).
+ * <p/>
+ * The encoder only refers to the static table and never adds entries to the dynamic one, so it
+ * keeps no state and can be shared by all streams of a connection. Strings are sent as literals
+ * without Huffman coding; response headers are short and mostly found in the static table anyway.
+ */
+final class HpackEncoder {
+    // Static table indexes by name, and by name and value joined with a NUL
+    private static final Map<String, Integer> NAMES = new HashMap<String, Integer>();
+    private static final Map<String, Integer> FIELDS = new HashMap<String, Integer>();
+
+    static {
+        String[] table = HpackDecoder.STATIC_TABLE;
+        for (int i = table.length / 2 - 1; i >= 0; i--) {
+            NAMES.put(table[i * 2], i + 1);
+            if (!table[i * 2 + 1].isEmpty())
+                FIELDS.put(table[i * 2] + '\0' + table[i * 2 + 1], i + 1);
+        }
+    }
+
+    /**
+     * Appends one header field to the block. The name must already be in lower case.
+     */
+    void encode(String name, String value, ByteArrayOutputStream out) {
+        Integer index = FIELDS.get(name + '\0' + value);
+        if (index != null) {
+            // Indexed header field
+            writeInteger(out, 0x80, 7, index);
+            return;
+        }
+
+        // Literal header field without indexing, with an indexed name where possible
+        index = NAMES.get(name);
+        if (index != null) {
+            writeInteger(out, 0x00, 4, index);
+        } else {
+            out.write(0x00);
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    /**
+     * Writes an integer with an N-bit prefix (RFC 7541, section 5.1).
+     */
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        writeInteger(out, 0x00, 7, s.length());
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+}
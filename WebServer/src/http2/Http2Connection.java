@@ -0,0 +1,1104 @@
+package http2;
+
+import buffer.BufferPool;
+import cache.OpenFileCache;
+import protocol.HeaderName;
+import protocol.HttpHeaders;
+import protocol.HttpMethod;
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseType;
+import protocol.InterimResponder;
+import protocol.Protocol;
+import protocol.ProtocolException;
+import timing.RequestTiming;
+import timing.Stage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves HTTP/2 over cleartext TCP (h2c, RFC 7540), either after the client's connection
+ * preface ("prior knowledge") or after an HTTP/1.1 <tt>Upgrade: h2c</tt> request.
+ * <p/>
+ * The thread that owns the connection reads and handles frames. Once a stream's request is
+ * complete it is converted to an {@link HttpRequest} and handed to the executor, so requests
+ * multiplexed on one connection are handled concurrently by the same plugins that serve HTTP/1.1.
+ * Workers write their response frames under a lock, and wait for WINDOW_UPDATE frames when the
+ * client's flow-control windows are used up.
+ * <p/>
+ * Request bodies are collected in memory, up to <tt>sws.http2.maxRequestBody</tt> bytes (16MB by
+ * default). At most <tt>sws.http2.maxConcurrentStreams</tt> streams (100 by default) may be open
+ * at once; further streams are refused.
+ */
+public class Http2Connection {
+    public static final String MAX_CONCURRENT_STREAMS_PROPERTY = "sws.http2.maxConcurrentStreams";
+    public static final String MAX_REQUEST_BODY_PROPERTY = "sws.http2.maxRequestBody";
+
+    private static final int MAX_CONCURRENT_STREAMS = Integer.getInteger(MAX_CONCURRENT_STREAMS_PROPERTY, 100);
+    private static final int MAX_REQUEST_BODY = Integer.getInteger(MAX_REQUEST_BODY_PROPERTY, 16 * 1024 * 1024);
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * The client connection preface.
+     */
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1);
+
+    // Frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // Frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // Settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The largest frame either side sends; the default SETTINGS_MAX_FRAME_SIZE.
+     */
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    /**
+     * The version of the requests the streams carry.
+     */
+    public static final String VERSION = "HTTP/2.0";
+
+    private static final String PROTOCOL = "HTTP/2";
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_LIST_SIZE = 65536;
+
+    /**
+     * The receive window offered for each stream and for the connection. Received data is
+     * acknowledged as soon as it is buffered, so this only bounds how much is in flight.
+     */
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+
+    /**
+     * How long to wait for workers to finish their responses after the client stops sending.
+     */
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final ByteBuffer inBuffer;
+    private final BufferPool pool;
+    private final Executor executor;
+    private final RequestDispatcher dispatcher;
+
+    private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<Integer, Http2Stream>();
+
+    // Reader state
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private byte[] headerBlock = new byte[MAX_FRAME_SIZE];
+    private int headerBlockLength;
+    private int continuationStream;
+    private boolean continuationEndStream;
+    private int lastStreamId;
+    private boolean settingsReceived;
+
+    // Writer state, guarded by writeLock
+    private final Object writeLock = new Object();
+    private ByteBuffer writeBuffer;
+
+    // Flow control and worker accounting, guarded by flowLock
+    private final Object flowLock = new Object();
+    private long connectionWindow = DEFAULT_WINDOW_SIZE;
+    private int initialWindow = DEFAULT_WINDOW_SIZE;
+    private int maxFrameSize = MAX_FRAME_SIZE;
+    private int pending;
+
+    private volatile boolean closed;
+
+    /**
+     * @param in         The channel to read frames from
+     * @param out        The channel to write frames to
+     * @param inBuffer   The connection's read buffer, in read mode; bytes already read are used first
+     * @param pool       The pool to borrow the write buffer from
+     * @param executor   The executor that runs the request handlers
+     * @param dispatcher Produces the response for each request
+     */
+    public Http2Connection(ReadableByteChannel in, WritableByteChannel out, ByteBuffer inBuffer, BufferPool pool,
+                           Executor executor, RequestDispatcher dispatcher) {
+        this.in = in;
+        this.out = out;
+        this.inBuffer = inBuffer;
+        this.pool = pool;
+        this.executor = executor;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Checks whether the connection starts with the HTTP/2 client preface, reading only as many
+     * bytes as needed to tell. Nothing is consumed from the buffer.
+     *
+     * @param channel The channel to read from
+     * @param buffer  The connection's read buffer, in read mode
+     * @return true if the client speaks HTTP/2 with prior knowledge
+     * @throws IOException
+     */
+    public static boolean startsWithPreface(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (true) {
+            int available = Math.min(buffer.remaining(), PREFACE.length);
+            for (int i = 0; i < available; i++) {
+                if (buffer.get(buffer.position() + i) != PREFACE[i])
+                    return false;
+            }
+            if (available == PREFACE.length)
+                return true;
+
+            buffer.compact();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } finally {
+                buffer.flip();
+            }
+            if (read < 0)
+                return false;
+        }
+    }
+
+    /**
+     * Returns the client's settings if the request asks to upgrade the connection to h2c.
+     * Only requests without a body are upgraded; for any other request the header is ignored.
+     *
+     * @param request An HTTP/1.1 request
+     * @return the SETTINGS payload from the HTTP2-Settings header, or null if the request cannot be upgraded
+     */
+    public static byte[] getUpgradeSettings(HttpRequest request) {
+        if (!Protocol.VERSION.equalsIgnoreCase(request.getVersion())
+                || !hasToken(request.getHeader(HeaderName.UPGRADE), "h2c")
+                || !hasToken(request.getHeader(HeaderName.CONNECTION), "upgrade")
+                || request.getContentLength() != 0) {
+            return null;
+        }
+
+        String settings = request.getHeader(HeaderName.HTTP2_SETTINGS);
+        if (settings == null)
+            return null;
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if (value == null)
+            return false;
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Serves a connection that started with the client preface.
+     */
+    public void serve() {
+        try {
+            writeBuffer = pool.acquire(BufferPool.LARGE);
+            writeSettings();
+            readPreface();
+            readFrames();
+        } catch (IOException e) {
+            // The connection was closed or reset
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Switches an HTTP/1.1 connection to HTTP/2 and serves it. The upgrade request becomes
+     * stream 1, whose response is sent over HTTP/2.
+     *
+     * @param request  The upgrade request
+     * @param settings The client settings from {@link #getUpgradeSettings(HttpRequest)}
+     */
+    public void serveUpgrade(HttpRequest request, byte[] settings) {
+        // Copy the request before the connection buffer is reused
+        Http2Stream stream = new Http2Stream(1, DEFAULT_WINDOW_SIZE);
+        stream.method = request.getMethod().name();
+        stream.path = request.getQueryString() == null ? request.getUri()
+                : request.getUri() + '?' + request.getQueryString();
+        for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+            String name = entry.getKey();
+            if (!isConnectionSpecific(name) && !name.equals("http2-settings")) {
+                stream.fields.add(name);
+                stream.fields.add(entry.getValue());
+            }
+        }
+        stream.remoteClosed = true;
+
+        try {
+            HttpResponse response = HttpResponse.createResponse(HttpResponseType.SwitchingProtocols, "Upgrade");
+            response.addHeader("Upgrade", "h2c");
+            response.write(out, pool);
+
+            writeBuffer = pool.acquire(BufferPool.LARGE);
+            writeSettings();
+            // Stream 1 is open before the settings apply, so that it gets the client's initial window
+            lastStreamId = 1;
+            streams.put(1, stream);
+            try {
+                applySettings(settings, settings.length);
+            } catch (Http2Exception e) {
+                writeGoAway(e);
+                return;
+            }
+
+            try {
+                dispatch(stream);
+            } catch (Http2Exception e) {
+                resetStream(e.getStreamId(), e.getErrorCode());
+            }
+
+            readPreface();
+            readFrames();
+        } catch (IOException e) {
+            // The connection was closed or reset
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        readFully(preface, preface.length);
+        for (int i = 0; i < preface.length; i++) {
+            if (preface[i] != PREFACE[i]) {
+                writeGoAway(new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface"));
+                throw new EOFException("Invalid connection preface");
+            }
+        }
+    }
+
+    /**
+     * Reads and handles frames until the client closes the connection or a connection error occurs.
+     */
+    private void readFrames() throws IOException {
+        while (true) {
+            if (!readFrameHeader())
+                return;
+
+            int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            int type = frameHeader[3] & 0xff;
+            int flags = frameHeader[4] & 0xff;
+            int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+
+            try {
+                if (length > MAX_FRAME_SIZE)
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame too large");
+                readFully(payload, length);
+
+                if (!settingsReceived && type != SETTINGS)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected SETTINGS");
+                if (continuationStream != 0 && (type != CONTINUATION || streamId != continuationStream))
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION");
+
+                handleFrame(type, flags, streamId, length);
+            } catch (Http2Exception e) {
+                if (e.isConnectionError()) {
+                    writeGoAway(e);
+                    return;
+                }
+                resetStream(e.getStreamId(), e.getErrorCode());
+            }
+        }
+    }
+
+    private void handleFrame(int type, int flags, int streamId, int length) throws Http2Exception, IOException {
+        switch (type) {
+            case DATA:
+                onData(flags, streamId, length);
+                break;
+            case HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case PRIORITY:
+                if (streamId == 0)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                if (length != 5)
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "Invalid PRIORITY frame");
+                // Responses are not prioritized
+                break;
+            case RST_STREAM:
+                onResetStream(streamId, length);
+                break;
+            case SETTINGS:
+                onSettings(flags, streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients cannot push");
+            case PING:
+                if (streamId != 0)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+                if (length != 8)
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+                if ((flags & FLAG_ACK) == 0)
+                    writeFrame(PING, FLAG_ACK, 0, ByteBuffer.wrap(payload, 0, 8));
+                break;
+            case GOAWAY:
+                if (streamId != 0)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                // The client opens no more streams; the ones in progress are still answered
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                if (continuationStream == 0)
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                appendHeaderBlock(0, length);
+                if ((flags & FLAG_END_HEADERS) != 0)
+                    endHeaders(streamId, continuationEndStream);
+                break;
+            default:
+                // Unknown frame types are ignored
+                break;
+        }
+    }
+
+    private void onData(int flags, int streamId, int length) throws Http2Exception, IOException {
+        if (streamId == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        if (streamId > lastStreamId)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on an idle stream");
+
+        // The whole frame counts against flow control, padding included; give it straight back
+        if (length > 0)
+            writeWindowUpdate(0, length);
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed)
+            throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on a closed stream");
+
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length == 0)
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid DATA frame");
+            start = 1;
+            end = length - (payload[0] & 0xff);
+            if (end < start)
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+        }
+
+        if (end > start) {
+            if (stream.getBodyLength() + (end - start) > MAX_REQUEST_BODY)
+                throw new Http2Exception(Http2Exception.CANCEL, streamId, "Request body too large");
+            if (stream.body == null)
+                stream.body = new ByteArrayOutputStream(end - start);
+            stream.body.write(payload, start, end - start);
+        }
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        } else if (length > 0) {
+            writeWindowUpdate(streamId, length);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws Http2Exception, IOException {
+        if (streamId == 0 || (streamId & 1) == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid stream for HEADERS");
+
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length == 0)
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid HEADERS frame");
+            start = 1;
+            end = length - (payload[0] & 0xff);
+        }
+        if ((flags & FLAG_PRIORITY) != 0)
+            start += 5;
+        if (end < start)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+
+        headerBlockLength = 0;
+        appendHeaderBlock(start, end);
+
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders(streamId, endStream);
+        } else {
+            continuationStream = streamId;
+            continuationEndStream = endStream;
+        }
+    }
+
+    private void appendHeaderBlock(int start, int end) throws Http2Exception {
+        int count = end - start;
+        if (headerBlockLength + count > headerBlock.length) {
+            if (headerBlockLength + count > MAX_HEADER_LIST_SIZE)
+                throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+            byte[] grown = new byte[Math.min(MAX_HEADER_LIST_SIZE, Math.max(headerBlock.length * 2, headerBlockLength + count))];
+            System.arraycopy(headerBlock, 0, grown, 0, headerBlockLength);
+            headerBlock = grown;
+        }
+        System.arraycopy(payload, start, headerBlock, headerBlockLength, count);
+        headerBlockLength += count;
+    }
+
+    /**
+     * Handles a complete header block: a new request, or the trailers of one in progress.
+     */
+    private void endHeaders(int streamId, boolean endStream) throws Http2Exception, IOException {
+        continuationStream = 0;
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null || streamId <= lastStreamId) {
+            // Trailers; they must end the stream and are not passed on
+            decoder.decode(headerBlock, headerBlockLength, new ArrayList<String>());
+            if (stream == null || stream.remoteClosed)
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on a closed stream");
+            if (!endStream)
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+            stream.remoteClosed = true;
+            dispatch(stream);
+            return;
+        }
+
+        lastStreamId = streamId;
+        long window;
+        synchronized (flowLock) {
+            window = initialWindow;
+        }
+        stream = new Http2Stream(streamId, window);
+
+        // Decode even a refused stream's headers, to keep the decoder in step with the client
+        List<String> fields = new ArrayList<String>();
+        decoder.decode(headerBlock, headerBlockLength, fields);
+
+        if (streams.size() >= MAX_CONCURRENT_STREAMS)
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Too many streams");
+        readRequestHeaders(stream, fields);
+
+        streams.put(streamId, stream);
+        if (endStream) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * Validates the decoded fields of a request and stores them in the stream (RFC 7540, section 8.1.2).
+     */
+    private static void readRequestHeaders(Http2Stream stream, List<String> fields) throws Http2Exception {
+        boolean regular = false;
+        String scheme = null;
+
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!isValidValue(value))
+                throw malformed(stream, "Invalid header value");
+
+            if (name.startsWith(":")) {
+                if (regular)
+                    throw malformed(stream, "Pseudo-header after regular header");
+                if (name.equals(":method") && stream.method == null)
+                    stream.method = value;
+                else if (name.equals(":path") && stream.path == null)
+                    stream.path = value;
+                else if (name.equals(":scheme") && scheme == null)
+                    scheme = value;
+                else if (name.equals(":authority") && stream.authority == null)
+                    stream.authority = value;
+                else
+                    throw malformed(stream, "Invalid pseudo-header " + name);
+                continue;
+            }
+
+            regular = true;
+            if (!isValidName(name) || isConnectionSpecific(name)
+                    || (name.equals("te") && !value.equalsIgnoreCase("trailers")))
+                throw malformed(stream, "Invalid header " + name);
+            stream.fields.add(name);
+            stream.fields.add(value);
+        }
+
+        if (stream.method == null || scheme == null || stream.path == null || stream.path.isEmpty()
+                || stream.path.indexOf(' ') >= 0)
+            throw malformed(stream, "Missing or invalid pseudo-header");
+    }
+
+    private static Http2Exception malformed(Http2Stream stream, String message) {
+        return new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, message);
+    }
+
+    private static boolean isValidName(String name) {
+        if (name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c == ':' || c >= 0x7f || (c >= 'A' && c <= 'Z'))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isConnectionSpecific(String name) {
+        return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection")
+                || name.equals("transfer-encoding") || name.equals("upgrade");
+    }
+
+    private void onResetStream(int streamId, int length) throws Http2Exception {
+        if (streamId == 0 || streamId > lastStreamId)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+        if (length != 4)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+
+        Http2Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            synchronized (flowLock) {
+                stream.reset = true;
+                flowLock.notifyAll();
+            }
+            HttpRequest request = stream.request;
+            if (request != null)
+                request.cancel();
+        }
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws Http2Exception, IOException {
+        if (streamId != 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0)
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS acknowledgement");
+            return;
+        }
+        if (length % 6 != 0)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+
+        applySettings(payload, length);
+        settingsReceived = true;
+        writeFrame(SETTINGS, FLAG_ACK, 0, null);
+    }
+
+    private void applySettings(byte[] settings, int length) throws Http2Exception {
+        for (int i = 0; i < length; i += 6) {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            long value = readInt(settings, i + 2) & 0xffffffffL;
+
+            switch (id) {
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1)
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE)
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    synchronized (flowLock) {
+                        // The change applies to the windows of every open stream
+                        long delta = value - initialWindow;
+                        initialWindow = (int) value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE)
+                                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Window overflow");
+                        }
+                        flowLock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff)
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    synchronized (flowLock) {
+                        maxFrameSize = (int) value;
+                    }
+                    break;
+                case SETTINGS_HEADER_TABLE_SIZE:
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                case SETTINGS_MAX_HEADER_LIST_SIZE:
+                default:
+                    // The encoder uses no dynamic table and the server does not push
+                    break;
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws Http2Exception {
+        if (length != 4)
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0)
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Zero window increment");
+
+        synchronized (flowLock) {
+            if (streamId == 0) {
+                connectionWindow += increment;
+                if (connectionWindow > MAX_WINDOW_SIZE)
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Window overflow");
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream == null)
+                    return;
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW_SIZE)
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Window overflow");
+            }
+            flowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Hands a complete request to a worker.
+     */
+    private void dispatch(final Http2Stream stream) throws Http2Exception {
+        synchronized (flowLock) {
+            pending++;
+        }
+        final long queued = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(stream, queued);
+                    } finally {
+                        synchronized (flowLock) {
+                            pending--;
+                            flowLock.notifyAll();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (flowLock) {
+                pending--;
+            }
+            streams.remove(stream.id);
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, stream.id, "Server is shutting down");
+        }
+    }
+
+    /**
+     * Runs on a worker: handles the stream's request and writes the response.
+     */
+    private void respond(final Http2Stream stream, long queued) {
+        RequestTiming timing = new RequestTiming(PROTOCOL);
+        timing.reset(queued);
+        timing.lap(Stage.QUEUE);
+
+        HttpRequest request = null;
+        HttpResponse response;
+        try {
+            request = toRequest(stream);
+            stream.request = request;
+            // Reset while it waited for a worker
+            if (stream.reset)
+                request.cancel();
+            request.setInterimResponder(new InterimResponder() {
+                @Override
+                public void send(HttpResponse response) throws IOException {
+                    writeInterimResponse(stream, response);
+                }
+            });
+            timing.lap(Stage.PARSE);
+            timing.setRequest(stream.method, stream.path);
+            timing.setBytesRead(stream.getBodyLength());
+            response = dispatcher.dispatch(request, timing);
+        } catch (ProtocolException e) {
+            response = HttpResponse.create400BadRequest(Protocol.CLOSE);
+        } catch (Exception e) {
+            dispatcher.failed("Could not serve the HTTP/2 request", e);
+            response = HttpResponse.create500InternalServerError(Protocol.CLOSE);
+        }
+
+        try {
+            timing.setBytesWritten(writeResponse(stream, response,
+                    request != null && request.getMethod() == HttpMethod.HEAD));
+        } catch (IOException e) {
+            // The connection was closed, or the file could not be read after the headers went
+            // out; either way the stream cannot end normally
+            try {
+                resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+            } catch (IOException closed) {
+                // The connection is closed already
+            }
+        } finally {
+            streams.remove(stream.id);
+            response.release();
+            if (request != null)
+                request.finish();
+        }
+
+        timing.lap(Stage.WRITE);
+        timing.setStatus(response.getType().getCode());
+        dispatcher.completed(timing);
+    }
+
+    /**
+     * Converts the stream into the request the plugins expect, from its decoded header fields.
+     */
+    private static HttpRequest toRequest(Http2Stream stream) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        boolean host = false;
+        StringBuilder cookie = null;
+        for (int i = 0; i < stream.fields.size(); i += 2) {
+            String name = stream.fields.get(i);
+            String value = stream.fields.get(i + 1);
+            if (name.equals("content-length"))
+                continue;
+            if (name.equals("cookie")) {
+                // Cookies may be split into several fields (RFC 7540, section 8.1.2.5)
+                if (cookie == null)
+                    cookie = new StringBuilder(value);
+                else
+                    cookie.append("; ").append(value);
+                continue;
+            }
+            host |= name.equals("host");
+            headers.put(name, value);
+        }
+        if (!host && stream.authority != null)
+            headers.put(HeaderName.HOST.getName(), stream.authority);
+        if (cookie != null)
+            headers.put(HeaderName.COOKIE.getName(), cookie.toString());
+        headers.put(HeaderName.CONTENT_LENGTH.getName(), Integer.toString(stream.getBodyLength()));
+
+        ByteBuffer body = stream.body == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(stream.body.toByteArray());
+        return HttpRequest.create(stream.method, stream.path, VERSION, headers, body);
+    }
+
+    /**
+     * Writes an informational response as a header block that leaves the stream open.
+     */
+    private void writeInterimResponse(Http2Stream stream, HttpResponse response) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+        encoder.encode(":status", Integer.toString(response.getType().getCode()), block);
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+            if (!isConnectionSpecific(name))
+                encoder.encode(name, entry.getValue(), block);
+        }
+        writeHeaders(stream.id, block.toByteArray(), false);
+    }
+
+    /**
+     * @return the number of body bytes sent
+     */
+    private long writeResponse(Http2Stream stream, HttpResponse response, boolean head) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        int code = response.getType().getCode();
+        encoder.encode(":status", Integer.toString(code), block);
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+            if (!isConnectionSpecific(name))
+                encoder.encode(name, entry.getValue(), block);
+        }
+
+        File file = response.getFile();
+        byte[] body = response.getBody();
+        boolean hasBody = !head && code != 204 && code != 304
+                && (file != null || (body != null && body.length > 0));
+
+        writeHeaders(stream.id, block.toByteArray(), !hasBody);
+        if (!hasBody)
+            return 0;
+
+        long sent = 0;
+
+        if (file != null) {
+            ByteBuffer chunk = pool.acquire(BufferPool.MEDIUM);
+            try {
+                // Other responses may share the channel, so it is read by position only; the
+                // response holds the handle its Content-Length came from
+                OpenFileCache.Handle handle = response.getFileHandle();
+                FileChannel channel = handle.getChannel();
+                long remaining = handle.getSize();
+                while (remaining > 0) {
+                    int count = acquireWindow(stream, (int) Math.min(remaining, chunk.capacity()));
+                    if (count < 0)
+                        return sent;
+
+                    chunk.clear();
+                    chunk.limit(count);
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, sent + chunk.position()) < 0)
+                            throw new EOFException("File truncated while sending");
+                    }
+                    chunk.flip();
+                    remaining -= count;
+                    sent += count;
+                    writeFrame(DATA, remaining == 0 ? FLAG_END_STREAM : 0, stream.id, chunk);
+                }
+            } finally {
+                pool.release(chunk);
+            }
+        } else {
+            int offset = 0;
+            while (offset < body.length) {
+                int count = acquireWindow(stream, Math.min(body.length - offset, MAX_FRAME_SIZE));
+                if (count < 0)
+                    return sent;
+                offset += count;
+                sent += count;
+                writeFrame(DATA, offset == body.length ? FLAG_END_STREAM : 0, stream.id,
+                        ByteBuffer.wrap(body, offset - count, count));
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Waits until the client's flow-control windows allow sending on the stream.
+     *
+     * @return the number of bytes that may be sent, at most the number wanted, or -1 if the stream or connection closed
+     */
+    private int acquireWindow(Http2Stream stream, int wanted) throws IOException {
+        synchronized (flowLock) {
+            while (!closed && !stream.reset && (connectionWindow <= 0 || stream.sendWindow <= 0)) {
+                try {
+                    flowLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the flow-control window");
+                }
+            }
+            if (closed || stream.reset)
+                return -1;
+
+            int count = (int) Math.min(Math.min(wanted, maxFrameSize), Math.min(connectionWindow, stream.sendWindow));
+            connectionWindow -= count;
+            stream.sendWindow -= count;
+            return count;
+        }
+    }
+
+    /**
+     * Writes a header block as a HEADERS frame followed by as many CONTINUATION frames as needed.
+     * The frames are written together, since nothing may come between them.
+     */
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int fragment;
+        synchronized (flowLock) {
+            fragment = Math.min(maxFrameSize, MAX_FRAME_SIZE);
+        }
+
+        synchronized (writeLock) {
+            int offset = 0;
+            int type = HEADERS;
+            int flags = endStream ? FLAG_END_STREAM : 0;
+            do {
+                int count = Math.min(fragment, block.length - offset);
+                offset += count;
+                if (offset == block.length)
+                    flags |= FLAG_END_HEADERS;
+                writeFrame(type, flags, streamId, ByteBuffer.wrap(block, offset - count, count));
+                type = CONTINUATION;
+                flags = 0;
+            } while (offset < block.length);
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(18);
+        settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(RECEIVE_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        settings.flip();
+        writeFrame(SETTINGS, 0, 0, settings);
+
+        // The connection window can only be changed with WINDOW_UPDATE
+        writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW_SIZE);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(4);
+        frame.putInt(increment).flip();
+        writeFrame(WINDOW_UPDATE, 0, streamId, frame);
+    }
+
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        Http2Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            synchronized (flowLock) {
+                stream.reset = true;
+                flowLock.notifyAll();
+            }
+            HttpRequest request = stream.request;
+            if (request != null)
+                request.cancel();
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4);
+        frame.putInt(errorCode).flip();
+        writeFrame(RST_STREAM, 0, streamId, frame);
+    }
+
+    private void writeGoAway(Http2Exception error) {
+        byte[] message = String.valueOf(error.getMessage()).getBytes(ISO_8859_1);
+        ByteBuffer frame = ByteBuffer.allocate(8 + message.length);
+        frame.putInt(lastStreamId).putInt(error.getErrorCode()).put(message).flip();
+        try {
+            writeFrame(GOAWAY, 0, 0, frame);
+        } catch (IOException e) {
+            // The connection is being closed anyway
+        }
+    }
+
+    /**
+     * Writes one frame and flushes it to the connection.
+     */
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer frame) throws IOException {
+        int length = frame == null ? 0 : frame.remaining();
+        synchronized (writeLock) {
+            if (closed)
+                throw new IOException("Connection closed");
+
+            ByteBuffer buffer = writeBuffer;
+            buffer.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+            buffer.put((byte) type).put((byte) flags).putInt(streamId);
+            if (frame != null)
+                buffer.put(frame);
+
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    private void close() {
+        synchronized (flowLock) {
+            closed = true;
+            flowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Lets workers finish their responses, then gives up on the rest and frees the write buffer.
+     */
+    private void shutdown() {
+        // Nobody will read the responses still being made
+        for (Http2Stream stream : streams.values()) {
+            HttpRequest request = stream.request;
+            if (request != null)
+                request.cancel();
+        }
+
+        synchronized (flowLock) {
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+            long wait;
+            while (pending > 0 && !closed && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    flowLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        close();
+
+        synchronized (writeLock) {
+            if (writeBuffer != null) {
+                pool.release(writeBuffer);
+                writeBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the next frame header.
+     *
+     * @return false if the client closed the connection between frames
+     */
+    private boolean readFrameHeader() throws IOException {
+        if (!inBuffer.hasRemaining() && !fill())
+            return false;
+        readFully(frameHeader, FRAME_HEADER_LENGTH);
+        return true;
+    }
+
+    private void readFully(byte[] target, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!inBuffer.hasRemaining() && !fill())
+                throw new EOFException("Connection closed in the middle of a frame");
+            int count = Math.min(length - offset, inBuffer.remaining());
+            inBuffer.get(target, offset, count);
+            offset += count;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        inBuffer.compact();
+        int read;
+        try {
+            read = in.read(inBuffer);
+        } finally {
+            inBuffer.flip();
+        }
+        return read >= 0;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,60 @@
+package http2;
+
+/**
+ * An HTTP/2 error. Errors on stream 0 are connection errors, which end the connection with a
+ * GOAWAY frame; errors on any other stream only reset that stream.
+ */
+public class Http2Exception extends Exception {
+    private static final long serialVersionUID = 2305170912541279233L;
+
+    // Error codes (RFC 7540, section 7)
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int SETTINGS_TIMEOUT = 0x4;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+    private final int streamId;
+
+    /**
+     * Creates a connection error.
+     *
+     * @param errorCode The HTTP/2 error code
+     * @param message   The message for the exception
+     */
+    public Http2Exception(int errorCode, String message) {
+        this(errorCode, 0, message);
+    }
+
+    /**
+     * Creates an error for the supplied stream.
+     *
+     * @param errorCode The HTTP/2 error code
+     * @param streamId  The stream, or 0 for a connection error
+     * @param message   The message for the exception
+     */
+    public Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public boolean isConnectionError() {
+        return streamId == 0;
+    }
+}
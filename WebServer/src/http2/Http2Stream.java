@@ -0,0 +1,45 @@
+package http2;
+
+import protocol.HttpRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of one request/response exchange on an HTTP/2 connection.
+ * <p/>
+ * The request side is filled in by the connection's reader thread until the client ends the
+ * stream; after that the stream is handed to a worker, which only reads it. The flow-control
+ * fields are guarded by the connection.
+ */
+final class Http2Stream {
+    final int id;
+
+    String method;
+    String path;
+    String authority;
+
+    // Regular (non-pseudo) header fields, alternating names and values
+    final List<String> fields = new ArrayList<String>();
+
+    ByteArrayOutputStream body;
+
+    // True once the client sent END_STREAM
+    boolean remoteClosed;
+
+    long sendWindow;
+    boolean reset;
+
+    // Set once a worker has converted the stream, so a reset can cancel it
+    volatile HttpRequest request;
+
+    Http2Stream(int id, long sendWindow) {
+        this.id = id;
+        this.sendWindow = sendWindow;
+    }
+
+    int getBodyLength() {
+        return body == null ? 0 : body.size();
+    }
+}
@@ -0,0 +1,36 @@
+package http2;
+
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import timing.RequestTiming;
+
+/**
+ * Hands a request that arrived on an HTTP/2 stream to the server's request handlers.
+ */
+public interface RequestDispatcher {
+    /**
+     * Produces the response for the request. Called on a worker thread, possibly for several
+     * streams of the same connection at once.
+     *
+     * @param request The request
+     * @param timing  The request's timing, with the queue and parse stages done
+     * @return The response; never null
+     */
+    HttpResponse dispatch(HttpRequest request, RequestTiming timing);
+
+    /**
+     * Called once the response of a dispatched request has been written.
+     *
+     * @param timing The request's timing, complete
+     */
+    void completed(RequestTiming timing);
+
+    /**
+     * Reports an error in producing a stream's response, for the server's error log. The stream
+     * is answered with a 500.
+     *
+     * @param message What was being done
+     * @param error   The error
+     */
+    void failed(String message, Exception error);
+}
@@ -0,0 +1,457 @@
+package log;
+
+import timing.RequestTiming;
+import timing.Stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A structured access and error log, written as one JSON object per line.
+ * <p/>
+ * Request threads only copy a few fields into a preallocated slot of a ring buffer: a slot is
+ * claimed with one compare-and-set and published with a volatile write, so logging takes no
+ * lock, allocates nothing and makes no system call. A background thread drains the ring in
+ * batches, formats the records and writes them through one buffered file channel, rotating
+ * the file when it grows too large.
+ * <p/>
+ * Configured with system properties:
+ * <ul>
+ * <li><tt>sws.log.file</tt>: the log file; logging is off unless it is set.</li>
+ * <li><tt>sws.log.bufferSize</tt>: the number of records the ring holds, 16384 by default.</li>
+ * <li><tt>sws.log.whenFull</tt>: <tt>drop</tt> (the default) to count and discard records while
+ * the ring is full, or <tt>block</tt> to make request threads wait for the writer.</li>
+ * <li><tt>sws.log.maxBytes</tt> (64MB by default) and <tt>sws.log.files</tt> (5 by default):
+ * the size at which the file is rotated, and how many rotated files to keep.</li>
+ * </ul>
+ */
+public final class AccessLog {
+    public static final String FILE_PROPERTY = "sws.log.file";
+    public static final String BUFFER_SIZE_PROPERTY = "sws.log.bufferSize";
+    public static final String WHEN_FULL_PROPERTY = "sws.log.whenFull";
+    public static final String MAX_BYTES_PROPERTY = "sws.log.maxBytes";
+    public static final String FILES_PROPERTY = "sws.log.files";
+
+    /**
+     * What a request thread does when the ring is full.
+     */
+    public enum FullPolicy {
+        /** Discard the record and count it */
+        DROP,
+        /** Wait until the writer has made room */
+        BLOCK
+    }
+
+    // How long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = 10000000L;
+    private static final int BATCH_SIZE = 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final int ACCESS = 0;
+    private static final int ERROR = 1;
+
+    private final Record[] ring;
+    private final int mask;
+    private final FullPolicy policy;
+
+    // The next sequence number to claim, and the first not yet drained by the writer
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final File file;
+    private final long maxBytes;
+    private final int files;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Writer state
+    private final StringBuilder line = new StringBuilder(512);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private FileChannel channel;
+    private long size;
+
+    /**
+     * Opens the log and starts its writer.
+     *
+     * @param file     The log file, appended to if it exists
+     * @param capacity The number of records the ring holds; rounded up to a power of two
+     * @param policy   What to do when the ring is full
+     * @param maxBytes The size at which the file is rotated
+     * @param files    The number of rotated files to keep
+     * @throws IOException if the file cannot be opened
+     */
+    public AccessLog(File file, int capacity, FullPolicy policy, long maxBytes, int files) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record(i - size);
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.files = Math.max(0, files);
+
+        open();
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainUntilClosed();
+            }
+        }, "AccessLogWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens the log described by the system properties.
+     *
+     * @return the log, or null if <tt>sws.log.file</tt> is not set
+     * @throws IOException if the file cannot be opened
+     */
+    public static AccessLog fromSystemProperties() throws IOException {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null)
+            return null;
+
+        FullPolicy policy = "block".equalsIgnoreCase(System.getProperty(WHEN_FULL_PROPERTY))
+                ? FullPolicy.BLOCK : FullPolicy.DROP;
+        return new AccessLog(new File(file), Integer.getInteger(BUFFER_SIZE_PROPERTY, 16384), policy,
+                Long.getLong(MAX_BYTES_PROPERTY, 64L * 1024 * 1024), Integer.getInteger(FILES_PROPERTY, 5));
+    }
+
+    /**
+     * Logs a served request.
+     *
+     * @param client The client's address
+     * @param timing The request's timing, complete
+     */
+    public void access(InetAddress client, RequestTiming timing) {
+        Record record = claim();
+        if (record == null)
+            return;
+
+        record.type = ACCESS;
+        record.time = System.currentTimeMillis();
+        record.client = client;
+        record.protocol = timing.getProtocol();
+        record.method = timing.getMethod();
+        record.uri = timing.getUri();
+        record.plugin = timing.getPlugin();
+        record.status = timing.getStatus();
+        record.bytesRead = timing.getBytesRead();
+        record.bytesWritten = timing.getBytesWritten();
+        timing.copyStages(record.stages);
+        publish(record);
+    }
+
+    /**
+     * Logs an error. The stack trace is formatted by the writer, not the caller.
+     *
+     * @param client  The client's address, or null
+     * @param message What was being done
+     * @param error   The error
+     */
+    public void error(InetAddress client, String message, Throwable error) {
+        Record record = claim();
+        if (record == null)
+            return;
+
+        record.type = ERROR;
+        record.time = System.currentTimeMillis();
+        record.client = client;
+        record.message = message;
+        record.error = error;
+        publish(record);
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes out what is in the ring, then stops the writer and closes the file. Records
+     * logged afterwards are dropped.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims the next slot of the ring.
+     *
+     * @return the slot, or null if the record is to be dropped
+     */
+    private Record claim() {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                // Full: the writer has not yet drained the record this slot held last time round
+                if (policy == FullPolicy.DROP || !running) {
+                    dropped.incrementAndGet();
+                    return null;
+                }
+                Thread.yield();
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1))
+                return ring[(int) sequence & mask].claim(sequence);
+        }
+    }
+
+    private static void publish(Record record) {
+        // The volatile write makes the fields visible to the writer
+        record.published = record.sequence;
+    }
+
+    private void drainUntilClosed() {
+        try {
+            while (true) {
+                if (drain() == 0) {
+                    flush();
+                    if (!running && claimed.get() == consumed)
+                        break;
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            // The log is broken; fall back to standard error
+            e.printStackTrace();
+        } finally {
+            running = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Formats up to a batch of published records.
+     *
+     * @return the number of records drained
+     */
+    private int drain() throws IOException {
+        long next = consumed;
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            Record record = ring[(int) next & mask];
+            if (record.published != next)
+                break;
+
+            format(record);
+            record.clear();
+            next++;
+            count++;
+        }
+
+        // Hands the slots back to the request threads
+        if (count > 0)
+            consumed = next;
+        return count;
+    }
+
+    private void format(Record record) throws IOException {
+        StringBuilder out = line;
+        out.setLength(0);
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(record.time)).append('"');
+        if (record.type == ACCESS) {
+            out.append(",\"type\":\"access\"");
+            appendClient(out, record.client);
+            appendString(out, "protocol", record.protocol);
+            appendString(out, "method", record.method);
+            appendString(out, "uri", record.uri);
+            out.append(",\"status\":").append(record.status);
+            out.append(",\"bytesRead\":").append(record.bytesRead);
+            out.append(",\"bytesWritten\":").append(record.bytesWritten);
+            appendString(out, "plugin", record.plugin);
+
+            long total = 0;
+            for (Stage stage : STAGES) {
+                long nanos = record.stages[stage.ordinal()];
+                total += nanos;
+                out.append(",\"").append(stage.getLabel()).append("Us\":").append(nanos / 1000);
+            }
+            out.append(",\"totalUs\":").append(total / 1000);
+        } else {
+            out.append(",\"type\":\"error\"");
+            appendClient(out, record.client);
+            appendString(out, "message", record.message);
+            if (record.error != null) {
+                StringWriter trace = new StringWriter();
+                record.error.printStackTrace(new PrintWriter(trace));
+                appendString(out, "error", trace.toString());
+            }
+        }
+        out.append("}\n");
+
+        write(out);
+    }
+
+    private static void appendClient(StringBuilder out, InetAddress client) {
+        if (client != null)
+            appendString(out, "client", client.getHostAddress());
+    }
+
+    private static void appendString(StringBuilder out, String name, String value) {
+        if (value == null)
+            return;
+
+        out.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Encodes the line into the write buffer, writing the buffer out whenever it fills up.
+     */
+    private void write(CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, writeBuffer, true);
+            if (!result.isOverflow())
+                break;
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (writeBuffer.position() == 0)
+            return;
+
+        if (size + writeBuffer.position() > maxBytes && size > 0)
+            rotate();
+
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            size += channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    /**
+     * Moves <tt>file</tt> to <tt>file.1</tt>, <tt>file.1</tt> to <tt>file.2</tt> and so on,
+     * dropping the oldest, and starts a new file.
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        if (files == 0) {
+            Files.deleteIfExists(file.toPath());
+        } else {
+            for (int i = files - 1; i >= 1; i--) {
+                File older = new File(file.getPath() + "." + i);
+                if (older.exists())
+                    Files.move(older.toPath(), new File(file.getPath() + "." + (i + 1)).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    /**
+     * A slot of the ring. The request thread that claimed it fills it in and publishes it;
+     * the writer formats and clears it.
+     */
+    private static final class Record {
+        // The sequence the slot was last published for; the writer waits for the one it expects
+        volatile long published;
+        long sequence;
+
+        int type;
+        long time;
+        InetAddress client;
+        String protocol;
+        String method;
+        String uri;
+        String plugin;
+        int status;
+        long bytesRead;
+        long bytesWritten;
+        final long[] stages = new long[STAGES.length];
+        String message;
+        Throwable error;
+
+        Record(long published) {
+            this.published = published;
+        }
+
+        Record claim(long sequence) {
+            this.sequence = sequence;
+            return this;
+        }
+
+        void clear() {
+            client = null;
+            protocol = null;
+            method = null;
+            uri = null;
+            plugin = null;
+            message = null;
+            error = null;
+        }
+    }
+}
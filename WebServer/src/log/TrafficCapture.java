@@ -0,0 +1,496 @@
+package log;
+
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.Protocol;
+import protocol.RequestBody;
+import timing.RequestTiming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records a sample of the requests served, with their header fields, bodies and arrival times,
+ * in a compact binary file that {@link tools.Replay} plays back against a server.
+ * <p/>
+ * The file starts with <tt>SWSCAP</tt>, a version byte and the start of the capture in epoch
+ * milliseconds. Each record then holds, as variable-length integers and length-prefixed bytes:
+ * the microseconds from the start of the capture to the request's arrival, the request line and
+ * header fields (without <tt>Content-Length</tt> and <tt>Transfer-Encoding</tt>), the declared
+ * body length (-1 if chunked), as much of the body as was kept, and the response's status,
+ * <tt>Content-Length</tt> (-1 if none) and latency in microseconds.
+ * <p/>
+ * Request threads encode their record and hand it to a writer thread through a bounded queue;
+ * records that find the queue full are dropped and counted.
+ * <p/>
+ * Configured with system properties:
+ * <ul>
+ * <li><tt>sws.capture.file</tt>: the capture file, which is replaced; capturing is off unless
+ * it is set.</li>
+ * <li><tt>sws.capture.sampleRate</tt>: the fraction of requests captured, 1 by default.</li>
+ * <li><tt>sws.capture.maxBody</tt>: the most body bytes kept per request, 65536 by default.</li>
+ * <li><tt>sws.capture.maxBytes</tt>: the size at which capturing stops, 1GB by default.</li>
+ * </ul>
+ */
+public final class TrafficCapture {
+    public static final String FILE_PROPERTY = "sws.capture.file";
+    public static final String SAMPLE_RATE_PROPERTY = "sws.capture.sampleRate";
+    public static final String MAX_BODY_PROPERTY = "sws.capture.maxBody";
+    public static final String MAX_BYTES_PROPERTY = "sws.capture.maxBytes";
+
+    private static final byte[] MAGIC = "SWSCAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long IDLE_MILLIS = 100;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final long startNanos;
+    private final double sampleRate;
+    private final int maxBody;
+    private final long maxBytes;
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final OutputStream out;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean full;
+
+    /**
+     * Creates the file and starts the writer.
+     *
+     * @param file       The capture file, replaced if it exists
+     * @param sampleRate The fraction of requests to capture
+     * @param maxBody    The most body bytes to keep per request
+     * @param maxBytes   The size at which capturing stops
+     * @throws IOException if the file cannot be written
+     */
+    public TrafficCapture(File file, double sampleRate, int maxBody, long maxBytes) throws IOException {
+        this.startNanos = System.nanoTime();
+        this.sampleRate = sampleRate;
+        this.maxBody = Math.max(0, maxBody);
+        this.maxBytes = maxBytes;
+
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(16);
+        header.write(MAGIC);
+        header.write(VERSION);
+        writeLong(header, System.currentTimeMillis());
+        header.writeTo(out);
+        size.set(header.size());
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeUntilClosed();
+            }
+        }, "TrafficCaptureWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens the capture described by the system properties.
+     *
+     * @return the capture, or null if <tt>sws.capture.file</tt> is not set
+     * @throws IOException if the file cannot be written
+     */
+    public static TrafficCapture fromSystemProperties() throws IOException {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file == null)
+            return null;
+
+        return new TrafficCapture(new File(file), Double.parseDouble(System.getProperty(SAMPLE_RATE_PROPERTY, "1")),
+                Integer.getInteger(MAX_BODY_PROPERTY, 65536), Long.getLong(MAX_BYTES_PROPERTY, 1L << 30));
+    }
+
+    /**
+     * Decides whether to capture a request that is about to be handled. If so, its body is
+     * copied as it is read, by the handler or when the rest is skipped afterwards.
+     *
+     * @param request The request
+     * @return the buffer receiving the body, to pass to {@link #record}, or null if the request
+     * is not captured
+     */
+    public ByteBuffer sample(HttpRequest request) {
+        if (full || !running || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate))
+            return null;
+
+        RequestBody body = request.getBodyChannel();
+        long length = body == null ? 0 : body.getLength();
+        ByteBuffer tap = ByteBuffer.allocate(length < 0 ? maxBody : (int) Math.min(length, maxBody));
+        if (body != null)
+            body.setTap(tap);
+        return tap;
+    }
+
+    /**
+     * Records a sampled request once it has been answered and its body skipped.
+     *
+     * @param request  The request
+     * @param body     The buffer {@link #sample} returned
+     * @param response The response
+     * @param timing   The request's timing, complete
+     */
+    public void record(HttpRequest request, ByteBuffer body, HttpResponse response, RequestTiming timing) {
+        RequestBody bodyChannel = request.getBodyChannel();
+        if (bodyChannel != null)
+            bodyChannel.setTap(null);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(512 + body.position());
+        writeLong(record, TimeUnit.NANOSECONDS.toMicros(request.getArrivalTime() - startNanos));
+        byte[] head = head(request);
+        writeBytes(record, head, head.length);
+        writeLong(record, bodyChannel == null ? 0 : bodyChannel.getLength());
+        writeBytes(record, body.array(), body.position());
+        writeLong(record, timing.getStatus());
+        writeLong(record, contentLength(response));
+        writeLong(record, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - request.getArrivalTime()));
+
+        if (size.addAndGet(record.size()) > maxBytes) {
+            full = true;
+            return;
+        }
+        if (queue.offer(record.toByteArray())) {
+            recorded.incrementAndGet();
+        } else {
+            size.addAndGet(-record.size());
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static byte[] head(HttpRequest request) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod().name()).append(Protocol.SPACE).append(request.getUri());
+        if (request.getQueryString() != null)
+            head.append('?').append(request.getQueryString());
+        head.append(Protocol.SPACE).append(request.getVersion()).append(Protocol.CRLF);
+        for (Map.Entry<String, String> field : request.getHeaders().entrySet()) {
+            String name = field.getKey().toLowerCase(Locale.ENGLISH);
+            // The replay frames the body it has
+            if (name.equals("content-length") || name.equals("transfer-encoding"))
+                continue;
+            head.append(field.getKey()).append(Protocol.SEPARATOR).append(Protocol.SPACE)
+                    .append(field.getValue()).append(Protocol.CRLF);
+        }
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static long contentLength(HttpResponse response) {
+        String length = response.getHeader(Protocol.CONTENT_LENGTH);
+        if (length == null)
+            return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of requests captured
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return the number of records dropped because the writer fell behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d recorded, %d dropped, %.1f MB%s", getRecorded(), getDropped(),
+                Math.min(size.get(), maxBytes) / 1048576.0, full ? " (full)" : "");
+    }
+
+    /**
+     * Writes out the queued records, then stops the writer and closes the file.
+     */
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeUntilClosed() {
+        try {
+            while (running || !queue.isEmpty()) {
+                byte[] record;
+                try {
+                    record = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Closing; write what is left
+                    continue;
+                }
+                if (record == null) {
+                    out.flush();
+                    continue;
+                }
+                out.write(record);
+                if (queue.isEmpty())
+                    out.flush();
+            }
+        } catch (IOException e) {
+            // The capture is broken; the server goes on without it
+            e.printStackTrace();
+        } finally {
+            running = false;
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        // Zig-zag, so that small negative numbers stay short too
+        long bits = (value << 1) ^ (value >> 63);
+        while ((bits & ~0x7FL) != 0) {
+            out.write((int) (bits & 0x7F) | 0x80);
+            bits >>>= 7;
+        }
+        out.write((int) bits);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes, int length) {
+        writeLong(out, length);
+        out.write(bytes, 0, length);
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long bits = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            bits |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return (bits >>> 1) ^ -(bits & 1);
+        }
+        throw new IOException("Malformed number");
+    }
+
+    private static byte[] readBytes(InputStream in, int max) throws IOException {
+        long length = readLong(in);
+        if (length < 0 || length > max)
+            throw new IOException("Malformed record");
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int count = in.read(bytes, offset, bytes.length - offset);
+            if (count < 0)
+                throw new EOFException();
+            offset += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the records of a capture file in the order they were written, which is the order
+     * the requests finished in.
+     */
+    public static final class Reader implements Closeable {
+        private static final int MAX_FIELD = 64 * 1024 * 1024;
+
+        private final InputStream in;
+        private final long startMillis;
+
+        /**
+         * @param file The capture file
+         * @throws IOException if the file cannot be read or is not a capture
+         */
+        public Reader(File file) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file), 65536);
+            byte[] magic = new byte[MAGIC.length];
+            int length = 0;
+            int count;
+            while (length < magic.length && (count = in.read(magic, length, magic.length - length)) > 0) {
+                length += count;
+            }
+            if (!Arrays.equals(magic, MAGIC) || in.read() != VERSION) {
+                in.close();
+                throw new IOException(file + " is not a traffic capture");
+            }
+            this.startMillis = readLong(in);
+        }
+
+        /**
+         * @return the start of the capture, in epoch milliseconds
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the next record, or null at the end of the file, which may be cut short if
+         * the server did not stop cleanly
+         * @throws IOException if the file cannot be read or is malformed
+         */
+        public Record next() throws IOException {
+            in.mark(1);
+            if (in.read() < 0)
+                return null;
+            in.reset();
+
+            try {
+                long offset = readLong(in);
+                byte[] head = readBytes(in, MAX_FIELD);
+                long declaredLength = readLong(in);
+                byte[] body = readBytes(in, MAX_FIELD);
+                int status = (int) readLong(in);
+                long contentLength = readLong(in);
+                long latency = readLong(in);
+                return new Record(offset, head, declaredLength, body, status, contentLength, latency);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * A captured request and what the response was.
+     */
+    public static final class Record {
+        private final long offsetMicros;
+        private final byte[] head;
+        private final long declaredLength;
+        private final byte[] body;
+        private final int status;
+        private final long contentLength;
+        private final long latencyMicros;
+
+        private Record(long offsetMicros, byte[] head, long declaredLength, byte[] body, int status,
+                       long contentLength, long latencyMicros) {
+            this.offsetMicros = offsetMicros;
+            this.head = head;
+            this.declaredLength = declaredLength;
+            this.body = body;
+            this.status = status;
+            this.contentLength = contentLength;
+            this.latencyMicros = latencyMicros;
+        }
+
+        /**
+         * @return when the request arrived, in microseconds from the start of the capture
+         */
+        public long getOffsetMicros() {
+            return offsetMicros;
+        }
+
+        /**
+         * @return the request method
+         */
+        public String getMethod() {
+            int space = 0;
+            while (space < head.length && head[space] != ' ') {
+                space++;
+            }
+            return new String(head, 0, space, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @return the request line, without the line break
+         */
+        public String getRequestLine() {
+            int end = 0;
+            while (end < head.length && head[end] != '\r') {
+                end++;
+            }
+            return new String(head, 0, end, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @return the status of the response
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the <tt>Content-Length</tt> of the response, or -1 if it had none
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * @return how long the server took to answer, in microseconds
+         */
+        public long getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        /**
+         * The length of the body to send: the original length, of which only the captured part
+         * is in {@link #getBody()} and the rest is to be sent as zeros; for a chunked body, the
+         * length of what was captured.
+         *
+         * @return the length
+         */
+        public long getBodyLength() {
+            return declaredLength >= 0 ? declaredLength : body.length;
+        }
+
+        /**
+         * @return the captured part of the body
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Builds the request line and header fields as they go on the wire, with a
+         * <tt>Content-Length</tt> of {@link #getBodyLength()}.
+         *
+         * @return the head, up to and including the empty line
+         */
+        public byte[] getHead() {
+            long length = getBodyLength();
+            StringBuilder framing = new StringBuilder(32);
+            if (length > 0)
+                framing.append(Protocol.CONTENT_LENGTH).append(": ").append(length).append(Protocol.CRLF);
+            framing.append(Protocol.CRLF);
+            byte[] separator = framing.toString().getBytes(StandardCharsets.US_ASCII);
+
+            byte[] request = Arrays.copyOf(head, head.length + separator.length);
+            System.arraycopy(separator, 0, request, head.length, separator.length);
+            return request;
+        }
+    }
+}
@@ -5,18 +5,40 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 /**
  * used to load plugins from jars in the local working directory
+ * <p/>
+ * Each jar gets one class loader, kept until the jar changes or goes away, and its plugins are
+ * created once per version of the jar; scanning an unchanged directory loads nothing. The
+ * loader of a changed or removed jar is closed at the scan after the one that noticed, so
+ * requests still running in its plugins can finish.
  */
 public class PluginLoader<T> {
+    /**
+     * The directory plugin jars are loaded from.
+     */
+    public static final String PLUGIN_DIRECTORY = ".\\plugins";
+
+    // Manifest main attributes by class name, as of the last scan
+    private volatile Map<String, Attributes> manifests = Collections.emptyMap();
+
+    // By jar path; guarded by this
+    private final Map<String, LoadedJar> jars = new HashMap<String, LoadedJar>();
+    // Loaders of jars that changed or went away, closed at the next scan
+    private final List<URLClassLoader> retired = new ArrayList<URLClassLoader>();
+
     /**
      * @param clazz the class you are looking for subclasses of (please note that
      *              clazz must be, or a subclass of the parameterization <T> of
@@ -24,22 +46,32 @@ public class PluginLoader<T> {
      * @return List of plugins implementing clazz
      */
     @SuppressWarnings("unchecked")
-    public List<T> getPlugins(Class<?> clazz) {
-        ArrayList<Class<?>> allClassesFound = findAllClassesInJarsInWorkingDirectory();
+    public synchronized List<T> getPlugins(Class<?> clazz) {
+        scan();
 
         List<T> plugins = new ArrayList<T>();
 
-        for (Class<?> tempClass : allClassesFound) {
-            if (clazz.isAssignableFrom(tempClass)) {
+        for (LoadedJar jar : jars.values()) {
+            for (Class<?> tempClass : jar.classes) {
+                if (!clazz.isAssignableFrom(tempClass))
+                    continue;
+
+                Object plugin = jar.instances.get(tempClass);
+                if (plugin == null) {
+                    try {
+                        plugin = tempClass.getConstructor().newInstance();
+                        jar.instances.put(tempClass, plugin);
+                    } catch (ReflectiveOperationException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+                }
+
                 try {
-                    plugins.add((T) tempClass.newInstance());
+                    plugins.add((T) plugin);
                 } catch (ClassCastException e) {
                     // odds are tempClass is not a subclass of T
                     e.printStackTrace();
-                } catch (InstantiationException e) {
-                    e.printStackTrace();
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
                 }
             }
         }
@@ -47,45 +79,168 @@ public class PluginLoader<T> {
         return plugins;
     }
 
-    private ArrayList<Class<?>> findAllClassesInJarsInWorkingDirectory() {
-        ArrayList<Class<?>> allClassesFound = new ArrayList<Class<?>>();
+    /**
+     * Gets the main attributes of the manifest of the jar a plugin was loaded from, where
+     * plugins can carry settings such as their bulkhead limits.
+     *
+     * @param pluginClass The plugin's class
+     * @return the attributes, or null if the jar has no manifest or the class was not loaded here
+     */
+    public Attributes getManifestAttributes(Class<?> pluginClass) {
+        return manifests.get(pluginClass.getName());
+    }
 
-        File filePath = new File(".\\plugins");
-        File[] filePaths = filePath.listFiles();
+    /**
+     * Closes every class loader. Plugins loaded so far can no longer load classes.
+     */
+    public synchronized void close() {
+        for (LoadedJar jar : jars.values()) {
+            retired.add(jar.loader);
+        }
+        jars.clear();
+        closeRetired();
+        manifests = Collections.emptyMap();
+    }
+
+    /**
+     * Brings the loaded jars in line with the plugin directory.
+     */
+    private void scan() {
+        closeRetired();
 
-        if (filePaths == null) return allClassesFound;
+        File[] filePaths = new File(PLUGIN_DIRECTORY).listFiles();
+        Map<String, File> found = new HashMap<String, File>();
+        if (filePaths != null) {
+            for (File file : filePaths) {
+                if (file.getName().endsWith(".jar"))
+                    found.put(file.getPath(), file);
+            }
+        }
 
-        for (File file : filePaths) {
-            if (!file.getName().endsWith(".jar"))
+        // Jars that went away
+        for (Iterator<Map.Entry<String, LoadedJar>> it = jars.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, LoadedJar> entry = it.next();
+            if (!found.containsKey(entry.getKey())) {
+                retired.add(entry.getValue().loader);
+                it.remove();
+            }
+        }
+
+        for (File file : found.values()) {
+            LoadedJar loaded = jars.get(file.getPath());
+            if (loaded != null && loaded.lastModified == file.lastModified() && loaded.length == file.length())
                 continue;
 
-            JarFile jar;
+            LoadedJar jar = load(file);
+            if (jar == null)
+                continue;
+            if (loaded != null)
+                retired.add(loaded.loader);
+            jars.put(file.getPath(), jar);
+        }
+
+        Map<String, Attributes> foundManifests = new HashMap<String, Attributes>();
+        for (LoadedJar jar : jars.values()) {
+            if (jar.attributes == null)
+                continue;
+            for (Class<?> found2 : jar.classes) {
+                foundManifests.put(found2.getName(), jar.attributes);
+            }
+        }
+        manifests = foundManifests;
+    }
+
+    /**
+     * Loads every class of a jar with a new class loader.
+     *
+     * @return the jar, or null if it cannot be read
+     */
+    private static LoadedJar load(File file) {
+        // Before reading, so a jar written meanwhile is loaded again at the next scan
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        List<String> classNames = new ArrayList<String>();
+        Attributes attributes = null;
+        JarFile jar;
+        try {
+            jar = new JarFile(file);
+        } catch (IOException e) {
+            System.out.println(String.format("Error reading plugin %s", file));
+            return null;
+        }
+        try {
             try {
-                jar = new JarFile(file);
+                Manifest manifest = jar.getManifest();
+                if (manifest != null)
+                    attributes = manifest.getMainAttributes();
             } catch (IOException e) {
-                System.out.println(String.format("Error reading plugin %s", file));
-                continue;
+                System.out.println(String.format("Error reading the manifest of plugin %s", file));
             }
 
             for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
                 JarEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class"))
+                    classNames.add(entry.getName().replaceAll("/", "\\.").replace(".class", ""));
+            }
+        } finally {
+            try {
+                jar.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-                if (!entry.getName().endsWith(".class"))
-                    continue;
+        URLClassLoader loader;
+        try {
+            loader = new URLClassLoader(new URL[]{file.toURI().toURL()});
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return null;
+        }
 
-                try {
-                    URLClassLoader loader = new URLClassLoader(new URL[]{file.toURI().toURL()});
-                    allClassesFound.add(loader.loadClass(entry.getName().replaceAll("/", "\\.")
-                            .replace(".class", "")));
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                } catch (MalformedURLException e) {
-                    e.printStackTrace();
-                }
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (String className : classNames) {
+            try {
+                classes.add(loader.loadClass(className));
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            } catch (LinkageError e) {
+                e.printStackTrace();
             }
         }
+        return new LoadedJar(loader, classes, attributes, lastModified, length);
+    }
 
-        return allClassesFound;
+    private void closeRetired() {
+        for (URLClassLoader loader : retired) {
+            try {
+                loader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        retired.clear();
     }
 
+    /**
+     * A version of a jar, with the classes and plugins loaded from it.
+     */
+    private static final class LoadedJar {
+        private final URLClassLoader loader;
+        private final List<Class<?>> classes;
+        private final Attributes attributes;
+        private final long lastModified;
+        private final long length;
+        private final Map<Class<?>, Object> instances = new HashMap<Class<?>, Object>();
+
+        private LoadedJar(URLClassLoader loader, List<Class<?>> classes, Attributes attributes,
+                          long lastModified, long length) {
+            this.loader = loader;
+            this.classes = classes;
+            this.attributes = attributes;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
 }
@@ -5,9 +5,16 @@ import protocol.HttpResponse;
 import protocol.Protocol;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Base request handler
+ * <p/>
+ * A request may carry a deadline ({@link HttpRequest#getRemainingMillis()}) and may be cancelled
+ * while it is handled, when its client disconnects or the deadline passes
+ * ({@link HttpRequest#isCancelled()}). Handlers that can take long should check now and then and
+ * give up early; the server no longer waits for them by then.
  */
 public abstract class ARequestHandler implements IRequestHandler {
     protected ArrayList<String> roots = new ArrayList<String>();
@@ -17,6 +24,13 @@ public abstract class ARequestHandler implements IRequestHandler {
         return roots.contains(path);
     }
 
+    /**
+     * @return the paths this handler serves
+     */
+    public List<String> getRoots() {
+        return Collections.unmodifiableList(roots);
+    }
+
     @Override
     public HttpResponse handleRequest(HttpRequest request) {
         switch (request.getMethod()) {
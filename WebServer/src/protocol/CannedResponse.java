@@ -0,0 +1,191 @@
+package protocol;
+
+import buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A response whose status line, headers and body never change, encoded once when the class
+ * loads. Errors and redirects are most of what scanners and bots get, so sending one only
+ * copies the template into a pooled buffer, patches in the current {@link HttpDate} and
+ * writes it, without building a header map or formatting anything.
+ * <p/>
+ * There is a template for each response type with a fixed body and each of
+ * {@link Protocol#CLOSE} and {@link Protocol#OPEN}, so the <tt>Connection</tt> header is part
+ * of the template too. The 429 and 503 responses sent under overload have one for every
+ * <tt>Retry-After</tt> value up to {@link #MAX_RETRY_AFTER} seconds as well.
+ */
+final class CannedResponse {
+    static final int MAX_RETRY_AFTER = 60;
+
+    private static final Map<HttpResponseType, String> BODIES = new EnumMap<HttpResponseType, String>(HttpResponseType.class);
+    private static final Map<HttpResponseType, CannedResponse> CLOSE = new EnumMap<HttpResponseType, CannedResponse>(HttpResponseType.class);
+    private static final Map<HttpResponseType, CannedResponse> OPEN = new EnumMap<HttpResponseType, CannedResponse>(HttpResponseType.class);
+
+    // Indexed by Retry-After
+    private static final Map<HttpResponseType, String> RETRY_BODIES = new EnumMap<HttpResponseType, String>(HttpResponseType.class);
+    private static final Map<HttpResponseType, CannedResponse[]> RETRY_CLOSE = new EnumMap<HttpResponseType, CannedResponse[]>(HttpResponseType.class);
+    private static final Map<HttpResponseType, CannedResponse[]> RETRY_OPEN = new EnumMap<HttpResponseType, CannedResponse[]>(HttpResponseType.class);
+
+    static {
+        BODIES.put(HttpResponseType.MovedPermanently, "");
+        BODIES.put(HttpResponseType.NotModified, null);
+        BODIES.put(HttpResponseType.BadRequest, "");
+        BODIES.put(HttpResponseType.NotFound, "404 - Page Not Found!");
+        BODIES.put(HttpResponseType.InternalServerError, "");
+        BODIES.put(HttpResponseType.NotSupported, "");
+        BODIES.put(HttpResponseType.GatewayTimeout, "504 - Gateway Timeout");
+
+        for (Map.Entry<HttpResponseType, String> entry : BODIES.entrySet()) {
+            CLOSE.put(entry.getKey(), new CannedResponse(entry.getKey(), Protocol.CLOSE, entry.getValue(), 0));
+            OPEN.put(entry.getKey(), new CannedResponse(entry.getKey(), Protocol.OPEN, entry.getValue(), 0));
+        }
+
+        RETRY_BODIES.put(HttpResponseType.TooManyRequests, "429 - Too Many Requests");
+        RETRY_BODIES.put(HttpResponseType.ServiceNotAvailable, "503 - Service Unavailable");
+
+        for (Map.Entry<HttpResponseType, String> entry : RETRY_BODIES.entrySet()) {
+            CannedResponse[] close = new CannedResponse[MAX_RETRY_AFTER + 1];
+            CannedResponse[] open = new CannedResponse[MAX_RETRY_AFTER + 1];
+            for (int seconds = 1; seconds <= MAX_RETRY_AFTER; seconds++) {
+                close[seconds] = new CannedResponse(entry.getKey(), Protocol.CLOSE, entry.getValue(), seconds);
+                open[seconds] = new CannedResponse(entry.getKey(), Protocol.OPEN, entry.getValue(), seconds);
+            }
+            RETRY_CLOSE.put(entry.getKey(), close);
+            RETRY_OPEN.put(entry.getKey(), open);
+        }
+    }
+
+    private final HttpResponseType type;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final byte[] template;
+    private final int dateOffset;
+
+    /**
+     * @param type       The response type
+     * @param connection The <tt>Connection</tt> header
+     * @param body       The body, or null for a response that must not say how long its body is
+     * @param retryAfter The <tt>Retry-After</tt> header in seconds, or 0 for none
+     */
+    private CannedResponse(HttpResponseType type, String connection, String body, int retryAfter) {
+        this.type = type;
+        this.body = body == null ? new byte[0] : body.getBytes(StandardCharsets.US_ASCII);
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Protocol.CONNECTION, connection);
+        headers.put(Protocol.Server, Protocol.getServerInfo());
+        headers.put(Protocol.PROVIDER, Protocol.AUTHOR);
+        if (body != null)
+            headers.put(Protocol.CONTENT_LENGTH, Integer.toString(this.body.length));
+        if (this.body.length > 0)
+            headers.put(Protocol.CONTENT_TYPE, "text/plain");
+        if (retryAfter > 0)
+            headers.put(Protocol.RETRY_AFTER, Integer.toString(retryAfter));
+        this.headers = Collections.unmodifiableMap(headers);
+
+        StringBuilder head = new StringBuilder();
+        head.append(Protocol.VERSION).append(' ').append(type.getFullType()).append(Protocol.CRLF);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append(Protocol.CRLF);
+        }
+        head.append(Protocol.DATE).append(": ");
+        this.dateOffset = head.length();
+        for (int i = 0; i < HttpDate.LENGTH; i++) {
+            head.append(' ');
+        }
+        head.append(Protocol.CRLF).append(Protocol.CRLF);
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+        this.template = new byte[headBytes.length + this.body.length];
+        System.arraycopy(headBytes, 0, template, 0, headBytes.length);
+        System.arraycopy(this.body, 0, template, headBytes.length, this.body.length);
+    }
+
+    /**
+     * Looks up the template for a response.
+     *
+     * @param type       The response type
+     * @param connection The <tt>Connection</tt> header
+     * @return the template, or null if the response cannot be canned
+     */
+    static CannedResponse get(HttpResponseType type, String connection) {
+        if (Protocol.CLOSE.equalsIgnoreCase(connection))
+            return CLOSE.get(type);
+        if (Protocol.OPEN.equalsIgnoreCase(connection))
+            return OPEN.get(type);
+        return null;
+    }
+
+    /**
+     * Looks up the template for a response that tells the client when to try again.
+     *
+     * @param type       The response type
+     * @param connection The <tt>Connection</tt> header
+     * @param retryAfter The <tt>Retry-After</tt> header in seconds
+     * @return the template, or null if the response cannot be canned
+     */
+    static CannedResponse get(HttpResponseType type, String connection, long retryAfter) {
+        if (retryAfter < 1 || retryAfter > MAX_RETRY_AFTER)
+            return null;
+
+        CannedResponse[] templates = null;
+        if (Protocol.CLOSE.equalsIgnoreCase(connection))
+            templates = RETRY_CLOSE.get(type);
+        else if (Protocol.OPEN.equalsIgnoreCase(connection))
+            templates = RETRY_OPEN.get(type);
+        return templates == null ? null : templates[(int) retryAfter];
+    }
+
+    HttpResponseType getType() {
+        return type;
+    }
+
+    /**
+     * @return the headers without <tt>Date</tt>, which must not be modified
+     */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the body, which must not be modified
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Writes the response with the current date.
+     *
+     * @param channel The channel to write to
+     * @param pool    The pool to borrow the write buffer from
+     * @return the number of bytes written
+     * @throws IOException if the write fails
+     */
+    long write(WritableByteChannel channel, BufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire(template.length);
+        try {
+            int afterDate = dateOffset + HttpDate.LENGTH;
+            buffer.put(template, 0, dateOffset);
+            buffer.put(HttpDate.currentBytes());
+            buffer.put(template, afterDate, template.length - afterDate);
+            buffer.flip();
+
+            long written = 0;
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            return written;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decides how uploaded files are flushed to disk, set by the <tt>sws.upload.sync</tt> system property:
+ * <ul>
+ * <li><tt>none</tt> (the default) leaves flushing to the operating system.</li>
+ * <li><tt>always</tt> forces every file to disk before the upload completes.</li>
+ * <li><tt>batch</tt> also waits until the file is on disk, but commits files in groups: uploads
+ * that complete while a round of flushes is in progress gather into the next round, which starts
+ * as soon as the current one is over. The files of a round are forced at the same time, each by
+ * its own upload's thread, so the file system can commit them together, and the uploads of a round
+ * complete together. A round also gathers for at least <tt>sws.upload.syncInterval</tt>
+ * milliseconds (0 by default) after its first upload joins.</li>
+ * </ul>
+ */
+public final class FileSync {
+    public static final String MODE_PROPERTY = "sws.upload.sync";
+    public static final String INTERVAL_PROPERTY = "sws.upload.syncInterval";
+
+    public enum Mode {
+        NONE, ALWAYS, BATCH
+    }
+
+    private static final FileSync defaultSync = new FileSync(
+            parseMode(System.getProperty(MODE_PROPERTY, "none")),
+            Long.getLong(INTERVAL_PROPERTY, 0));
+
+    private final Mode mode;
+    private final long interval;
+    private final Object lock = new Object();
+    // The round uploads join while another is flushing, or null
+    private Round gathering;
+    private boolean flushing;
+
+    public FileSync(Mode mode, long interval) {
+        this.mode = mode;
+        this.interval = Math.max(0, interval);
+    }
+
+    public static FileSync getDefault() {
+        return defaultSync;
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println(String.format("Ignoring %s=%s; uploads are not synced", MODE_PROPERTY, value));
+            return Mode.NONE;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Makes sure the contents of the file are on disk, as far as the mode requires.
+     * The caller must not close the channel before this returns.
+     *
+     * @param channel The file channel
+     * @throws IOException if the file could not be flushed
+     */
+    public void sync(FileChannel channel) throws IOException {
+        switch (mode) {
+            case ALWAYS:
+                channel.force(true);
+                break;
+            case BATCH:
+                syncBatched(channel);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void syncBatched(FileChannel channel) throws IOException {
+        boolean interrupted = false;
+        Round round;
+        synchronized (lock) {
+            if (gathering == null)
+                gathering = new Round(System.nanoTime() + interval * 1000000L);
+            round = gathering;
+            round.members++;
+
+            // Whichever member finds the disk free once the round has gathered starts it
+            while (!round.started) {
+                long wait = (round.startAt - System.nanoTime() + 999999) / 1000000L;
+                if (flushing || wait > 0) {
+                    interrupted |= await(flushing ? 0 : wait);
+                    continue;
+                }
+                gathering = null;
+                flushing = true;
+                round.started = true;
+                round.running = round.members;
+                lock.notifyAll();
+            }
+        }
+
+        IOException error = null;
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (lock) {
+            if (--round.running == 0) {
+                flushing = false;
+                round.complete = true;
+                lock.notifyAll();
+            }
+            while (!round.complete) {
+                interrupted |= await(0);
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Waits on the lock, which the caller holds; an upload is not given up halfway.
+     *
+     * @return true if the thread was interrupted meanwhile
+     */
+    private boolean await(long millis) {
+        try {
+            lock.wait(millis);
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static final class Round {
+        private final long startAt;
+        private int members;
+        private int running;
+        private boolean started;
+        private boolean complete;
+
+        private Round(long startAt) {
+            this.startAt = startAt;
+        }
+    }
+}
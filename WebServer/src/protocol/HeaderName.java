@@ -0,0 +1,162 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Well-known HTTP header field names.
+ * <p/>
+ * Request headers with one of these names are stored by ordinal in {@link HttpHeaders}, and the
+ * name lookups below compare ASCII case-insensitively without allocating.
+ */
+public enum HeaderName {
+    ACCEPT("Accept"),
+    ACCEPT_CHARSET("Accept-Charset"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    ACCEPT_LANGUAGE("Accept-Language"),
+    AUTHORIZATION("Authorization"),
+    CACHE_CONTROL("Cache-Control"),
+    CONNECTION("Connection"),
+    CONTENT_ENCODING("Content-Encoding"),
+    CONTENT_LENGTH("Content-Length"),
+    CONTENT_TYPE("Content-Type"),
+    COOKIE("Cookie"),
+    DATE("Date"),
+    EXPECT("Expect"),
+    HOST("Host"),
+    HTTP2_SETTINGS("HTTP2-Settings"),
+    IF_MATCH("If-Match"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match"),
+    IF_RANGE("If-Range"),
+    IF_UNMODIFIED_SINCE("If-Unmodified-Since"),
+    KEEP_ALIVE("Keep-Alive"),
+    ORIGIN("Origin"),
+    PRAGMA("Pragma"),
+    RANGE("Range"),
+    REFERER("Referer"),
+    TE("TE"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    UPGRADE("Upgrade"),
+    USER_AGENT("User-Agent"),
+    VIA("Via"),
+    X_FORWARDED_FOR("X-Forwarded-For"),
+    X_REQUEST_TIMEOUT("X-Request-Timeout"),
+    X_REQUESTED_WITH("X-Requested-With");
+
+    private static final HeaderName[] table;
+    private static final int mask;
+
+    static {
+        HeaderName[] names = values();
+        int capacity = Integer.highestOneBit(names.length * 4);
+        table = new HeaderName[capacity];
+        mask = capacity - 1;
+
+        for (HeaderName name : names) {
+            int index = name.hash & mask;
+            while (table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table[index] = name;
+        }
+    }
+
+    private final String name;
+    private final byte[] lowerCase;
+    private final int hash;
+
+    HeaderName(String name) {
+        this.name = name;
+        this.lowerCase = new byte[name.length()];
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            byte b = toLower((byte) name.charAt(i));
+            this.lowerCase[i] = b;
+            h = 31 * h + b;
+        }
+        this.hash = h ^ (h >>> 16);
+    }
+
+    /**
+     * The canonical spelling of the header name, e.g. "Content-Length".
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Finds the well-known header with the supplied name, ignoring case.
+     *
+     * @param name The header name
+     * @return The header, or null if it is not a well-known header
+     */
+    public static HeaderName lookup(String name) {
+        int length = name.length();
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + toLower((byte) name.charAt(i));
+        }
+
+        int index = (h ^ (h >>> 16)) & mask;
+        HeaderName candidate;
+        while ((candidate = table[index]) != null) {
+            if (candidate.matches(name))
+                return candidate;
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the well-known header whose name is stored in the buffer between start and end, ignoring case.
+     *
+     * @param buffer The buffer holding the name
+     * @param start  The index of the first byte of the name
+     * @param end    The index just past the last byte of the name
+     * @return The header, or null if it is not a well-known header
+     */
+    public static HeaderName lookup(ByteBuffer buffer, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toLower(buffer.get(i));
+        }
+
+        int index = (h ^ (h >>> 16)) & mask;
+        HeaderName candidate;
+        while ((candidate = table[index]) != null) {
+            if (candidate.matches(buffer, start, end))
+                return candidate;
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    boolean matches(String other) {
+        if (other.length() != lowerCase.length)
+            return false;
+
+        for (int i = 0; i < lowerCase.length; i++) {
+            char c = other.charAt(i);
+            if (c > 0x7f || toLower((byte) c) != lowerCase[i])
+                return false;
+        }
+        return true;
+    }
+
+    boolean matches(ByteBuffer buffer, int start, int end) {
+        if (end - start != lowerCase.length)
+            return false;
+
+        for (int i = 0; i < lowerCase.length; i++) {
+            if (toLower(buffer.get(start + i)) != lowerCase[i])
+                return false;
+        }
+        return true;
+    }
+
+    static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,90 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The current time in the IMF-fixdate format of the <tt>Date</tt> header, e.g.
+ * <tt>Sun, 06 Nov 1994 08:49:37 GMT</tt>. It is formatted at most once a second and shared
+ * by every thread, and it is always {@link #LENGTH} bytes long so it can be patched into
+ * pre-encoded responses. Other times, such as <tt>Last-Modified</tt>, are formatted and parsed
+ * on demand.
+ */
+public final class HttpDate {
+    public static final int LENGTH = 29;
+
+    private static volatile Snapshot current = new Snapshot(System.currentTimeMillis() / 1000);
+
+    private HttpDate() {
+    }
+
+    /**
+     * @return the current date as ASCII bytes, which must not be modified
+     */
+    public static byte[] currentBytes() {
+        return snapshot().bytes;
+    }
+
+    /**
+     * @return the current date
+     */
+    public static String currentString() {
+        return snapshot().string;
+    }
+
+    /**
+     * @param millis A time, e.g. a file's last modification
+     * @return the time in the format of the <tt>Date</tt> header
+     */
+    public static String format(long millis) {
+        return newFormat().format(new Date(millis));
+    }
+
+    /**
+     * Parses a date in the format of the <tt>Date</tt> header, as sent in
+     * <tt>If-Modified-Since</tt>.
+     *
+     * @param date The date
+     * @return the time in milliseconds, or -1 if the date is not in that format
+     */
+    public static long parse(String date) {
+        try {
+            return newFormat().parse(date.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private static SimpleDateFormat newFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static Snapshot snapshot() {
+        long second = System.currentTimeMillis() / 1000;
+        Snapshot snapshot = current;
+        if (snapshot.second != second) {
+            // Racing threads format the same second; whichever is stored last is as good
+            snapshot = new Snapshot(second);
+            current = snapshot;
+        }
+        return snapshot;
+    }
+
+    private static final class Snapshot {
+        final long second;
+        final String string;
+        final byte[] bytes;
+
+        Snapshot(long second) {
+            this.second = second;
+            this.string = format(second * 1000);
+            this.bytes = string.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
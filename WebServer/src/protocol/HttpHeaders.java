@@ -0,0 +1,359 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The header fields of a request.
+ * <p/>
+ * Values are kept as slices of the buffer the request was read into and are only decoded to a
+ * {@link String} when asked for. Headers with a {@link HeaderName well-known name} are stored by
+ * ordinal; other headers are kept in a small list and compared ASCII case-insensitively.
+ * Name lookups and the comparison helpers do not allocate.
+ * <p/>
+ * A connection reuses one instance for all of its requests, so the fields of a request are only
+ * valid until the next request on the same connection is read.
+ */
+public final class HttpHeaders {
+    private static final HeaderName[] NAMES = HeaderName.values();
+    private static final int INITIAL_OTHER_CAPACITY = 16;
+
+    private ByteBuffer source;
+
+    // Well-known headers, by ordinal
+    private final int[] knownStart;
+    private final int[] knownEnd;
+    private final String[] knownValue;
+    private final boolean[] knownPresent;
+
+    // Any other headers, in the order they were received
+    private int otherCount;
+    private int[] otherSlices;
+    private String[] otherName;
+    private String[] otherValue;
+
+    public HttpHeaders() {
+        this.knownStart = new int[NAMES.length];
+        this.knownEnd = new int[NAMES.length];
+        this.knownValue = new String[NAMES.length];
+        this.knownPresent = new boolean[NAMES.length];
+        this.otherSlices = new int[INITIAL_OTHER_CAPACITY * 4];
+        this.otherName = new String[INITIAL_OTHER_CAPACITY];
+        this.otherValue = new String[INITIAL_OTHER_CAPACITY];
+    }
+
+    /**
+     * Removes all headers and starts collecting headers stored in the supplied buffer.
+     *
+     * @param source The buffer the header section is read into
+     */
+    void reset(ByteBuffer source) {
+        this.source = source;
+        Arrays.fill(knownPresent, false);
+        Arrays.fill(knownValue, null);
+        Arrays.fill(otherName, 0, otherCount, null);
+        Arrays.fill(otherValue, 0, otherCount, null);
+        otherCount = 0;
+    }
+
+    /**
+     * Adds the header whose name and value are stored in the source buffer.
+     * A later header with the same name replaces an earlier one, except that a
+     * <tt>Content-Length</tt> may only be repeated with the same value.
+     *
+     * @return false if the header is a <tt>Content-Length</tt> that differs from an earlier one,
+     * which leaves the length of the body in doubt
+     */
+    boolean add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        HeaderName name = HeaderName.lookup(source, nameStart, nameEnd);
+        if (name != null) {
+            int ordinal = name.ordinal();
+            if (name == HeaderName.CONTENT_LENGTH && knownPresent[ordinal]
+                    && !regionsEqual(source, knownStart[ordinal], knownEnd[ordinal], valueStart, valueEnd))
+                return false;
+            knownPresent[ordinal] = true;
+            knownStart[ordinal] = valueStart;
+            knownEnd[ordinal] = valueEnd;
+            knownValue[ordinal] = null;
+            return true;
+        }
+
+        int index = indexOfOther(nameStart, nameEnd);
+        if (index < 0) {
+            if (otherCount == otherName.length) {
+                otherSlices = Arrays.copyOf(otherSlices, otherSlices.length * 2);
+                otherName = Arrays.copyOf(otherName, otherName.length * 2);
+                otherValue = Arrays.copyOf(otherValue, otherValue.length * 2);
+            }
+            index = otherCount++;
+        }
+
+        otherSlices[index * 4] = nameStart;
+        otherSlices[index * 4 + 1] = nameEnd;
+        otherSlices[index * 4 + 2] = valueStart;
+        otherSlices[index * 4 + 3] = valueEnd;
+        otherName[index] = null;
+        otherValue[index] = null;
+        return true;
+    }
+
+    /**
+     * Adds a header that was decoded already, e.g. one of an HTTP/2 header block. A later header
+     * with the same name replaces an earlier one.
+     *
+     * @param name  The header name, in any case
+     * @param value The value
+     */
+    public void put(String name, String value) {
+        HeaderName known = HeaderName.lookup(name);
+        if (known != null) {
+            int ordinal = known.ordinal();
+            knownPresent[ordinal] = true;
+            knownValue[ordinal] = value;
+            return;
+        }
+
+        detach();
+        int index = indexOfOther(name);
+        if (index < 0) {
+            if (otherCount == otherName.length) {
+                otherSlices = Arrays.copyOf(otherSlices, otherSlices.length * 2);
+                otherName = Arrays.copyOf(otherName, otherName.length * 2);
+                otherValue = Arrays.copyOf(otherValue, otherValue.length * 2);
+            }
+            index = otherCount++;
+        }
+        otherName[index] = name;
+        otherValue[index] = value;
+    }
+
+    /**
+     * Decodes every header, so that the fields stay valid after the source buffer is reused,
+     * e.g. to read the request body, and can be read on another thread.
+     */
+    public void detach() {
+        if (source == null)
+            return;
+
+        for (int i = 0; i < NAMES.length; i++) {
+            if (knownPresent[i] && knownValue[i] == null)
+                knownValue[i] = ascii(source, knownStart[i], knownEnd[i]);
+        }
+        for (int i = 0; i < otherCount; i++) {
+            decodeOther(i);
+        }
+        source = null;
+    }
+
+    /**
+     * @param name The header name
+     * @return true if the request has the header
+     */
+    public boolean contains(HeaderName name) {
+        return knownPresent[name.ordinal()];
+    }
+
+    /**
+     * @param name The header name, in any case
+     * @return true if the request has the header
+     */
+    public boolean contains(String name) {
+        HeaderName known = HeaderName.lookup(name);
+        if (known != null)
+            return contains(known);
+        return indexOfOther(name) >= 0;
+    }
+
+    /**
+     * @param name The header name
+     * @return The value of the header, or null if the request does not have it
+     */
+    public String get(HeaderName name) {
+        int ordinal = name.ordinal();
+        if (!knownPresent[ordinal])
+            return null;
+
+        String value = knownValue[ordinal];
+        if (value == null) {
+            value = ascii(source, knownStart[ordinal], knownEnd[ordinal]);
+            knownValue[ordinal] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @param name The header name, in any case
+     * @return The value of the header, or null if the request does not have it
+     */
+    public String get(String name) {
+        HeaderName known = HeaderName.lookup(name);
+        if (known != null)
+            return get(known);
+
+        int index = indexOfOther(name);
+        if (index < 0)
+            return null;
+
+        decodeOther(index);
+        return otherValue[index];
+    }
+
+    /**
+     * Compares the value of a header with the supplied value, ignoring ASCII case, without decoding it.
+     *
+     * @param name  The header name
+     * @param value The value to compare with
+     * @return true if the request has the header and its value matches
+     */
+    public boolean equalsIgnoreCase(HeaderName name, String value) {
+        int ordinal = name.ordinal();
+        if (!knownPresent[ordinal])
+            return false;
+
+        String decoded = knownValue[ordinal];
+        if (decoded != null)
+            return decoded.equalsIgnoreCase(value);
+
+        return regionEqualsIgnoreCase(source, knownStart[ordinal], knownEnd[ordinal], value);
+    }
+
+    /**
+     * Parses the value of a header as a non-negative decimal number without decoding it.
+     *
+     * @param name The header name
+     * @return The value, or -1 if the request does not have the header
+     * @throws NumberFormatException if the value is not a non-negative decimal number
+     */
+    public long getLong(HeaderName name) {
+        int ordinal = name.ordinal();
+        if (!knownPresent[ordinal])
+            return -1;
+
+        String decoded = knownValue[ordinal];
+        if (decoded != null) {
+            long value = Long.parseLong(decoded);
+            if (value < 0)
+                throw new NumberFormatException(decoded);
+            return value;
+        }
+
+        int start = knownStart[ordinal];
+        int end = knownEnd[ordinal];
+        if (start == end || end - start > 18)
+            throw new NumberFormatException(ascii(source, start, end));
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = source.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException(ascii(source, start, end));
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of header fields
+     */
+    public int size() {
+        int count = otherCount;
+        for (boolean present : knownPresent) {
+            if (present)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the header fields into a new map, keyed by lower-case name. This allocates
+     * and is meant for diagnostics and plugins that need to enumerate the headers.
+     *
+     * @return An unmodifiable map of the header fields
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (HeaderName name : NAMES) {
+            if (knownPresent[name.ordinal()])
+                map.put(name.getName().toLowerCase(), get(name));
+        }
+        for (int i = 0; i < otherCount; i++) {
+            decodeOther(i);
+            map.put(otherName[i].toLowerCase(), otherValue[i]);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private void decodeOther(int index) {
+        if (otherName[index] == null)
+            otherName[index] = ascii(source, otherSlices[index * 4], otherSlices[index * 4 + 1]);
+        if (otherValue[index] == null)
+            otherValue[index] = ascii(source, otherSlices[index * 4 + 2], otherSlices[index * 4 + 3]);
+    }
+
+    private int indexOfOther(String name) {
+        for (int i = 0; i < otherCount; i++) {
+            if (otherName[i] != null) {
+                if (otherName[i].equalsIgnoreCase(name))
+                    return i;
+            } else if (regionEqualsIgnoreCase(source, otherSlices[i * 4], otherSlices[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfOther(int nameStart, int nameEnd) {
+        int length = nameEnd - nameStart;
+        for (int i = 0; i < otherCount; i++) {
+            int start = otherSlices[i * 4];
+            if (otherSlices[i * 4 + 1] - start != length)
+                continue;
+
+            int j = 0;
+            while (j < length && HeaderName.toLower(source.get(start + j))
+                    == HeaderName.toLower(source.get(nameStart + j))) {
+                j++;
+            }
+            if (j == length)
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean regionsEqual(ByteBuffer buffer, int start, int end, int otherStart, int otherEnd) {
+        if (end - start != otherEnd - otherStart)
+            return false;
+
+        for (int i = 0; i < end - start; i++) {
+            if (buffer.get(start + i) != buffer.get(otherStart + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEqualsIgnoreCase(ByteBuffer buffer, int start, int end, String value) {
+        if (end - start != value.length())
+            return false;
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c > 0x7f || HeaderName.toLower(buffer.get(start + i)) != HeaderName.toLower((byte) c))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the ISO-8859-1 bytes between start and end.
+     */
+    static String ascii(ByteBuffer buffer, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buffer.get(i) & 0xff);
+        }
+        return new String(chars);
+    }
+}
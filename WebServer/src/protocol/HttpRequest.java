@@ -22,14 +22,24 @@
 
 package protocol;
 
-import java.io.BufferedReader;
+import buffer.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URLDecoder;
-import java.util.Collections;
-import java.util.HashMap;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a request object for HTTP.
@@ -40,15 +50,36 @@ public class HttpRequest {
     private HttpMethod method;
     private String uri;
     private String version;
-    private Map<String, String> header;
+    private HttpHeaders header;
     private String body;
+    private RequestBody bodyChannel;
+    private List<Part> parts;
     private String relativeUri;
+    private InetAddress remoteAddress;
+    private long arrivalTime;
+    private InterimResponder interimResponder;
+    // A System.nanoTime() value, if hasDeadline
+    private volatile long deadline;
+    private volatile boolean hasDeadline;
+    private volatile boolean cancelled;
+
+    private String queryString;
+    private Parameters parameters;
 
-    private Map<String, String> queryParameters;
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+    // The channel of a request whose whole body is in its buffer
+    private static final ReadableByteChannel END_OF_STREAM = Channels.newChannel(new ByteArrayInputStream(new byte[0]));
 
-    private HttpRequest() {
-        this.header = new CaseInsensitiveMap();
-        body = "";
+    public static final String MAX_BUFFERED_BODY_PROPERTY = "sws.body.maxBuffered";
+    private static final int MAX_BUFFERED_BODY = Integer.getInteger(MAX_BUFFERED_BODY_PROPERTY, 4 * 1024 * 1024);
+
+    /**
+     * The most unread body bytes skipped to keep a connection alive after a request was handled.
+     */
+    private static final long MAX_DISCARDED_BODY = 65536;
+
+    private HttpRequest(HttpHeaders header) {
+        this.header = header;
     }
 
     /**
@@ -61,7 +92,7 @@ public class HttpRequest {
     }
 
     /**
-     * The URI of the request object.
+     * The URI of the request object, without the query string.
      *
      * @return the uri
      */
@@ -69,6 +100,64 @@ public class HttpRequest {
         return uri;
     }
 
+    /**
+     * The raw (still percent-encoded) query string of the request URI.
+     *
+     * @return the query string, or null if the URI has none
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * The request parameters: those in the query string followed by those in an
+     * <tt>application/x-www-form-urlencoded</tt> body. They are decoded on the first call.
+     *
+     * @return the parameters
+     */
+    public Parameters getParameters() {
+        if (parameters == null) {
+            String form = null;
+            if (method != HttpMethod.GET && method != HttpMethod.HEAD && isFormEncoded()) {
+                form = getBody();
+            }
+            parameters = Parameters.parse(queryString, form);
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the first value of a request parameter.
+     *
+     * @param name The parameter name
+     * @return The value, or null if the request has no such parameter
+     */
+    public String getParameter(String name) {
+        return getParameters().get(name);
+    }
+
+    /**
+     * Returns every value of a request parameter.
+     *
+     * @param name The parameter name
+     * @return The values, empty if the request has no such parameter
+     */
+    public List<String> getParameterValues(String name) {
+        return getParameters().getAll(name);
+    }
+
+    private boolean isFormEncoded() {
+        String type = header.get(HeaderName.CONTENT_TYPE);
+        if (type == null) {
+            return false;
+        }
+
+        // Ignore parameters such as "; charset=UTF-8"
+        int end = type.indexOf(';');
+        String mediaType = end < 0 ? type : type.substring(0, end).trim();
+        return mediaType.equalsIgnoreCase(Protocol.FORM_URLENCODED);
+    }
+
     /**
      * The relative URI of the request object.
      *
@@ -82,6 +171,112 @@ public class HttpRequest {
         this.relativeUri = value;
     }
 
+    /**
+     * The address of the client that sent the request.
+     *
+     * @return the address, or null if unknown
+     */
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void setRemoteAddress(InetAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * The time the first bytes of the request were available, as a <tt>System.nanoTime()</tt> value.
+     *
+     * @return the arrival time
+     */
+    public long getArrivalTime() {
+        return arrivalTime;
+    }
+
+    public void setInterimResponder(InterimResponder interimResponder) {
+        this.interimResponder = interimResponder;
+    }
+
+    /**
+     * Sends an informational response, such as {@link HttpResponse#create103EarlyHints}, before
+     * the final one. HTTP/1.0 clients do not expect them and get none.
+     *
+     * @param response A response with a 1xx status
+     * @return whether the response was sent
+     */
+    public boolean sendInterimResponse(HttpResponse response) {
+        int code = response.getType().getCode();
+        if (code < 100 || code > 199)
+            throw new IllegalArgumentException("Not an informational response: " + response.getType());
+        if (interimResponder == null)
+            return false;
+
+        try {
+            interimResponder.send(response);
+            return true;
+        } catch (IOException e) {
+            // The client is gone; the final response will find out too
+            return false;
+        }
+    }
+
+    /**
+     * Gives the request a deadline, after which the server answers it with a 504 whether or not
+     * its handler is done.
+     *
+     * @param deadline The deadline, as a <tt>System.nanoTime()</tt> value
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        this.hasDeadline = true;
+    }
+
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * @return the deadline as a <tt>System.nanoTime()</tt> value; only meaningful if {@link #hasDeadline()}
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return the time left until the deadline in milliseconds, 0 once it has passed, or
+     * <tt>Long.MAX_VALUE</tt> if the request has none
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline)
+            return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * @return true if the request has a deadline and it has passed
+     */
+    public boolean isExpired() {
+        return hasDeadline && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Tells the handler to stop: the client went away, or the server gave up on the request at
+     * its deadline. The handler's thread is interrupted as well, if it runs on a thread of its own.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Whether nobody is waiting for the response any more. Handlers that work for a long time
+     * should check now and then and give up when it is true; whatever they return is thrown away.
+     *
+     * @return true if the request was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     /**
      * The version of the http request.
      *
@@ -92,18 +287,37 @@ public class HttpRequest {
     }
 
     /**
-     * The key to value mapping in the request header fields.
+     * The key to value mapping in the request header fields. The map is a copy keyed by
+     * lower-case header name; use {@link #getHeader(HeaderName)} or {@link #getHeaderFields()}
+     * to look up individual fields without allocating.
      *
      * @return the header
      */
     public Map<String, String> getHeaders() {
-        return Collections.unmodifiableMap(header);
+        return header.toMap();
+    }
+
+    /**
+     * The request header fields.
+     *
+     * @return the header fields
+     */
+    public HttpHeaders getHeaderFields() {
+        return header;
     }
 
     public String getHeader(String key) {
         return header.get(key);
     }
 
+    public String getHeader(HeaderName key) {
+        return header.get(key);
+    }
+
+    public boolean hasHeader(HeaderName key) {
+        return header.contains(key);
+    }
+
     /**
      * Reads raw data from the supplied input stream and constructs a
      * <tt>HttpRequest</tt> object out of the raw data.
@@ -114,110 +328,299 @@ public class HttpRequest {
      *                   {@link java.io.IOException} for socket input stream read errors.
      */
     public static HttpRequest read(InputStream inputStream) throws Exception {
-        HttpRequest request = new HttpRequest();
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire(Protocol.REQUEST_BUFFER_LENGTH);
+        buffer.flip();
+
+        try {
+            HttpRequest request = read(Channels.newChannel(inputStream), buffer, new HttpHeaders());
+            if (request == null) {
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
+
+            // The header values and the body are read through the buffer we are about to give back
+            request.getBody();
+            request.header.detach();
+            return request;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Reads the next request from the supplied channel and constructs a
+     * <tt>HttpRequest</tt> object out of the raw data.
+     * <p/>
+     * The buffer belongs to the connection and must be in read mode. Bytes left over from a
+     * previous read are parsed first, and any bytes received after this request (e.g. a
+     * pipelined request) are left between the buffer's position and limit for the next call.
+     * The request line and headers must fit in the buffer.
+     * <p/>
+     * The header fields are collected into the supplied container, which the connection
+     * reuses for each of its requests. They refer to the buffer until they are decoded, so
+     * the request is only valid until the next request is read from the buffer.
+     *
+     * @param channel The channel to read from.
+     * @param buffer  The connection's read buffer.
+     * @param headers The connection's header container.
+     * @return A <tt>HttpRequest</tt> object, or null if the channel reached end-of-stream before a new request started.
+     * @throws Exception Throws either {@link ProtocolException} for bad request or
+     *                   {@link java.io.IOException} for socket read errors.
+     */
+    public static HttpRequest read(ReadableByteChannel channel, ByteBuffer buffer, HttpHeaders headers)
+            throws Exception {
+        // Wait for the first bytes before taking the arrival time, so it leaves out keep-alive idling
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                return null;
+            }
+        }
+        long arrivalTime = System.nanoTime();
+
+        int headerEnd = readHeaderSection(channel, buffer);
+        if (headerEnd < 0) {
+            return null;
+        }
 
-        InputStreamReader inStreamReader = new InputStreamReader(inputStream);
-        BufferedReader reader = new BufferedReader(inStreamReader);
+        headers.reset(buffer);
+        HttpRequest request = new HttpRequest(headers);
+        request.arrivalTime = arrivalTime;
 
         //First Request Line: GET /somedir/page.html HTTP/1.1
-        String line = reader.readLine();
+        int lineStart = buffer.position();
+        int lineEnd = indexOf(buffer, lineStart, headerEnd, Protocol.LF);
+        int end = trimLineEnd(buffer, lineStart, lineEnd);
 
-        if (line == null) {
+        int methodEnd = indexOf(buffer, lineStart, end, Protocol.SPACE);
+        int uriStart = skipSpaces(buffer, methodEnd, end);
+        int uriEnd = indexOf(buffer, uriStart, end, Protocol.SPACE);
+        int versionStart = skipSpaces(buffer, uriEnd, end);
+
+        if (methodEnd == lineStart || uriEnd == uriStart || versionStart == end
+                || indexOf(buffer, versionStart, end, Protocol.SPACE) != end) {
             throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
         }
 
-        StringTokenizer tokenizer = new StringTokenizer(line, " ");
+        request.method = parseMethod(buffer, lineStart, methodEnd);
+        if (request.method == null) {
+            throw new ProtocolException(Protocol.NOT_IMPLEMENTED_CODE, Protocol.NOT_IMPLEMENTED_TEXT);
+        }
 
-        if (tokenizer.countTokens() != 3) {
-            throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+        // Keep the query string apart from the path; it is only decoded if a handler asks for parameters
+        int query = indexOf(buffer, uriStart, uriEnd, '?');
+        request.uri = HttpHeaders.ascii(buffer, uriStart, query);
+        if (query < uriEnd) {
+            request.queryString = HttpHeaders.ascii(buffer, query + 1, uriEnd);
+        }
+        request.version = HttpHeaders.ascii(buffer, versionStart, end);
+
+        // Header fields: "Key: Value"
+        lineStart = lineEnd + 1;
+        while (lineStart < headerEnd) {
+            lineEnd = indexOf(buffer, lineStart, headerEnd, Protocol.LF);
+            end = trimLineEnd(buffer, lineStart, lineEnd);
+
+            int colon = indexOf(buffer, lineStart, end, Protocol.SEPARATOR);
+            if (colon < end) {
+                int nameStart = skipWhitespace(buffer, lineStart, colon);
+                int nameEnd = trimWhitespace(buffer, nameStart, colon);
+                int valueStart = skipWhitespace(buffer, colon + 1, end);
+                int valueEnd = trimWhitespace(buffer, valueStart, end);
+                if (nameStart < nameEnd && !headers.add(nameStart, nameEnd, valueStart, valueEnd)) {
+                    // Conflicting lengths; a proxy in front may have framed the body differently
+                    throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+                }
+            }
+
+            lineStart = lineEnd + 1;
         }
+        buffer.position(headerEnd);
 
-        String method = tokenizer.nextToken();
+        readBody(request, channel, buffer);
 
+        return request;
+    }
+
+    /**
+     * Creates a request from parts that were decoded already, such as those of an HTTP/2 stream,
+     * without a round trip through the HTTP/1.1 message format.
+     *
+     * @param method  The method name
+     * @param target  The request target, with its query string if there is one
+     * @param version The protocol version
+     * @param headers The header fields, decoded
+     * @param body    The whole body
+     * @return A <tt>HttpRequest</tt> object.
+     * @throws ProtocolException if the method is not supported
+     */
+    public static HttpRequest create(String method, String target, String version, HttpHeaders headers,
+                                     ByteBuffer body) throws ProtocolException {
+        HttpRequest request = new HttpRequest(headers);
+        request.arrivalTime = System.nanoTime();
         try {
             request.method = HttpMethod.valueOf(method);
         } catch (IllegalArgumentException e) {
             throw new ProtocolException(Protocol.NOT_IMPLEMENTED_CODE, Protocol.NOT_IMPLEMENTED_TEXT);
         }
 
-        request.uri = tokenizer.nextToken();
-        request.version = tokenizer.nextToken();
+        int query = target.indexOf('?');
+        request.uri = query < 0 ? target : target.substring(0, query);
+        if (query >= 0) {
+            request.queryString = target.substring(query + 1);
+        }
+        request.version = version;
+        request.bodyChannel = new RequestBody(END_OF_STREAM, body, headers, body.remaining(), false);
+        return request;
+    }
 
-        line = reader.readLine().trim();
+    /**
+     * Reads from the channel until the buffer holds a complete request line and header section.
+     *
+     * @return The index just past the blank line that ends the header section, or -1 on end-of-stream
+     */
+    private static int readHeaderSection(ReadableByteChannel channel, ByteBuffer buffer) throws Exception {
+        int scanned = 0;
+        while (true) {
+            // Ignore empty lines in front of the request line
+            int position = buffer.position();
+            while (position < buffer.limit()
+                    && (buffer.get(position) == Protocol.CR || buffer.get(position) == Protocol.LF)) {
+                position++;
+            }
+            if (position != buffer.position()) {
+                buffer.position(position);
+                scanned = 0;
+            }
 
-        while (!line.equals("")) {
-            line = line.trim();
-            int index = line.indexOf(' ');
-            if (index > 0 && index < line.length() - 1) {
-                String key = line.substring(0, index);
-                String value = line.substring(index + 1);
-                key = key.trim().toLowerCase();
-                key = key.substring(0, key.length() - 1);    // remove ":" from the key
-                value = value.trim();
-                request.header.put(key, value);
+            int headerEnd = findHeaderEnd(buffer, position + Math.max(0, scanned - 3));
+            if (headerEnd >= 0) {
+                return headerEnd;
             }
-            line = reader.readLine().trim();
-        }
+            scanned = buffer.remaining();
 
-        while (reader.ready()) {
-            request.body += (char) reader.read();
-        }
+            if (scanned == buffer.capacity()) {
+                // The header section does not fit in the buffer
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
 
-        GetParameters(request);
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
 
-        return request;
+            if (read < 0) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
+        }
     }
 
-    private static void GetParameters(HttpRequest request) {
-        // We should have the method, so check if this is a GET request
-        if (request.getMethod() == HttpMethod.GET || request.getMethod() == HttpMethod.HEAD) {
-            // Check if we have any query parameters
-            if (!request.getUri().contains("?"))
-                return;
+    private static void readBody(HttpRequest request, ReadableByteChannel channel, ByteBuffer buffer)
+            throws Exception {
+        HttpHeaders headers = request.header;
 
-            request.uri = request.uri.split("(.*)\\?(.*)?")[0];
-            request.queryParameters = parseFormEncodedString(request.uri.split("(.*)\\?(.*)?")[1]);
-        } else {
-            // Check if the content-type of the body is application/x-www-form-urlencoded
-            if (!request.getHeader("Content-Type").equalsIgnoreCase("application/x-www-form-urlencoded"))
-                return;
+        boolean chunked = false;
+        String transferEncoding = headers.get(HeaderName.TRANSFER_ENCODING);
+        if (transferEncoding != null) {
+            // A message with both framings may be a smuggling attempt (RFC 9112, section 6.3)
+            if (headers.contains(HeaderName.CONTENT_LENGTH)) {
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
 
-            request.queryParameters = parseFormEncodedString(request.body);
+            // Chunked must be the last coding applied to a request body
+            String coding = transferEncoding.trim();
+            if (!coding.regionMatches(true, coding.length() - 7, "chunked", 0, 7)) {
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
+            chunked = true;
         }
-    }
 
-    /**
-     * @param body
-     * @return
-     */
-    private static Map<String, String> parseFormEncodedString(String body) {
-        int idx = body.indexOf('?');
-        if (idx >= 0) {
-            body = body.substring(idx + 1);
+        long length = 0;
+        if (!chunked) {
+            try {
+                length = Math.max(0, headers.getLong(HeaderName.CONTENT_LENGTH));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
         }
 
-        StringTokenizer tokenizer = new StringTokenizer(body, "&");
-        HashMap<String, String> map = new HashMap<String, String>();
+        request.bodyChannel = new RequestBody(channel, buffer, headers, length, chunked);
+    }
 
-        while (tokenizer.hasMoreElements()) {
-            String pair = tokenizer.nextToken();
+    private static int findHeaderEnd(ByteBuffer buffer, int from) {
+        int limit = buffer.limit();
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) != Protocol.LF) {
+                continue;
+            }
+            if (i + 1 < limit && buffer.get(i + 1) == Protocol.LF) {
+                return i + 2;
+            }
+            if (i + 2 < limit && buffer.get(i + 1) == Protocol.CR && buffer.get(i + 2) == Protocol.LF) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
 
-            // See if we can split the URL into key/value
-            int index = pair.indexOf('=');
-            if (index == -1) {
-                // Just have the key...
-                map.put(pair, "");
+    private static HttpMethod parseMethod(ByteBuffer buffer, int start, int end) {
+        for (HttpMethod method : METHODS) {
+            String name = method.name();
+            if (name.length() != end - start) {
                 continue;
             }
 
-            // Split the key and value
-            String key = pair.substring(0, index);
-            String value = URLDecoder.decode(pair.substring(index + 1));
-            map.put(key, value);
+            int i = 0;
+            while (i < name.length() && buffer.get(start + i) == name.charAt(i)) {
+                i++;
+            }
+            if (i == name.length()) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == Protocol.SPACE) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int skipWhitespace(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) == Protocol.SPACE || buffer.get(start) == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimWhitespace(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == Protocol.SPACE || buffer.get(end - 1) == '\t')) {
+            end--;
         }
-        return map;
+        return end;
     }
 
+    private static int trimLineEnd(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == Protocol.CR) {
+            return end - 1;
+        }
+        return end;
+    }
 
     @Override
     public String toString() {
@@ -230,7 +633,7 @@ public class HttpRequest {
         buffer.append(this.version);
         buffer.append(Protocol.LF);
 
-        for (Map.Entry<String, String> entry : this.header.entrySet()) {
+        for (Map.Entry<String, String> entry : this.header.toMap().entrySet()) {
             buffer.append(entry.getKey());
             buffer.append(Protocol.SEPARATOR);
             buffer.append(Protocol.SPACE);
@@ -242,9 +645,149 @@ public class HttpRequest {
     }
 
     /**
-     * @return
+     * Reads the whole request body into a string. Bodies larger than <tt>sws.body.maxBuffered</tt>
+     * bytes (4MB by default) are refused; stream those through {@link #getBodyChannel()},
+     * {@link #transferBodyTo(File)} or {@link #getParts()} instead.
+     *
+     * @return the body
+     * @throws IllegalStateException if the body is too large, was already streamed, or cannot be read
      */
     public String getBody() {
+        if (body == null) {
+            long length = bodyChannel.getLength();
+            if (length > MAX_BUFFERED_BODY) {
+                throw new IllegalStateException("Request body is too large to buffer");
+            }
+            if (bodyChannel.getBytesRead() > 0) {
+                throw new IllegalStateException("Request body has already been streamed");
+            }
+
+            byte[] bytes = new byte[length >= 0 ? (int) length : Protocol.CHUNK_LENGTH];
+            ByteBuffer target = ByteBuffer.wrap(bytes);
+            try {
+                while (bodyChannel.read(target) >= 0) {
+                    if (!target.hasRemaining() && !bodyChannel.isFinished()) {
+                        if (bytes.length >= MAX_BUFFERED_BODY) {
+                            throw new IllegalStateException("Request body is too large to buffer");
+                        }
+                        bytes = Arrays.copyOf(bytes, (int) Math.min((long) bytes.length * 2, MAX_BUFFERED_BODY));
+                        target = ByteBuffer.wrap(bytes, target.position(), bytes.length - target.position());
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read request body", e);
+            }
+            body = new String(bytes, 0, target.position());
+        }
         return body;
     }
+
+    /**
+     * A channel for streaming the request body. It reaches end-of-stream at the end of the body.
+     *
+     * @return the body channel
+     */
+    public RequestBody getBodyChannel() {
+        return bodyChannel;
+    }
+
+    /**
+     * The length of the request body.
+     *
+     * @return the length, or -1 if the body is chunked
+     */
+    public long getContentLength() {
+        return bodyChannel.getLength();
+    }
+
+    /**
+     * @return true if the request body is <tt>multipart/form-data</tt>
+     */
+    public boolean isMultipart() {
+        return MultipartParser.getBoundary(header.get(HeaderName.CONTENT_TYPE)) != null;
+    }
+
+    /**
+     * Streams a <tt>multipart/form-data</tt> body into temporary files and describes its parts.
+     * The files are deleted after the request has been handled, unless a handler moves them.
+     *
+     * @return the parts, in the order they were sent
+     * @throws ProtocolException if the body is not well-formed multipart/form-data
+     * @throws IOException       if the body cannot be read or the files cannot be written
+     */
+    public List<Part> getParts() throws IOException, ProtocolException {
+        if (parts == null) {
+            String boundary = MultipartParser.getBoundary(header.get(HeaderName.CONTENT_TYPE));
+            if (boundary == null) {
+                throw new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+            }
+            parts = new MultipartParser(bodyChannel, boundary, FileSync.getDefault()).parse();
+        }
+        return parts;
+    }
+
+    /**
+     * Streams the request body to the supplied file. The body is written to a temporary file next
+     * to the destination, flushed according to {@link FileSync#getDefault()}, and then moved into
+     * place, so that the destination never holds a partial upload.
+     *
+     * @param destination The file to write
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    public long transferBodyTo(File destination) throws IOException {
+        File directory = destination.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile("sws-upload-", ".part", directory);
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer buffer = pool.acquire(BufferPool.LARGE);
+        long written = 0;
+
+        try {
+            FileChannel out = new FileOutputStream(temporary).getChannel();
+            try {
+                while (bodyChannel.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        written += out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                FileSync.getDefault().sync(out);
+            } finally {
+                out.close();
+            }
+
+            Files.move(temporary.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            pool.release(buffer);
+            if (temporary.exists() && !temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Cleans up after the request has been handled: deletes temporary upload files that were not
+     * moved, and skips a small unread remainder of the body so the connection can be reused.
+     *
+     * @return true if the connection can carry another request
+     */
+    public boolean finish() {
+        if (parts != null) {
+            for (Part part : parts) {
+                part.delete();
+            }
+        }
+
+        if (bodyChannel == null || bodyChannel.isFinished()) {
+            return true;
+        }
+        try {
+            return bodyChannel.discard(MAX_DISCARDED_BODY);
+        } catch (IOException e) {
+            return false;
+        }
+    }
 }
@@ -21,9 +21,15 @@
 
 package protocol;
 
+import buffer.BufferPool;
+import cache.OpenFileCache;
+
 import java.io.*;
-import java.net.FileNameMap;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 /**
@@ -37,7 +43,15 @@ public class HttpResponse {
     private Map<String, String> headers;
 
     private File file;
+    // The open file the headers describe, held until release() so that the same snapshot is sent
+    private OpenFileCache.Handle fileHandle;
     private byte[] body;
+    // A body outside the heap, e.g. in a mapped cache segment, sent without copying it
+    private ByteBuffer bodyBuffer;
+    // Gives back what the body buffer belongs to, once the response has been sent
+    private Runnable releaser;
+    // The pre-encoded form of a fixed response, until something asks for its headers
+    private CannedResponse canned;
 
     private static final String DEFAULT_VERSION = Protocol.VERSION;
 
@@ -81,6 +95,12 @@ public class HttpResponse {
         this.file = file;
     }
 
+    private HttpResponse(CannedResponse canned) {
+        this(DEFAULT_VERSION, canned.getType(), null, null);
+        this.canned = canned;
+        this.body = canned.getBody();
+    }
+
     /**
      * Gets the version of the HTTP request.
      *
@@ -103,20 +123,65 @@ public class HttpResponse {
         return file;
     }
 
+    /**
+     * The file to be sent, opened through the open file cache the first time it is asked for
+     * and held until {@link #release()}, so that its length and its content stay those of one
+     * snapshot of the file even if it is replaced meanwhile.
+     *
+     * @return the open file, or null if the response sends no file
+     * @throws IOException if the file cannot be opened
+     */
+    public OpenFileCache.Handle getFileHandle() throws IOException {
+        if (fileHandle == null && file != null)
+            fileHandle = OpenFileCache.getDefault().open(file);
+        return fileHandle;
+    }
+
+    /**
+     * The length of the file to be sent, as its <tt>Content-Length</tt> declares it when the
+     * response was made by {@link #createResponse(HttpResponseType, String, File)}.
+     *
+     * @return the length, or 0 if there is no file or it cannot be opened
+     */
+    public long getFileLength() {
+        try {
+            OpenFileCache.Handle handle = getFileHandle();
+            return handle == null ? 0 : handle.getSize();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The body to be sent when the response does not send a file.
+     *
+     * @return the body, or null if there is none
+     */
+    public byte[] getBody() {
+        if (body == null && bodyBuffer != null) {
+            body = new byte[bodyBuffer.remaining()];
+            bodyBuffer.duplicate().get(body);
+        }
+        return body;
+    }
+
     /**
      * Returns the headers fields associated with the response object.
      *
      * @return the headers
      */
     public Map<String, String> getHeaders() {
+        detach();
         return Collections.unmodifiableMap(headers);
     }
 
     public String getHeader(String key) {
+        detach();
         return headers.get(key);
     }
 
     public void putETag(String tag){
+        detach();
         headers.put("ETag", tag);
     }
 
@@ -127,9 +192,23 @@ public class HttpResponse {
      * @param value A value, e.g. "www.rose-hulman.edu"
      */
     public void addHeader(String key, String value) {
+        detach();
         this.headers.put(key, value);
     }
 
+    /**
+     * Turns a canned response into an ordinary one with its own headers, so they can be read
+     * and changed.
+     */
+    private void detach() {
+        if (canned == null)
+            return;
+
+        headers = new HashMap<String, String>(canned.getHeaders());
+        headers.put(Protocol.DATE, HttpDate.currentString());
+        canned = null;
+    }
+
     /**
      * Writes the data of the http response object to the output stream.
      *
@@ -137,41 +216,182 @@ public class HttpResponse {
      * @throws Exception
      */
     public void write(OutputStream outStream) throws Exception {
-        BufferedOutputStream out = new BufferedOutputStream(outStream, Protocol.CHUNK_LENGTH);
+        write(Channels.newChannel(outStream), BufferPool.getDefault());
+    }
+
+    /**
+     * Writes the data of the http response object to the channel, using a buffer borrowed
+     * from the supplied pool.
+     *
+     * @param channel The channel to write to
+     * @param pool    The pool to borrow the write buffer from
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    public long write(WritableByteChannel channel, BufferPool pool) throws IOException {
+        return write(channel, pool, false);
+    }
 
-        // First status line
-        String line = String.format("%s %s%s", this.version, this.type.getFullType(), Protocol.CRLF);
-        out.write(line.getBytes());
+    /**
+     * Writes the http response to the channel, without the body if it answers a HEAD request.
+     * A file that does not fit in the write buffer after the headers is sent with
+     * {@link FileChannel#transferTo}, which does not copy it through the heap when the channel
+     * is a socket.
+     *
+     * @param channel  The channel to write to
+     * @param pool     The pool to borrow the write buffer from
+     * @param headOnly Whether to leave out the body
+     * @return The number of bytes written
+     * @throws IOException
+     */
+    public long write(WritableByteChannel channel, BufferPool pool, boolean headOnly) throws IOException {
+        if (canned != null && !headOnly)
+            return canned.write(channel, pool);
+        detach();
 
-        // Write headers fields if there is something to write in headers field
-        if (headers != null && !headers.isEmpty()) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
+        ByteBuffer buffer = pool.acquire(BufferPool.MEDIUM);
+        long written = 0;
 
-                // Write each headers field line
-                out.write(String.format("%s: %s%s", key, value, Protocol.CRLF).getBytes());
+        try {
+            // First status line
+            written += putAscii(channel, buffer, this.version);
+            written += putAscii(channel, buffer, " ");
+            written += putAscii(channel, buffer, this.type.getFullType());
+            written += putAscii(channel, buffer, Protocol.CRLF);
+
+            // Write headers fields if there is something to write in headers field
+            if (headers != null && !headers.isEmpty()) {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    // Write each headers field line
+                    written += putAscii(channel, buffer, entry.getKey());
+                    written += putAscii(channel, buffer, ": ");
+                    written += putAscii(channel, buffer, entry.getValue());
+                    written += putAscii(channel, buffer, Protocol.CRLF);
+                }
+            }
+            written += putAscii(channel, buffer, Protocol.CRLF);
+
+            if (headOnly) {
+                // No body
+            } else if (file != null) {
+                // The channel may be shared with other responses, so only positional reads
+                OpenFileCache.Handle handle = getFileHandle();
+                FileChannel fileChannel = handle.getChannel();
+                long size = handle.getSize();
+                if (size <= buffer.remaining()) {
+                    // A small file goes out in the same write as the headers
+                    long position = 0;
+                    while (position < size) {
+                        int count = fileChannel.read(buffer, position);
+                        if (count < 0)
+                            throw new EOFException("File truncated while sending");
+                        position += count;
+                    }
+                } else {
+                    written += flush(channel, buffer);
+                    written += transfer(fileChannel, size, channel);
+                }
+            } else if (bodyBuffer != null && bodyBuffer.hasRemaining()) {
+                ByteBuffer content = bodyBuffer.duplicate();
+                if (content.remaining() <= buffer.remaining()) {
+                    buffer.put(content);
+                } else {
+                    buffer.flip();
+                    written += writeFully(channel, buffer, content);
+                    buffer.clear();
+                }
+            } else if (body != null && body.length > 0) {
+                if (body.length <= buffer.remaining()) {
+                    buffer.put(body);
+                } else {
+                    // Send the head and the body together rather than in buffer-sized pieces
+                    buffer.flip();
+                    written += writeFully(channel, buffer, ByteBuffer.wrap(body));
+                    buffer.clear();
+                }
             }
+
+            written += flush(channel, buffer);
+        } finally {
+            pool.release(buffer);
         }
-        out.write(Protocol.CRLF.getBytes());
 
-        // We are reading a file
-        if (file != null) {
-            FileInputStream fileInStream = new FileInputStream(file);
-            BufferedInputStream inStream = new BufferedInputStream(fileInStream, Protocol.CHUNK_LENGTH);
+        return written;
+    }
 
-            byte[] buffer = new byte[Protocol.CHUNK_LENGTH];
-            int bytesRead;
+    /**
+     * Puts the characters of the string into the buffer as ASCII bytes, flushing the buffer
+     * to the channel whenever it fills up.
+     *
+     * @return The number of bytes flushed to the channel
+     */
+    private static long putAscii(WritableByteChannel channel, ByteBuffer buffer, String s) throws IOException {
+        long written = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (!buffer.hasRemaining()) {
+                written += flush(channel, buffer);
+            }
+            buffer.put((byte) s.charAt(i));
+        }
+        return written;
+    }
 
-            while ((bytesRead = inStream.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+    /**
+     * Sends the file to the channel, without copying it through the heap where the platform
+     * allows.
+     *
+     * @return The number of bytes written
+     */
+    private static long transfer(FileChannel fileChannel, long size, WritableByteChannel channel) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long count = fileChannel.transferTo(position, size - position, channel);
+            if (count == 0 && position >= fileChannel.size())
+                throw new EOFException("File truncated while sending");
+            position += count;
+        }
+        return position;
+    }
+
+    /**
+     * Writes all of the buffers, with gathering writes if the channel supports them.
+     *
+     * @return The number of bytes written
+     */
+    private static long writeFully(WritableByteChannel channel, ByteBuffer... buffers) throws IOException {
+        long written = 0;
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int first = 0;
+            while (first < buffers.length) {
+                written += gathering.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
             }
-            inStream.close();
-        } else if (body != null && body.length > 0) {
-            out.write(body, 0, body.length);
         }
+        return written;
+    }
 
-        out.flush();
+    /**
+     * Writes the buffered bytes to the channel and clears the buffer.
+     *
+     * @return The number of bytes written
+     */
+    private static long flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        buffer.clear();
+        return written;
     }
 
     /**
@@ -182,9 +402,7 @@ public class HttpResponse {
      */
     private static void fillGeneralHeader(HttpResponse response, String connection) {
         response.addHeader(Protocol.CONNECTION, connection);
-        Date date = Calendar.getInstance().getTime();
-        response.addHeader(Protocol.DATE, date.toString());
-        File f = new File(connection);
+        response.addHeader(Protocol.DATE, HttpDate.currentString());
         response.addHeader(Protocol.Server, Protocol.getServerInfo());
         response.addHeader(Protocol.PROVIDER, Protocol.AUTHOR);
     }
@@ -193,18 +411,26 @@ public class HttpResponse {
         HttpResponse response = new HttpResponse(DEFAULT_VERSION, type, file);
         fillGeneralHeader(response, connection);
 
-        long timeSinceEpoch = file.lastModified();
-        Date modifiedTime = new Date(timeSinceEpoch);
-        response.addHeader(Protocol.LAST_MODIFIED, modifiedTime.toString());
-
-        long length = file.length();
+        // The open file cache saw the size, time and type when it opened the file, so a hot
+        // file costs no stat or extension lookup per response
+        long length;
+        long lastModified;
+        String mime;
+        try {
+            OpenFileCache.Handle handle = response.getFileHandle();
+            length = handle.getSize();
+            lastModified = handle.getLastModified();
+            mime = handle.getContentType();
+        } catch (IOException e) {
+            // Sending it fails the same way; what a stat says will do for the headers
+            length = file.length();
+            lastModified = file.lastModified();
+            mime = MimeTypes.getContentType(file);
+        }
+        response.addHeader(Protocol.LAST_MODIFIED, HttpDate.format(lastModified));
         response.addHeader(Protocol.CONTENT_LENGTH, String.format("%d", length));
 
-        // Lets get MIME type for the file
-        FileNameMap fileNameMap = URLConnection.getFileNameMap();
-        String mime = fileNameMap.getContentTypeFor(file.getName());
-        // The fileNameMap cannot find mime type for all of the documents, e.g. doc, odt, etc.
-        // So we will not add this field if we cannot figure out what a mime type is for the file.
+        // We will not add this field if we cannot figure out what a mime type is for the file.
         // Let browser do this job by itself.
         if (mime != null) {
             response.addHeader(Protocol.CONTENT_TYPE, mime);
@@ -223,12 +449,108 @@ public class HttpResponse {
         return response;
     }
 
+    /**
+     * Creates a response with a fixed body, from its pre-encoded template where there is one.
+     *
+     * @param type       A response type with a template
+     * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+     */
+    private static HttpResponse createCanned(HttpResponseType type, String connection) {
+        CannedResponse canned = CannedResponse.get(type, connection);
+        if (canned != null)
+            return new HttpResponse(canned);
+
+        // Any other Connection header makes an ordinary response, with the template's headers
+        HttpResponse response = new HttpResponse(CannedResponse.get(type, Protocol.CLOSE));
+        response.addHeader(Protocol.CONNECTION, connection);
+        return response;
+    }
+
+    /**
+     * Creates a response with a fixed body and a <tt>Retry-After</tt> header, from its
+     * pre-encoded template where there is one.
+     *
+     * @param type       A response type with templates for each wait
+     * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+     * @param retryAfter The number of seconds the client should wait, at least 1
+     */
+    private static HttpResponse createCanned(HttpResponseType type, String connection, long retryAfter) {
+        CannedResponse canned = CannedResponse.get(type, connection, retryAfter);
+        if (canned != null)
+            return new HttpResponse(canned);
+
+        // A longer wait or any other Connection header makes an ordinary response, with the
+        // template's headers
+        HttpResponse response = new HttpResponse(CannedResponse.get(type, Protocol.CLOSE, 1));
+        response.addHeader(Protocol.CONNECTION, connection);
+        response.addHeader(Protocol.RETRY_AFTER, Long.toString(retryAfter));
+        return response;
+    }
+
+    /**
+     * Creates a response whose body is the remaining bytes of a buffer, which the response
+     * keeps and sends without copying.
+     *
+     * @param type       The response type
+     * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+     * @param body       The body
+     * @return the response
+     */
+    public static HttpResponse createResponse(HttpResponseType type, String connection, ByteBuffer body) {
+        HttpResponse response = new HttpResponse(DEFAULT_VERSION, type);
+        fillGeneralHeader(response, connection);
+        response.bodyBuffer = body.duplicate();
+
+        response.addHeader(Protocol.CONTENT_LENGTH, Integer.toString(body.remaining()));
+
+        return response;
+    }
+
+    /**
+     * Has the supplied action run once the response has been sent, e.g. to give back the cache
+     * segment its body is a view of.
+     *
+     * @param releaser The action
+     */
+    public void setReleaser(Runnable releaser) {
+        this.releaser = releaser;
+    }
+
+    /**
+     * Runs the releaser, if there is one, and gives back the open file, once the response has
+     * been sent and nothing reads its body any more.
+     */
+    public void release() {
+        Runnable action = releaser;
+        releaser = null;
+        if (action != null)
+            action.run();
+        OpenFileCache.Handle handle = fileHandle;
+        fileHandle = null;
+        if (handle != null)
+            handle.release();
+    }
+
     public static HttpResponse createResponse(HttpResponseType type, String connection) {
         HttpResponse response = new HttpResponse(DEFAULT_VERSION, type);
         fillGeneralHeader(response, connection);
         return response;
     }
 
+    /**
+     * Creates a <tt>103 Early Hints</tt> response, which lets the client start fetching what the
+     * final response will need while it is being prepared. It is sent with
+     * {@link HttpRequest#sendInterimResponse}.
+     *
+     * @param links The <tt>Link</tt> header, e.g. <tt>&lt;/css/site.css&gt;; rel=preload; as=style</tt>
+     * @return A {@link HttpResponse} object represent 103 status.
+     */
+    public static HttpResponse create103EarlyHints(String links) {
+        HttpResponse response = new HttpResponse(DEFAULT_VERSION, HttpResponseType.EarlyHints);
+        response.addHeader(Protocol.LINK, links);
+        return response;
+    }
+
     /**
      * Creates a {@link HttpResponse} object for sending the supplied file with supplied connection
      * parameter.
@@ -248,7 +570,7 @@ public class HttpResponse {
      * @return A {@link HttpResponse} object represent 400 status.
      */
     public static HttpResponse create400BadRequest(String connection) {
-        return createResponse(HttpResponseType.BadRequest, connection);
+        return createCanned(HttpResponseType.BadRequest, connection);
     }
 
     /**
@@ -258,7 +580,7 @@ public class HttpResponse {
      * @return A {@link HttpResponse} object represent 404 status.
      */
     public static HttpResponse create404NotFound(String connection) {
-        return createResponse(HttpResponseType.NotFound, connection, "404 - Page Not Found!");
+        return createCanned(HttpResponseType.NotFound, connection);
     }
 
     /**
@@ -268,7 +590,7 @@ public class HttpResponse {
      * @return A {@link HttpResponse} object represent 505 status.
      */
     public static HttpResponse create505NotSupported(String connection) {
-        return createResponse(HttpResponseType.NotSupported, connection);
+        return createCanned(HttpResponseType.NotSupported, connection);
 
     }
 
@@ -279,7 +601,7 @@ public class HttpResponse {
      * @return A {@link HttpResponse} object represent 304 status.
      */
     public static HttpResponse create304NotModified(String connection) {
-        return createResponse(HttpResponseType.NotModified, connection);
+        return createCanned(HttpResponseType.NotModified, connection);
     }
 
     /**
@@ -289,7 +611,7 @@ public class HttpResponse {
      * @return A {@link HttpResponse} for a 301 Moved Permanently response
      */
     public static HttpResponse create301MovedPermanently(String connection) {
-        return createResponse(HttpResponseType.MovedPermanently, connection);
+        return createCanned(HttpResponseType.MovedPermanently, connection);
     }
 
     /**
@@ -302,8 +624,41 @@ public class HttpResponse {
         return createResponse(HttpResponseType.Created, connection);
     }
 
+    /**
+     * Creates a new 429 Too Many Requests response
+     *
+     * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+     * @param retryAfter The number of seconds the client should wait before trying again, at least 1
+     * @return A {@link HttpResponse} for a 429 Too Many Requests response
+     */
+    public static HttpResponse create429TooManyRequests(String connection, long retryAfter) {
+        return createCanned(HttpResponseType.TooManyRequests, connection, Math.max(1, retryAfter));
+    }
+
+    /**
+     * Creates a new 503 Service Unavailable response
+     *
+     * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+     * @param retryAfter The number of seconds the client should wait before trying again, at least 1
+     * @return A {@link HttpResponse} for a 503 Service Unavailable response
+     */
+    public static HttpResponse create503ServiceUnavailable(String connection, long retryAfter) {
+        return createCanned(HttpResponseType.ServiceNotAvailable, connection, Math.max(1, retryAfter));
+    }
+
+    /**
+     * Creates a new 504 Gateway Timeout response, for a request whose handler did not finish
+     * before its deadline
+     *
+     * @param connection Supported values are {@link Protocol#OPEN} and {@link Protocol#CLOSE}.
+     * @return A {@link HttpResponse} for a 504 Gateway Timeout response
+     */
+    public static HttpResponse create504GatewayTimeout(String connection) {
+        return createCanned(HttpResponseType.GatewayTimeout, connection);
+    }
+
     public static HttpResponse create500InternalServerError(String connection) {
-        return createResponse(HttpResponseType.InternalServerError, connection);
+        return createCanned(HttpResponseType.InternalServerError, connection);
     }
 
     @Override
@@ -6,13 +6,14 @@ package protocol;
 public enum HttpResponseType {
     // 1xx
     SwitchingProtocols(101, "Switching Protocols"),
+    EarlyHints(103, "Early Hints"),
     // 2xx
     OK(200, "OK"),
     Created(201, "Created"),
     Accepted(202, "Accepted"),
     NoContent(204, "No Content"),
     // 3xx
-    MovedPermanently(301, "MovedPermanently"),
+    MovedPermanently(301, "Moved Permanently"),
     Found(302, "Found"),
     NotModified(304, "Not Modified"),
     // 4xx
@@ -22,21 +23,25 @@ public enum HttpResponseType {
     NotFound(404, "Not Found"),
     Gone(410, "Gone"),
     ImATeapot(418, "I'm a teapot"),
+    TooManyRequests(429, "Too Many Requests"),
     // 5xx
     InternalServerError(500, "Internal Server Error"),
     NotImplemented(501, "Not Implemented"),
     ServiceNotAvailable(503, "Service Unavailable"),
+    GatewayTimeout(504, "Gateway Timeout"),
     NotSupported(505, "HTTP Version Not Supported");
 
     private final int code;
     private final String text;
+    private final String fullType;
 
     HttpResponseType(int code, String text) {
         this.code = code;
         this.text = text;
+        this.fullType = String.format("%d %s", code, text);
     }
 
-    int getCode() {
+    public int getCode() {
         return this.code;
     }
 
@@ -45,6 +50,6 @@ public enum HttpResponseType {
     }
 
     String getFullType() {
-        return String.format("%d %s", this.code, this.text);
+        return this.fullType;
     }
 }
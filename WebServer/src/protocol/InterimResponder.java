@@ -0,0 +1,17 @@
+package protocol;
+
+import java.io.IOException;
+
+/**
+ * Sends informational (1xx) responses ahead of the final response to a request, in whatever
+ * form the request's connection needs.
+ */
+public interface InterimResponder {
+    /**
+     * Sends the response right away.
+     *
+     * @param response A response with a 1xx status and no body
+     * @throws IOException if the connection failed
+     */
+    void send(HttpResponse response) throws IOException;
+}
@@ -0,0 +1,213 @@
+package protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Pre-built file extension to MIME type lookup.
+ * <p/>
+ * The table is built once, when the class is loaded, from a set of built-in defaults and
+ * an optional properties file (<tt>extension=type</tt> lines) named by the
+ * <tt>sws.mime.types</tt> system property, which can add or override entries.
+ * Text types have the <tt>sws.mime.charset</tt> charset (UTF-8 by default) appended when the
+ * table is built, so lookups return the complete <tt>Content-Type</tt> value.
+ * <p/>
+ * Lookups hash the extension in place and probe an open-addressed table, so they do not
+ * allocate on the request path.
+ */
+public final class MimeTypes {
+    public static final String TYPES_PROPERTY = "sws.mime.types";
+    public static final String CHARSET_PROPERTY = "sws.mime.charset";
+
+    /**
+     * Extensions longer than this are never looked up.
+     */
+    private static final int MAX_EXTENSION_LENGTH = 16;
+
+    private static final String[][] DEFAULT_TYPES = {
+            // Text
+            {"html", "text/html"},
+            {"htm", "text/html"},
+            {"css", "text/css"},
+            {"csv", "text/csv"},
+            {"txt", "text/plain"},
+            {"text", "text/plain"},
+            {"md", "text/markdown"},
+            {"xml", "application/xml"},
+            {"js", "application/javascript"},
+            {"mjs", "application/javascript"},
+            {"json", "application/json"},
+            {"map", "application/json"},
+            {"webmanifest", "application/manifest+json"},
+            {"xhtml", "application/xhtml+xml"},
+            {"rss", "application/rss+xml"},
+            {"atom", "application/atom+xml"},
+            // Images
+            {"png", "image/png"},
+            {"jpg", "image/jpeg"},
+            {"jpeg", "image/jpeg"},
+            {"gif", "image/gif"},
+            {"bmp", "image/bmp"},
+            {"ico", "image/x-icon"},
+            {"svg", "image/svg+xml"},
+            {"webp", "image/webp"},
+            {"avif", "image/avif"},
+            {"tif", "image/tiff"},
+            {"tiff", "image/tiff"},
+            // Fonts
+            {"woff", "font/woff"},
+            {"woff2", "font/woff2"},
+            {"ttf", "font/ttf"},
+            {"otf", "font/otf"},
+            {"eot", "application/vnd.ms-fontobject"},
+            // Audio and video
+            {"mp3", "audio/mpeg"},
+            {"ogg", "audio/ogg"},
+            {"wav", "audio/wav"},
+            {"flac", "audio/flac"},
+            {"mp4", "video/mp4"},
+            {"webm", "video/webm"},
+            {"ogv", "video/ogg"},
+            // Applications and archives
+            {"wasm", "application/wasm"},
+            {"pdf", "application/pdf"},
+            {"zip", "application/zip"},
+            {"gz", "application/gzip"},
+            {"tar", "application/x-tar"},
+            {"jar", "application/java-archive"},
+            {"doc", "application/msword"},
+            {"docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document"},
+            {"xls", "application/vnd.ms-excel"},
+            {"xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"},
+            {"odt", "application/vnd.oasis.opendocument.text"},
+            {"bin", "application/octet-stream"},
+    };
+
+    private static final String[] keys;
+    private static final String[] values;
+    private static final int mask;
+
+    static {
+        Map<String, String> types = new TreeMap<String, String>();
+        for (String[] entry : DEFAULT_TYPES) {
+            types.put(entry[0], entry[1]);
+        }
+
+        String path = System.getProperty(TYPES_PROPERTY);
+        if (path != null) {
+            try {
+                loadTypes(new File(path), types);
+            } catch (IOException e) {
+                System.out.println(String.format("Error reading MIME types from %s", path));
+            }
+        }
+
+        String charset = System.getProperty(CHARSET_PROPERTY, "utf-8");
+
+        // Keep the table at most half full so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(types.size(), 1) * 4);
+        keys = new String[capacity];
+        values = new String[capacity];
+        mask = capacity - 1;
+
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            String extension = entry.getKey();
+            String type = entry.getValue();
+            if (extension.isEmpty() || extension.length() > MAX_EXTENSION_LENGTH || type.isEmpty())
+                continue;
+
+            if (isText(type) && !type.contains(";"))
+                type = type + "; charset=" + charset;
+
+            int index = hash(extension, 0, extension.length()) & mask;
+            while (keys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = extension;
+            values[index] = type;
+        }
+    }
+
+    private MimeTypes() {
+    }
+
+    /**
+     * Returns the <tt>Content-Type</tt> value for the supplied file name, based on its extension.
+     *
+     * @param fileName The file name, e.g. "app.js"
+     * @return The MIME type (with a charset parameter for text types), or null if the extension is unknown.
+     */
+    public static String getContentType(String fileName) {
+        int length = fileName.length();
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == length - 1 || length - dot - 1 > MAX_EXTENSION_LENGTH)
+            return null;
+
+        int start = dot + 1;
+        int extensionLength = length - start;
+        int index = hash(fileName, start, length) & mask;
+        String key;
+        while ((key = keys[index]) != null) {
+            if (key.length() == extensionLength && key.regionMatches(true, 0, fileName, start, extensionLength))
+                return values[index];
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the <tt>Content-Type</tt> value for the supplied file.
+     *
+     * @param file The file
+     * @return The MIME type, or null if the extension is unknown.
+     */
+    public static String getContentType(File file) {
+        return getContentType(file.getName());
+    }
+
+    private static void loadTypes(File file, Map<String, String> types) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        for (String extension : properties.stringPropertyNames()) {
+            String key = extension.trim().toLowerCase();
+            if (key.startsWith("."))
+                key = key.substring(1);
+            types.put(key, properties.getProperty(extension).trim());
+        }
+    }
+
+    private static boolean isText(String type) {
+        return type.startsWith("text/")
+                || type.equals("application/javascript")
+                || type.equals("application/json")
+                || type.equals("application/manifest+json")
+                || type.equals("application/xml")
+                || type.endsWith("+xml");
+    }
+
+    /**
+     * ASCII case-insensitive hash of the characters in [start, end).
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,314 @@
+package protocol;
+
+import buffer.BufferPool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams a <tt>multipart/form-data</tt> body into temporary files, one per part.
+ * <p/>
+ * The body is read through one pooled buffer. Each part's contents are written to its file as soon
+ * as they are known not to contain the boundary, so memory use does not depend on the part sizes.
+ * Files are created in the directory named by <tt>sws.upload.dir</tt> (the system temporary
+ * directory by default); a request may have at most <tt>sws.upload.maxParts</tt> parts (256 by default).
+ */
+final class MultipartParser {
+    static final String DIRECTORY_PROPERTY = "sws.upload.dir";
+    static final String MAX_PARTS_PROPERTY = "sws.upload.maxParts";
+
+    private static final int MAX_PARTS = Integer.getInteger(MAX_PARTS_PROPERTY, 256);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ReadableByteChannel body;
+    private final byte[] delimiter;
+    private final FileSync sync;
+    private final File directory;
+
+    private ByteBuffer buffer;
+    private boolean eof;
+
+    MultipartParser(ReadableByteChannel body, String boundary, FileSync sync) {
+        this.body = body;
+        this.delimiter = ("\r\n--" + boundary).getBytes(UTF_8);
+        this.sync = sync;
+
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        this.directory = directory == null ? null : new File(directory);
+    }
+
+    /**
+     * Extracts the boundary parameter of a <tt>multipart/form-data</tt> content type.
+     *
+     * @return the boundary, or null if the content type is not multipart/form-data or has no boundary
+     */
+    static String getBoundary(String contentType) {
+        if (contentType == null)
+            return null;
+
+        int end = contentType.indexOf(';');
+        if (end < 0 || !contentType.substring(0, end).trim().equalsIgnoreCase("multipart/form-data"))
+            return null;
+
+        String boundary = getParameter(contentType, "boundary");
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70)
+            return null;
+        return boundary;
+    }
+
+    /**
+     * Reads the whole body and returns its parts.
+     */
+    List<Part> parse() throws IOException, ProtocolException {
+        BufferPool pool = BufferPool.getDefault();
+        buffer = pool.acquire(BufferPool.MEDIUM);
+        List<Part> parts = new ArrayList<Part>();
+        File current = null;
+
+        try {
+            // Pretend the body starts with CRLF so that the first boundary looks like all the others
+            buffer.put((byte) Protocol.CR).put((byte) Protocol.LF);
+            buffer.flip();
+
+            // Skip the preamble
+            int index;
+            while ((index = find()) < 0) {
+                if (eof)
+                    throw malformed();
+                buffer.position(Math.max(buffer.position(), buffer.limit() - delimiter.length + 1));
+                fill();
+            }
+            buffer.position(index + delimiter.length);
+
+            while (true) {
+                // A boundary followed by "--" closes the body
+                while (buffer.remaining() < 2) {
+                    if (eof)
+                        throw malformed();
+                    fill();
+                }
+                if (buffer.get(buffer.position()) == '-' && buffer.get(buffer.position() + 1) == '-')
+                    break;
+
+                // Skip the rest of the boundary line, then read the part's header fields
+                buffer.position(readLine());
+                Map<String, String> headers = readHeaders();
+
+                if (parts.size() == MAX_PARTS)
+                    throw malformed();
+
+                current = File.createTempFile("sws-upload-", ".part", directory);
+                long size = writePart(current);
+
+                String disposition = headers.get("content-disposition");
+                parts.add(new Part(getParameter(disposition, "name"), getParameter(disposition, "filename"),
+                        headers.get("content-type"), headers, current, size));
+                current = null;
+            }
+
+            return parts;
+        } catch (IOException e) {
+            deleteAll(parts, current);
+            throw e;
+        } catch (ProtocolException e) {
+            deleteAll(parts, current);
+            throw e;
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Writes the part's contents, up to the next boundary, to the file.
+     *
+     * @return the number of bytes written
+     */
+    private long writePart(File file) throws IOException, ProtocolException {
+        FileChannel out = new FileOutputStream(file).getChannel();
+        long size = 0;
+        try {
+            while (true) {
+                int index = find();
+                if (index >= 0) {
+                    size += write(out, index);
+                    buffer.position(index + delimiter.length);
+                    break;
+                }
+
+                // Keep back just enough bytes to hold the start of a boundary
+                int safe = buffer.limit() - delimiter.length + 1;
+                if (safe > buffer.position())
+                    size += write(out, safe);
+
+                if (eof)
+                    throw malformed();
+                fill();
+            }
+
+            sync.sync(out);
+        } finally {
+            out.close();
+        }
+        return size;
+    }
+
+    private Map<String, String> readHeaders() throws IOException, ProtocolException {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        while (true) {
+            int start = buffer.position();
+            int end = readLine();
+            buffer.position(end);
+
+            int lineEnd = end - 1;
+            if (lineEnd > start && buffer.get(lineEnd - 1) == Protocol.CR)
+                lineEnd--;
+            if (lineEnd == start)
+                return headers;
+
+            byte[] line = new byte[lineEnd - start];
+            for (int i = 0; i < line.length; i++) {
+                line[i] = buffer.get(start + i);
+            }
+
+            String field = new String(line, UTF_8);
+            int colon = field.indexOf(Protocol.SEPARATOR);
+            if (colon > 0)
+                headers.put(field.substring(0, colon).trim().toLowerCase(), field.substring(colon + 1).trim());
+        }
+    }
+
+    /**
+     * Makes sure the buffer holds a complete line at its position.
+     *
+     * @return the index just past the line's LF
+     */
+    private int readLine() throws IOException, ProtocolException {
+        int scanned = buffer.position();
+        while (true) {
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == Protocol.LF)
+                    return i + 1;
+            }
+
+            if (eof || buffer.remaining() == buffer.capacity())
+                throw malformed();
+
+            int offset = buffer.remaining();
+            fill();
+            scanned = buffer.position() + offset;
+        }
+    }
+
+    /**
+     * @return the index of the next delimiter in the buffer, or -1
+     */
+    private int find() {
+        byte first = delimiter[0];
+        int last = buffer.limit() - delimiter.length;
+        for (int i = buffer.position(); i <= last; i++) {
+            if (buffer.get(i) != first)
+                continue;
+
+            int j = 1;
+            while (j < delimiter.length && buffer.get(i + j) == delimiter[j]) {
+                j++;
+            }
+            if (j == delimiter.length)
+                return i;
+        }
+        return -1;
+    }
+
+    private long write(FileChannel out, int end) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(end);
+        long written = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                written += out.write(buffer);
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        return written;
+    }
+
+    private void fill() throws IOException {
+        buffer.compact();
+        int count;
+        try {
+            count = body.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+        if (count < 0)
+            eof = true;
+    }
+
+    private static void deleteAll(List<Part> parts, File current) {
+        for (Part part : parts) {
+            part.delete();
+        }
+        if (current != null && !current.delete())
+            current.deleteOnExit();
+    }
+
+    private static ProtocolException malformed() {
+        return new ProtocolException(Protocol.BAD_REQUEST_CODE, Protocol.BAD_REQUEST_TEXT);
+    }
+
+    /**
+     * Returns a parameter of a header value such as <tt>form-data; name="file"; filename="a.txt"</tt>.
+     *
+     * @return the unquoted value, or null if the parameter is absent
+     */
+    static String getParameter(String value, String name) {
+        if (value == null)
+            return null;
+
+        int i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            i++;
+            while (i < value.length() && value.charAt(i) == ' ')
+                i++;
+
+            int equals = value.indexOf('=', i);
+            if (equals < 0)
+                return null;
+            String key = value.substring(i, equals).trim();
+
+            StringBuilder result = new StringBuilder();
+            int j = equals + 1;
+            if (j < value.length() && value.charAt(j) == '"') {
+                j++;
+                while (j < value.length() && value.charAt(j) != '"') {
+                    char c = value.charAt(j);
+                    if (c == '\\' && j + 1 < value.length())
+                        c = value.charAt(++j);
+                    result.append(c);
+                    j++;
+                }
+                j = value.indexOf(';', j);
+            } else {
+                int end = value.indexOf(';', j);
+                result.append(value, j, end < 0 ? value.length() : end);
+                j = end;
+            }
+
+            if (key.equalsIgnoreCase(name))
+                return result.toString().trim();
+            i = j;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,213 @@
+package protocol;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request parameters decoded from a query string or an
+ * <tt>application/x-www-form-urlencoded</tt> body. A name may have several values.
+ * <p/>
+ * At most <tt>sws.parameters.maxCount</tt> parameters (1000 by default) are decoded, and input
+ * beyond <tt>sws.parameters.maxLength</tt> characters (64K by default) is ignored;
+ * {@link #isTruncated()} tells whether either limit was hit.
+ */
+public final class Parameters {
+    public static final String MAX_COUNT_PROPERTY = "sws.parameters.maxCount";
+    public static final String MAX_LENGTH_PROPERTY = "sws.parameters.maxLength";
+
+    private static final int MAX_COUNT = Integer.getInteger(MAX_COUNT_PROPERTY, 1000);
+    private static final int MAX_LENGTH = Integer.getInteger(MAX_LENGTH_PROPERTY, 65536);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final Parameters EMPTY = new Parameters();
+
+    private final Map<String, List<String>> values;
+    private boolean truncated;
+
+    private Parameters() {
+        this.values = new LinkedHashMap<String, List<String>>();
+    }
+
+    /**
+     * Returns the first value of the parameter.
+     *
+     * @param name The parameter name
+     * @return The first value, or null if there is no such parameter
+     */
+    public String get(String name) {
+        List<String> list = values.get(name);
+        return list == null ? null : list.get(0);
+    }
+
+    /**
+     * Returns all values of the parameter, in the order they appeared.
+     *
+     * @param name The parameter name
+     * @return The values, empty if there is no such parameter
+     */
+    public List<String> getAll(String name) {
+        List<String> list = values.get(name);
+        return list == null ? Collections.<String>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return the parameter names, in the order they first appeared
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * @return the parameters as an unmodifiable multi-map
+     */
+    public Map<String, List<String>> asMap() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * @return true if parameters were dropped because of the count or length limit
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Decodes a query string followed by a form-encoded body; either may be null.
+     */
+    static Parameters parse(String query, String form) {
+        if ((query == null || query.isEmpty()) && (form == null || form.isEmpty()))
+            return EMPTY;
+
+        Parameters parameters = new Parameters();
+        int[] count = new int[1];
+        if (query != null)
+            parameters.parse(query, count);
+        if (form != null)
+            parameters.parse(form, count);
+        return parameters;
+    }
+
+    /**
+     * Splits the string on '&' and '=' in one pass, decoding names and values as it goes.
+     */
+    private void parse(String s, int[] count) {
+        int length = s.length();
+        if (length > MAX_LENGTH) {
+            length = MAX_LENGTH;
+            truncated = true;
+        }
+
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            int equals = -1;
+            boolean escaped = false;
+            char c;
+            while (end < length && (c = s.charAt(end)) != '&') {
+                if (c == '=' && equals < 0)
+                    equals = end;
+                else if (c == '%' || c == '+')
+                    escaped = true;
+                end++;
+            }
+
+            if (end > start) {
+                if (count[0] == MAX_COUNT) {
+                    truncated = true;
+                    return;
+                }
+                count[0]++;
+
+                String name;
+                String value;
+                if (equals < 0) {
+                    name = decode(s, start, end, escaped);
+                    value = "";
+                } else {
+                    name = decode(s, start, equals, escaped);
+                    value = decode(s, equals + 1, end, escaped);
+                }
+
+                List<String> list = values.get(name);
+                if (list == null) {
+                    list = new ArrayList<String>(1);
+                    values.put(name, list);
+                }
+                list.add(value);
+            }
+
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Percent-decodes the characters in [start, end) as UTF-8, turning '+' into a space.
+     * Malformed escapes are kept as they are.
+     */
+    static String decode(String s, int start, int end, boolean escaped) {
+        if (!escaped)
+            return s.substring(start, end);
+
+        byte[] bytes = null;
+        int byteCount;
+        StringBuilder builder = null;
+        int copied = start;
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%' && isEscape(s, i, end)) {
+                if (builder == null)
+                    builder = new StringBuilder(end - start);
+                if (bytes == null)
+                    bytes = new byte[(end - i) / 3 + 1];
+
+                builder.append(s, copied, i);
+
+                // Collect a run of escapes so that multi-byte UTF-8 sequences decode together
+                byteCount = 0;
+                while (i < end && s.charAt(i) == '%' && isEscape(s, i, end)) {
+                    bytes[byteCount++] = (byte) ((hex(s.charAt(i + 1)) << 4) | hex(s.charAt(i + 2)));
+                    i += 3;
+                }
+                builder.append(new String(bytes, 0, byteCount, UTF_8));
+                copied = i;
+                i--;
+            } else if (c == '+') {
+                if (builder == null)
+                    builder = new StringBuilder(end - start);
+                builder.append(s, copied, i).append(' ');
+                copied = i + 1;
+            }
+        }
+
+        if (builder == null)
+            return s.substring(start, end);
+
+        builder.append(s, copied, end);
+        return builder.toString();
+    }
+
+    private static boolean isEscape(String s, int i, int end) {
+        return i + 2 < end && hex(s.charAt(i + 1)) >= 0 && hex(s.charAt(i + 2)) >= 0;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+}
@@ -0,0 +1,114 @@
+package protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Describes one part of a <tt>multipart/form-data</tt> request body. The contents of the part
+ * have already been written to a temporary file, which is deleted once the request has been
+ * handled unless the handler {@link #moveTo(File) moves} it somewhere else.
+ */
+public final class Part {
+    private final String name;
+    private final String fileName;
+    private final String contentType;
+    private final Map<String, String> headers;
+    private File file;
+    private final long size;
+    private boolean moved;
+
+    Part(String name, String fileName, String contentType, Map<String, String> headers, File file, long size) {
+        this.name = name;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * @return the form field name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the file name the client sent, or null if the part is not a file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the part's content type, or null if it did not have one
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the part's header fields, keyed by lower-case name
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the file holding the part's contents
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the part's contents, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Reads the part's contents as a string. Meant for small form fields.
+     *
+     * @param charset The charset of the contents
+     * @return the contents
+     * @throws IOException
+     */
+    public String getString(Charset charset) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), charset);
+    }
+
+    /**
+     * Moves the part's contents to the supplied destination, replacing any existing file.
+     * The file is then kept after the request completes.
+     *
+     * @param destination The destination file
+     * @throws IOException
+     */
+    public void moveTo(File destination) throws IOException {
+        Files.move(file.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file = destination;
+        moved = true;
+    }
+
+    /**
+     * Deletes the temporary file, unless the part was moved.
+     */
+    void delete() {
+        if (!moved && file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -83,6 +83,8 @@ public class Protocol {
     public static final String LAST_MODIFIED = "Last-Modified";
     public static final String CONTENT_LENGTH = "Content-Length";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String RETRY_AFTER = "Retry-After";
+    public static final String LINK = "Link";
 
     /**
      * A chunk size to be used when reading a file and sending it to a socket.
@@ -92,6 +94,12 @@ public class Protocol {
      */
     public static final int CHUNK_LENGTH = 4096; // 4KB
 
+    /**
+     * The size of the buffer a connection reads requests into. The request line and
+     * all header fields of a request must fit in it.
+     */
+    public static final int REQUEST_BUFFER_LENGTH = 16384; // 16KB
+
     // Server information that we want to send in "Server:" header field
     public static final String SERVER_INFO = "SimpleWebServer(SWS)/1.0.0";
     public static final String PROVIDER = "Provider";
@@ -100,6 +108,7 @@ public class Protocol {
     public static final String OPEN = "Keep-Alive";
     public static final String DEFAULT_FILE = "index.html";
     public static final String MIME_TEXT = "text";
+    public static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
     public static final String ETAG = "ETag";
 
 
@@ -0,0 +1,269 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The body of a request, read as a stream straight from the connection.
+ * <p/>
+ * Bodies framed by <tt>Content-Length</tt> and by <tt>Transfer-Encoding: chunked</tt> are supported.
+ * Bytes the connection already buffered are handed out first; after that, reads go directly from
+ * the socket into the caller's buffer whenever the framing allows, so large uploads are not copied
+ * through the connection buffer. The channel reports end-of-stream at the end of the body and never
+ * reads past it, which keeps any pipelined request intact.
+ * <p/>
+ * The body is only readable while the request is being handled.
+ */
+public final class RequestBody implements ReadableByteChannel {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final HttpHeaders headers;
+    private final long length;
+    private final boolean chunked;
+
+    // Bytes left in the body (Content-Length) or in the current chunk (chunked)
+    private long remaining;
+    private long bytesRead;
+    private boolean firstChunk;
+    // Read by the connection's worker while a handler thread reads the body
+    private volatile boolean finished;
+    // Receives a copy of the body bytes as they are read, while it has room
+    private ByteBuffer tap;
+
+    RequestBody(ReadableByteChannel channel, ByteBuffer buffer, HttpHeaders headers, long length, boolean chunked) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.headers = headers;
+        this.length = chunked ? -1 : length;
+        this.chunked = chunked;
+        this.remaining = chunked ? 0 : length;
+        this.firstChunk = true;
+        this.finished = !chunked && length == 0;
+    }
+
+    /**
+     * @return the declared length of the body, or -1 if it is chunked
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the body uses the chunked transfer coding
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return the number of body bytes read so far
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Copies the body bytes read or discarded from now on into the supplied buffer, as many as
+     * fit, e.g. to record the request.
+     *
+     * @param tap The buffer, or null to stop copying
+     */
+    public void setTap(ByteBuffer tap) {
+        this.tap = tap;
+    }
+
+    /**
+     * @return true once the whole body has been read
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (finished)
+            return -1;
+        if (!dst.hasRemaining())
+            return 0;
+
+        if (chunked && remaining == 0 && !nextChunk()) {
+            finished = true;
+            return -1;
+        }
+
+        int max = (int) Math.min(dst.remaining(), remaining);
+        int count;
+        if (buffer.hasRemaining()) {
+            count = Math.min(max, buffer.remaining());
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + count);
+            dst.put(buffer);
+            buffer.limit(limit);
+        } else {
+            // Nothing buffered; read from the socket straight into the caller's buffer
+            int limit = dst.limit();
+            dst.limit(dst.position() + max);
+            try {
+                count = channel.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (count < 0)
+                throw new EOFException("Connection closed before the end of the request body");
+        }
+
+        if (tap != null && count > 0)
+            copyToTap(dst, dst.position() - count, count);
+
+        remaining -= count;
+        bytesRead += count;
+        if (!chunked && remaining == 0)
+            finished = true;
+
+        return count;
+    }
+
+    /**
+     * Reads and throws away the rest of the body, up to the supplied number of bytes.
+     *
+     * @param max The maximum number of bytes to discard
+     * @return true if the end of the body was reached
+     * @throws IOException
+     */
+    public boolean discard(long max) throws IOException {
+        long discarded = 0;
+        while (!finished && discarded < max) {
+            if (chunked && remaining == 0) {
+                if (!nextChunk()) {
+                    finished = true;
+                    break;
+                }
+                continue;
+            }
+
+            if (!buffer.hasRemaining())
+                fill();
+
+            int count = (int) Math.min(Math.min(buffer.remaining(), remaining), max - discarded);
+            if (tap != null && count > 0)
+                copyToTap(buffer, buffer.position(), count);
+            buffer.position(buffer.position() + count);
+            remaining -= count;
+            bytesRead += count;
+            discarded += count;
+            if (!chunked && remaining == 0)
+                finished = true;
+        }
+        return finished;
+    }
+
+    private void copyToTap(ByteBuffer source, int position, int count) {
+        ByteBuffer copy = source.duplicate();
+        copy.limit(position + Math.min(count, tap.remaining()));
+        copy.position(position);
+        tap.put(copy);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Does nothing; the connection stays open. Use {@link #discard(long)} to skip the rest of the body.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Moves to the next chunk of a chunked body.
+     *
+     * @return false if the last chunk has been reached
+     */
+    private boolean nextChunk() throws IOException {
+        if (!firstChunk) {
+            // Every chunk's data is followed by CRLF
+            int end = readLine();
+            if (!isEmptyLine(buffer.position(), end))
+                throw new IOException("Malformed chunk");
+            buffer.position(end);
+        }
+        firstChunk = false;
+
+        int end = readLine();
+        long size = 0;
+        int digits = 0;
+        for (int i = buffer.position(); i < end; i++) {
+            int digit = Character.digit((char) buffer.get(i), 16);
+            if (digit < 0)
+                break;
+            if (++digits > 15)
+                throw new IOException("Chunk too large");
+            size = size * 16 + digit;
+        }
+        if (digits == 0)
+            throw new IOException("Malformed chunk size");
+        buffer.position(end);
+
+        if (size > 0) {
+            remaining = size;
+            return true;
+        }
+
+        // Last chunk: skip the trailer fields up to the empty line
+        while (true) {
+            int start = buffer.position();
+            end = readLine();
+            buffer.position(end);
+            if (isEmptyLine(start, end))
+                return false;
+        }
+    }
+
+    private boolean isEmptyLine(int start, int end) {
+        return end - start == 1 || (end - start == 2 && buffer.get(start) == Protocol.CR);
+    }
+
+    /**
+     * Makes sure the buffer holds a complete line at its position.
+     *
+     * @return the index just past the line's LF
+     */
+    private int readLine() throws IOException {
+        int scanned = buffer.position();
+        while (true) {
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == Protocol.LF)
+                    return i + 1;
+            }
+
+            if (buffer.remaining() == buffer.capacity())
+                throw new IOException("Chunk line too long");
+
+            int offset = buffer.limit() - buffer.position();
+            fill();
+            scanned = buffer.position() + offset;
+        }
+    }
+
+    /**
+     * Reads more bytes from the socket into the connection buffer.
+     */
+    private void fill() throws IOException {
+        // The header section is about to be overwritten
+        headers.detach();
+
+        buffer.compact();
+        int count;
+        try {
+            count = channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+        if (count < 0)
+            throw new EOFException("Connection closed before the end of the request body");
+    }
+}
@@ -0,0 +1,158 @@
+package server;
+
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseType;
+import protocol.Protocol;
+import timing.SamplingProfiler;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's own routes under <tt>/_sws</tt>, answered before the plugins are consulted.
+ * <p/>
+ * Only clients on the loopback interface and the addresses in <tt>sws.admin.allow</tt> (comma
+ * separated) may use them, except for the health check; anyone else gets the 404 of an unknown
+ * path. <tt>sws.admin=false</tt> turns them off.
+ * <ul>
+ * <li><tt>/_sws/health</tt> answers 200 to anyone. It is answered by the worker that read it and
+ * never waits for an expensive slot, so it gets through while plugins are swamped.</li>
+ * <li><tt>/_sws/profile</tt> samples the stacks of the workers for <tt>?seconds=</tt> (10, at most
+ * <tt>sws.admin.profile.maxSeconds</tt>, 60) at <tt>?hz=</tt> samples a second (99, at most 250)
+ * and answers with collapsed stacks, or with a flame graph page for <tt>?format=html</tt>. By
+ * default only running threads are counted, for where the CPU goes; <tt>?mode=wall</tt> counts
+ * blocked and waiting ones too, and <tt>?threads=all</tt> samples every thread of the JVM, not
+ * just the workers. One profile runs at a time; a second one gets a 503.</li>
+ * </ul>
+ */
+final class AdminRoutes {
+    public static final String ENABLED_PROPERTY = "sws.admin";
+    public static final String ALLOW_PROPERTY = "sws.admin.allow";
+    public static final String MAX_PROFILE_SECONDS_PROPERTY = "sws.admin.profile.maxSeconds";
+
+    static final String PREFIX = "/_sws";
+    static final String HEALTH = PREFIX + "/health";
+
+    // Connection workers, HTTP/2 stream workers and the handlers of requests with a deadline
+    private static final String[] WORKER_THREADS = {"-Worker-", "-Http2Stream-", "Handler-"};
+
+    private final Set<InetAddress> allowed;
+    private final int maxProfileSeconds;
+
+    /**
+     * @param allowed           Addresses besides the loopback ones that may use the routes
+     * @param maxProfileSeconds The longest profile that may be asked for
+     */
+    AdminRoutes(Set<InetAddress> allowed, int maxProfileSeconds) {
+        this.allowed = allowed;
+        this.maxProfileSeconds = Math.max(1, maxProfileSeconds);
+    }
+
+    /**
+     * @return the routes, or null if they are off
+     */
+    static AdminRoutes fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")))
+            return null;
+
+        Set<InetAddress> allowed = new HashSet<InetAddress>();
+        String addresses = System.getProperty(ALLOW_PROPERTY);
+        if (addresses != null) {
+            for (String address : addresses.split(",")) {
+                if (address.trim().isEmpty())
+                    continue;
+                try {
+                    allowed.add(InetAddress.getByName(address.trim()));
+                } catch (UnknownHostException e) {
+                    System.out.println("Ignoring unknown admin address " + address.trim());
+                }
+            }
+        }
+        return new AdminRoutes(allowed, Integer.getInteger(MAX_PROFILE_SECONDS_PROPERTY, 60));
+    }
+
+    /**
+     * @return true if the URI is one of the admin routes
+     */
+    static boolean matches(String uri) {
+        return uri.startsWith(PREFIX) && (uri.length() == PREFIX.length() || uri.charAt(PREFIX.length()) == '/');
+    }
+
+    /**
+     * @param address The client's address, or null if there is none
+     * @param uri     The route asked for
+     * @return true if the client may use the route
+     */
+    boolean allows(InetAddress address, String uri) {
+        if (uri.equals(HEALTH))
+            return true;
+        return address != null && (address.isLoopbackAddress() || allowed.contains(address));
+    }
+
+    /**
+     * Answers a request for one of the routes.
+     *
+     * @param request    The request
+     * @param connection The <tt>Connection</tt> header of the response
+     * @return the response
+     */
+    HttpResponse handle(HttpRequest request, String connection) throws InterruptedException {
+        String route = request.getUri().substring(PREFIX.length());
+        if (route.equals("/profile"))
+            return profile(request, connection);
+        if (route.equals("/health"))
+            return health(connection);
+        return HttpResponse.create404NotFound(connection);
+    }
+
+    private static HttpResponse health(String connection) {
+        HttpResponse response = HttpResponse.createResponse(HttpResponseType.OK, connection,
+                ByteBuffer.wrap("ok\n".getBytes(StandardCharsets.UTF_8)));
+        response.addHeader(Protocol.CONTENT_TYPE, "text/plain; charset=utf-8");
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    private HttpResponse profile(HttpRequest request, String connection) throws InterruptedException {
+        int seconds;
+        int hz;
+        try {
+            seconds = parameter(request, "seconds", 10);
+            hz = parameter(request, "hz", 99);
+        } catch (NumberFormatException e) {
+            return HttpResponse.create400BadRequest(connection);
+        }
+        seconds = Math.max(1, Math.min(maxProfileSeconds, seconds));
+        boolean wall = "wall".equals(request.getParameter("mode"));
+        boolean html = "html".equals(request.getParameter("format"));
+        boolean all = "all".equals(request.getParameter("threads"));
+
+        SamplingProfiler profiler = new SamplingProfiler(hz, !wall, all ? null : WORKER_THREADS);
+        if (!profiler.run(TimeUnit.SECONDS.toMillis(seconds))) {
+            long retryAfter = TimeUnit.MILLISECONDS.toSeconds(SamplingProfiler.getRemainingMillis() + 999);
+            return HttpResponse.create503ServiceUnavailable(connection, Math.max(1, retryAfter));
+        }
+
+        String title = String.format("%s profile of %s, %d s", wall ? "Wall-clock" : "CPU",
+                all ? "all threads" : "the workers", seconds);
+        String body = html ? profiler.toHtml(title) : profiler.toCollapsed();
+        HttpResponse response = HttpResponse.createResponse(HttpResponseType.OK, connection,
+                ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+        response.addHeader(Protocol.CONTENT_TYPE, html ? "text/html; charset=utf-8" : "text/plain; charset=utf-8");
+        response.addHeader("Cache-Control", "no-store");
+        response.addHeader("X-Profile-Samples", String.format("%d (%d skipped, %.1f ms sampling)",
+                profiler.getSamples(), profiler.getSkipped(), profiler.getSamplingNanos() / 1e6));
+        return response;
+    }
+
+    private static int parameter(HttpRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+}
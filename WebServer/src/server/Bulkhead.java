@@ -0,0 +1,235 @@
+package server;
+
+import timing.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+
+/**
+ * Bounds how many requests one plugin may handle at once, so that a plugin stuck on a slow
+ * resource ties up only its share of the workers and the other plugins keep being served.
+ * <p/>
+ * A request that finds the plugin at its limit waits in a bounded queue for up to the maximum
+ * wait; if the queue is full or the wait runs out, it is refused at once and answered with 503.
+ * Waiting requests hold their worker, so the limit and the queue together should stay well
+ * below the number of workers.
+ * <p/>
+ * The limits come, in order of precedence, from the system properties
+ * <tt>sws.bulkhead.&lt;plugin class&gt;.maxConcurrent</tt>, <tt>.maxQueued</tt> and <tt>.maxWaitMillis</tt>,
+ * from the <tt>SWS-Max-Concurrent</tt>, <tt>SWS-Max-Queued</tt> and <tt>SWS-Max-Wait-Millis</tt>
+ * attributes of the plugin jar's manifest, and from <tt>sws.bulkhead.maxConcurrent</tt>,
+ * <tt>sws.bulkhead.maxQueued</tt> and <tt>sws.bulkhead.maxWaitMillis</tt>. By default a plugin may
+ * use half of the workers running at the time, with a quarter more waiting for up to a second, so
+ * that a hung plugin leaves the rest free however far the pool has grown or shrunk. For HTTP/2
+ * streams, the workers are the shards' fixed stream threads.
+ */
+public final class Bulkhead {
+    public static final String PROPERTY_PREFIX = "sws.bulkhead.";
+    public static final String MAX_CONCURRENT = "maxConcurrent";
+    public static final String MAX_QUEUED = "maxQueued";
+    public static final String MAX_WAIT_MILLIS = "maxWaitMillis";
+
+    public static final Attributes.Name MAX_CONCURRENT_ATTRIBUTE = new Attributes.Name("SWS-Max-Concurrent");
+    public static final Attributes.Name MAX_QUEUED_ATTRIBUTE = new Attributes.Name("SWS-Max-Queued");
+    public static final Attributes.Name MAX_WAIT_MILLIS_ATTRIBUTE = new Attributes.Name("SWS-Max-Wait-Millis");
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+
+    // Requests waiting for a slot wait on it, and a released slot wakes one of them
+    private final Object lock = new Object();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    // The limits of the last request, for the reports
+    private volatile int concurrentLimit;
+    private volatile int queuedLimit;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Histogram queueWait = new Histogram();
+
+    /**
+     * @param name          The plugin the bulkhead guards
+     * @param maxConcurrent How many requests may be handled at once, or 0 for half of the live workers
+     * @param maxQueued     How many requests may wait for their turn, or -1 for a quarter of the live workers
+     * @param maxWaitMillis How long a request may wait
+     */
+    public Bulkhead(String name, int maxConcurrent, int maxQueued, long maxWaitMillis) {
+        this.name = name;
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.maxQueued = Math.max(-1, maxQueued);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+    }
+
+    /**
+     * Creates the bulkhead of a plugin from the system properties and its manifest.
+     *
+     * @param name       The plugin's class name
+     * @param attributes The main attributes of the plugin jar's manifest, or null
+     * @return the bulkhead
+     */
+    static Bulkhead configure(String name, Attributes attributes) {
+        // Unless set, the limits follow the live workers
+        int maxConcurrent = (int) setting(name, MAX_CONCURRENT, attributes, MAX_CONCURRENT_ATTRIBUTE, 0);
+        int maxQueued = (int) setting(name, MAX_QUEUED, attributes, MAX_QUEUED_ATTRIBUTE, -1);
+        long maxWait = setting(name, MAX_WAIT_MILLIS, attributes, MAX_WAIT_MILLIS_ATTRIBUTE, 1000);
+        return new Bulkhead(name, maxConcurrent, maxQueued, maxWait);
+    }
+
+    private static long setting(String plugin, String key, Attributes attributes, Attributes.Name attribute,
+                                long defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + plugin + "." + key);
+        if (value == null && attributes != null)
+            value = attributes.getValue(attribute);
+        if (value == null)
+            value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println(String.format("Ignoring bad %s setting for %s: %s", key, plugin, value));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Takes a slot for a request, waiting in the queue if the plugin is busy, but no longer than
+     * the supplied time or the maximum wait, whichever is shorter. A request that gets a slot
+     * must give it back with {@link #release()}.
+     *
+     * @param timeoutNanos The longest the request may wait
+     * @param workers      The number of workers running now, for the limits that follow them
+     * @return false if the request was refused
+     */
+    public boolean acquire(long timeoutNanos, int workers) {
+        int limit = maxConcurrent > 0 ? maxConcurrent : Math.max(1, workers / 2);
+        int queueLimit = maxQueued >= 0 ? maxQueued : workers / 4;
+        concurrentLimit = limit;
+        queuedLimit = queueLimit;
+
+        if (tryTake(limit)) {
+            admitted.incrementAndGet();
+            queueWait.record(0);
+            return true;
+        }
+
+        if (queued.incrementAndGet() > queueLimit) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + Math.min(timeoutNanos, maxWaitNanos);
+        boolean acquired = false;
+        try {
+            synchronized (lock) {
+                while (!(acquired = tryTake(limit))) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+        queueWait.record(System.nanoTime() - start);
+
+        if (acquired) {
+            admitted.incrementAndGet();
+        } else {
+            rejected.incrementAndGet();
+        }
+        return acquired;
+    }
+
+    private boolean tryTake(int limit) {
+        while (true) {
+            int count = active.get();
+            if (count >= limit)
+                return false;
+            if (active.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back the slot taken by {@link #acquire(long, int)}.
+     */
+    public void release() {
+        active.decrementAndGet();
+        if (queued.get() > 0) {
+            synchronized (lock) {
+                lock.notify();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return how many requests may be handled at once, as of the last request
+     */
+    public int getMaxConcurrent() {
+        return concurrentLimit;
+    }
+
+    /**
+     * @return how many requests may wait, as of the last request
+     */
+    public int getMaxQueued() {
+        return queuedLimit;
+    }
+
+    /**
+     * @return the number of requests being handled now
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return the number of requests waiting now
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of requests let through
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return the number of requests refused because the plugin was saturated
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how long requests waited for a slot, including those that gave up
+     */
+    public Histogram getQueueWait() {
+        return queueWait;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d active, %d/%d queued, %d admitted, %d rejected, wait p99 %.2f ms",
+                name, getActive(), getMaxConcurrent(), getQueued(), getMaxQueued(), getAdmitted(), getRejected(),
+                queueWait.getPercentile(0.99) / 1000000.0);
+    }
+}
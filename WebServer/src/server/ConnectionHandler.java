@@ -21,18 +21,36 @@
 
 package server;
 
+import buffer.BufferPool;
+import cache.ResponseCache;
+import http2.Http2Connection;
+import http2.RequestDispatcher;
+import log.AccessLog;
+import log.TrafficCapture;
 import pluginAPI.IRequestHandler;
+import tls.TlsChannel;
+import tls.TlsContext;
+import protocol.HeaderName;
+import protocol.HttpHeaders;
+import protocol.HttpMethod;
 import protocol.HttpRequest;
 import protocol.HttpResponse;
+import protocol.InterimResponder;
 import protocol.Protocol;
 import protocol.ProtocolException;
+import timing.RequestTiming;
+import timing.Stage;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * This class is responsible for handling a incoming request by creating a
@@ -43,23 +61,85 @@ import java.util.List;
  * @author Chandan R. Rupakheti (rupakhet@rose-hulman.edu)
  */
 public class ConnectionHandler implements Runnable {
+    /**
+     * Responses leave in whole writes, so Nagle's algorithm only delays them; set to
+     * <tt>false</tt> to keep it on.
+     */
+    public static final String TCP_NODELAY_PROPERTY = "sws.tcpNoDelay";
+    private static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty(TCP_NODELAY_PROPERTY, "true"));
+
+    private final ServerShard shard;
     private final Server server;
     private final Socket socket;
+    private final InetAddress remoteAddress;
     private final IRequestHandler defaultRequestHandler;
+    private final BufferPool bufferPool;
+    private final TlsContext tlsContext;
+    private TlsChannel tlsChannel;
+    // When the acceptor queued the connection, and how long it waited for a worker
+    private final long queuedAt;
+    private long queueTime;
+    // Set when an HTTP/1.1 request was given up on while its handler still runs; the handler
+    // gives the connection's read buffer back to the pool when it returns
+    private volatile boolean abandoned;
+    // While the connection waits in the scheduler with an expensive request; handed over
+    // between workers by the scheduler's lock
+    private Parked parked;
+    // The plugin of the HTTP/1.1 request that handle() decided to park
+    private IRequestHandler parking;
+    // Whether the worker took an expensive slot along with the parked connection
+    private boolean holdingSlot;
+    // Set by the scheduler when the parked request's deadline passed before its turn came
+    private boolean expired;
 
-    public ConnectionHandler(Server server, Socket socket) {
-        this.server = server;
+    /**
+     * @param shard      The shard that accepted the socket
+     * @param socket     The accepted socket
+     * @param tlsContext The TLS configuration if the socket was accepted on the TLS port, otherwise null
+     */
+    public ConnectionHandler(ServerShard shard, Socket socket, TlsContext tlsContext) {
+        this.shard = shard;
+        this.server = shard.getServer();
         this.socket = socket;
+        this.remoteAddress = socket.getInetAddress();
+        this.tlsContext = tlsContext;
         this.defaultRequestHandler = new DefaultRequestHandler();
+        this.bufferPool = shard.getBufferPool();
+        this.queuedAt = System.nanoTime();
     }
 
     /**
-     * @return the socket
+     * Creates a handler for a connection that is not a socket, such as the in-memory ones of
+     * the {@link Warmup}. It is served with {@link #serve(ReadableByteChannel, WritableByteChannel)}.
+     *
+     * @param shard         The shard whose buffers and statistics the connection uses
+     * @param remoteAddress The client's address, or null if there is none
+     */
+    ConnectionHandler(ServerShard shard, InetAddress remoteAddress) {
+        this.shard = shard;
+        this.server = shard.getServer();
+        this.socket = null;
+        this.remoteAddress = remoteAddress;
+        this.tlsContext = null;
+        this.defaultRequestHandler = new DefaultRequestHandler();
+        this.bufferPool = shard.getBufferPool();
+        this.queuedAt = System.nanoTime();
+    }
+
+    /**
+     * @return the socket, or null if the connection is not a socket
      */
     public Socket getSocket() {
         return socket;
     }
 
+    /**
+     * @return when the connection was queued for a worker, from {@link System#nanoTime()}
+     */
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
     /**
      * The entry point for connection handler. It first parses incoming request
      * and creates a {@link HttpRequest} object, then it creates an appropriate
@@ -67,116 +147,601 @@ public class ConnectionHandler implements Runnable {
      * (web browser).
      */
     public void run() {
+        if (parked != null) {
+            resume();
+            return;
+        }
+
         // Get the request start time
         long start = System.currentTimeMillis();
+        queueTime = System.nanoTime() - queuedAt;
+        shard.recordQueueWait(queueTime);
 
-        InputStream inStream;
-        OutputStream outStream;
+        ReadableByteChannel inChannel;
+        WritableByteChannel outChannel;
 
         try {
-            inStream = this.socket.getInputStream();
-            outStream = this.socket.getOutputStream();
+            socket.setTcpNoDelay(TCP_NODELAY);
+            SocketChannel channel = this.socket.getChannel();
+            if (tlsContext != null) {
+                tlsChannel = tlsContext.wrap(channel, bufferPool, shard.getTlsMetrics());
+                inChannel = tlsChannel;
+                outChannel = tlsChannel;
+            } else if (channel != null) {
+                inChannel = channel;
+                outChannel = channel;
+            } else {
+                inChannel = Channels.newChannel(this.socket.getInputStream());
+                outChannel = Channels.newChannel(this.socket.getOutputStream());
+            }
         } catch (Exception e) {
             // Cannot do anything if we have exception reading input or
             // output stream
-            e.printStackTrace();
+            logError("Could not open the connection streams", e);
 
             incrementCounter(start);
+            close();
             return;
         }
+
+        try {
+            serve(inChannel, outChannel);
+        } finally {
+            // after the keep-alive while loop, however it ended, unless the connection is parked
+            if (parked == null)
+                close();
+        }
+        park();
+    }
+
+    /**
+     * Marks the parked connection's request as out of time, so that the worker that takes the
+     * connection sheds the request rather than serve it.
+     */
+    void expire() {
+        expired = true;
+    }
+
+    /**
+     * Carries on with a parked connection, starting with the request it was parked with. The
+     * worker took an expensive slot for that request along with the connection, unless the
+     * request expired while it waited.
+     */
+    private void resume() {
+        Parked state = parked;
+        parked = null;
+        if (expired) {
+            expired = false;
+            shed(state);
+            return;
+        }
+        holdingSlot = true;
+        try {
+            serve(state.inChannel, state.outChannel, state.out, state.inBuffer, state.headers, state);
+        } finally {
+            if (parked == null) {
+                try {
+                    state.out.flush();
+                } catch (IOException e) {
+                    // The client is gone already
+                }
+                if (!abandoned)
+                    bufferPool.release(state.inBuffer);
+                close();
+            }
+        }
+        park();
+    }
+
+    /**
+     * Answers a parked request whose deadline passed with a 503, and closes the connection.
+     */
+    private void shed(Parked state) {
+        server.getDeadlines().shed();
+        RequestTiming timing = state.timing;
+        timing.lap(Stage.QUEUE);
+        HttpResponse response = HttpResponse.create503ServiceUnavailable(Protocol.CLOSE, 1);
+        timing.setBytesWritten(writeResponse(state.start, state.out, response));
+        timing.lap(Stage.WRITE);
+        timing.setStatus(response.getType().getCode());
+        recordTiming(timing);
+        state.request.finish();
+        try {
+            state.out.flush();
+        } catch (IOException e) {
+            // The client is gone already
+        }
+        bufferPool.release(state.inBuffer);
+        close();
+    }
+
+    /**
+     * Hands the connection to the scheduler if its request was parked. This is the last thing
+     * the worker does with it, since another worker may pick it up at once.
+     */
+    private void park() {
+        if (parked != null)
+            shard.getScheduler().park(this, parked.request, server.getCostModel().getExpectedNanos(parked.handler));
+    }
+
+    private void close() {
+        try {
+            if (tlsChannel != null) {
+                tlsChannel.close();
+            }
+        } catch (IOException e) {
+            logError("Could not close the TLS session", e);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logError("Could not close the connection", e);
+        }
+    }
+
+    /**
+     * Serves the requests that arrive on the channels until the client is done, without
+     * closing the channels.
+     *
+     * @param inChannel  The channel requests are read from
+     * @param outChannel The channel responses are written to
+     */
+    void serve(ReadableByteChannel inChannel, WritableByteChannel outChannel) {
+        // The read buffer lives as long as the connection, so that bytes of a
+        // pipelined request read along with the current one are not lost
+        ByteBuffer inBuffer = bufferPool.acquire(Protocol.REQUEST_BUFFER_LENGTH);
+        inBuffer.flip();
+        HttpHeaders headers = new HttpHeaders();
+
+        try {
+            if (tlsChannel != null) {
+                tlsChannel.handshake();
+            }
+
+            // Clients that negotiated h2 with ALPN also start with the preface
+            if (Http2Connection.startsWithPreface(inChannel, inBuffer)) {
+                // HTTP/2 with prior knowledge
+                createHttp2Connection(inChannel, outChannel, inBuffer).serve();
+            } else {
+                serve(inChannel, outChannel, inBuffer, headers);
+            }
+        } catch (IOException e) {
+            // the client closed the connection before sending anything, or the TLS handshake failed
+        } finally {
+            if (parked == null && !abandoned)
+                bufferPool.release(inBuffer);
+        }
+    }
+
+    private void serve(ReadableByteChannel inChannel, WritableByteChannel outChannel, ByteBuffer inBuffer,
+                       HttpHeaders headers) {
+        // Responses to pipelined requests are held back and sent together
+        CorkingChannel out = new CorkingChannel(outChannel, bufferPool);
+        try {
+            serve(inChannel, outChannel, out, inBuffer, headers, null);
+        } finally {
+            if (parked == null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    // The client is gone already
+                }
+            }
+        }
+    }
+
+    /**
+     * @param resumed The state of the parked connection to carry on from, or null
+     */
+    private void serve(ReadableByteChannel inChannel, WritableByteChannel outChannel, final CorkingChannel out,
+                       ByteBuffer inBuffer, HttpHeaders headers, Parked resumed) {
+        long start;
         boolean keepalive = true;
+        RequestTiming timing = resumed != null ? resumed.timing : new RequestTiming(Protocol.VERSION);
+        // One for all of the connection's requests, like the timing
+        ClientProbe client = new ClientProbe(inChannel, inBuffer, out);
+        // Informational responses go out ahead of anything still held back
+        InterimResponder interimResponder = new InterimResponder() {
+            @Override
+            public void send(HttpResponse response) throws IOException {
+                synchronized (out) {
+                    if (abandoned)
+                        throw new IOException("The request was given up on");
+                    response.write(out, bufferPool);
+                    out.flush();
+                }
+            }
+        };
         do {
             start = System.currentTimeMillis();
-            // At this point we have the input and output stream of the socket
+            // At this point we have the input and output channel of the socket
             HttpRequest request;
             HttpResponse response;
+            TrafficCapture capture = null;
+            ByteBuffer capturedBody = null;
 
-            try {
-                request = HttpRequest.read(inStream);
-            } catch (ProtocolException pe) {
-                // We have some sort of protocol exception. Get its status code
-                // and create response
-                // We know only two kind of exception is possible inside
-                // fromInputStream
-                // Protocol.BAD_REQUEST_CODE and Protocol.NOT_SUPPORTED_CODE
-                int status = pe.getStatus();
-
-                switch (status) {
-                    case Protocol.NOT_SUPPORTED_CODE:
-                        writeResponse(start, outStream,
-                                HttpResponse.create505NotSupported(Protocol.CLOSE));
-                        break;
-                    case Protocol.BAD_REQUEST_CODE:
-                    default:
-                        writeResponse(start, outStream,
-                                HttpResponse.create400BadRequest(Protocol.CLOSE));
+            if (resumed != null) {
+                // The request was read before the connection was parked
+                request = resumed.request;
+                start = resumed.start;
+                capture = resumed.capture;
+                capturedBody = resumed.capturedBody;
+                timing.lap(Stage.QUEUE);
+            } else {
+                try {
+                    request = HttpRequest.read(inChannel, inBuffer, headers);
+                    if (request == null) {
+                        // The client closed the connection between requests
                         break;
-                }
+                    }
 
-                break;
-            } catch (SocketException e) {
-                // the client unexpectedly closed the socket
-                break;
-            } catch (Exception e) {
-                e.printStackTrace();
+                    timing.reset(request.getArrivalTime());
+                    timing.lap(Stage.PARSE);
+                    // The connection waited for a worker before its first request only
+                    timing.add(Stage.QUEUE, queueTime);
+                    queueTime = 0;
+                } catch (ProtocolException pe) {
+                    // We have some sort of protocol exception. Get its status code
+                    // and create response
+                    // We know only two kind of exception is possible inside
+                    // fromInputStream
+                    // Protocol.BAD_REQUEST_CODE and Protocol.NOT_SUPPORTED_CODE
+                    int status = pe.getStatus();
+
+                    switch (status) {
+                        case Protocol.NOT_SUPPORTED_CODE:
+                            writeResponse(start, out,
+                                    HttpResponse.create505NotSupported(Protocol.CLOSE));
+                            break;
+                        case Protocol.BAD_REQUEST_CODE:
+                        default:
+                            writeResponse(start, out,
+                                    HttpResponse.create400BadRequest(Protocol.CLOSE));
+                            break;
+                    }
 
-                // For any other error, we will create bad request response as
-                // well
-                writeResponse(start, outStream,
-                        HttpResponse.create400BadRequest(Protocol.CLOSE));
-                break;
+                    break;
+                } catch (SocketException e) {
+                    // the client unexpectedly closed the socket
+                    break;
+                } catch (IOException e) {
+                    // the connection was reset or shut down while reading
+                    break;
+                } catch (Exception e) {
+                    logError("Could not read the request", e);
+
+                    // For any other error, we will create bad request response as
+                    // well
+                    writeResponse(start, out,
+                            HttpResponse.create400BadRequest(Protocol.CLOSE));
+                    break;
+                }
             }
 
             try {
-                // Check if the protocol is acceptable
-                if (!request.getVersion().equalsIgnoreCase(Protocol.VERSION) && !request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
-                    writeResponse(start, outStream,
-                            HttpResponse.create505NotSupported(Protocol.CLOSE));
+                if (resumed == null) {
+                    // Check if the protocol is acceptable
+                    if (!request.getVersion().equalsIgnoreCase(Protocol.VERSION) && !request.getVersion().equalsIgnoreCase("HTTP/1.0")) {
+                        writeResponse(start, out,
+                                HttpResponse.create505NotSupported(Protocol.CLOSE));
+                        return;
+                    }
+
+                    request.setRemoteAddress(remoteAddress);
+
+                    // Clients over their request rate get a canned 429 and are disconnected
+                    long wait = server.admitRequest(remoteAddress, request.getUri());
+                    if (wait > 0) {
+                        reject(start, out, wait);
+                        request.finish();
+                        return;
+                    }
+
+                    // Switch to HTTP/2 if the client asks for it; h2c is only for cleartext connections
+                    byte[] settings = tlsChannel == null ? Http2Connection.getUpgradeSettings(request) : null;
+                    if (settings != null) {
+                        out.flush();
+                        createHttp2Connection(inChannel, outChannel, inBuffer).serveUpgrade(request, settings);
+                        return;
+                    }
+
+                    timing.setRequest(request.getMethod().name(), request.getUri());
+                    timing.setBytesRead(Math.max(0, request.getContentLength()));
+                    if (request.getVersion().equalsIgnoreCase(Protocol.VERSION))
+                        request.setInterimResponder(interimResponder);
+                    capture = server.getTrafficCapture();
+                    if (capture != null)
+                        capturedBody = capture.sample(request);
+                }
+                resumed = null;
+
+                client.reset(request);
+                try {
+                    response = handle(request, timing, client, socket != null);
+                    if (response != null)
+                        client.restore();
+                } finally {
+                    // Unless handle() gave the slot back already
+                    if (holdingSlot) {
+                        holdingSlot = false;
+                        shard.getScheduler().release();
+                    }
+                }
+
+                if (parking != null) {
+                    // Another worker carries on once the request's turn comes; what is held back
+                    // for the requests before it should not wait that long
+                    IRequestHandler handler = parking;
+                    parking = null;
+                    out.flush();
+                    parked = new Parked(inChannel, outChannel, out, inBuffer, headers, timing, request,
+                            handler, start, capture, capturedBody);
                     return;
                 }
 
-                switch (request.getMethod()) {
-                    case GET:
-                    case POST:
-                    case HEAD:
-                    case DELETE:
-                    case PUT:
-                        IRequestHandler handler = getHandlerForURI(request);
-                        response = handler.handleRequest(request);
-
-                        // Check if Keep-Alive is enabled
-                        String connectionHeader = request.getHeader("connection");
-                        if (connectionHeader != null && connectionHeader.equalsIgnoreCase("Keep-Alive"))
-                            keepalive = true;
-                        else
-                            keepalive = false;
-                        break;
-                    default:
-                        response = HttpResponse.create400BadRequest(Protocol.CLOSE);
-                        keepalive = false;
-                        break;
+                if (response == null) {
+                    // The handler overran its deadline or the client left, and it may still be
+                    // reading the body, so the connection cannot carry another request
+                    synchronized (out) {
+                        abandoned = true;
+                    }
+                    response = HttpResponse.create504GatewayTimeout(Protocol.CLOSE);
+                    keepalive = false;
+                } else {
+                    // Check if Keep-Alive is enabled
+                    keepalive = headers.equalsIgnoreCase(HeaderName.CONNECTION, Protocol.OPEN);
                 }
 
             } catch (Exception e) {
-                e.printStackTrace();
+                logError("Request handler failed", e);
                 response = HttpResponse.create500InternalServerError(Protocol.CLOSE);
                 keepalive = false;
             }
 
-            writeResponse(start, outStream, response);
+            // A large file is sent straight to the socket, where it can go without being copied
+            WritableByteChannel target = out;
+            File file = response.getFile();
+            if (file != null && response.getFileLength() > BufferPool.MEDIUM) {
+                try {
+                    out.flush();
+                    target = outChannel;
+                } catch (IOException e) {
+                    response.release();
+                    break;
+                }
+            }
+            try {
+                timing.setBytesWritten(response.write(target, bufferPool, request.getMethod() == HttpMethod.HEAD));
+            } catch (Exception e) {
+                // Part of the response may have gone out, so the client cannot tell where the
+                // next one would start
+                logError("Could not write the response", e);
+                keepalive = false;
+            }
+            incrementCounter(start);
+            timing.lap(Stage.WRITE);
+            timing.setStatus(response.getType().getCode());
+            recordTiming(timing);
+
+            // Clean up uploads and skip whatever is left of the body before the next request;
+            // the handler of an abandoned request does that itself when it returns
+            if (abandoned || !request.finish())
+                keepalive = false;
+            if (capturedBody != null && !abandoned)
+                capture.record(request, capturedBody, response, timing);
+            response.release();
+
+            // Unless the next request is here already, the client waits for this response
+            if (keepalive && !inBuffer.hasRemaining()) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    break;
+                }
+            }
         } while (keepalive);
+    }
 
-        // after the keep-alive while loop
-        try {
-            socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Routes the request to the plugin that handles its URI.
+     *
+     * @param request The request
+     * @param timing  The request's timing, to charge routing and the plugin to
+     * @param client  Tells whether the client has disconnected, or null if that cannot be told
+     * @param mayPark Whether an expensive request may be parked rather than wait for a slot, which
+     *                only an HTTP/1.1 connection on a socket can be
+     * @return The plugin's response, or null if the request had a deadline and was given up on, or
+     * was parked, in which case {@link #parking} is set
+     * @throws Exception if the plugin fails
+     */
+    private HttpResponse handle(HttpRequest request, RequestTiming timing, Deadlines.ClientCheck client,
+                                boolean mayPark) throws Exception {
+        switch (request.getMethod()) {
+            case GET:
+            case POST:
+            case HEAD:
+            case DELETE:
+            case PUT:
+                // The server's own routes, for the clients allowed to use them
+                AdminRoutes admin = server.getAdminRoutes();
+                if (admin != null && AdminRoutes.matches(request.getUri())
+                        && admin.allows(remoteAddress, request.getUri())) {
+                    timing.setPlugin(AdminRoutes.class.getName());
+                    timing.lap(Stage.ROUTE);
+                    try {
+                        return admin.handle(request, responseConnection(request));
+                    } finally {
+                        timing.lap(Stage.HANDLE);
+                    }
+                }
+
+                IRequestHandler handler = getHandlerForURI(request);
+                timing.setPlugin(handler.getClass().getName());
+                timing.lap(Stage.ROUTE);
+
+                ResponseCache cache = request.getMethod() == HttpMethod.GET ? server.getResponseCache() : null;
+                if (cache != null) {
+                    HttpResponse cached = ResponseCaching.lookup(cache, request, responseConnection(request));
+                    if (cached != null) {
+                        timing.lap(Stage.HANDLE);
+                        return cached;
+                    }
+                }
+
+                // The deadline counts from the request's arrival, so it covers any wait for a slot
+                Deadlines deadlines = server.getDeadlines();
+                deadlines.apply(request);
+
+                // Expensive requests take turns for the shard's slots, so that a burst of them
+                // leaves the workers free for cheap ones
+                PriorityScheduler scheduler = shard.getScheduler();
+                boolean slot = false;
+                if (mayPark && holdingSlot) {
+                    holdingSlot = false;
+                    // The client may have left while the connection was parked
+                    if (client != null && client.isGone()) {
+                        scheduler.release();
+                        deadlines.shed();
+                        return HttpResponse.create503ServiceUnavailable(Protocol.CLOSE, 1);
+                    }
+                    slot = true;
+                } else if (server.getCostModel().isExpensive(handler)) {
+                    if (scheduler.tryAcquire()) {
+                        slot = true;
+                    } else if (mayPark) {
+                        parking = handler;
+                        return null;
+                    } else if (scheduler.acquire(request, server.getCostModel().getExpectedNanos(handler))) {
+                        slot = true;
+                    } else {
+                        deadlines.shed();
+                        return HttpResponse.create503ServiceUnavailable(Protocol.CLOSE, 1);
+                    }
+                }
+                try {
+                    return invoke(handler, request, timing, client, cache);
+                } finally {
+                    if (slot)
+                        scheduler.release();
+                }
+            default:
+                return HttpResponse.create400BadRequest(Protocol.CLOSE);
+        }
+    }
+
+    /**
+     * Hands the request to its plugin, within its deadline and bulkhead.
+     *
+     * @return The plugin's response, or null if the request had a deadline and was given up on
+     * @throws Exception if the plugin fails
+     */
+    private HttpResponse invoke(IRequestHandler handler, HttpRequest request, RequestTiming timing,
+                                Deadlines.ClientCheck client, ResponseCache cache) throws Exception {
+        Deadlines deadlines = server.getDeadlines();
+
+        // Wait for a slot in the plugin's bulkhead, or fail fast if it is saturated. Its limits
+        // follow the threads the request runs on: HTTP/2 streams have their own, fixed set
+        Bulkhead bulkhead = server.getBulkhead(handler);
+        int workers = Http2Connection.VERSION.equals(request.getVersion())
+                ? server.getStreamWorkers() : server.getLiveWorkers();
+        if (bulkhead != null && !bulkhead.acquire(request.hasDeadline()
+                ? Math.max(0, request.getDeadline() - System.nanoTime()) : Long.MAX_VALUE, workers)) {
+            timing.lap(Stage.QUEUE);
+            return HttpResponse.create503ServiceUnavailable(Protocol.CLOSE, 1);
+        }
+        timing.lap(Stage.QUEUE);
+
+        // Out of time before the plugin even started
+        if (request.isExpired()) {
+            if (bulkhead != null)
+                bulkhead.release();
+            deadlines.shed();
+            return HttpResponse.create503ServiceUnavailable(Protocol.CLOSE, 1);
+        }
+
+        HttpResponse response;
+        long handleStart = System.nanoTime();
+        if (request.hasDeadline()) {
+            try {
+                response = deadlines.handle(handler, request, bulkhead, client);
+            } finally {
+                timing.lap(Stage.HANDLE);
+                server.getCostModel().record(handler, System.nanoTime() - handleStart);
+            }
+            if (response == null)
+                return null;
+        } else {
+            try {
+                response = handler.handleRequest(request);
+            } finally {
+                timing.lap(Stage.HANDLE);
+                server.getCostModel().record(handler, System.nanoTime() - handleStart);
+                if (bulkhead != null)
+                    bulkhead.release();
+            }
+        }
+        if (request.isCancelled())
+            deadlines.finishedCancelled(System.nanoTime() - handleStart);
+
+        if (cache != null && response != null) {
+            try {
+                ResponseCaching.store(cache, request, response);
+            } catch (IOException e) {
+                logError("Could not cache the response", e);
+            }
         }
+        return response;
+    }
+
+    /**
+     * @return the <tt>Connection</tt> header for a response to the request
+     */
+    private static String responseConnection(HttpRequest request) {
+        return Protocol.OPEN.equalsIgnoreCase(request.getHeader(HeaderName.CONNECTION)) ? Protocol.OPEN : Protocol.CLOSE;
+    }
+
+    private Http2Connection createHttp2Connection(ReadableByteChannel inChannel, WritableByteChannel outChannel,
+                                                  ByteBuffer inBuffer) {
+        return new Http2Connection(inChannel, outChannel, inBuffer, bufferPool, shard.getStreamExecutor(),
+                new RequestDispatcher() {
+                    @Override
+                    public HttpResponse dispatch(HttpRequest request, RequestTiming timing) {
+                        long start = System.currentTimeMillis();
+                        try {
+                            request.setRemoteAddress(remoteAddress);
+                            long wait = server.admitRequest(remoteAddress, request.getUri());
+                            if (wait > 0) {
+                                return HttpResponse.create429TooManyRequests(Protocol.CLOSE,
+                                        TooManyRequests.retryAfter(wait));
+                            }
+                            HttpResponse response = handle(request, timing, null, false);
+                            return response != null ? response : HttpResponse.create504GatewayTimeout(Protocol.CLOSE);
+                        } catch (Exception e) {
+                            logError("Request handler failed", e);
+                            return HttpResponse.create500InternalServerError(Protocol.CLOSE);
+                        } finally {
+                            incrementCounter(start);
+                        }
+                    }
+
+                    @Override
+                    public void completed(RequestTiming timing) {
+                        recordTiming(timing);
+                    }
+
+                    @Override
+                    public void failed(String message, Exception error) {
+                        logError(message, error);
+                    }
+                });
     }
 
     private IRequestHandler getHandlerForURI(HttpRequest request) {
         String[] URISegments = request.getUri().split("/");
 
+        // One snapshot for the whole lookup, even if the plugins are reloaded meanwhile
+        RoutingTable routingTable = this.server.getRoutingTable();
+
         // Start at the most specific and go to least specific
         for (int i = URISegments.length; i > 0; i--) {
             // Create the path segment
@@ -189,36 +754,176 @@ public class ConnectionHandler implements Runnable {
             }
 
             // Now, try to find a IRequestHandler that will handle this
-            List<IRequestHandler> requestHandlers = this.server.getRequestHandlers();
-            for (IRequestHandler handler : requestHandlers) {
-                if (handler.handlesPath(buffer.toString())) {
-                    request.setRelativeUri(request.getUri().replace(buffer.toString(), ""));
-                    return handler;
-                }
+            String prefix = buffer.toString();
+            IRequestHandler handler = routingTable.find(prefix);
+            if (handler != null) {
+                // Only the prefix comes off; the same segments may appear again further on
+                String uri = request.getUri();
+                int at = uri.indexOf(prefix);
+                request.setRelativeUri(at < 0 ? uri : uri.substring(0, at) + uri.substring(at + prefix.length()));
+                return handler;
             }
         }
 
         return this.defaultRequestHandler;
     }
 
-    private void writeResponse(long start, OutputStream outStream,
+    /**
+     * @return the number of bytes written
+     */
+    private long writeResponse(long start, WritableByteChannel outChannel,
                                HttpResponse response) {
+        long written = 0;
         if (response != null) {
             try {
-                response.write(outStream);
+                written = response.write(outChannel, bufferPool);
             } catch (Exception e) {
-                e.printStackTrace();
+                logError("Could not write the response", e);
             }
             incrementCounter(start);
         }
+        return written;
+    }
+
+    private void reject(long start, WritableByteChannel outChannel, long wait) {
+        try {
+            TooManyRequests.write(outChannel, wait);
+        } catch (IOException e) {
+            // The client is gone already
+        }
+        incrementCounter(start);
+    }
+
+    private void recordTiming(RequestTiming timing) {
+        shard.getStageHistograms().record(timing);
+
+        AccessLog accessLog = server.getAccessLog();
+        if (accessLog != null)
+            accessLog.access(remoteAddress, timing);
+    }
+
+    /**
+     * Sends an error to the access log, or to standard error if there is none.
+     */
+    private void logError(String message, Exception e) {
+        AccessLog accessLog = server.getAccessLog();
+        if (accessLog != null)
+            accessLog.error(remoteAddress, message, e);
+        else
+            e.printStackTrace();
     }
 
     private void incrementCounter(long start) {
-        server.incrementConnections(1);
+        shard.incrementConnections(1);
 
         // Get the end time
         long end = System.currentTimeMillis();
-        this.server.incrementServiceTime(end - start);
+        shard.incrementServiceTime(end - start);
+    }
+
+    /**
+     * What a parked HTTP/1.1 connection needs to carry on: its channels and buffers, and the
+     * request it was parked with.
+     */
+    private static final class Parked {
+        private final ReadableByteChannel inChannel;
+        private final WritableByteChannel outChannel;
+        private final CorkingChannel out;
+        private final ByteBuffer inBuffer;
+        private final HttpHeaders headers;
+        private final RequestTiming timing;
+        private final HttpRequest request;
+        private final IRequestHandler handler;
+        private final long start;
+        private final TrafficCapture capture;
+        private final ByteBuffer capturedBody;
+
+        private Parked(ReadableByteChannel inChannel, WritableByteChannel outChannel, CorkingChannel out,
+                       ByteBuffer inBuffer, HttpHeaders headers, RequestTiming timing, HttpRequest request,
+                       IRequestHandler handler, long start, TrafficCapture capture, ByteBuffer capturedBody) {
+            this.inChannel = inChannel;
+            this.outChannel = outChannel;
+            this.out = out;
+            this.inBuffer = inBuffer;
+            this.headers = headers;
+            this.timing = timing;
+            this.request = request;
+            this.handler = handler;
+            this.start = start;
+            this.capture = capture;
+            this.capturedBody = capturedBody;
+        }
+    }
+
+    /**
+     * Checks whether the client closed the connection, while a handler works on its request. Only
+     * plain socket connections can be checked, and only once the request body has been read. The
+     * check reads a single byte into a buffer of its own, since the handler may still be using the
+     * connection's; if that is the start of a pipelined request, the client is there, and the byte
+     * joins the connection's buffered bytes once the handler has returned.
+     */
+    private final class ClientProbe implements Deadlines.ClientCheck {
+        private final SocketChannel channel;
+        private final ByteBuffer inBuffer;
+        private final CorkingChannel out;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private HttpRequest request;
+
+        private ClientProbe(ReadableByteChannel inChannel, ByteBuffer inBuffer, CorkingChannel out) {
+            this.channel = inChannel instanceof SocketChannel ? (SocketChannel) inChannel : null;
+            this.inBuffer = inBuffer;
+            this.out = out;
+        }
+
+        /**
+         * Starts checking on the client of the connection's next request. A byte read for the
+         * previous one has been restored, or the connection is closing.
+         */
+        private void reset(HttpRequest request) {
+            this.request = request;
+            probe.clear();
+        }
+
+        @Override
+        public boolean isGone() {
+            // The byte has to fit back into the connection's buffer
+            if (channel == null || probe.position() > 0 || !request.getBodyChannel().isFinished()
+                    || inBuffer.remaining() == inBuffer.capacity())
+                return false;
+
+            // Interim responses written meanwhile need the channel to block
+            synchronized (out) {
+                try {
+                    channel.configureBlocking(false);
+                    try {
+                        return channel.read(probe) < 0;
+                    } finally {
+                        channel.configureBlocking(true);
+                    }
+                } catch (IOException e) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void handlerFinished() {
+            bufferPool.release(inBuffer);
+        }
+
+        /**
+         * Adds the byte the check read after the connection's buffered bytes, once the handler has
+         * returned.
+         */
+        private void restore() {
+            if (probe.position() == 0)
+                return;
+
+            probe.flip();
+            inBuffer.compact();
+            inBuffer.put(probe);
+            inBuffer.flip();
+        }
     }
 
     private class DefaultRequestHandler implements IRequestHandler {
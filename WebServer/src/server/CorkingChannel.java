@@ -0,0 +1,128 @@
+package server;
+
+import buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Holds back the responses written to a connection until {@link #flush()}, the way
+ * <tt>TCP_CORK</tt> does, so that the responses to pipelined requests leave in one write
+ * instead of one each. With <tt>TCP_NODELAY</tt> on the socket, whatever is flushed is sent at
+ * once.
+ * <p/>
+ * Writes that fit are copied into a pooled buffer. A write that does not fit goes out together
+ * with what is held back, in one gathering write when the channel underneath supports it.
+ */
+final class CorkingChannel implements GatheringByteChannel {
+    private final WritableByteChannel channel;
+    private final BufferPool pool;
+    private ByteBuffer pending;
+
+    /**
+     * @param channel The connection's channel
+     * @param pool    The pool to borrow the buffer from
+     */
+    CorkingChannel(WritableByteChannel channel, BufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+
+        if (pending == null)
+            pending = pool.acquire(BufferPool.MEDIUM);
+        if (total <= pending.remaining()) {
+            for (int i = offset; i < offset + length; i++) {
+                pending.put(srcs[i]);
+            }
+            return total;
+        }
+
+        // Too big to hold back: send it right behind what is held back
+        ByteBuffer[] buffers = new ByteBuffer[length + 1];
+        pending.flip();
+        buffers[0] = pending;
+        System.arraycopy(srcs, offset, buffers, 1, length);
+        try {
+            writeFully(buffers);
+        } finally {
+            pending.clear();
+        }
+        return total;
+    }
+
+    /**
+     * Sends whatever is held back and gives the buffer back to the pool.
+     *
+     * @throws IOException if the write fails
+     */
+    void flush() throws IOException {
+        if (pending == null)
+            return;
+
+        try {
+            pending.flip();
+            writeFully(new ByteBuffer[]{pending});
+        } finally {
+            pool.release(pending);
+            pending = null;
+        }
+    }
+
+    /**
+     * @return whether responses are being held back
+     */
+    boolean hasPending() {
+        return pending != null && pending.position() > 0;
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) channel;
+            int first = 0;
+            while (first < buffers.length) {
+                gathering.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Flushes, but leaves the connection's channel open; the connection handler closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,138 @@
+package server;
+
+import pluginAPI.IRequestHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+
+/**
+ * Tells cheap plugins from expensive ones, for the {@link PriorityScheduler}.
+ * <p/>
+ * A plugin's class comes, in order of precedence, from the system property
+ * <tt>sws.schedule.&lt;plugin class&gt;.costClass</tt>, from the <tt>SWS-Cost-Class</tt> attribute of
+ * its jar's manifest (<tt>cheap</tt> or <tt>expensive</tt>), or else from how long its requests
+ * have taken: a plugin is expensive while the moving average of its handling time is above
+ * <tt>sws.schedule.expensiveMillis</tt> (5). A plugin is cheap until its first
+ * {@link #MIN_SAMPLES} requests have been timed, so that a slow start does not mark it.
+ */
+public final class CostModel {
+    public static final String PROPERTY_PREFIX = "sws.schedule.";
+    public static final String COST_CLASS = "costClass";
+    public static final String EXPENSIVE_MILLIS_PROPERTY = "sws.schedule.expensiveMillis";
+
+    public static final Attributes.Name COST_CLASS_ATTRIBUTE = new Attributes.Name("SWS-Cost-Class");
+
+    public static final int MIN_SAMPLES = 8;
+
+    private static final String CHEAP = "cheap";
+    private static final String EXPENSIVE = "expensive";
+
+    private final long expensiveNanos;
+    // By plugin class name, so that they outlive the handler instances of each plugin scan
+    private final ConcurrentMap<String, Cost> costs = new ConcurrentHashMap<String, Cost>();
+
+    /**
+     * @param expensiveMillis The average handling time above which a plugin is expensive
+     */
+    public CostModel(long expensiveMillis) {
+        this.expensiveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, expensiveMillis));
+    }
+
+    static CostModel fromSystemProperties() {
+        return new CostModel(Long.getLong(EXPENSIVE_MILLIS_PROPERTY, 5));
+    }
+
+    /**
+     * Reads the declared class of a plugin seen for the first time.
+     *
+     * @param name       The plugin's class name
+     * @param attributes The main attributes of the plugin jar's manifest, or null
+     */
+    void configure(String name, Attributes attributes) {
+        if (costs.containsKey(name))
+            return;
+
+        String declared = System.getProperty(PROPERTY_PREFIX + name + "." + COST_CLASS);
+        if (declared == null && attributes != null)
+            declared = attributes.getValue(COST_CLASS_ATTRIBUTE);
+
+        Boolean expensive = null;
+        if (declared != null && declared.trim().equalsIgnoreCase(EXPENSIVE))
+            expensive = Boolean.TRUE;
+        else if (declared != null && declared.trim().equalsIgnoreCase(CHEAP))
+            expensive = Boolean.FALSE;
+        else if (declared != null)
+            System.out.println(String.format("Ignoring cost class %s of %s", declared, name));
+        costs.putIfAbsent(name, new Cost(expensive));
+    }
+
+    /**
+     * @param handler The plugin
+     * @return true if the plugin's requests should wait their turn with the other expensive ones
+     */
+    boolean isExpensive(IRequestHandler handler) {
+        Cost cost = costs.get(handler.getClass().getName());
+        return cost != null && cost.isExpensive(expensiveNanos);
+    }
+
+    /**
+     * @param handler The plugin
+     * @return how long its requests have taken on average, in nanoseconds
+     */
+    long getExpectedNanos(IRequestHandler handler) {
+        Cost cost = costs.get(handler.getClass().getName());
+        return cost == null ? 0 : cost.averageNanos.get();
+    }
+
+    /**
+     * Adds a request's handling time to its plugin's average.
+     *
+     * @param handler The plugin
+     * @param nanos   How long the plugin took
+     */
+    void record(IRequestHandler handler, long nanos) {
+        Cost cost = costs.get(handler.getClass().getName());
+        if (cost == null)
+            return;
+
+        // An exponential moving average over about the last eight requests
+        cost.samples.incrementAndGet();
+        while (true) {
+            long average = cost.averageNanos.get();
+            if (cost.averageNanos.compareAndSet(average, average + (nanos - average) / 8))
+                return;
+        }
+    }
+
+    /**
+     * @return the number of plugins that are expensive now
+     */
+    public int getExpensiveCount() {
+        int count = 0;
+        for (Cost cost : costs.values()) {
+            if (cost.isExpensive(expensiveNanos))
+                count++;
+        }
+        return count;
+    }
+
+    private static final class Cost {
+        // Null unless the class was declared
+        private final Boolean declared;
+        private final AtomicLong averageNanos = new AtomicLong();
+        private final AtomicLong samples = new AtomicLong();
+
+        private Cost(Boolean declared) {
+            this.declared = declared;
+        }
+
+        private boolean isExpensive(long expensiveNanos) {
+            if (declared != null)
+                return declared;
+            return samples.get() >= MIN_SAMPLES && averageNanos.get() > expensiveNanos;
+        }
+    }
+}
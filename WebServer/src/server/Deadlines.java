@@ -0,0 +1,289 @@
+package server;
+
+import pluginAPI.IRequestHandler;
+import protocol.HeaderName;
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.Protocol;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives requests a time budget and stops waiting for handlers that overrun it.
+ * <p/>
+ * A request's deadline is its arrival plus <tt>sws.request.timeoutMillis</tt> (none by default),
+ * or plus the milliseconds in its <tt>X-Request-Timeout</tt> header if that is sooner; the header
+ * may ask for at most <tt>sws.request.maxTimeoutMillis</tt> (60000). A request with a deadline is
+ * handled on a thread of its own while its worker waits, so that the worker can give up: at the
+ * deadline the request is cancelled, the handler's thread interrupted and the client answered
+ * with a 504. A request whose deadline passed before its handler started, while it waited for a
+ * worker or for its plugin's bulkhead, gets a 503. The waiting worker also checks now and then
+ * whether the client has gone, and if so cancels the request at once.
+ * <p/>
+ * There are at most as many handler threads as the server may have workers; a request that finds
+ * them all busy gets a 503 too. A handler that was given up on keeps its thread, its bulkhead slot
+ * and its connection's buffer until it returns, so handlers that can take long should watch
+ * {@link HttpRequest#isCancelled()}. The time handlers spend on requests nobody waits for any
+ * more is counted as wasted.
+ */
+public final class Deadlines {
+    public static final String TIMEOUT_PROPERTY = "sws.request.timeoutMillis";
+    public static final String MAX_TIMEOUT_PROPERTY = "sws.request.maxTimeoutMillis";
+
+    // How often a waiting worker checks on the client
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // The states of a handled request; whoever leaves RUNNING first decides who cleans up
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    private final long timeoutNanos;
+    private final long maxTimeoutMillis;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong wastedNanos = new AtomicLong();
+
+    /**
+     * @param timeoutMillis    The budget of every request, or 0 for none
+     * @param maxTimeoutMillis The longest budget a request may ask for
+     * @param maxHandlers      The most requests with a deadline that may be handled at once
+     */
+    public Deadlines(long timeoutMillis, long maxTimeoutMillis, int maxHandlers) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        this.maxTimeoutMillis = Math.max(1, maxTimeoutMillis);
+        // Handed over directly, so that a request finding every thread busy is turned away
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, maxHandlers), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Handler-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param maxHandlers The most requests with a deadline that may be handled at once
+     */
+    static Deadlines fromSystemProperties(int maxHandlers) {
+        return new Deadlines(Long.getLong(TIMEOUT_PROPERTY, 0), Long.getLong(MAX_TIMEOUT_PROPERTY, 60000),
+                maxHandlers);
+    }
+
+    /**
+     * Gives the request its deadline, if it gets one.
+     *
+     * @param request The request, just read
+     */
+    void apply(HttpRequest request) {
+        long timeout = timeoutNanos;
+        String header = request.getHeader(HeaderName.X_REQUEST_TIMEOUT);
+        if (header != null) {
+            try {
+                long millis = Long.parseLong(header.trim());
+                if (millis > 0) {
+                    long asked = TimeUnit.MILLISECONDS.toNanos(Math.min(millis, maxTimeoutMillis));
+                    timeout = timeout == 0 ? asked : Math.min(timeout, asked);
+                }
+            } catch (NumberFormatException e) {
+                // Ignored, like any other malformed header the server does not depend on
+            }
+        }
+        if (timeout > 0)
+            request.setDeadline(request.getArrivalTime() + timeout);
+    }
+
+    /**
+     * Counts a request turned away before its handler started, because its deadline passed or
+     * its client left.
+     */
+    void shed() {
+        shed.incrementAndGet();
+    }
+
+    /**
+     * Counts a request whose handler finished after the client had gone.
+     *
+     * @param handlerNanos How long the handler took
+     */
+    void finishedCancelled(long handlerNanos) {
+        cancelled.incrementAndGet();
+        wastedNanos.addAndGet(handlerNanos);
+    }
+
+    /**
+     * Handles a request that has a deadline on a thread of its own, and waits for the response
+     * until the deadline or until the client is gone.
+     *
+     * @param handler  The request's handler
+     * @param request  The request
+     * @param bulkhead The bulkhead slot the request holds, given back when the handler returns; or null
+     * @param client   Tells whether the client has disconnected, or null if that cannot be told
+     * @return the response, a 503 if no handler thread was free, or null if the request was given
+     * up on. The handler may then still be running, and finishes the request itself when it
+     * returns; then it gives back the connection's buffer through the client check.
+     * @throws Exception if the handler fails
+     */
+    HttpResponse handle(final IRequestHandler handler, final HttpRequest request, final Bulkhead bulkhead,
+                        final ClientCheck client) throws Exception {
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        final long start = System.nanoTime();
+        // The worker goes on using the connection buffer the headers were parsed in
+        request.getHeaderFields().detach();
+        Future<HttpResponse> future;
+        try {
+            future = executor.submit(new Callable<HttpResponse>() {
+                @Override
+                public HttpResponse call() {
+                    HttpResponse response = null;
+                    try {
+                        response = handler.handleRequest(request);
+                        return response;
+                    } finally {
+                        if (bulkhead != null)
+                            bulkhead.release();
+                        if (!state.compareAndSet(RUNNING, DONE)) {
+                            // Nobody waits for this response; the worker left the clean-up to us
+                            wastedNanos.addAndGet(System.nanoTime() - start);
+                            if (response != null)
+                                response.release();
+                            try {
+                                request.finish();
+                            } finally {
+                                if (client != null)
+                                    client.handlerFinished();
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (bulkhead != null)
+                bulkhead.release();
+            // The server is stopping
+            if (executor.isShutdown())
+                throw e;
+            shed.incrementAndGet();
+            return HttpResponse.create503ServiceUnavailable(Protocol.CLOSE, 1);
+        }
+
+        boolean gone = false;
+        try {
+            while (true) {
+                long remaining = request.getDeadline() - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                try {
+                    return future.get(Math.min(remaining, POLL_NANOS), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (request.isCancelled() || (client != null && client.isGone())) {
+                        gone = true;
+                        break;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw failure(e);
+        }
+
+        if (!state.compareAndSet(RUNNING, ABANDONED)) {
+            // It finished just now after all
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                throw failure(e);
+            }
+        }
+
+        request.cancel();
+        future.cancel(true);
+        if (gone)
+            cancelled.incrementAndGet();
+        else
+            timedOut.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return what the handler threw, unless it was an error, which is rethrown
+     */
+    private static Exception failure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return (Exception) cause;
+    }
+
+    /**
+     * @return the number of requests answered with 503 because their deadline passed before their
+     * handler started, or because every handler thread was busy
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * @return the number of requests answered with 504 because their handler overran the deadline
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the number of requests whose client went away while they were handled
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return the time handlers spent on requests that were given up on or whose client had gone, in nanoseconds
+     */
+    public long getWastedNanos() {
+        return wastedNanos.get();
+    }
+
+    /**
+     * Stops taking requests; handlers still running are left to finish.
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d shed (503), %d timed out (504), %d cancelled by the client, %.1f s of handler time wasted",
+                getShed(), getTimedOut(), getCancelled(), getWastedNanos() / 1e9);
+    }
+
+    /**
+     * Tells whether the client of a request being handled has disconnected, and takes back the
+     * connection's buffer from a handler that was given up on.
+     */
+    interface ClientCheck {
+        boolean isGone();
+
+        /**
+         * Called on the handler's thread once the handler of a request that was given up on has
+         * returned and the request is finished, so that nothing reads the buffer any more.
+         */
+        void handlerFinished();
+    }
+}
@@ -0,0 +1,391 @@
+package server;
+
+import protocol.HttpRequest;
+import timing.Histogram;
+
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue a shard's workers take their work from, in two classes: new connections, whose
+ * requests are cheap until shown otherwise, and connections parked with a request for an
+ * expensive plugin (see {@link CostModel}).
+ * <p/>
+ * At most <tt>sws.schedule.expensiveSlots</tt> expensive requests run at once; by default half
+ * of the initial workers, so the other half stays free for cheap work. Each shard has a
+ * scheduler of its own with an equal share of the slots, rounded up, so with <em>n</em> shards
+ * the server as a whole may run up to <em>n</em> - 1 more. Fewer slots favour cheap requests more, at the cost of
+ * plugins that mostly wait. An expensive request that finds every slot taken does not hold its
+ * worker: its connection is parked here, and the worker goes back to serving new connections.
+ * The requests of HTTP/2 streams, which have threads of their own, wait in the same line. When
+ * a slot frees up, the request with the soonest <em>parked time plus expected handling
+ * time</em> goes next, so short jobs overtake long ones without starving them. While both
+ * classes are waiting, workers take <tt>sws.schedule.cheapWeight</tt> (4) new connections for
+ * every parked one.
+ * <p/>
+ * A parked request whose deadline passes does not wait for a slot: the next worker takes its
+ * connection at once, to answer it with a 503.
+ * <p/>
+ * The server's own routes, such as <tt>/_sws/health</tt>, are never expensive. The waits of
+ * both classes are recorded so that the slots and the weight can be tuned.
+ */
+public final class PriorityScheduler {
+    public static final String EXPENSIVE_SLOTS_PROPERTY = "sws.schedule.expensiveSlots";
+    public static final String CHEAP_WEIGHT_PROPERTY = "sws.schedule.cheapWeight";
+
+    private final int expensiveSlots;
+    private final int cheapWeight;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when there may be work for a worker
+    private final Condition ready = lock.newCondition();
+    // Signalled when an expensive slot frees up
+    private final Condition slotFree = lock.newCondition();
+    private final ArrayDeque<ConnectionHandler> cheap = new ArrayDeque<ConnectionHandler>();
+    private final PriorityQueue<Parked> expensive = new PriorityQueue<Parked>();
+    private int running;
+    private int cheapStreak;
+    private long parkedCount;
+    // The earliest deadline of the parked connections, if any has one; it may be earlier than
+    // that, when the connection has left the queue since
+    private boolean hasNextExpiry;
+    private long nextExpiry;
+
+    private final Histogram cheapWait = new Histogram();
+    private final Histogram expensiveWait = new Histogram();
+    private final AtomicLong parkedTotal = new AtomicLong();
+
+    /**
+     * @param expensiveSlots How many expensive requests may run at once
+     * @param cheapWeight    How many cheap entries are taken for every expensive one while both wait
+     */
+    public PriorityScheduler(int expensiveSlots, int cheapWeight) {
+        this.expensiveSlots = Math.max(1, expensiveSlots);
+        this.cheapWeight = Math.max(1, cheapWeight);
+    }
+
+    /**
+     * @param workers The initial number of workers of all shards, for the default
+     * @param shards  The number of shards the slots are divided among
+     */
+    static PriorityScheduler fromSystemProperties(int workers, int shards) {
+        int slots = Integer.getInteger(EXPENSIVE_SLOTS_PROPERTY, Math.max(1, workers / 2));
+        return new PriorityScheduler((slots + shards - 1) / shards, Integer.getInteger(CHEAP_WEIGHT_PROPERTY, 4));
+    }
+
+    /**
+     * Queues a new connection.
+     *
+     * @param handler The connection
+     */
+    void add(ConnectionHandler handler) {
+        lock.lock();
+        try {
+            cheap.add(handler);
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks a connection until an expensive slot is free for its request, or its deadline passes.
+     *
+     * @param handler       The connection
+     * @param request       The request it was parked with
+     * @param expectedNanos How long its request is expected to take
+     */
+    void park(ConnectionHandler handler, HttpRequest request, long expectedNanos) {
+        parkedTotal.incrementAndGet();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            expensive.add(new Parked(handler, request, now, now + expectedNanos, parkedCount++));
+            boolean sooner = request.hasDeadline() && (!hasNextExpiry || request.getDeadline() - nextExpiry < 0);
+            if (sooner) {
+                hasNextExpiry = true;
+                nextExpiry = request.getDeadline();
+            }
+            // A waiting worker wakes up to take it, or to wait until it expires
+            if (running < expensiveSlots || sooner)
+                ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next connection to serve. A worker given a parked connection holds an expensive
+     * slot for its request, which the connection gives back with {@link #release()}, unless the
+     * request's deadline has passed; see {@link ConnectionHandler#expire()}.
+     *
+     * @param timeout How long to wait
+     * @param unit    The unit of the timeout
+     * @return the connection, or null if there was none in time
+     * @throws InterruptedException if the worker is interrupted while waiting
+     */
+    ConnectionHandler poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                Parked expired = takeExpired(now);
+                if (expired != null) {
+                    expensiveWait.record(now - expired.parkedAt);
+                    expired.handler.expire();
+                    return expired.handler;
+                }
+
+                grantWaiting();
+                boolean expensiveReady = !expensive.isEmpty() && running < expensiveSlots;
+                if (expensiveReady && (cheap.isEmpty() || cheapStreak >= cheapWeight)) {
+                    Parked parked = expensive.poll();
+                    running++;
+                    cheapStreak = 0;
+                    expensiveWait.record(now - parked.parkedAt);
+                    return parked.handler;
+                }
+                if (!cheap.isEmpty()) {
+                    cheapStreak = expensiveReady ? cheapStreak + 1 : 0;
+                    ConnectionHandler handler = cheap.poll();
+                    cheapWait.record(now - handler.getQueuedAt());
+                    return handler;
+                }
+                if (nanos <= 0)
+                    return null;
+                long wait = hasNextExpiry ? Math.min(nanos, Math.max(1, nextExpiry - now)) : nanos;
+                nanos -= wait - ready.awaitNanos(wait);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a parked connection whose request's deadline has passed, and works out when the next
+     * one does.
+     *
+     * @return the expired connection, or null if there is none yet
+     */
+    private Parked takeExpired(long now) {
+        if (!hasNextExpiry || now - nextExpiry < 0)
+            return null;
+
+        Parked expired = null;
+        hasNextExpiry = false;
+        for (Parked parked : expensive) {
+            // Waiting streams give up on their own
+            if (parked.handler == null || !parked.request.hasDeadline())
+                continue;
+            long deadline = parked.request.getDeadline();
+            if (expired == null && now - deadline >= 0) {
+                expired = parked;
+            } else if (!hasNextExpiry || deadline - nextExpiry < 0) {
+                hasNextExpiry = true;
+                nextExpiry = deadline;
+            }
+        }
+        if (expired != null) {
+            expensive.remove(expired);
+            // Another expired one is taken right away too
+            if (hasNextExpiry && now - nextExpiry >= 0)
+                ready.signal();
+        }
+        return expired;
+    }
+
+    /**
+     * Gives the free slots to the streams at the front of the line; parked connections ahead of
+     * them go first, to the workers.
+     */
+    private void grantWaiting() {
+        boolean granted = false;
+        while (running < expensiveSlots && !expensive.isEmpty() && expensive.peek().handler == null) {
+            Parked waiting = expensive.poll();
+            waiting.granted = true;
+            running++;
+            expensiveWait.record(System.nanoTime() - waiting.parkedAt);
+            granted = true;
+        }
+        if (granted)
+            slotFree.signalAll();
+    }
+
+    /**
+     * Takes an expensive slot if one is free and no parked request is ahead.
+     *
+     * @return true if the slot was taken
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (running >= expensiveSlots || !expensive.isEmpty())
+                return false;
+            running++;
+            expensiveWait.record(0);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits in line with the parked connections for an expensive slot, for requests that cannot
+     * be parked, such as those of HTTP/2 streams, which have threads of their own.
+     *
+     * @param request       The request, which waits no longer than its deadline, if it has one
+     * @param expectedNanos How long the request is expected to take
+     * @return true if the slot was taken, false if the deadline passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean acquire(HttpRequest request, long expectedNanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long now = System.nanoTime();
+            if (running < expensiveSlots && expensive.isEmpty()) {
+                running++;
+                expensiveWait.record(0);
+                return true;
+            }
+
+            Parked waiting = new Parked(null, request, now, now + expectedNanos, parkedCount++);
+            expensive.add(waiting);
+            // It may have gone ahead of a parked connection that a free slot is waiting for
+            grantWaiting();
+            try {
+                while (!waiting.granted) {
+                    if (!request.hasDeadline()) {
+                        slotFree.await();
+                        continue;
+                    }
+                    long left = request.getDeadline() - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    slotFree.awaitNanos(left);
+                }
+            } catch (InterruptedException e) {
+                if (waiting.granted)
+                    releaseSlot();
+                throw e;
+            } finally {
+                if (!waiting.granted && expensive.remove(waiting))
+                    grantWaiting();
+            }
+            return waiting.granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back an expensive slot.
+     */
+    void release() {
+        lock.lock();
+        try {
+            releaseSlot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseSlot() {
+        running--;
+        grantWaiting();
+        if (running < expensiveSlots && !expensive.isEmpty())
+            ready.signal();
+    }
+
+    /**
+     * @return the number of new connections waiting for a worker
+     */
+    int getQueueLength() {
+        lock.lock();
+        try {
+            return cheap.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of connections parked and streams waiting for an expensive slot
+     */
+    public int getParked() {
+        lock.lock();
+        try {
+            return expensive.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of expensive requests running now
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getExpensiveSlots() {
+        return expensiveSlots;
+    }
+
+    /**
+     * @return how long new connections waited for a worker
+     */
+    public Histogram getCheapWait() {
+        return cheapWait;
+    }
+
+    /**
+     * @return how long expensive requests waited for a slot, 0 for those that found one free
+     */
+    public Histogram getExpensiveWait() {
+        return expensiveWait;
+    }
+
+    /**
+     * @return the number of connections ever parked
+     */
+    public long getParkedTotal() {
+        return parkedTotal.get();
+    }
+
+    private static final class Parked implements Comparable<Parked> {
+        // Null for a stream waiting in acquire()
+        private final ConnectionHandler handler;
+        private final HttpRequest request;
+        private final long parkedAt;
+        private final long due;
+        private final long sequence;
+        // Set when a waiting stream is given its slot
+        private boolean granted;
+
+        private Parked(ConnectionHandler handler, HttpRequest request, long parkedAt, long due, long sequence) {
+            this.handler = handler;
+            this.request = request;
+            this.parkedAt = parkedAt;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Parked other) {
+            long difference = due - other.due;
+            if (difference != 0)
+                return difference < 0 ? -1 : 1;
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-client token buckets, kept as a GCRA (generic cell rate algorithm): each client has a
+ * single "theoretical arrival time", and a request is admitted when that time is no more than
+ * the burst tolerance ahead of now. Admitting a request moves it one emission interval on.
+ * <p/>
+ * The buckets live in a fixed-size, open-addressed table of (key, arrival time) pairs in one
+ * {@link AtomicLongArray}, updated with compare-and-set only. A key is looked for in a short
+ * run of slots; if the run is full, the entry that has been idle longest is taken over. An
+ * idle bucket is full again, so forgetting it loses nothing, and under pressure the limiter
+ * errs on the side of admitting. A check is a hash, a few array reads and one CAS.
+ * <p/>
+ * Configured with system properties, all off by default:
+ * <ul>
+ * <li><tt>sws.rateLimit.requests</tt>: requests per second per client, with a burst of
+ * <tt>sws.rateLimit.requestBurst</tt> (the rate by default). With <tt>sws.rateLimit.perRoute</tt>
+ * each client has a bucket per first path segment instead of one for everything.</li>
+ * <li><tt>sws.rateLimit.connections</tt>: new connections per second per client, with a burst of
+ * <tt>sws.rateLimit.connectionBurst</tt>. Checked by the acceptor before a worker is involved.</li>
+ * <li><tt>sws.rateLimit.tableSize</tt>: the number of clients tracked at once, 65536 by default.</li>
+ * </ul>
+ */
+public final class RateLimiter {
+    public static final String REQUESTS_PROPERTY = "sws.rateLimit.requests";
+    public static final String REQUEST_BURST_PROPERTY = "sws.rateLimit.requestBurst";
+    public static final String PER_ROUTE_PROPERTY = "sws.rateLimit.perRoute";
+    public static final String CONNECTIONS_PROPERTY = "sws.rateLimit.connections";
+    public static final String CONNECTION_BURST_PROPERTY = "sws.rateLimit.connectionBurst";
+    public static final String TABLE_SIZE_PROPERTY = "sws.rateLimit.tableSize";
+
+    // How many slots a key may be found in
+    private static final int PROBES = 8;
+
+    private final long interval;
+    private final long tolerance;
+    private final int mask;
+    // Slot i holds its key at 2i and its theoretical arrival time at 2i + 1
+    private final AtomicLongArray slots;
+    // Keeps times positive, so that an arrival time of 0 means "never seen"
+    private final long origin;
+
+    /**
+     * @param rate     The sustained number of admissions per second
+     * @param burst    How many admissions may come at once
+     * @param capacity The number of keys to track; rounded up to a power of two
+     */
+    public RateLimiter(double rate, int burst, int capacity) {
+        if (rate <= 0 || burst < 1)
+            throw new IllegalArgumentException("rate and burst must be positive");
+
+        this.interval = Math.max(1, (long) (1000000000L / rate));
+        this.tolerance = interval * (burst - 1);
+
+        int size = Integer.highestOneBit(Math.max(PROBES, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * 2);
+        this.origin = System.nanoTime() - 1;
+    }
+
+    /**
+     * Creates a limiter from a pair of system properties.
+     *
+     * @param rateProperty  The property holding the rate per second
+     * @param burstProperty The property holding the burst, which defaults to the rate
+     * @return the limiter, or null if the rate is not set
+     */
+    static RateLimiter fromSystemProperties(String rateProperty, String burstProperty) {
+        String rate = System.getProperty(rateProperty);
+        if (rate == null)
+            return null;
+
+        double perSecond = Double.parseDouble(rate);
+        if (perSecond <= 0)
+            return null;
+
+        int burst = Integer.getInteger(burstProperty, (int) Math.max(1, Math.ceil(perSecond)));
+        return new RateLimiter(perSecond, burst, Integer.getInteger(TABLE_SIZE_PROPERTY, 65536));
+    }
+
+    /**
+     * Takes a token from the key's bucket.
+     *
+     * @param key The client's key, from {@link #keyFor}
+     * @return 0 if admitted, otherwise how many nanoseconds until the next token
+     */
+    public long acquire(long key) {
+        long now = System.nanoTime() - origin;
+        int start = (int) (key ^ (key >>> 32)) & mask;
+
+        int victim = -1;
+        long victimKey = 0;
+        long victimTime = Long.MAX_VALUE;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = ((start + probe) & mask) << 1;
+            long current = slots.get(slot);
+            if (current == key)
+                return take(slot + 1, now);
+
+            if (current == 0) {
+                if (slots.compareAndSet(slot, 0, key) || slots.get(slot) == key)
+                    return take(slot + 1, now);
+                continue;
+            }
+
+            long time = slots.get(slot + 1);
+            if (time < victimTime) {
+                victimTime = time;
+                victimKey = current;
+                victim = slot;
+            }
+        }
+
+        // Every slot is taken; reuse the one idle the longest. Losing the race just admits.
+        if (victim >= 0 && slots.compareAndSet(victim, victimKey, key)) {
+            slots.set(victim + 1, 0);
+            return take(victim + 1, now);
+        }
+        return 0;
+    }
+
+    private long take(int index, long now) {
+        while (true) {
+            long stored = slots.get(index);
+            long arrival = Math.max(stored, now);
+            long wait = arrival - tolerance - now;
+            if (wait > 0)
+                return wait;
+            if (slots.compareAndSet(index, stored, arrival + interval))
+                return 0;
+        }
+    }
+
+    /**
+     * Builds the key of a client address.
+     *
+     * @param address The client's address
+     * @return the key
+     */
+    public static long keyFor(InetAddress address) {
+        // An IPv4 address is its own hash code; IPv6 ones are folded into 32 bits
+        long key = mix((address.hashCode() & 0xffffffffL) | (address instanceof Inet4Address ? 0 : 1L << 32));
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * Builds the key of a client address and the route a request is for, which is the first
+     * segment of its path.
+     *
+     * @param address The client's address
+     * @param uri     The request URI
+     * @return the key
+     */
+    public static long keyFor(InetAddress address, String uri) {
+        int route = 0;
+        int length = uri.length();
+        for (int i = 0; i < length; i++) {
+            char c = uri.charAt(i);
+            if (i > 0 && (c == '/' || c == '?'))
+                break;
+            route = 31 * route + c;
+        }
+
+        long key = mix(keyFor(address) + route);
+        return key == 0 ? 1 : key;
+    }
+
+    // The finalizer of SplitMix64, so that neighbouring addresses land far apart
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,238 @@
+package server;
+
+import cache.OpenFileCache;
+import cache.ResponseCache;
+import protocol.HeaderName;
+import protocol.HttpRequest;
+import protocol.HttpResponse;
+import protocol.HttpResponseType;
+import protocol.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which responses go into the {@link ResponseCache} and serves GET requests from it.
+ * <p/>
+ * A 200 response is kept when its <tt>Cache-Control</tt> allows shared caches to keep it for
+ * a while (<tt>max-age</tt> or <tt>s-maxage</tt>, and none of <tt>private</tt>,
+ * <tt>no-store</tt> or <tt>no-cache</tt>) and it sets no cookie. It is served until that age
+ * runs out. A response that sends a file is also checked against the file's size and
+ * modification time on every hit, as the {@link OpenFileCache} last saw them, so a changed file
+ * is not served from the cache.
+ * <p/>
+ * Entries are keyed by the URI alone, so a response that varies with other request headers is
+ * not kept; <tt>Vary: Accept-Encoding</tt> is allowed only on a response without a content
+ * coding, which suits every client. Nor is a response to a request with credentials
+ * (<tt>Authorization</tt> or <tt>Cookie</tt>) kept, unless it is marked <tt>public</tt> or has an
+ * <tt>s-maxage</tt>. A request that asks for <tt>no-cache</tt> or <tt>no-store</tt> is never
+ * answered from the cache, and with <tt>no-store</tt> its response is not kept either.
+ */
+final class ResponseCaching {
+    private static final String SET_COOKIE = "set-cookie";
+    private static final String ETAG = "etag";
+    private static final String VARY = "vary";
+
+    private ResponseCaching() {
+    }
+
+    /**
+     * @param request A GET request
+     * @return the key its response is cached under
+     */
+    static String key(HttpRequest request) {
+        String query = request.getQueryString();
+        return query == null ? request.getUri() : request.getUri() + "?" + query;
+    }
+
+    /**
+     * Answers a request from the cache.
+     *
+     * @param cache      The cache
+     * @param request    A GET request
+     * @param connection The <tt>Connection</tt> header of the response
+     * @return the response, or null if the cache has none that can be used
+     */
+    static HttpResponse lookup(ResponseCache cache, HttpRequest request, String connection) {
+        if (requestForbids(request, "no-cache") || requestForbids(request, "no-store"))
+            return null;
+
+        final ResponseCache.Entry entry = cache.get(key(request));
+        if (entry == null)
+            return null;
+        if (entry.getStatus() != HttpResponseType.OK.getCode() || !isCurrent(entry)) {
+            entry.release();
+            return null;
+        }
+
+        HttpResponse response;
+        String etag = entry.getHeader(ETAG);
+        if (etag != null && etag.equals(request.getHeader(HeaderName.IF_NONE_MATCH))) {
+            entry.release();
+            response = HttpResponse.create304NotModified(connection);
+            response.putETag(etag);
+            return response;
+        }
+
+        // The body stays in the segment until the response has been sent
+        response = HttpResponse.createResponse(HttpResponseType.OK, connection, entry.getBody());
+        response.setReleaser(new Runnable() {
+            @Override
+            public void run() {
+                entry.release();
+            }
+        });
+        String[] headers = entry.getHeaders();
+        for (int i = 0; i < headers.length; i += 2) {
+            // The length is that of the stored body, whatever an older entry recorded
+            if (!headers[i].equalsIgnoreCase(Protocol.CONTENT_LENGTH))
+                response.addHeader(headers[i], headers[i + 1]);
+        }
+        return response;
+    }
+
+    /**
+     * @return false if the entry was made from a file that has changed since, or is gone
+     */
+    private static boolean isCurrent(ResponseCache.Entry entry) {
+        String source = entry.getSource();
+        if (source.isEmpty())
+            return true;
+
+        try {
+            OpenFileCache.Handle handle = OpenFileCache.getDefault().open(new File(source));
+            try {
+                return validator(handle).equals(entry.getValidator());
+            } finally {
+                handle.release();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Keeps a response to a GET request if it may be cached.
+     *
+     * @param cache    The cache
+     * @param request  The request
+     * @param response The plugin's response
+     */
+    static void store(ResponseCache cache, HttpRequest request, HttpResponse response) throws IOException {
+        if (response.getType() != HttpResponseType.OK || requestForbids(request, "no-store"))
+            return;
+        String cacheControl = response.getHeader(HeaderName.CACHE_CONTROL.getName());
+        long maxAge = sharedMaxAge(cacheControl);
+        if (maxAge <= 0)
+            return;
+        if ((request.hasHeader(HeaderName.AUTHORIZATION) || request.hasHeader(HeaderName.COOKIE))
+                && !hasDirective(cacheControl, "public") && !hasDirective(cacheControl, "s-maxage"))
+            return;
+
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if (name.equals(SET_COOKIE))
+                return;
+            if (name.equals(VARY) && !variesOnlyWithEncoding(header.getValue(), response))
+                return;
+            // Sent fresh with every response, or worked out from the stored body
+            if (name.equals(Protocol.DATE.toLowerCase(Locale.ENGLISH))
+                    || name.equals(Protocol.CONNECTION.toLowerCase(Locale.ENGLISH))
+                    || name.equals(Protocol.CONTENT_LENGTH.toLowerCase(Locale.ENGLISH)))
+                continue;
+            headers.put(header.getKey(), header.getValue());
+        }
+
+        String key = key(request);
+        long expiresAt = System.currentTimeMillis() + maxAge * 1000;
+        File file = response.getFile();
+        if (file != null) {
+            // The snapshot the response's headers were made from and that it sends, so the
+            // body and the validator go with them
+            OpenFileCache.Handle handle = response.getFileHandle();
+            if (handle.getSize() > cache.getMaxEntryBytes())
+                return;
+            cache.put(key, validator(handle), file.getPath(), expiresAt, HttpResponseType.OK.getCode(), headers,
+                    handle.getChannel(), handle.getSize());
+        } else if (response.getBody() != null) {
+            cache.put(key, "", "", expiresAt, HttpResponseType.OK.getCode(), headers,
+                    ByteBuffer.wrap(response.getBody()));
+        }
+    }
+
+    /**
+     * @return true if the request's <tt>Cache-Control</tt>, or a <tt>Pragma: no-cache</tt>, has the directive
+     */
+    private static boolean requestForbids(HttpRequest request, String directive) {
+        if (directive.equals("no-cache") && hasDirective(request.getHeader(HeaderName.PRAGMA), directive))
+            return true;
+        return hasDirective(request.getHeader(HeaderName.CACHE_CONTROL), directive);
+    }
+
+    /**
+     * @return true if the comma-separated list has the directive, with or without an argument
+     */
+    private static boolean hasDirective(String directives, String directive) {
+        if (directives == null)
+            return false;
+
+        for (String candidate : directives.toLowerCase(Locale.ENGLISH).split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals(directive) || candidate.startsWith(directive + "="))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the <tt>Vary</tt> header names only <tt>Accept-Encoding</tt> and the
+     * response has no content coding, so that any client may be sent it
+     */
+    private static boolean variesOnlyWithEncoding(String vary, HttpResponse response) {
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty() && !name.equalsIgnoreCase(HeaderName.ACCEPT_ENCODING.getName()))
+                return false;
+        }
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(HeaderName.CONTENT_ENCODING.getName())
+                    && !header.getValue().trim().equalsIgnoreCase("identity"))
+                return false;
+        }
+        return true;
+    }
+
+    private static String validator(OpenFileCache.Handle handle) {
+        return Long.toHexString(handle.getLastModified()) + "-" + Long.toHexString(handle.getSize());
+    }
+
+    /**
+     * @return how many seconds a shared cache may keep the response, or 0 if it may not
+     */
+    private static long sharedMaxAge(String cacheControl) {
+        if (cacheControl == null)
+            return 0;
+
+        long maxAge = 0;
+        long sharedMaxAge = -1;
+        for (String directive : cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+            directive = directive.trim();
+            if (directive.equals("private") || directive.equals("no-store") || directive.equals("no-cache"))
+                return 0;
+            try {
+                if (directive.startsWith("max-age="))
+                    maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+                else if (directive.startsWith("s-maxage="))
+                    sharedMaxAge = Long.parseLong(directive.substring("s-maxage=".length()).trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+    }
+}
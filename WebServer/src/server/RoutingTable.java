@@ -0,0 +1,42 @@
+package server;
+
+import pluginAPI.IRequestHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the loaded request handlers. The plugin loader publishes a new
+ * table whenever it rescans, and every shard reads the current one without locking.
+ */
+public final class RoutingTable {
+    public static final RoutingTable EMPTY = new RoutingTable(Collections.<IRequestHandler>emptyList());
+
+    private final List<IRequestHandler> handlers;
+
+    public RoutingTable(List<IRequestHandler> handlers) {
+        this.handlers = Collections.unmodifiableList(new ArrayList<IRequestHandler>(handlers));
+    }
+
+    /**
+     * @return the handlers, in the order they are consulted
+     */
+    public List<IRequestHandler> getHandlers() {
+        return handlers;
+    }
+
+    /**
+     * Finds the first handler that serves the path.
+     *
+     * @param path A path prefix such as "/TestPlugin"
+     * @return the handler, or null if no handler serves the path
+     */
+    public IRequestHandler find(String path) {
+        for (IRequestHandler handler : handlers) {
+            if (handler.handlesPath(path))
+                return handler;
+        }
+        return null;
+    }
+}
@@ -21,51 +21,151 @@
 
 package server;
 
+import cache.OpenFileCache;
+import cache.ResponseCache;
+import log.AccessLog;
+import log.TrafficCapture;
 import plugin.PluginLoader;
 import pluginAPI.IRequestHandler;
+import timing.Histogram;
+import timing.Stage;
+import timing.StageHistograms;
+import tls.TlsContext;
+import tls.TlsMetrics;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
 
 /**
  * This represents a welcoming server for the incoming
  * TCP request from a HTTP client such as a web browser.
+ * <p/>
+ * The server is split into <tt>sws.shards</tt> {@link ServerShard shards} (1 by default). Each
+ * shard accepts and serves its own connections; with more than one, they all listen on the
+ * same port with <tt>SO_REUSEPORT</tt> so that the kernel balances connections across them.
+ * <p/>
+ * Clients can be held to a rate of connections and of requests, see {@link RateLimiter}. The
+ * limiters are shared by all shards, since the kernel may hand one client's connections to any.
  *
  * @author Chandan R. Rupakheti (rupakhet@rose-hulman.edu)
  */
 public class Server implements Runnable {
-    private final int numberCores;
-    private final ArrayList<Thread> threads;
+    public static final String SHARDS_PROPERTY = "sws.shards";
 
-    private final ConcurrentLinkedQueue<Socket> socketQueue;
+    private final int numberCores;
+    private final int maxWorkers;
+    private final ServerShard[] shards;
+    private final WorkerPoolController workerPoolController;
 
     private int port;
-    private boolean stop;
-    private ServerSocket socket;
+    private volatile boolean stop;
+
+    private final int tlsPort;
+    private final TlsContext tlsContext;
+
+    private volatile RoutingTable routingTable;
+    private volatile AccessLog accessLog;
+    private volatile TrafficCapture trafficCapture;
+    private volatile ResponseCache responseCache;
 
-    private List<IRequestHandler> requestHandlers;
+    private final Deadlines deadlines;
+    private final AdminRoutes adminRoutes = AdminRoutes.fromSystemProperties();
+    private final CostModel costModel = CostModel.fromSystemProperties();
 
-    private long connections;
-    private long serviceTime;
+    // By plugin class name, so that they outlive the handler instances of each plugin scan
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    private final RateLimiter connectionLimiter;
+    private final RateLimiter requestLimiter;
+    private final boolean limitPerRoute;
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
 
     /**
      * @param port
      */
     public Server(int port) {
+        this(port, 0, null);
+    }
+
+    /**
+     * Creates a server that also accepts TLS connections.
+     *
+     * @param port       The port for plain HTTP
+     * @param tlsPort    The port for HTTPS
+     * @param tlsContext The TLS configuration, or null to serve plain HTTP only
+     */
+    public Server(int port, int tlsPort, TlsContext tlsContext) {
+        this(port, tlsPort, tlsContext, Integer.getInteger(SHARDS_PROPERTY, 1));
+    }
+
+    /**
+     * Creates a server with the supplied number of shards.
+     *
+     * @param port       The port for plain HTTP
+     * @param tlsPort    The port for HTTPS
+     * @param tlsContext The TLS configuration, or null to serve plain HTTP only
+     * @param shardCount The number of shards; more than one requires SO_REUSEPORT
+     */
+    public Server(int port, int tlsPort, TlsContext tlsContext, int shardCount) {
         this.port = port;
+        this.tlsPort = tlsPort;
+        this.tlsContext = tlsContext;
         this.stop = false;
-        this.connections = 0;
-        this.serviceTime = 0;
+        this.routingTable = RoutingTable.EMPTY;
+
+        this.connectionLimiter = RateLimiter.fromSystemProperties(RateLimiter.CONNECTIONS_PROPERTY,
+                RateLimiter.CONNECTION_BURST_PROPERTY);
+        this.requestLimiter = RateLimiter.fromSystemProperties(RateLimiter.REQUESTS_PROPERTY,
+                RateLimiter.REQUEST_BURST_PROPERTY);
+        this.limitPerRoute = Boolean.getBoolean(RateLimiter.PER_ROUTE_PROPERTY);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.numberCores = Integer.getInteger(WorkerPoolController.INITIAL_PROPERTY, cores * 16);
+
+        if (shardCount > 1 && !supportsReusePort()) {
+            System.out.println("SO_REUSEPORT is not supported here; using one shard");
+            shardCount = 1;
+        }
+        this.shards = new ServerShard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ServerShard(this, i, Math.max(1, numberCores / shards.length),
+                    PriorityScheduler.fromSystemProperties(numberCores, shards.length));
+        }
 
-        this.numberCores = Runtime.getRuntime().availableProcessors() * 16;
-        this.threads = new ArrayList<Thread>();
-        this.socketQueue = new ConcurrentLinkedQueue<Socket>();
+        if (Boolean.parseBoolean(System.getProperty(WorkerPoolController.ADAPTIVE_PROPERTY, "true"))) {
+            int min = Integer.getInteger(WorkerPoolController.MIN_PROPERTY, cores * 2);
+            int max = Integer.getInteger(WorkerPoolController.MAX_PROPERTY, cores * 128);
+            this.workerPoolController = new WorkerPoolController(this, shards,
+                    Math.max(1, min / shards.length), Math.max(1, max / shards.length));
+            this.maxWorkers = Math.max(numberCores, max);
+        } else {
+            this.workerPoolController = null;
+            this.maxWorkers = numberCores;
+        }
+        this.deadlines = Deadlines.fromSystemProperties(maxWorkers);
+    }
 
-        this.requestHandlers = new ArrayList<IRequestHandler>();
+    private static boolean supportsReusePort() {
+        try {
+            ServerSocket probe = new ServerSocket();
+            try {
+                return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } finally {
+                probe.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
@@ -77,104 +177,353 @@ public class Server implements Runnable {
         return port;
     }
 
+    /**
+     * Gets the port for TLS connections.
+     *
+     * @return the port, or 0 if TLS is off
+     */
+    public int getTlsPort() {
+        return tlsContext == null ? 0 : tlsPort;
+    }
+
+    /**
+     * @return the TLS configuration, or null if TLS is off
+     */
+    public TlsContext getTlsContext() {
+        return tlsContext;
+    }
+
+    /**
+     * @return the shards
+     */
+    public ServerShard[] getShards() {
+        return shards.clone();
+    }
+
+    /**
+     * @return the number of workers running now in all shards
+     */
+    int getLiveWorkers() {
+        int live = 0;
+        for (ServerShard shard : shards) {
+            live += shard.getLiveWorkers();
+        }
+        return live;
+    }
+
+    /**
+     * @return the number of threads serving HTTP/2 streams in all shards
+     */
+    int getStreamWorkers() {
+        int workers = 0;
+        for (ServerShard shard : shards) {
+            workers += shard.getStreamWorkers();
+        }
+        return workers;
+    }
+
+    /**
+     * @return the controller sizing the shards' worker sets, or null if their size is fixed
+     */
+    public WorkerPoolController getWorkerPoolController() {
+        return workerPoolController;
+    }
+
+    /**
+     * Gets the TLS handshake counters of all shards combined.
+     *
+     * @return the metrics, or null if TLS is off
+     */
+    public TlsMetrics getTlsMetrics() {
+        if (tlsContext == null)
+            return null;
+
+        TlsMetrics total = new TlsMetrics();
+        for (ServerShard shard : shards) {
+            total.merge(shard.getTlsMetrics());
+        }
+        return total;
+    }
+
+    /**
+     * Gets the per-stage request timings of all shards combined.
+     *
+     * @return the histograms
+     */
+    public StageHistograms getStageHistograms() {
+        StageHistograms total = new StageHistograms();
+        for (ServerShard shard : shards) {
+            total.merge(shard.getStageHistograms());
+        }
+        return total;
+    }
+
+    /**
+     * @return which plugins are expensive to run
+     */
+    public CostModel getCostModel() {
+        return costModel;
+    }
+
+    /**
+     * Summarizes how long each request class waited, over all shards.
+     *
+     * @return the summary, or null if no request was expensive yet
+     */
+    public String describeScheduling() {
+        Histogram cheapWait = new Histogram();
+        Histogram expensiveWait = new Histogram();
+        int running = 0;
+        int slots = 0;
+        int parked = 0;
+        long parkedTotal = 0;
+        for (ServerShard shard : shards) {
+            PriorityScheduler scheduler = shard.getScheduler();
+            cheapWait.merge(scheduler.getCheapWait());
+            expensiveWait.merge(scheduler.getExpensiveWait());
+            running += scheduler.getRunning();
+            slots += scheduler.getExpensiveSlots();
+            parked += scheduler.getParked();
+            parkedTotal += scheduler.getParkedTotal();
+        }
+        if (expensiveWait.getCount() == 0)
+            return null;
+
+        return String.format("cheap wait p50/p99 %.2f/%.2f ms (%d), expensive wait p50/p99 %.2f/%.2f ms (%d, %d parked), "
+                        + "%d/%d slots busy, %d parked now, %d expensive plugins",
+                cheapWait.getPercentile(0.5) / 1e6, cheapWait.getPercentile(0.99) / 1e6, cheapWait.getCount(),
+                expensiveWait.getPercentile(0.5) / 1e6, expensiveWait.getPercentile(0.99) / 1e6,
+                expensiveWait.getCount(), parkedTotal, running, slots, parked, costModel.getExpensiveCount());
+    }
+
+    /**
+     * @return the request deadlines and the counts of requests that ran out of time
+     */
+    public Deadlines getDeadlines() {
+        return deadlines;
+    }
+
+    /**
+     * @return the server's own routes, or null if they are off
+     */
+    AdminRoutes getAdminRoutes() {
+        return adminRoutes;
+    }
+
+    /**
+     * @return the access log, or null if requests are not logged
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Sets the log that requests and errors are written to. The server closes it when it stops.
+     *
+     * @param accessLog The log, or null for none
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+        OpenFileCache.getDefault().setErrorLog(accessLog);
+    }
+
+    /**
+     * @return the traffic capture, or null if requests are not captured
+     */
+    public TrafficCapture getTrafficCapture() {
+        return trafficCapture;
+    }
+
+    /**
+     * Sets the capture that a sample of the requests is recorded to. The server closes it when
+     * it stops.
+     *
+     * @param trafficCapture The capture, or null for none
+     */
+    public void setTrafficCapture(TrafficCapture trafficCapture) {
+        this.trafficCapture = trafficCapture;
+    }
+
+    /**
+     * @return the response cache, or null if responses are not cached
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the cache that GET requests are answered from. The server writes it out when it stops.
+     *
+     * @param responseCache The cache, or null for none
+     */
+    public void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Gets the current routing snapshot. Connections read it once per request.
+     *
+     * @return the routing table
+     */
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
     public List<IRequestHandler> getRequestHandlers() {
-        return this.requestHandlers;
+        return routingTable.getHandlers();
     }
 
     /**
-     * Returns connections serviced per second.
-     * Synchronized to be used in threaded environment.
+     * Publishes a new set of request handlers to every shard.
      *
-     * @return
+     * @param requestHandlers The handlers
      */
-    public synchronized double getServiceRate() {
-        if (this.serviceTime == 0) {
-            return 0;
+    public void setRequestHandlers(List<IRequestHandler> requestHandlers) {
+        setRequestHandlers(requestHandlers, null);
+    }
+
+    /**
+     * Publishes a new set of request handlers to every shard, and gives any plugin seen for the
+     * first time its {@link Bulkhead} and cost class, configured from its jar's manifest.
+     *
+     * @param requestHandlers The handlers
+     * @param loader          The loader the handlers came from, or null
+     */
+    public void setRequestHandlers(List<IRequestHandler> requestHandlers, PluginLoader<?> loader) {
+        for (IRequestHandler handler : requestHandlers) {
+            String name = handler.getClass().getName();
+            if (!bulkheads.containsKey(name)) {
+                Attributes attributes = loader == null ? null : loader.getManifestAttributes(handler.getClass());
+                bulkheads.putIfAbsent(name, Bulkhead.configure(name, attributes));
+                costModel.configure(name, attributes);
+            }
         }
+        this.routingTable = new RoutingTable(requestHandlers);
+    }
 
-        double rate = this.connections / (double) this.serviceTime;
-        rate = rate * 1000;
-        return rate;
+    /**
+     * Gets the bulkhead that limits a handler's concurrency.
+     *
+     * @param handler The handler
+     * @return the bulkhead, or null if the handler was not published with {@link #setRequestHandlers}
+     */
+    Bulkhead getBulkhead(IRequestHandler handler) {
+        return bulkheads.get(handler.getClass().getName());
     }
 
     /**
-     * Increments number of connection by the supplied value.
-     * Synchronized to be used in threaded environment.
+     * @return the bulkheads of every plugin seen so far
+     */
+    public Collection<Bulkhead> getBulkheads() {
+        return new ArrayList<Bulkhead>(bulkheads.values());
+    }
+
+    /**
+     * Checks a new connection against the client's connection rate.
      *
-     * @param value
+     * @param address The client's address
+     * @return 0 if the connection is admitted, otherwise nanoseconds until it would be
      */
-    public synchronized void incrementConnections(long value) {
-        this.connections += value;
+    long admitConnection(InetAddress address) {
+        if (connectionLimiter == null || address == null)
+            return 0;
+
+        long wait = connectionLimiter.acquire(RateLimiter.keyFor(address));
+        if (wait > 0)
+            rejectedConnections.incrementAndGet();
+        return wait;
     }
 
     /**
-     * Increments the service time by the supplied value.
-     * Synchronized to be used in threaded environment.
+     * Checks a request against the client's request rate.
      *
-     * @param value
+     * @param address The client's address
+     * @param uri     The request URI, for limits per route
+     * @return 0 if the request is admitted, otherwise nanoseconds until it would be
      */
-    public synchronized void incrementServiceTime(long value) {
-        this.serviceTime += value;
+    long admitRequest(InetAddress address, String uri) {
+        if (requestLimiter == null || address == null)
+            return 0;
+
+        long wait = requestLimiter.acquire(limitPerRoute ? RateLimiter.keyFor(address, uri) : RateLimiter.keyFor(address));
+        if (wait > 0)
+            rejectedRequests.incrementAndGet();
+        return wait;
     }
 
     /**
-     * The entry method for the main server thread that accepts incoming
-     * TCP connection request and creates a {@link ConnectionHandler} for
-     * the request.
+     * @return the number of connections turned away by the connection rate limit
      */
-    public void run() {
-        // Create the thread pool threads
-        final Server server = this;
-        for (int threadID = 0; threadID < numberCores; threadID++) {
-            Thread newThread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    while (isRunning()) {
-                        // Check the socket queue
-                        Socket queuedSocket = socketQueue.poll();
-                        if (queuedSocket == null) {
-                            try {
-                                Thread.sleep(50);
-                                continue;
-                            } catch (InterruptedException e) {
-                            }
-                        }
-
-                        // Start a connection handler
-                        ConnectionHandler handler = new ConnectionHandler(server, queuedSocket);
-                        handler.run();
-                    }
-                }
-            });
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
 
-            newThread.start();
+    /**
+     * @return the number of requests answered with 429 by the request rate limit
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
 
-            threads.add(threadID, newThread);
+    /**
+     * Returns connections serviced per second, over all shards.
+     *
+     * @return
+     */
+    public double getServiceRate() {
+        long connections = 0;
+        long serviceTime = 0;
+        for (ServerShard shard : shards) {
+            connections += shard.getConnections();
+            serviceTime += shard.getServiceTime();
         }
 
-        try {
-            this.socket = new ServerSocket(port);
+        if (serviceTime == 0) {
+            return 0;
+        }
 
-            // Now keep welcoming new connections until stop flag is set to true
-            while (!this.stop) {
-                // Listen for incoming socket connection
-                // This method block until somebody makes a request
-                Socket connectionSocket = this.socket.accept();
+        double rate = connections / (double) serviceTime;
+        rate = rate * 1000;
+        return rate;
+    }
 
-                // Queue the connection
-                socketQueue.add(connectionSocket);
+    /**
+     * The entry method for the main server thread. It opens the listening sockets and
+     * starts every shard, then waits until the server is stopped.
+     */
+    public void run() {
+        try {
+            for (ServerShard shard : shards) {
+                shard.bind(port, tlsPort, shards.length > 1);
             }
-
-            this.socket.close();
         } catch (Exception e) {
             e.printStackTrace();
 
-            this.stop = true;
+            stop();
+            return;
+        }
+
+        for (ServerShard shard : shards) {
+            shard.start();
+        }
+
+        if (workerPoolController != null) {
+            Thread controller = new Thread(workerPoolController, "WorkerPoolController");
+            controller.setDaemon(true);
+            controller.start();
+        }
+
+        try {
+            for (ServerShard shard : shards) {
+                shard.join();
+            }
+        } catch (InterruptedException e) {
+            stop();
         }
     }
 
     public boolean isRunning() {
-        return (!this.stop && (this.socket == null || !this.socket.isClosed()));
+        return !this.stop;
     }
 
     /**
@@ -185,30 +534,47 @@ public class Server implements Runnable {
             return;
 
         this.stop = true;
-        try {
-            // This will force socket to come out of the blocked accept() method
-            // in the main loop of the start() method
-            Socket socket = new Socket(InetAddress.getLocalHost(), port);
 
-            // We do not have any other job for this socket so just close it
-            socket.close();
-        } catch (Exception e) {
-            System.out.println("Error while trying to stop server");
-            e.printStackTrace();
+        // Closing the sockets forces the acceptors out of their blocked accept() calls
+        for (ServerShard shard : shards) {
+            shard.close();
         }
+
+        deadlines.close();
+        if (accessLog != null)
+            accessLog.close();
+        if (trafficCapture != null)
+            trafficCapture.close();
+        if (responseCache != null)
+            responseCache.close();
     }
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         int port = 8000;
 
         if (args.length > 0)
             port = Integer.parseInt(args[0]);
 
+        // TLS is only served when a key store is configured
+        TlsContext tlsContext = TlsContext.fromSystemProperties();
+        int tlsPort = Integer.getInteger(TlsContext.PORT_PROPERTY, TlsContext.DEFAULT_PORT);
+
         // Setup the plugin loader
         PluginLoader<IRequestHandler> pluginLoader = new PluginLoader<IRequestHandler>();
 
         // Start the listen loop
-        final Server server = new Server(port);
+        final Server server = new Server(port, tlsPort, tlsContext);
+        server.setAccessLog(AccessLog.fromSystemProperties());
+        server.setTrafficCapture(TrafficCapture.fromSystemProperties());
+        server.setResponseCache(ResponseCache.fromSystemProperties());
+
+        // Compile the hot paths before the first client arrives
+        Warmup warmup = Warmup.fromSystemProperties();
+        if (warmup != null) {
+            server.setRequestHandlers(pluginLoader.getPlugins(IRequestHandler.class), pluginLoader);
+            System.out.println("Warm-up: " + warmup.run(server));
+        }
+
         Thread serverThread = new Thread(server);
         serverThread.start();
 
@@ -220,12 +586,79 @@ public class Server implements Runnable {
         });
 
         // Now, we can loop until ctrl-c
+        long lastHandshakes = 0;
         while (server.isRunning()) {
             // Check for new plugins
-            server.requestHandlers = pluginLoader.getPlugins(IRequestHandler.class);
+            server.setRequestHandlers(pluginLoader.getPlugins(IRequestHandler.class), pluginLoader);
 
             // Print statistics
             System.out.println(String.format("Service Rate: %.2f", server.getServiceRate()));
+            if (server.shards.length > 1) {
+                StringBuilder rates = new StringBuilder("Shard Service Rates:");
+                for (ServerShard shard : server.shards) {
+                    rates.append(String.format(" %.2f (%d)", shard.getServiceRate(), shard.getConnections()));
+                }
+                System.out.println(rates);
+            }
+
+            if (server.workerPoolController != null) {
+                System.out.println("Workers: " + server.workerPoolController.describe());
+            }
+
+            StageHistograms stages = server.getStageHistograms();
+            if (stages.get(Stage.WRITE).getCount() > 0) {
+                System.out.println("Stage p50/p99 (ms): " + stages.summarize());
+            }
+
+            if (server.connectionLimiter != null || server.requestLimiter != null) {
+                System.out.println(String.format("Rate Limited: %d connections, %d requests",
+                        server.getRejectedConnections(), server.getRejectedRequests()));
+            }
+
+            Deadlines deadlines = server.getDeadlines();
+            if (deadlines.getShed() + deadlines.getTimedOut() + deadlines.getCancelled() > 0) {
+                System.out.println("Deadlines: " + deadlines);
+            }
+
+            String scheduling = server.describeScheduling();
+            if (scheduling != null) {
+                System.out.println("Scheduling: " + scheduling);
+            }
+
+            for (Bulkhead bulkhead : server.getBulkheads()) {
+                if (bulkhead.getAdmitted() > 0 || bulkhead.getRejected() > 0)
+                    System.out.println("Bulkhead " + bulkhead);
+            }
+
+            ResponseCache responseCache = server.getResponseCache();
+            if (responseCache != null) {
+                System.out.println("Response Cache: " + responseCache);
+            }
+
+            OpenFileCache openFiles = OpenFileCache.getDefault();
+            if (openFiles.getHits() + openFiles.getMisses() > 0) {
+                System.out.println("Open Files: " + openFiles);
+            }
+
+            AccessLog accessLog = server.getAccessLog();
+            if (accessLog != null && accessLog.getDropped() > 0) {
+                System.out.println(String.format("Access Log: %d records dropped", accessLog.getDropped()));
+            }
+
+            TrafficCapture trafficCapture = server.getTrafficCapture();
+            if (trafficCapture != null) {
+                System.out.println("Traffic Capture: " + trafficCapture);
+            }
+
+            TlsMetrics tls = server.getTlsMetrics();
+            if (tls != null) {
+                long handshakes = tls.getHandshakeCount();
+                System.out.println(String.format(
+                        "TLS Handshakes: %.2f/s, %d total, %.1f%% resumed, %.2f ms avg, %.2f ms max, %d failed",
+                        (handshakes - lastHandshakes) / 5.0, handshakes, tls.getResumptionRatio() * 100,
+                        tls.getAverageHandshakeMillis(), tls.getMaxHandshakeMillis(), tls.getFailedCount()));
+                lastHandshakes = handshakes;
+            }
 
             // Sleep for a little bit
             Thread.sleep(5000);
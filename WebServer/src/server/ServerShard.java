@@ -0,0 +1,445 @@
+package server;
+
+import buffer.BufferPool;
+import tls.TlsContext;
+import timing.StageHistograms;
+import tls.TlsMetrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One shard of the server: its own listening sockets and acceptor threads, the
+ * {@link PriorityScheduler} and workers that serve the connections it accepts, and the buffer pool, stream executor and
+ * counters those workers use. Shards share nothing but the server's {@link RoutingTable}.
+ * <p/>
+ * With several shards, every shard listens on the same port with <tt>SO_REUSEPORT</tt> and
+ * the kernel spreads new connections across them.
+ * <p/>
+ * The number of workers can be changed while the shard runs, see {@link #setWorkerLimit(int)};
+ * the {@link WorkerPoolController} does so from the queue wait and busy time measured here.
+ */
+public class ServerShard {
+    // How long an idle worker waits for a connection before checking whether to retire
+    private static final long POLL_MILLIS = 100;
+
+    private final Server server;
+    private final int index;
+    private final int workerCount;
+
+    private final PriorityScheduler socketQueue;
+    private final List<Thread> threads;
+    private final Set<Thread> workers = new HashSet<Thread>();
+    private final AtomicInteger workerIds = new AtomicInteger();
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private volatile int workerLimit;
+
+    // Load measurements, read by the worker pool controller
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong dequeued = new AtomicLong();
+    private final BufferPool bufferPool;
+    private final ExecutorService streamExecutor;
+    private final TlsMetrics tlsMetrics;
+    private final StageHistograms stageHistograms;
+
+    private ServerSocketChannel socket;
+    private ServerSocketChannel tlsSocket;
+
+    private long connections;
+    private long serviceTime;
+
+    /**
+     * @param server      The server the shard belongs to
+     * @param index       The shard's number, from 0
+     * @param workerCount The initial number of connection threads
+     * @param scheduler   The queue of the shard's connections
+     */
+    public ServerShard(Server server, int index, int workerCount, PriorityScheduler scheduler) {
+        this.server = server;
+        this.index = index;
+        this.workerCount = workerCount;
+
+        this.socketQueue = scheduler;
+        this.threads = new ArrayList<Thread>();
+        this.bufferPool = new BufferPool(Boolean.getBoolean(BufferPool.DEBUG_PROPERTY));
+        this.tlsMetrics = new TlsMetrics();
+        this.stageHistograms = new StageHistograms();
+        this.streamExecutor = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Shard" + ServerShard.this.index + "-Http2Stream-"
+                        + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the pool the shard's connections borrow their buffers from
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Gets the executor that handles the requests of HTTP/2 streams. The connection
+     * threads only read frames, so that streams of one connection are handled concurrently.
+     *
+     * @return the executor
+     */
+    public ExecutorService getStreamExecutor() {
+        return streamExecutor;
+    }
+
+    /**
+     * @return the shard's TLS handshake counters
+     */
+    public TlsMetrics getTlsMetrics() {
+        return tlsMetrics;
+    }
+
+    /**
+     * @return the per-stage request timings of the shard's connections
+     */
+    public StageHistograms getStageHistograms() {
+        return stageHistograms;
+    }
+
+    /**
+     * @return the queue of the shard's connections, which also decides when expensive requests run
+     */
+    public PriorityScheduler getScheduler() {
+        return socketQueue;
+    }
+
+    /**
+     * Opens the shard's listening sockets.
+     *
+     * @param port      The port for plain HTTP
+     * @param tlsPort   The port for HTTPS, used if the server has a TLS context
+     * @param reusePort Whether to share the ports with the other shards
+     * @throws IOException if a port cannot be bound
+     */
+    void bind(int port, int tlsPort, boolean reusePort) throws IOException {
+        socket = open(port, reusePort);
+        if (server.getTlsContext() != null)
+            tlsSocket = open(tlsPort, reusePort);
+    }
+
+    private static ServerSocketChannel open(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort)
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Starts the workers and the acceptor threads.
+     */
+    void start() {
+        setWorkerLimit(workerCount);
+
+        startAcceptor(socket, null, "Shard" + index + "-Acceptor");
+        if (tlsSocket != null)
+            startAcceptor(tlsSocket, server.getTlsContext(), "Shard" + index + "-TlsAcceptor");
+    }
+
+    /**
+     * Changes the number of workers. New workers start at once; surplus ones retire when
+     * they next finish a connection or find the queue empty.
+     *
+     * @param limit The number of workers, at least 1
+     */
+    public synchronized void setWorkerLimit(int limit) {
+        workerLimit = Math.max(1, limit);
+        while (server.isRunning() && liveWorkers.get() < workerLimit) {
+            liveWorkers.incrementAndGet();
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "Shard" + index + "-Worker-" + workerIds.getAndIncrement());
+            synchronized (workers) {
+                workers.add(worker);
+            }
+            worker.start();
+        }
+    }
+
+    /**
+     * @return the number of workers the shard is meant to have
+     */
+    public int getWorkerLimit() {
+        return workerLimit;
+    }
+
+    /**
+     * @return the number of workers running now, which lags the limit while surplus ones retire
+     */
+    public int getLiveWorkers() {
+        return liveWorkers.get();
+    }
+
+    /**
+     * @return the number of threads serving HTTP/2 streams, which does not change
+     */
+    public int getStreamWorkers() {
+        return workerCount;
+    }
+
+    private void work() {
+        boolean retired = false;
+        try {
+            while (server.isRunning()) {
+                int live = liveWorkers.get();
+                if (live > workerLimit && liveWorkers.compareAndSet(live, live - 1)) {
+                    retired = true;
+                    return;
+                }
+
+                // Check the socket queue
+                ConnectionHandler handler = socketQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (handler == null)
+                    continue;
+
+                // Run the connection handler
+                long start = System.nanoTime();
+                activeWorkers.incrementAndGet();
+                try {
+                    handler.run();
+                } finally {
+                    activeWorkers.decrementAndGet();
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+        } finally {
+            if (!retired)
+                liveWorkers.decrementAndGet();
+            synchronized (workers) {
+                workers.remove(Thread.currentThread());
+            }
+        }
+    }
+
+    /**
+     * Records how long a connection waited in the queue for a worker.
+     *
+     * @param nanos The wait
+     */
+    void recordQueueWait(long nanos) {
+        queueWaitNanos.addAndGet(nanos);
+        dequeued.incrementAndGet();
+    }
+
+    /**
+     * @return the number of workers serving a connection now
+     */
+    public int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    /**
+     * @return the total time workers spent serving connections that have ended, in nanoseconds
+     */
+    public long getBusyNanos() {
+        return busyNanos.get();
+    }
+
+    /**
+     * @return the total time connections waited for a worker, in nanoseconds
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos.get();
+    }
+
+    /**
+     * @return the number of connections taken from the queue by a worker
+     */
+    public long getDequeued() {
+        return dequeued.get();
+    }
+
+    /**
+     * @return the number of connections waiting for a worker; parked ones wait for a slot instead
+     */
+    public int getQueueLength() {
+        return socketQueue.getQueueLength();
+    }
+
+    private void startAcceptor(final ServerSocketChannel channel, final TlsContext tlsContext, String name) {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(channel, tlsContext);
+            }
+        }, name);
+        acceptor.start();
+        threads.add(acceptor);
+    }
+
+    /**
+     * Accepts connections until the shard is closed. A TLS handshake is left to the
+     * connection handler, so a slow client does not hold up the acceptor.
+     */
+    private void accept(ServerSocketChannel channel, TlsContext tlsContext) {
+        try {
+            while (server.isRunning()) {
+                // Listen for incoming socket connection
+                // This method block until somebody makes a request
+                SocketChannel connectionChannel = channel.accept();
+
+                // Turn away clients over their connection rate before they take up a worker
+                long wait = server.admitConnection(connectionChannel.socket().getInetAddress());
+                if (wait > 0) {
+                    reject(connectionChannel, tlsContext == null, wait);
+                    continue;
+                }
+
+                // Queue the connection
+                socketQueue.add(new ConnectionHandler(this, connectionChannel.socket(), tlsContext));
+            }
+        } catch (ClosedChannelException e) {
+            // The server was stopped
+        } catch (Exception e) {
+            e.printStackTrace();
+            server.stop();
+        }
+    }
+
+    /**
+     * Answers a connection over the rate limit with a 429 and closes it. TLS clients cannot
+     * be answered before a handshake, so they are only disconnected.
+     */
+    private static void reject(SocketChannel channel, boolean answer, long wait) {
+        try {
+            if (answer)
+                TooManyRequests.write(channel, wait);
+        } catch (IOException e) {
+            // The client is gone already
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the listening sockets, which ends the acceptor threads.
+     */
+    void close() {
+        streamExecutor.shutdown();
+        closeQuietly(socket);
+        closeQuietly(tlsSocket);
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for the shard's threads to finish after {@link #close()}.
+     */
+    void join() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        while (true) {
+            Thread worker;
+            synchronized (workers) {
+                if (workers.isEmpty())
+                    return;
+                worker = workers.iterator().next();
+            }
+            worker.join();
+        }
+    }
+
+    public synchronized long getConnections() {
+        return connections;
+    }
+
+    public synchronized long getServiceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * Returns connections serviced per second by this shard.
+     * Synchronized to be used in threaded environment.
+     *
+     * @return
+     */
+    public synchronized double getServiceRate() {
+        if (this.serviceTime == 0) {
+            return 0;
+        }
+
+        double rate = this.connections / (double) this.serviceTime;
+        rate = rate * 1000;
+        return rate;
+    }
+
+    /**
+     * Increments number of connection by the supplied value.
+     * Synchronized to be used in threaded environment.
+     *
+     * @param value
+     */
+    public synchronized void incrementConnections(long value) {
+        this.connections += value;
+    }
+
+    /**
+     * Increments the service time by the supplied value.
+     * Synchronized to be used in threaded environment.
+     *
+     * @param value
+     */
+    public synchronized void incrementServiceTime(long value) {
+        this.serviceTime += value;
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import protocol.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 429 responses sent to clients over their rate limit, serialized once for every
+ * <tt>Retry-After</tt> value up to a minute. Rejecting a request then costs a single write,
+ * with nothing built or allocated beyond a buffer view. The connection is closed after them.
+ */
+final class TooManyRequests {
+    static final int MAX_RETRY_AFTER = 60;
+
+    private static final String BODY = "429 - Too Many Requests";
+
+    private static final ByteBuffer[] RESPONSES = new ByteBuffer[MAX_RETRY_AFTER + 1];
+
+    static {
+        for (int seconds = 1; seconds <= MAX_RETRY_AFTER; seconds++) {
+            String response = Protocol.VERSION + " 429 Too Many Requests" + Protocol.CRLF
+                    + Protocol.RETRY_AFTER + ": " + seconds + Protocol.CRLF
+                    + Protocol.CONNECTION + ": " + Protocol.CLOSE + Protocol.CRLF
+                    + Protocol.CONTENT_TYPE + ": text/plain" + Protocol.CRLF
+                    + Protocol.CONTENT_LENGTH + ": " + BODY.length() + Protocol.CRLF
+                    + Protocol.Server + ": " + Protocol.getServerInfo() + Protocol.CRLF
+                    + Protocol.CRLF
+                    + BODY;
+            byte[] bytes = response.getBytes(StandardCharsets.US_ASCII);
+            RESPONSES[seconds] = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+            RESPONSES[seconds].flip();
+        }
+    }
+
+    private TooManyRequests() {
+    }
+
+    /**
+     * Converts a limiter's wait into a <tt>Retry-After</tt> value.
+     *
+     * @param waitNanos The wait returned by {@link RateLimiter#acquire(long)}
+     * @return whole seconds, at least 1 and at most {@link #MAX_RETRY_AFTER}
+     */
+    static int retryAfter(long waitNanos) {
+        long seconds = (waitNanos + 999999999L) / 1000000000L;
+        return (int) Math.max(1, Math.min(MAX_RETRY_AFTER, seconds));
+    }
+
+    /**
+     * Writes the 429 response for the supplied wait.
+     *
+     * @param channel   The client's channel
+     * @param waitNanos The wait returned by {@link RateLimiter#acquire(long)}
+     * @throws IOException if the write fails
+     */
+    static void write(WritableByteChannel channel, long waitNanos) throws IOException {
+        ByteBuffer response = RESPONSES[retryAfter(waitNanos)].duplicate();
+        while (response.hasRemaining()) {
+            channel.write(response);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package server;
+
+import log.TrafficCapture;
+import pluginAPI.ARequestHandler;
+import pluginAPI.IRequestHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs requests through the whole server in memory before it starts listening, so that the
+ * first clients of a new instance are not served by the interpreter.
+ * <p/>
+ * Turned on with <tt>sws.warmup=true</tt>. Each request is read, routed, handled and written by
+ * a {@link ConnectionHandler} over in-memory channels. The handlers belong to a private server
+ * with the same plugins, so the statistics, rate limits and response cache of the real one are
+ * left alone. The requests are GETs and HEADs of the roots of the loaded plugins, or of the URIs
+ * in <tt>sws.warmup.uris</tt> (comma separated), which should be cheap and change nothing, or
+ * the GETs and HEADs of a {@link TrafficCapture} named by <tt>sws.warmup.capture</tt>. A
+ * request that takes more than 5 ms is sent once per round only, so that it does not crowd out
+ * the others.
+ * <p/>
+ * They repeat in rounds of half a second until the JIT compiler has settled, meaning two rounds
+ * in a row added less than 10 ms of compilation, or for at most <tt>sws.warmup.maxMillis</tt>
+ * (20000).
+ */
+final class Warmup {
+    public static final String ENABLED_PROPERTY = "sws.warmup";
+    public static final String URIS_PROPERTY = "sws.warmup.uris";
+    public static final String CAPTURE_PROPERTY = "sws.warmup.capture";
+    public static final String MAX_MILLIS_PROPERTY = "sws.warmup.maxMillis";
+
+    private static final long ROUND_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long SETTLED_COMPILE_MILLIS = 10;
+    private static final int SETTLED_ROUNDS = 2;
+    // Requests slower than this, such as ones that wait on something, go once per round only
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // The most requests taken from a capture
+    private static final int MAX_CAPTURED_REQUESTS = 1000;
+    // Without a JIT to watch, a fixed number of rounds
+    private static final int UNMONITORED_ROUNDS = 4;
+
+    private final List<String> uris;
+    private final File capture;
+    private final long maxNanos;
+
+    /**
+     * @param uris      The URIs to request, or null for the roots of the plugins
+     * @param capture   A capture to take the requests from instead, or null
+     * @param maxMillis The longest the warm-up may take
+     */
+    Warmup(List<String> uris, File capture, long maxMillis) {
+        this.uris = uris;
+        this.capture = capture;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxMillis));
+    }
+
+    /**
+     * Creates the warm-up configured by the system properties.
+     *
+     * @return the warm-up, or null if it is off
+     */
+    static Warmup fromSystemProperties() {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY))
+            return null;
+
+        List<String> uris = null;
+        String property = System.getProperty(URIS_PROPERTY);
+        if (property != null) {
+            uris = new ArrayList<String>();
+            for (String uri : property.split(",")) {
+                if (!uri.trim().isEmpty())
+                    uris.add(uri.trim());
+            }
+        }
+        String capture = System.getProperty(CAPTURE_PROPERTY);
+        return new Warmup(uris, capture == null ? null : new File(capture), Long.getLong(MAX_MILLIS_PROPERTY, 20000));
+    }
+
+    /**
+     * Serves the requests until the compiler settles. The server must not be listening yet.
+     *
+     * @param server The server, with its request handlers set
+     * @return a summary of the warm-up
+     */
+    String run(Server server) {
+        List<byte[]> requests = createRequests(server.getRequestHandlers());
+
+        // Same plugins, own statistics; it is never started, so it has no threads
+        Server copy = new Server(0, 0, null, 1);
+        copy.setRequestHandlers(server.getRequestHandlers());
+        ServerShard shard = copy.getShards()[0];
+
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        long compileStart = monitored ? compiler.getTotalCompilationTime() : 0;
+
+        long start = System.nanoTime();
+        long requestCount = 0;
+        long failures = 0;
+        int rounds = 0;
+        int quietRounds = 0;
+        boolean settled = false;
+        Sink sink = new Sink();
+        boolean[] slow = new boolean[requests.size()];
+
+        while (!settled && System.nanoTime() - start < maxNanos) {
+            long compiled = monitored ? compiler.getTotalCompilationTime() : 0;
+            long roundEnd = System.nanoTime() + ROUND_NANOS;
+            boolean firstPass = true;
+            do {
+                for (int i = 0; i < requests.size(); i++) {
+                    if (slow[i] && !firstPass)
+                        continue;
+
+                    sink.reset();
+                    long requestStart = System.nanoTime();
+                    // One connection per request, since plugins may close it after their response
+                    new ConnectionHandler(shard, null).serve(
+                            Channels.newChannel(new ByteArrayInputStream(requests.get(i))), Channels.newChannel(sink));
+                    slow[i] = System.nanoTime() - requestStart > SLOW_NANOS;
+                    requestCount++;
+                    if (sink.getStatus() == 0 || sink.getStatus() >= 500)
+                        failures++;
+                }
+                firstPass = false;
+            } while (System.nanoTime() < roundEnd);
+            rounds++;
+
+            if (monitored) {
+                quietRounds = compiler.getTotalCompilationTime() - compiled < SETTLED_COMPILE_MILLIS ? quietRounds + 1 : 0;
+                settled = quietRounds >= SETTLED_ROUNDS;
+            } else {
+                settled = rounds >= UNMONITORED_ROUNDS;
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("%d requests (%d failed) from a corpus of %d in %.1f s, %d rounds, %s", requestCount, failures,
+                requests.size(), seconds, rounds, !monitored ? "compilation not monitored"
+                        : String.format("%s after %d ms compiling", settled ? "settled" : "not settled",
+                        compiler.getTotalCompilationTime() - compileStart));
+    }
+
+    private List<byte[]> createRequests(List<IRequestHandler> handlers) {
+        if (capture != null) {
+            try {
+                return readCapture();
+            } catch (IOException e) {
+                System.out.println("Could not read the warm-up capture: " + e.getMessage());
+            }
+        }
+
+        List<String> lines = new ArrayList<String>();
+        if (uris != null) {
+            for (String uri : uris) {
+                lines.add("GET " + uri);
+            }
+        } else {
+            for (IRequestHandler handler : handlers) {
+                if (!(handler instanceof ARequestHandler))
+                    continue;
+                for (String root : ((ARequestHandler) handler).getRoots()) {
+                    lines.add("GET " + root);
+                    lines.add("HEAD " + root);
+                    lines.add("GET " + root + "/");
+                    lines.add("GET " + root + "/warmup");
+                }
+            }
+            // Requests no plugin serves
+            lines.add("GET /");
+        }
+
+        List<byte[]> requests = new ArrayList<byte[]>();
+        for (String line : lines) {
+            requests.add((line + " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: sws-warmup\r\n"
+                    + "Connection: Keep-Alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        return requests;
+    }
+
+    /**
+     * @return the requests of the capture that change nothing, without their bodies
+     */
+    private List<byte[]> readCapture() throws IOException {
+        List<byte[]> requests = new ArrayList<byte[]>();
+        TrafficCapture.Reader reader = new TrafficCapture.Reader(capture);
+        try {
+            TrafficCapture.Record record;
+            while (requests.size() < MAX_CAPTURED_REQUESTS && (record = reader.next()) != null) {
+                String method = record.getMethod();
+                if ((method.equals("GET") || method.equals("HEAD")) && record.getBodyLength() == 0)
+                    requests.add(record.getHead());
+            }
+        } finally {
+            reader.close();
+        }
+        return requests;
+    }
+
+    /**
+     * Discards the response, keeping only its status code.
+     */
+    private static final class Sink extends OutputStream {
+        private final byte[] statusLine = new byte[12];
+        private int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        /**
+         * @return the status code of the response, or 0 if there was none
+         */
+        int getStatus() {
+            if (length < statusLine.length)
+                return 0;
+            int status = 0;
+            for (int i = 9; i < 12; i++) {
+                int digit = Character.digit(statusLine[i], 10);
+                if (digit < 0)
+                    return 0;
+                status = status * 10 + digit;
+            }
+            return status;
+        }
+
+        @Override
+        public void write(int b) {
+            if (length < statusLine.length)
+                statusLine[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int count) {
+            int copied = Math.min(count, statusLine.length - length);
+            if (copied > 0) {
+                System.arraycopy(b, offset, statusLine, length, copied);
+                length += copied;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package server;
+
+/**
+ * Sizes the worker set of every shard from what the shard measures, instead of a fixed number
+ * of threads per core that is too many for CPU-bound plugins and too few for blocking ones.
+ * <p/>
+ * Every interval it takes, per shard, the average time connections waited for a worker, the
+ * fraction of the interval the workers were busy, and the requests served. It then follows
+ * AIMD with a gradient check:
+ * <ul>
+ * <li>When connections wait longer than the target, the shard gets an eighth more workers,
+ * unless the previous increase did not raise throughput by at least 5%. More threads then only
+ * add context switches, as for CPU-bound plugins, so the shard gives back a tenth of its
+ * workers and holds for a few intervals instead.</li>
+ * <li>When nothing waits and the workers are busy less than half of the time, the shard gives
+ * back a tenth of its workers.</li>
+ * </ul>
+ * Configured with system properties, as totals over all shards:
+ * <ul>
+ * <li><tt>sws.workers.adaptive</tt>: <tt>false</tt> keeps the initial size, <tt>true</tt> by default.</li>
+ * <li><tt>sws.workers.initial</tt> (16 per core by default), <tt>sws.workers.min</tt> (2 per core)
+ * and <tt>sws.workers.max</tt> (128 per core).</li>
+ * <li><tt>sws.workers.targetQueueWaitMillis</tt>: the acceptable queue wait, 5ms by default.</li>
+ * <li><tt>sws.workers.intervalMillis</tt>: how often to adjust, 1000ms by default.</li>
+ * </ul>
+ */
+public class WorkerPoolController implements Runnable {
+    public static final String ADAPTIVE_PROPERTY = "sws.workers.adaptive";
+    public static final String INITIAL_PROPERTY = "sws.workers.initial";
+    public static final String MIN_PROPERTY = "sws.workers.min";
+    public static final String MAX_PROPERTY = "sws.workers.max";
+    public static final String TARGET_QUEUE_WAIT_PROPERTY = "sws.workers.targetQueueWaitMillis";
+    public static final String INTERVAL_PROPERTY = "sws.workers.intervalMillis";
+
+    // The throughput gain that justifies the previous increase
+    private static final double MIN_GAIN = 1.05;
+    private static final double DECREASE = 0.9;
+    private static final double IDLE_BUSY_RATIO = 0.5;
+    // Intervals to wait after backing off an increase that did not pay
+    private static final int HOLD_INTERVALS = 5;
+
+    /**
+     * What the controller did to a shard in an interval.
+     */
+    public enum Decision {
+        HOLD, GROW, SHRINK, BACK_OFF
+    }
+
+    private final Server server;
+    private final ServerShard[] shards;
+    private final ShardState[] states;
+    private final int min;
+    private final int max;
+    private final long targetQueueWaitNanos;
+    private final long intervalMillis;
+
+    /**
+     * @param server The server whose shards to size
+     * @param shards The shards
+     * @param min    The fewest workers per shard
+     * @param max    The most workers per shard
+     */
+    WorkerPoolController(Server server, ServerShard[] shards, int min, int max) {
+        this.server = server;
+        this.shards = shards;
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.targetQueueWaitNanos = Long.getLong(TARGET_QUEUE_WAIT_PROPERTY, 5) * 1000000L;
+        this.intervalMillis = Math.max(10, Long.getLong(INTERVAL_PROPERTY, 1000));
+
+        this.states = new ShardState[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            states[i] = new ShardState();
+        }
+    }
+
+    /**
+     * Samples and adjusts the shards every interval until the server stops.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < shards.length; i++) {
+            states[i].reset(shards[i]);
+        }
+
+        while (server.isRunning()) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            for (int i = 0; i < shards.length; i++) {
+                adjust(shards[i], states[i]);
+            }
+        }
+    }
+
+    private void adjust(ServerShard shard, ShardState state) {
+        long busy = shard.getBusyNanos();
+        long waited = shard.getQueueWaitNanos();
+        long dequeued = shard.getDequeued();
+        long requests = shard.getConnections();
+        long now = System.nanoTime();
+
+        long elapsed = Math.max(1, now - state.time);
+        int workers = Math.max(1, shard.getLiveWorkers());
+        long newlyDequeued = dequeued - state.dequeued;
+
+        long queueWait = newlyDequeued == 0 ? 0 : (waited - state.waited) / newlyDequeued;
+        // Connections waiting while none was taken all interval are the worst case of all
+        boolean stuck = newlyDequeued == 0 && shard.getQueueLength() > 0;
+
+        // Connections still open are not in the busy time yet; count the workers serving them now
+        double busyRatio = Math.min(1, Math.max((busy - state.busy) / (double) (elapsed * workers),
+                shard.getActiveWorkers() / (double) workers));
+        double throughput = (requests - state.requests) * 1e9 / elapsed;
+
+        int limit = shard.getWorkerLimit();
+        Decision decision;
+        if (queueWait > targetQueueWaitNanos || stuck) {
+            if (state.decision == Decision.GROW && state.throughput > 0 && throughput < state.throughput * MIN_GAIN) {
+                // The last increase bought nothing: the bottleneck is not the number of threads
+                decision = Decision.BACK_OFF;
+                limit = Math.max(min, (int) (limit * DECREASE));
+                state.hold = HOLD_INTERVALS;
+            } else if (state.hold > 0) {
+                decision = Decision.HOLD;
+                state.hold--;
+            } else if (limit < max) {
+                decision = Decision.GROW;
+                limit = Math.min(max, limit + Math.max(1, limit / 8));
+            } else {
+                decision = Decision.HOLD;
+            }
+        } else if (busyRatio < IDLE_BUSY_RATIO && limit > min) {
+            decision = Decision.SHRINK;
+            limit = Math.max(min, (int) (limit * DECREASE));
+            state.hold = 0;
+        } else {
+            decision = Decision.HOLD;
+            if (state.hold > 0)
+                state.hold--;
+        }
+
+        if (limit != shard.getWorkerLimit())
+            shard.setWorkerLimit(limit);
+
+        state.decision = decision;
+        state.queueWaitMillis = queueWait / 1000000.0;
+        state.busyRatio = busyRatio;
+        state.throughput = throughput;
+        state.busy = busy;
+        state.waited = waited;
+        state.dequeued = dequeued;
+        state.requests = requests;
+        state.time = now;
+        if (decision == Decision.GROW)
+            state.grows++;
+        else if (decision != Decision.HOLD)
+            state.shrinks++;
+    }
+
+    /**
+     * Describes the last decision for every shard.
+     *
+     * @return e.g. "shard0 24 workers (GROW, 3 up/1 down) wait 7.10 ms, busy 96%, 850.0 req/s"
+     */
+    public String describe() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < shards.length; i++) {
+            ShardState state = states[i];
+            if (i > 0)
+                description.append("; ");
+            description.append(String.format("shard%d %d workers (%s, %d up/%d down) wait %.2f ms, busy %.0f%%, %.1f req/s",
+                    i, shards[i].getWorkerLimit(), state.decision, state.grows, state.shrinks,
+                    state.queueWaitMillis, state.busyRatio * 100, state.throughput));
+        }
+        return description.toString();
+    }
+
+    /**
+     * @param shard The shard's index
+     * @return the last decision made for the shard
+     */
+    public Decision getDecision(int shard) {
+        return states[shard].decision;
+    }
+
+    /**
+     * The counters at the previous sample, and the last decision, of one shard. Only the
+     * controller thread writes them.
+     */
+    private static final class ShardState {
+        volatile Decision decision = Decision.HOLD;
+        volatile double queueWaitMillis;
+        volatile double busyRatio;
+        volatile double throughput;
+        volatile long grows;
+        volatile long shrinks;
+        int hold;
+
+        long busy;
+        long waited;
+        long dequeued;
+        long requests;
+        long time;
+
+        void reset(ServerShard shard) {
+            busy = shard.getBusyNanos();
+            waited = shard.getQueueWaitNanos();
+            dequeued = shard.getDequeued();
+            requests = shard.getConnections();
+            time = System.nanoTime();
+        }
+    }
+}
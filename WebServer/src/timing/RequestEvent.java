@@ -0,0 +1,65 @@
+package timing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event for one request, with the time spent in each {@link Stage}.
+ * Record with e.g. <tt>-XX:StartFlightRecording=filename=sws.jfr</tt>; while no recording
+ * has the event enabled, it is neither filled in nor committed.
+ */
+@Name("sws.Request")
+@Label("HTTP Request")
+@Category({"SimpleWebServer", "Requests"})
+@Description("A request served by SimpleWebServer, timed per stage")
+@StackTrace(false)
+class RequestEvent extends Event {
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Method")
+    String method;
+
+    @Label("URI")
+    String uri;
+
+    @Label("Plugin")
+    String plugin;
+
+    @Label("Status")
+    int status;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Queue Time")
+    @Timespan
+    long queueTime;
+
+    @Label("Parse Time")
+    @Timespan
+    long parseTime;
+
+    @Label("Route Time")
+    @Timespan
+    long routeTime;
+
+    @Label("Handle Time")
+    @Timespan
+    long handleTime;
+
+    @Label("Write Time")
+    @Timespan
+    long writeTime;
+}
@@ -0,0 +1,171 @@
+package timing;
+
+import jdk.jfr.EventType;
+
+/**
+ * Times one request stage by stage. The connection starts it with {@link #reset(long)}, marks
+ * the end of each stage with {@link #lap(Stage)}, fills in what it knows about the request, and
+ * hands the timing to {@link StageHistograms#record(RequestTiming)} once the response is written.
+ * <p/>
+ * A timing is used by one thread at a time; an HTTP/1.1 connection reuses one for all of its
+ * requests.
+ */
+public final class RequestTiming {
+    // Enabled while a recording asks for the event; looked up once, read per request
+    private static final EventType EVENT_TYPE = EventType.getEventType(RequestEvent.class);
+
+    private final long[] stages = new long[Stage.VALUES.length];
+    private long mark;
+
+    private RequestEvent event;
+    private final String protocol;
+    private String method;
+    private String uri;
+    private String plugin;
+    private int status;
+    private long bytesRead;
+    private long bytesWritten;
+
+    /**
+     * @param protocol The protocol the requests arrive with, e.g. "HTTP/1.1"
+     */
+    public RequestTiming(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Starts timing a new request.
+     *
+     * @param start The <tt>nanoTime</tt> at which the first stage started
+     */
+    public void reset(long start) {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = 0;
+        }
+        mark = start;
+        method = null;
+        uri = null;
+        plugin = null;
+        status = 0;
+        bytesRead = 0;
+        bytesWritten = 0;
+
+        if (EVENT_TYPE.isEnabled()) {
+            event = new RequestEvent();
+            event.begin();
+        } else {
+            event = null;
+        }
+    }
+
+    /**
+     * Charges the time since the end of the previous stage to the supplied stage.
+     *
+     * @param stage The stage that just ended
+     */
+    public void lap(Stage stage) {
+        long now = System.nanoTime();
+        stages[stage.ordinal()] += now - mark;
+        mark = now;
+    }
+
+    /**
+     * Charges a duration measured elsewhere to a stage, without moving the mark.
+     *
+     * @param stage The stage
+     * @param nanos The duration
+     */
+    public void add(Stage stage, long nanos) {
+        stages[stage.ordinal()] += nanos;
+    }
+
+    /**
+     * @param stage The stage
+     * @return the time charged to the stage, in nanoseconds
+     */
+    public long get(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     * Copies the time charged to every stage, indexed by {@link Stage#ordinal()}.
+     *
+     * @param destination An array with room for every stage
+     */
+    public void copyStages(long[] destination) {
+        System.arraycopy(stages, 0, destination, 0, stages.length);
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getPlugin() {
+        return plugin;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void setRequest(String method, String uri) {
+        this.method = method;
+        this.uri = uri;
+    }
+
+    public void setPlugin(String plugin) {
+        this.plugin = plugin;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    public void setBytesWritten(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+    }
+
+    /**
+     * Commits the request's flight recorder event, if a recording wants it.
+     */
+    void commit() {
+        RequestEvent event = this.event;
+        this.event = null;
+        if (event == null || !event.shouldCommit())
+            return;
+
+        event.protocol = protocol;
+        event.method = method;
+        event.uri = uri;
+        event.plugin = plugin;
+        event.status = status;
+        event.bytesRead = bytesRead;
+        event.bytesWritten = bytesWritten;
+        event.queueTime = get(Stage.QUEUE);
+        event.parseTime = get(Stage.PARSE);
+        event.routeTime = get(Stage.ROUTE);
+        event.handleTime = get(Stage.HANDLE);
+        event.writeTime = get(Stage.WRITE);
+        event.commit();
+    }
+}
@@ -0,0 +1,389 @@
+package timing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Samples the stacks of running threads for a while and counts them as collapsed stacks, the
+ * input of flame graph tools: one line per distinct stack, frames from the root down separated
+ * by semicolons, then the number of samples.
+ * <p/>
+ * Stacks are read with {@link ThreadMXBean} at most {@link #MAX_HZ} times a second and
+ * {@link #MAX_DEPTH} frames deep. Each sample briefly brings the JVM to a safepoint, and with
+ * many threads takes milliseconds, so the sampler waits at least {@link #MAX_OVERHEAD} times
+ * as long as a sample took before the next one; samples that fall due meanwhile are skipped
+ * rather than made up. Threads that the JVM calls running but that wait in a socket read or
+ * accept are not counted as running. At most {@link #MAX_STACKS} distinct stacks are kept, and
+ * further ones are counted as <tt>[other]</tt> under their thread. Stacks are grouped by thread
+ * name without its trailing number, e.g. <tt>Shard0-Worker</tt>.
+ * <p/>
+ * Only one profile runs at a time in the JVM.
+ */
+public final class SamplingProfiler {
+    public static final int MAX_HZ = 250;
+    public static final int MAX_DEPTH = 128;
+    public static final int MAX_STACKS = 20000;
+    // The most the sampler may be busy, as a share of the profile's time
+    public static final double MAX_OVERHEAD = 0.05;
+
+    // Native methods that wait for the network, though the thread is reported as running
+    private static final Set<String> BLOCKING_METHODS = new HashSet<String>(Arrays.asList(
+            "read0", "readv0", "accept0", "accept", "poll", "poll0", "epollWait", "socketRead0", "socketAccept"));
+
+    // HTML flame graph frames narrower than this share of the samples are left out
+    private static final double MIN_HTML_WIDTH = 0.001;
+    private static final int HTML_ROW_HEIGHT = 16;
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+    private static volatile long runningUntil;
+
+    private final int hz;
+    private final boolean runnableOnly;
+    private final String[] threadNames;
+
+    private final Map<String, long[]> stacks = new HashMap<String, long[]>();
+    // Thread id to its group, or "" for a thread that is not sampled
+    private final Map<Long, String> groups = new HashMap<Long, String>();
+    private long samples;
+    private long skipped;
+    private long threadSamples;
+    private long samplingNanos;
+
+    /**
+     * @param hz           How many samples to take a second, at most {@link #MAX_HZ}
+     * @param runnableOnly Whether to sample only threads that are running, for where the CPU
+     *                     goes, rather than blocked and waiting ones as well, for where the time goes
+     * @param threadNames  Sample only the threads whose names contain one of these, or null for all
+     */
+    public SamplingProfiler(int hz, boolean runnableOnly, String[] threadNames) {
+        this.hz = Math.max(1, Math.min(MAX_HZ, hz));
+        this.runnableOnly = runnableOnly;
+        this.threadNames = threadNames;
+    }
+
+    /**
+     * Samples the threads on the calling thread, which is left out, for the supplied time.
+     *
+     * @param millis How long to profile
+     * @return false if another profile was running, in which case nothing was sampled
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean run(long millis) throws InterruptedException {
+        if (!running.compareAndSet(false, true))
+            return false;
+
+        try {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long self = Thread.currentThread().getId();
+            long interval = TimeUnit.SECONDS.toNanos(1) / hz;
+            long next = System.nanoTime();
+            long end = next + TimeUnit.MILLISECONDS.toNanos(millis);
+            runningUntil = end;
+
+            while (true) {
+                long now = System.nanoTime();
+                if (now - end >= 0)
+                    break;
+                if (next - now > 0) {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(next - now, end - now));
+                    continue;
+                }
+
+                sample(threads, self);
+                long taken = System.nanoTime();
+                samplingNanos += taken - now;
+
+                // The next sample is due one interval on, but no sooner than keeps the sampler's
+                // own cost within its share
+                long earliest = taken + (long) ((taken - now) * (1 / MAX_OVERHEAD - 1));
+                next += interval;
+                if (earliest - next > 0) {
+                    long behind = (earliest - next + interval - 1) / interval;
+                    skipped += behind;
+                    next += behind * interval;
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+        return true;
+    }
+
+    /**
+     * @return how long the running profile has left in milliseconds, or 0 if none is running
+     */
+    public static long getRemainingMillis() {
+        if (!running.get())
+            return 0;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(runningUntil - System.nanoTime()));
+    }
+
+    private void sample(ThreadMXBean threads, long self) {
+        long[] ids = threads.getAllThreadIds();
+        List<Long> unknown = null;
+        int count = 0;
+        for (long id : ids) {
+            String group = groups.get(id);
+            if (group == null) {
+                if (unknown == null)
+                    unknown = new ArrayList<Long>();
+                unknown.add(id);
+            } else if (!group.isEmpty()) {
+                ids[count++] = id;
+            }
+        }
+
+        // Names of threads not seen before, read without their stacks
+        if (unknown != null) {
+            long[] unknownIds = new long[unknown.size()];
+            for (int i = 0; i < unknownIds.length; i++) {
+                unknownIds[i] = unknown.get(i);
+            }
+            for (ThreadInfo info : threads.getThreadInfo(unknownIds, 0)) {
+                if (info == null)
+                    continue;
+                String group = info.getThreadId() == self ? "" : group(info.getThreadName());
+                groups.put(info.getThreadId(), group);
+                if (!group.isEmpty())
+                    ids[count++] = info.getThreadId();
+            }
+        }
+
+        long[] sampled = new long[count];
+        System.arraycopy(ids, 0, sampled, 0, count);
+        for (ThreadInfo info : threads.getThreadInfo(sampled, MAX_DEPTH)) {
+            if (info == null || (runnableOnly && info.getThreadState() != Thread.State.RUNNABLE))
+                continue;
+            StackTraceElement[] frames = info.getStackTrace();
+            if (frames.length == 0 || (runnableOnly && frames[0].isNativeMethod()
+                    && BLOCKING_METHODS.contains(frames[0].getMethodName())))
+                continue;
+
+            String group = groups.get(info.getThreadId());
+            StringBuilder key = new StringBuilder(frames.length * 40).append(group);
+            if (frames.length == MAX_DEPTH)
+                key.append(";[truncated]");
+            for (int i = frames.length - 1; i >= 0; i--) {
+                key.append(';').append(frames[i].getClassName()).append('.').append(frames[i].getMethodName());
+            }
+            count(key.toString(), group);
+            threadSamples++;
+        }
+        samples++;
+    }
+
+    /**
+     * @return the thread's group, or "" if it is not sampled
+     */
+    private String group(String name) {
+        if (threadNames != null) {
+            boolean matches = false;
+            for (String threadName : threadNames) {
+                matches |= name.contains(threadName);
+            }
+            if (!matches)
+                return "";
+        }
+
+        int end = name.length();
+        while (end > 0 && Character.isDigit(name.charAt(end - 1))) {
+            end--;
+        }
+        while (end > 0 && name.charAt(end - 1) == '-') {
+            end--;
+        }
+        String group = end == 0 ? name : name.substring(0, end);
+        // Semicolons separate frames
+        return group.replace(';', '_').replace(' ', '_');
+    }
+
+    private void count(String key, String group) {
+        long[] counter = stacks.get(key);
+        if (counter == null) {
+            if (stacks.size() >= MAX_STACKS) {
+                key = group + ";[other]";
+                counter = stacks.get(key);
+            }
+            if (counter == null) {
+                counter = new long[1];
+                stacks.put(key, counter);
+            }
+        }
+        counter[0]++;
+    }
+
+    /**
+     * @return the number of times the threads were sampled
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the number of samples left out because the sampler fell behind
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of stacks counted, one per sampled thread per sample
+     */
+    public long getThreadSamples() {
+        return threadSamples;
+    }
+
+    /**
+     * @return the time spent taking samples, in nanoseconds
+     */
+    public long getSamplingNanos() {
+        return samplingNanos;
+    }
+
+    public int getHz() {
+        return hz;
+    }
+
+    /**
+     * @return the collapsed stacks, most frequent first
+     */
+    public String toCollapsed() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : sorted()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders the stacks as a flame graph: a page without scripts, where each frame is a box as
+     * wide as its share of the samples, on top of its caller. Hovering shows the counts.
+     *
+     * @param title The page's title
+     * @return the page
+     */
+    public String toHtml(String title) {
+        Frame root = new Frame("all");
+        for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+            long count = entry.getValue()[0];
+            Frame frame = root;
+            frame.total += count;
+            for (String name : entry.getKey().split(";")) {
+                Frame child = frame.children.get(name);
+                if (child == null) {
+                    child = new Frame(name);
+                    frame.children.put(name, child);
+                }
+                child.total += count;
+                frame = child;
+            }
+        }
+
+        StringBuilder boxes = new StringBuilder();
+        int depth = root.total == 0 ? 0 : render(root, 0, 0, root.total, boxes);
+
+        StringBuilder out = new StringBuilder();
+        out.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>").append(escape(title))
+                .append("</title>\n<style>\nbody{font:12px sans-serif;margin:8px}\n")
+                .append("#graph{position:relative;height:").append((depth + 1) * HTML_ROW_HEIGHT).append("px}\n")
+                .append("#graph div{position:absolute;height:").append(HTML_ROW_HEIGHT - 1)
+                .append("px;overflow:hidden;white-space:nowrap;box-sizing:border-box;border-right:1px solid #fff;")
+                .append("font-size:11px;line-height:").append(HTML_ROW_HEIGHT - 1).append("px;padding-left:2px}\n")
+                .append("#graph div:hover{outline:1px solid #000}\n</style></head><body>\n<h3>")
+                .append(escape(title)).append("</h3>\n<p>")
+                .append(String.format("%d samples at %d Hz (%d skipped), %d stacks", samples, hz, skipped, threadSamples))
+                .append("</p>\n<div id=\"graph\">\n").append(boxes).append("</div>\n</body></html>\n");
+        return out.toString();
+    }
+
+    /**
+     * @return the depth of the deepest frame rendered
+     */
+    private int render(Frame frame, int depth, long offset, long total, StringBuilder out) {
+        double left = 100.0 * offset / total;
+        double width = 100.0 * frame.total / total;
+        int hue = (frame.name.hashCode() & 0x7fffffff) % 50;
+        out.append(String.format("<div style=\"left:%.4f%%;width:%.4f%%;bottom:%dpx;background:hsl(%d,80%%,%d%%)\" title=\"",
+                left, width, depth * HTML_ROW_HEIGHT, hue, depth == 0 ? 80 : 60))
+                .append(escape(frame.name))
+                .append(String.format(" (%d samples, %.2f%%)\">", frame.total, width))
+                .append(escape(frame.name)).append("</div>\n");
+
+        int deepest = depth;
+        List<Frame> children = new ArrayList<Frame>(frame.children.values());
+        Collections.sort(children, new Comparator<Frame>() {
+            @Override
+            public int compare(Frame a, Frame b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        long childOffset = offset;
+        for (Frame child : children) {
+            if ((double) child.total / total >= MIN_HTML_WIDTH)
+                deepest = Math.max(deepest, render(child, depth + 1, childOffset, total, out));
+            childOffset += child.total;
+        }
+        return deepest;
+    }
+
+    private List<Map.Entry<String, long[]>> sorted() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(stacks.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(b.getValue()[0], a.getValue()[0]);
+            }
+        });
+        return entries;
+    }
+
+    private static String escape(String text) {
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * A frame of the flame graph, with the samples of the stacks that pass through it.
+     */
+    private static final class Frame {
+        final String name;
+        final Map<String, Frame> children = new LinkedHashMap<String, Frame>();
+        long total;
+
+        Frame(String name) {
+            this.name = name;
+        }
+    }
+}
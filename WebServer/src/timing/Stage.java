@@ -0,0 +1,32 @@
+package timing;
+
+/**
+ * The stages a request goes through on its way to a response.
+ */
+public enum Stage {
+    /**
+     * Waiting for a worker, in the shard's socket queue or the stream executor for HTTP/2, and
+     * for a slot in the plugin's bulkhead
+     */
+    QUEUE("queue"),
+    /** From the first byte of the request to the parsed {@link protocol.HttpRequest} */
+    PARSE("parse"),
+    /** Admitting the request and finding the plugin for its URI */
+    ROUTE("route"),
+    /** The plugin's <tt>handleRequest</tt> */
+    HANDLE("handle"),
+    /** Sending the response */
+    WRITE("write");
+
+    static final Stage[] VALUES = values();
+
+    private final String label;
+
+    Stage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
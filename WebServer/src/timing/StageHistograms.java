@@ -0,0 +1,81 @@
+package timing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link Histogram} per {@link Stage}, fed by finished {@link RequestTiming}s.
+ * <p/>
+ * Every request's flight recorder event is committed if a recording is on, but only one in
+ * <tt>sws.timing.sampleInterval</tt> requests (1 by default, i.e. all) is added to the histograms.
+ */
+public final class StageHistograms {
+    public static final String SAMPLE_INTERVAL_PROPERTY = "sws.timing.sampleInterval";
+
+    private final Histogram[] histograms = new Histogram[Stage.VALUES.length];
+    private final int sampleInterval;
+
+    public StageHistograms() {
+        this(Integer.getInteger(SAMPLE_INTERVAL_PROPERTY, 1));
+    }
+
+    /**
+     * @param sampleInterval Record one in this many requests
+     */
+    public StageHistograms(int sampleInterval) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param timing The request's timing
+     */
+    public void record(RequestTiming timing) {
+        timing.commit();
+
+        if (sampleInterval > 1 && ThreadLocalRandom.current().nextInt(sampleInterval) != 0)
+            return;
+        for (Stage stage : Stage.VALUES) {
+            histograms[stage.ordinal()].record(timing.get(stage));
+        }
+    }
+
+    /**
+     * Adds the counts of another set of histograms to these, e.g. to total the shards of a server.
+     *
+     * @param other The histograms to add
+     */
+    public void merge(StageHistograms other) {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].merge(other.histograms[i]);
+        }
+    }
+
+    /**
+     * @param stage The stage
+     * @return the histogram of the stage's durations
+     */
+    public Histogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Formats the median and 99th percentile of every stage, in milliseconds.
+     *
+     * @return e.g. "queue 0.01/0.20 parse 0.02/0.05 ..."
+     */
+    public String summarize() {
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.VALUES) {
+            Histogram histogram = histograms[stage.ordinal()];
+            if (summary.length() > 0)
+                summary.append(' ');
+            summary.append(String.format("%s %.2f/%.2f", stage.getLabel(),
+                    histogram.getPercentile(0.5) / 1000000.0, histogram.getPercentile(0.99) / 1000000.0));
+        }
+        return summary.toString();
+    }
+}
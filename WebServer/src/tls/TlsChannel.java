@@ -0,0 +1,277 @@
+package tls;
+
+import buffer.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A blocking channel that encrypts and decrypts a socket's traffic with an {@link SSLEngine}.
+ * <p/>
+ * Reads and writes are locked separately, so one thread may read while others write, as the
+ * HTTP/2 connection does. Records are staged in pooled buffers that are returned on {@link #close()}.
+ */
+public final class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final TlsMetrics metrics;
+
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    // Encrypted bytes from the socket and decrypted bytes not yet read, both in read mode
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    // Encrypted bytes on their way to the socket, guarded by writeLock
+    private ByteBuffer netOut;
+
+    private boolean inboundDone;
+    private boolean closed;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool, TlsMetrics metrics) {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.metrics = metrics;
+
+        SSLSession session = engine.getSession();
+        this.netIn = pool.acquire(session.getPacketBufferSize());
+        this.netIn.flip();
+        this.appIn = pool.acquire(session.getApplicationBufferSize());
+        this.appIn.flip();
+        this.netOut = pool.acquire(session.getPacketBufferSize());
+    }
+
+    /**
+     * Performs the TLS handshake. Must be called before the channel is used.
+     *
+     * @throws IOException if the handshake fails or the client goes away
+     */
+    public void handshake() throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        try {
+            engine.beginHandshake();
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        break;
+                    case NEED_WRAP:
+                        synchronized (writeLock) {
+                            wrap(EMPTY);
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        if (!unwrap())
+                            throw new EOFException("Connection closed during the TLS handshake");
+                        break;
+                    default:
+                        // A resumed session was created by an earlier handshake
+                        SSLSession session = engine.getSession();
+                        metrics.handshakeCompleted(System.nanoTime() - start, session.getCreationTime() < startMillis);
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            metrics.handshakeFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the protocol agreed with ALPN, or an empty string if the client did not use ALPN
+     */
+    public String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null ? "" : protocol;
+    }
+
+    /**
+     * @return the negotiated session
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            if (closed)
+                throw new ClosedChannelException();
+
+            while (!appIn.hasRemaining()) {
+                if (inboundDone || !unwrap())
+                    return -1;
+                finishPostHandshake();
+            }
+
+            int count = Math.min(dst.remaining(), appIn.remaining());
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + count);
+            dst.put(appIn);
+            appIn.limit(limit);
+            return count;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            if (closed)
+                throw new ClosedChannelException();
+
+            int written = 0;
+            while (src.hasRemaining()) {
+                int remaining = src.remaining();
+                wrap(src);
+                written += remaining - src.remaining();
+            }
+            return written;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify, closes the socket and returns the buffers to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (!closed) {
+                engine.closeOutbound();
+                try {
+                    while (!engine.isOutboundDone() && channel.isOpen()) {
+                        wrap(EMPTY);
+                    }
+                } catch (IOException e) {
+                    // The client is gone; nothing more to say
+                }
+            }
+            channel.close();
+        }
+
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                if (!closed) {
+                    closed = true;
+                    pool.release(netIn);
+                    pool.release(appIn);
+                    pool.release(netOut);
+                    netIn = null;
+                    appIn = null;
+                    netOut = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypts the next record into appIn, reading from the socket as needed.
+     *
+     * @return false if the connection was closed
+     */
+    private boolean unwrap() throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            appIn.compact();
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    // Not a whole record yet
+                    if (!fill())
+                        return false;
+                    break;
+                case BUFFER_OVERFLOW:
+                    // Only happens if decrypted bytes are still waiting to be read
+                    if (appIn.hasRemaining())
+                        return true;
+                    throw new SSLException("TLS record larger than the application buffer");
+                case CLOSED:
+                default:
+                    inboundDone = true;
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Encrypts bytes from the buffer into one record and sends it. The caller holds writeLock.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(src, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+            throw new SSLException("TLS record larger than the packet buffer");
+
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining())
+            throw new ClosedChannelException();
+    }
+
+    /**
+     * Answers handshake messages that arrive after the handshake, such as a key update.
+     */
+    private void finishPostHandshake() throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                synchronized (writeLock) {
+                    wrap(EMPTY);
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (netIn.remaining() == netIn.capacity())
+            throw new SSLException("TLS record larger than the packet buffer");
+
+        netIn.compact();
+        int read;
+        try {
+            read = channel.read(netIn);
+        } finally {
+            netIn.flip();
+        }
+        return read >= 0;
+    }
+}
@@ -0,0 +1,134 @@
+package tls;
+
+import buffer.BufferPool;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * The server's TLS configuration, read from system properties:
+ * <ul>
+ * <li><tt>sws.tls.keyStore</tt>: the key store holding the server certificate and key; TLS is
+ * off unless it is set. A self-signed store for testing can be made with
+ * <tt>keytool -genkeypair -keyalg EC -alias sws -dname CN=localhost -keystore sws.p12 -storepass changeit</tt>.</li>
+ * <li><tt>sws.tls.keyStorePassword</tt> (<tt>changeit</tt> by default) and <tt>sws.tls.keyStoreType</tt>
+ * (the platform default, normally PKCS12).</li>
+ * <li><tt>sws.tls.port</tt>: the port to accept TLS connections on, 8443 by default.</li>
+ * <li><tt>sws.tls.sessionCacheSize</tt> (10000 by default) and <tt>sws.tls.sessionTimeout</tt>
+ * (86400 seconds by default) size the server-side session cache.</li>
+ * </ul>
+ * Session tickets are turned on as well, so returning clients can resume a session without a
+ * full handshake even after it has dropped out of the cache. ALPN offers <tt>h2</tt> and
+ * <tt>http/1.1</tt>.
+ */
+public final class TlsContext {
+    public static final String KEY_STORE_PROPERTY = "sws.tls.keyStore";
+    public static final String KEY_STORE_PASSWORD_PROPERTY = "sws.tls.keyStorePassword";
+    public static final String KEY_STORE_TYPE_PROPERTY = "sws.tls.keyStoreType";
+    public static final String PORT_PROPERTY = "sws.tls.port";
+    public static final String SESSION_CACHE_SIZE_PROPERTY = "sws.tls.sessionCacheSize";
+    public static final String SESSION_TIMEOUT_PROPERTY = "sws.tls.sessionTimeout";
+
+    public static final int DEFAULT_PORT = 8443;
+
+    public static final String H2 = "h2";
+    public static final String HTTP_1_1 = "http/1.1";
+
+    // Read by the JDK when its TLS implementation is first loaded
+    private static final String SESSION_TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    static {
+        if (System.getProperty(SESSION_TICKET_PROPERTY) == null)
+            System.setProperty(SESSION_TICKET_PROPERTY, "true");
+    }
+
+    private final SSLContext context;
+    private final BiFunction<SSLEngine, List<String>, String> protocolSelector;
+
+    /**
+     * @param keyStore     The key store file
+     * @param password     The password of the store and of the key
+     * @param type         The key store type, e.g. "PKCS12"
+     * @param cacheSize    The number of sessions to cache
+     * @param cacheTimeout How long sessions may be resumed, in seconds
+     * @throws GeneralSecurityException if the key store cannot be used
+     * @throws IOException              if the key store cannot be read
+     */
+    public TlsContext(File keyStore, char[] password, String type, int cacheSize, int cacheTimeout)
+            throws GeneralSecurityException, IOException {
+        KeyStore store = KeyStore.getInstance(type);
+        InputStream in = new FileInputStream(keyStore);
+        try {
+            store.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+
+        this.context = SSLContext.getInstance("TLS");
+        this.context.init(keyManagers.getKeyManagers(), null, null);
+
+        SSLSessionContext sessions = this.context.getServerSessionContext();
+        sessions.setSessionCacheSize(cacheSize);
+        sessions.setSessionTimeout(cacheTimeout);
+
+        this.protocolSelector = new BiFunction<SSLEngine, List<String>, String>() {
+            @Override
+            public String apply(SSLEngine engine, List<String> offered) {
+                if (offered.contains(H2))
+                    return H2;
+                if (offered.contains(HTTP_1_1))
+                    return HTTP_1_1;
+                // None of ours; carry on without ALPN
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates the context described by the system properties.
+     *
+     * @return the context, or null if <tt>sws.tls.keyStore</tt> is not set
+     * @throws GeneralSecurityException if the key store cannot be used
+     * @throws IOException              if the key store cannot be read
+     */
+    public static TlsContext fromSystemProperties() throws GeneralSecurityException, IOException {
+        String keyStore = System.getProperty(KEY_STORE_PROPERTY);
+        if (keyStore == null)
+            return null;
+
+        return new TlsContext(new File(keyStore),
+                System.getProperty(KEY_STORE_PASSWORD_PROPERTY, "changeit").toCharArray(),
+                System.getProperty(KEY_STORE_TYPE_PROPERTY, KeyStore.getDefaultType()),
+                Integer.getInteger(SESSION_CACHE_SIZE_PROPERTY, 10000),
+                Integer.getInteger(SESSION_TIMEOUT_PROPERTY, 86400));
+    }
+
+    /**
+     * Wraps an accepted connection. Call {@link TlsChannel#handshake()} before using the result.
+     *
+     * @param channel The accepted socket channel, in blocking mode
+     * @param pool    The pool to borrow the record buffers from
+     * @param metrics The counters to record the handshake in
+     * @return the TLS channel
+     */
+    public TlsChannel wrap(SocketChannel channel, BufferPool pool, TlsMetrics metrics) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setHandshakeApplicationProtocolSelector(protocolSelector);
+        return new TlsChannel(channel, engine, pool, metrics);
+    }
+}
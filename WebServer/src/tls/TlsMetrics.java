@@ -0,0 +1,88 @@
+package tls;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts TLS handshakes: how many completed, how many resumed an earlier session instead of
+ * doing a full handshake, how many failed, and how long they took.
+ */
+public final class TlsMetrics {
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void handshakeCompleted(long nanos, boolean resumption) {
+        handshakes.incrementAndGet();
+        if (resumption)
+            resumed.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Retry until the maximum is updated or a longer handshake was recorded
+        }
+    }
+
+    void handshakeFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Adds the counts of another set of metrics to these, e.g. to total the shards of a server.
+     *
+     * @param other The metrics to add
+     */
+    public void merge(TlsMetrics other) {
+        handshakes.addAndGet(other.handshakes.get());
+        resumed.addAndGet(other.resumed.get());
+        failed.addAndGet(other.failed.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        maxNanos.set(Math.max(maxNanos.get(), other.maxNanos.get()));
+    }
+
+    /**
+     * @return the number of completed handshakes, full and resumed
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return the number of completed handshakes that resumed a session
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * @return the number of handshakes that failed or were abandoned by the client
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the fraction of completed handshakes that resumed a session, between 0 and 1
+     */
+    public double getResumptionRatio() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : resumed.get() / (double) count;
+    }
+
+    /**
+     * @return the average time from the start of a handshake to its completion, in milliseconds
+     */
+    public double getAverageHandshakeMillis() {
+        long count = handshakes.get();
+        return count == 0 ? 0 : totalNanos.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return the longest handshake so far, in milliseconds
+     */
+    public double getMaxHandshakeMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+}
@@ -0,0 +1,173 @@
+package tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a hung plugin does not take the workers the other routes need.
+ * <p/>
+ * <tt>BulkheadCheck &lt;host&gt; &lt;port&gt; &lt;hang path&gt; &lt;probe path&gt; [connections] [seconds]</tt>,
+ * e.g. <tt>/TestPlugin/Sleep?ms=60000 /FileRequestPlugin/index.html</tt>, keeps
+ * <tt>connections</tt> (64) requests for the hang path open, each sent again as soon as it is
+ * answered, so that the plugin stays at its bulkhead's limit. Meanwhile it requests the probe
+ * path on a new connection every {@link #PROBE_MILLIS} ms for <tt>seconds</tt> (10). Every probe
+ * must be answered with 200 within {@link #PROBE_TIMEOUT_MILLIS} ms; the tool exits with 1
+ * otherwise.
+ */
+public class BulkheadCheck {
+    private static final long RAMP_MILLIS = 2000;
+    private static final long PROBE_MILLIS = 100;
+    private static final int PROBE_TIMEOUT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final String hangPath;
+    private final String probePath;
+    private final Map<Integer, Integer> hangStatuses = new TreeMap<Integer, Integer>();
+    private volatile boolean running = true;
+
+    public BulkheadCheck(String host, int port, String hangPath, String probePath) {
+        this.host = host;
+        this.port = port;
+        this.hangPath = hangPath;
+        this.probePath = probePath;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4 || args.length > 6) {
+            System.out.println("Usage: BulkheadCheck <host> <port> <hang path> <probe path> [connections] [seconds]");
+            return;
+        }
+
+        BulkheadCheck check = new BulkheadCheck(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+        int connections = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        System.exit(check.run(connections, seconds) ? 0 : 1);
+    }
+
+    /**
+     * @return true if every probe was answered in time
+     */
+    public boolean run(int connections, int seconds) throws InterruptedException {
+        List<Thread> hangers = new ArrayList<Thread>();
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    hang();
+                }
+            }, "Hang-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            hangers.add(thread);
+        }
+        Thread.sleep(RAMP_MILLIS);
+
+        List<Long> latencies = new ArrayList<Long>();
+        int failures = 0;
+        String firstFailure = null;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            String outcome;
+            try {
+                int status = request(probePath, PROBE_TIMEOUT_MILLIS);
+                outcome = status == 200 ? null : "status " + status;
+            } catch (SocketTimeoutException e) {
+                outcome = "no answer within " + PROBE_TIMEOUT_MILLIS + " ms";
+            } catch (IOException e) {
+                outcome = e.toString();
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (outcome == null) {
+                latencies.add(millis);
+            } else {
+                failures++;
+                if (firstFailure == null)
+                    firstFailure = outcome;
+            }
+            Thread.sleep(Math.max(0, PROBE_MILLIS - millis));
+        }
+        running = false;
+
+        synchronized (hangStatuses) {
+            System.out.println("Hang path answers (status=count): " + hangStatuses);
+        }
+        Collections.sort(latencies);
+        if (!latencies.isEmpty()) {
+            System.out.println(String.format("Probes answered: %d, latency p50 %d ms, max %d ms", latencies.size(),
+                    latencies.get(latencies.size() / 2), latencies.get(latencies.size() - 1)));
+        }
+        if (failures > 0) {
+            System.out.println(String.format("FAIL: %d probes failed, e.g. %s", failures, firstFailure));
+            return false;
+        }
+        System.out.println("PASS: the probe path kept responding");
+        return true;
+    }
+
+    /**
+     * Keeps a request for the hang path open until the run is over.
+     */
+    private void hang() {
+        while (running) {
+            try {
+                int status = request(hangPath, 0);
+                synchronized (hangStatuses) {
+                    Integer count = hangStatuses.get(status);
+                    hangStatuses.put(status, count == null ? 1 : count + 1);
+                }
+                // A refused request is sent again after a pause rather than in a tight loop
+                if (status != 200)
+                    Thread.sleep(PROBE_MILLIS);
+            } catch (IOException e) {
+                // Sent again
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a GET on a new connection and reads the status line.
+     *
+     * @param timeoutMillis How long to wait for the answer, or 0 to wait for as long as it takes
+     * @return the status
+     */
+    private int request(String path, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            // "HTTP/1.1 200"
+            InputStream in = socket.getInputStream();
+            byte[] line = new byte[12];
+            int read = 0;
+            while (read < line.length) {
+                int count = in.read(line, read, line.length - read);
+                if (count < 0)
+                    throw new IOException("Connection closed before the status line");
+                read += count;
+            }
+            return Integer.parseInt(new String(line, 9, 3, StandardCharsets.ISO_8859_1));
+        } finally {
+            socket.close();
+        }
+    }
+}
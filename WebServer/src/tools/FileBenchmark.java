@@ -0,0 +1,234 @@
+package tools;
+
+import timing.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how fast the server serves static files.
+ * <p/>
+ * <tt>generate &lt;dir&gt;</tt> fills a directory with files of mixed sizes, mostly small with
+ * a few large ones, like the assets of a web site. <tt>run &lt;host&gt; &lt;port&gt;
+ * &lt;dir&gt; &lt;uri prefix&gt; &lt;connections&gt; &lt;seconds&gt;</tt> then requests random
+ * files of that directory over keep-alive connections, e.g. with
+ * <tt>-Dsws.files.root=&lt;dir&gt;</tt> and the prefix <tt>/FileRequestPlugin</tt>, and prints
+ * the throughput and the latency percentiles.
+ */
+public class FileBenchmark {
+    // Size ranges and how many files of each to generate
+    private static final int[][] FILE_MIX = {
+            {512, 4096, 120},
+            {16384, 65536, 50},
+            {262144, 262144, 24},
+            {2097152, 2097152, 6},
+    };
+
+    private final String host;
+    private final int port;
+    private final List<String> paths;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Histogram latency = new Histogram();
+    private volatile boolean running = true;
+
+    public FileBenchmark(String host, int port, List<String> paths) {
+        this.host = host;
+        this.port = port;
+        this.paths = paths;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("generate")) {
+            generate(new File(args[1]));
+        } else if (args.length == 7 && args[0].equals("run")) {
+            List<String> paths = new ArrayList<String>();
+            list(new File(args[3]), args[4], paths);
+            if (paths.isEmpty()) {
+                System.out.println("No files in " + args[3]);
+                return;
+            }
+            new FileBenchmark(args[1], Integer.parseInt(args[2]), paths)
+                    .run(Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+        } else {
+            System.out.println("Usage: FileBenchmark generate <dir>");
+            System.out.println("       FileBenchmark run <host> <port> <dir> <uri prefix> <connections> <seconds>");
+        }
+    }
+
+    private static void generate(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        // The same files every time, so runs can be compared
+        Random random = new Random(477);
+        int index = 0;
+        for (int[] mix : FILE_MIX) {
+            for (int i = 0; i < mix[2]; i++) {
+                int size = mix[0] + random.nextInt(mix[1] - mix[0] + 1);
+                byte[] content = new byte[size];
+                random.nextBytes(content);
+
+                OutputStream out = new FileOutputStream(new File(directory, String.format("file%03d.bin", index++)));
+                try {
+                    out.write(content);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        System.out.println(String.format("Generated %d files in %s", index, directory));
+    }
+
+    private static void list(File directory, String prefix, List<String> paths) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory())
+                list(file, prefix + "/" + file.getName(), paths);
+            else
+                paths.add(prefix + "/" + file.getName());
+        }
+    }
+
+    /**
+     * Runs the connections for the given time and prints the results.
+     */
+    public void run(int connections, int seconds) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client();
+                }
+            }, "FileBenchmark-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%d files, %d connections, %.1f s", paths.size(), connections, elapsed));
+        System.out.println(String.format("Requests: %d (%.1f/s), errors: %d", requests.get(),
+                requests.get() / elapsed, errors.get()));
+        System.out.println(String.format("Throughput: %.1f MB/s", bytes.get() / elapsed / 1048576));
+        System.out.println(String.format("Latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms",
+                latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.99) / 1e6,
+                latency.getPercentile(0.999) / 1e6));
+    }
+
+    private void client() {
+        byte[] discard = new byte[65536];
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        while (running) {
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(host, port));
+                    in = new BufferedInputStream(socket.getInputStream(), 65536);
+                    out = socket.getOutputStream();
+                }
+
+                String path = paths.get(ThreadLocalRandom.current().nextInt(paths.size()));
+                long start = System.nanoTime();
+                out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: Keep-Alive\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                // Status line and headers
+                String status = readLine(in);
+                long length = -1;
+                boolean close = false;
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0)
+                        continue;
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length"))
+                        length = Long.parseLong(value);
+                    else if (name.equalsIgnoreCase("Connection"))
+                        close = value.equalsIgnoreCase("Close");
+                }
+                if (length < 0)
+                    throw new IOException("No Content-Length in the response to " + path);
+
+                long remaining = length;
+                while (remaining > 0) {
+                    int count = in.read(discard, 0, (int) Math.min(discard.length, remaining));
+                    if (count < 0)
+                        throw new EOFException();
+                    remaining -= count;
+                }
+                latency.record(System.nanoTime() - start);
+
+                if (status.startsWith("HTTP/1.1 200")) {
+                    requests.incrementAndGet();
+                    bytes.addAndGet(length);
+                } else {
+                    errors.incrementAndGet();
+                }
+
+                if (close) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                    socket = null;
+                }
+            }
+        }
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+}
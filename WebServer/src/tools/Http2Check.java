@@ -0,0 +1,275 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the server's HTTP/2 support against the JDK's {@link HttpClient}.
+ * <p/>
+ * <tt>Http2Check &lt;host&gt; &lt;port&gt; &lt;file path&gt; &lt;upload path&gt;</tt>, e.g.
+ * <tt>/FileRequestPlugin/big.bin /TestPlugin</tt> with <tt>sws.files.root</tt> set, fetches the
+ * file over HTTP/1.1 for reference and then checks that
+ * <ul>
+ * <li>a first request with <tt>Upgrade: h2c</tt> is answered over HTTP/2,</li>
+ * <li>{@link #STREAMS} concurrent requests for the file on that connection all return it whole,</li>
+ * <li>a PUT of {@link #UPLOAD_BYTES} bytes, more than the initial 65535-byte flow control window,
+ * reaches the upload path, which must answer with the number of bytes it stored,</li>
+ * <li>and a connection that starts with the preface (prior knowledge) gets the file too. The
+ * JDK's client cannot do that, so this check speaks the frames itself.</li>
+ * </ul>
+ * The file should be larger than the window as well. Each check prints PASS or FAIL; the tool
+ * exits with 1 if any failed.
+ */
+public class Http2Check {
+    private static final int STREAMS = 16;
+    private static final int UPLOAD_BYTES = 256 * 1024;
+    private static final int WINDOW = 65535;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    // The statuses of the HPACK static table, from index 8
+    private static final String[] STATIC_STATUSES = {"200", "204", "206", "304", "400", "404", "500"};
+
+    private final String host;
+    private final int port;
+    private final String filePath;
+    private final String uploadPath;
+    private int failures;
+
+    public Http2Check(String host, int port, String filePath, String uploadPath) {
+        this.host = host;
+        this.port = port;
+        this.filePath = filePath;
+        this.uploadPath = uploadPath;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.out.println("Usage: Http2Check <host> <port> <file path> <upload path>");
+            return;
+        }
+
+        Http2Check check = new Http2Check(args[0], Integer.parseInt(args[1]), args[2], args[3]);
+        System.exit(check.run() ? 0 : 1);
+    }
+
+    /**
+     * @return true if every check passed
+     */
+    public boolean run() throws Exception {
+        HttpClient http1 = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpResponse<byte[]> reference = http1.send(get(filePath), HttpResponse.BodyHandlers.ofByteArray());
+        if (reference.statusCode() != 200) {
+            fail("reference", "HTTP/1.1 fetch of " + filePath + " returned " + reference.statusCode());
+            return false;
+        }
+        byte[] file = reference.body();
+        if (file.length <= WINDOW)
+            System.out.println(String.format("Note: %s has %d bytes, which fits in the initial window", filePath, file.length));
+
+        // One client, so that the later requests reuse the upgraded connection
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        checkUpgrade(client, file);
+        checkConcurrentStreams(client, file);
+        checkUpload(client);
+        checkPriorKnowledge(file);
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        return failures == 0;
+    }
+
+    private void checkUpgrade(HttpClient client, byte[] file) throws Exception {
+        HttpResponse<byte[]> response = client.send(get(filePath), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.version() != HttpClient.Version.HTTP_2)
+            fail("h2c upgrade", "answered over " + response.version());
+        else if (response.statusCode() != 200 || !Arrays.equals(response.body(), file))
+            fail("h2c upgrade", "status " + response.statusCode() + ", " + response.body().length + " bytes");
+        else
+            pass("h2c upgrade", file.length + " bytes");
+    }
+
+    private void checkConcurrentStreams(HttpClient client, byte[] file) throws Exception {
+        List<CompletableFuture<HttpResponse<byte[]>>> futures = new ArrayList<CompletableFuture<HttpResponse<byte[]>>>();
+        for (int i = 0; i < STREAMS; i++) {
+            futures.add(client.sendAsync(get(filePath), HttpResponse.BodyHandlers.ofByteArray()));
+        }
+
+        int good = 0;
+        String problem = null;
+        for (CompletableFuture<HttpResponse<byte[]>> future : futures) {
+            HttpResponse<byte[]> response = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (response.version() == HttpClient.Version.HTTP_2 && response.statusCode() == 200
+                    && Arrays.equals(response.body(), file))
+                good++;
+            else if (problem == null)
+                problem = response.version() + " status " + response.statusCode() + ", " + response.body().length + " bytes";
+        }
+        if (good == STREAMS)
+            pass("concurrent streams", STREAMS + " responses of " + file.length + " bytes");
+        else
+            fail("concurrent streams", (STREAMS - good) + " of " + STREAMS + " bad, e.g. " + problem);
+    }
+
+    private void checkUpload(HttpClient client) throws Exception {
+        byte[] body = new byte[UPLOAD_BYTES];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        HttpRequest request = HttpRequest.newBuilder(uri(uploadPath)).timeout(Duration.ofSeconds(TIMEOUT_SECONDS))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.version() != HttpClient.Version.HTTP_2)
+            fail("large upload", "answered over " + response.version());
+        else if (response.statusCode() / 100 != 2 || !response.body().contains(Integer.toString(UPLOAD_BYTES)))
+            fail("large upload", "status " + response.statusCode() + ": " + response.body());
+        else
+            pass("large upload", UPLOAD_BYTES + " bytes");
+    }
+
+    /**
+     * Sends the preface and a GET on stream 1, and reads the response, opening the flow control
+     * windows as the data arrives.
+     */
+    private void checkPriorKnowledge(byte[] file) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            out.write(PREFACE);
+            writeFrame(out, SETTINGS, 0, 0, new byte[0]);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            literal(block, ":method", "GET");
+            literal(block, ":scheme", "http");
+            literal(block, ":authority", host + ":" + port);
+            literal(block, ":path", filePath);
+            writeFrame(out, HEADERS, FLAG_END_STREAM | FLAG_END_HEADERS, 1, block.toByteArray());
+            out.flush();
+
+            String status = null;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                int length = (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int stream = in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (type == SETTINGS && (flags & FLAG_ACK) == 0) {
+                    writeFrame(out, SETTINGS, FLAG_ACK, 0, new byte[0]);
+                    out.flush();
+                } else if (type == HEADERS && stream == 1) {
+                    status = status(payload);
+                } else if (type == DATA && stream == 1) {
+                    body.write(payload);
+                    if (length > 0) {
+                        // Give the window back, so that a body larger than it keeps coming
+                        writeFrame(out, WINDOW_UPDATE, 0, 0, windowIncrement(length));
+                        writeFrame(out, WINDOW_UPDATE, 0, 1, windowIncrement(length));
+                        out.flush();
+                    }
+                } else if (type == RST_STREAM || type == GOAWAY) {
+                    fail("prior knowledge", "the server sent frame type " + type);
+                    return;
+                }
+                if ((type == DATA || type == HEADERS) && stream == 1 && (flags & FLAG_END_STREAM) != 0)
+                    break;
+            }
+
+            if (!"200".equals(status) || !Arrays.equals(body.toByteArray(), file))
+                fail("prior knowledge", "status " + status + ", " + body.size() + " bytes");
+            else
+                pass("prior knowledge", file.length + " bytes");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Reads the status from a response header block of this server, which starts with it and
+     * does not Huffman-code strings.
+     */
+    private static String status(byte[] block) {
+        int first = block[0] & 0xFF;
+        if ((first & 0x80) != 0) {
+            int index = first & 0x7f;
+            return index >= 8 && index < 8 + STATIC_STATUSES.length ? STATIC_STATUSES[index - 8] : null;
+        }
+        // A literal with the name :status, index 8
+        if ((first & 0x0f) != 8 || (block[1] & 0x80) != 0)
+            return null;
+        return new String(block, 2, block[1] & 0x7f, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Appends a literal header field without indexing, with a literal name.
+     */
+    private static void literal(ByteArrayOutputStream block, String name, String value) {
+        block.write(0x00);
+        string(block, name);
+        string(block, value);
+    }
+
+    private static void string(ByteArrayOutputStream block, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        // Short enough for the 7-bit prefix
+        block.write(bytes.length);
+        block.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] windowIncrement(int increment) {
+        return new byte[]{(byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment};
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload) throws IOException {
+        out.write(new byte[]{(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags,
+                (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream});
+        out.write(payload);
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(uri(path)).timeout(Duration.ofSeconds(TIMEOUT_SECONDS)).GET().build();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://" + host + ":" + port + path);
+    }
+
+    private void pass(String check, String detail) {
+        System.out.println(String.format("PASS %s: %s", check, detail));
+    }
+
+    private void fail(String check, String detail) {
+        failures++;
+        System.out.println(String.format("FAIL %s: %s", check, detail));
+    }
+}
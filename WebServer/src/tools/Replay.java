@@ -0,0 +1,302 @@
+package tools;
+
+import log.TrafficCapture;
+import timing.Histogram;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the requests of a {@link TrafficCapture} back against a server, e.g. one started with
+ * the same plugins and document root as the one that was captured.
+ * <p/>
+ * <tt>Replay &lt;capture&gt; &lt;host&gt; &lt;port&gt; [speed] [connections]</tt> sends the
+ * requests in the order they arrived, over keep-alive connections (16 by default). At a speed
+ * of 1 (the default) they leave at their original times; 2 plays the capture twice as fast,
+ * and <tt>max</tt> sends each request as soon as a connection is free. Every response is
+ * checked against the captured status and <tt>Content-Length</tt>, and the latency percentiles
+ * are printed next to the captured ones. In timed runs, latency counts from when the request
+ * was due, so a server that falls behind shows it.
+ */
+public class Replay {
+    private static final int REPORTED_MISMATCHES = 10;
+
+    private final String host;
+    private final int port;
+    private final List<TrafficCapture.Record> records;
+    private final double speed;
+
+    private final BlockingQueue<Scheduled> queue = new LinkedBlockingQueue<Scheduled>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong statusMismatches = new AtomicLong();
+    private final AtomicLong sizeMismatches = new AtomicLong();
+    private final AtomicInteger reported = new AtomicInteger();
+    private final Histogram latency = new Histogram();
+
+    /**
+     * @param speed How much faster than captured to send the requests, or 0 for as fast as possible
+     */
+    public Replay(String host, int port, List<TrafficCapture.Record> records, double speed) {
+        this.host = host;
+        this.port = port;
+        this.records = records;
+        this.speed = speed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 5) {
+            System.out.println("Usage: Replay <capture> <host> <port> [speed|max] [connections]");
+            return;
+        }
+
+        List<TrafficCapture.Record> records = new ArrayList<TrafficCapture.Record>();
+        TrafficCapture.Reader reader = new TrafficCapture.Reader(new File(args[0]));
+        try {
+            TrafficCapture.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        } finally {
+            reader.close();
+        }
+        if (records.isEmpty()) {
+            System.out.println("No requests in " + args[0]);
+            return;
+        }
+
+        // Written as the requests finished; sent as they arrived
+        Collections.sort(records, new Comparator<TrafficCapture.Record>() {
+            @Override
+            public int compare(TrafficCapture.Record a, TrafficCapture.Record b) {
+                return Long.compare(a.getOffsetMicros(), b.getOffsetMicros());
+            }
+        });
+
+        double speed = 1;
+        if (args.length >= 4)
+            speed = args[3].equals("max") ? 0 : Double.parseDouble(args[3]);
+        int connections = args.length < 5 ? 16 : Integer.parseInt(args[4]);
+        new Replay(args[1], Integer.parseInt(args[2]), records, speed).run(connections);
+    }
+
+    /**
+     * Sends every request and prints the results.
+     */
+    public void run(int connections) throws InterruptedException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client();
+                }
+            }, "Replay-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long start = System.nanoTime();
+        if (speed > 0) {
+            // Hand each request to the connections when it is due
+            long first = records.get(0).getOffsetMicros();
+            for (TrafficCapture.Record record : records) {
+                long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(record.getOffsetMicros() - first) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                queue.put(new Scheduled(record, due));
+            }
+            for (int i = 0; i < connections; i++) {
+                queue.put(Scheduled.END);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Histogram captured = new Histogram();
+        for (TrafficCapture.Record record : records) {
+            captured.record(TimeUnit.MICROSECONDS.toNanos(record.getLatencyMicros()));
+        }
+
+        System.out.println(String.format("%d requests, %d connections, %s, %.1f s", records.size(), connections,
+                speed > 0 ? String.format("speed %.2fx", speed) : "max speed", elapsed));
+        System.out.println(String.format("Completed: %d (%.1f/s), errors: %d, status mismatches: %d, size mismatches: %d",
+                completed.get(), completed.get() / elapsed, errors.get(), statusMismatches.get(), sizeMismatches.get()));
+        System.out.println(String.format("Latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.99) / 1e6,
+                latency.getPercentile(0.999) / 1e6, latency.getPercentile(1.0) / 1e6));
+        System.out.println(String.format("Captured p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                captured.getPercentile(0.5) / 1e6, captured.getPercentile(0.99) / 1e6,
+                captured.getPercentile(0.999) / 1e6, captured.getPercentile(1.0) / 1e6));
+    }
+
+    private Scheduled take() throws InterruptedException {
+        if (speed > 0)
+            return queue.take();
+
+        int index = next.getAndIncrement();
+        return index < records.size() ? new Scheduled(records.get(index), System.nanoTime()) : Scheduled.END;
+    }
+
+    private void client() {
+        byte[] zeros = new byte[8192];
+        byte[] discard = new byte[65536];
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        while (true) {
+            Scheduled scheduled;
+            try {
+                scheduled = take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (scheduled == Scheduled.END)
+                break;
+            TrafficCapture.Record record = scheduled.record;
+
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(host, port));
+                    in = new BufferedInputStream(socket.getInputStream(), 65536);
+                    out = socket.getOutputStream();
+                }
+
+                out.write(record.getHead());
+                byte[] body = record.getBody();
+                long bodyLength = record.getBodyLength();
+                out.write(body, 0, (int) Math.min(body.length, bodyLength));
+                // The part of the body that was not captured
+                for (long padding = bodyLength - body.length; padding > 0; padding -= zeros.length) {
+                    out.write(zeros, 0, (int) Math.min(zeros.length, padding));
+                }
+                out.flush();
+
+                // Informational responses come before the real one
+                String status;
+                long length;
+                boolean close;
+                do {
+                    status = readLine(in);
+                    length = -1;
+                    close = false;
+                    String line;
+                    while (!(line = readLine(in)).isEmpty()) {
+                        int colon = line.indexOf(':');
+                        if (colon < 0)
+                            continue;
+                        String name = line.substring(0, colon).trim();
+                        String value = line.substring(colon + 1).trim();
+                        if (name.equalsIgnoreCase("Content-Length"))
+                            length = Long.parseLong(value);
+                        else if (name.equalsIgnoreCase("Connection"))
+                            close = value.equalsIgnoreCase("Close");
+                    }
+                } while (status.length() > 9 && status.charAt(9) == '1');
+
+                int code = status.length() >= 12 ? Integer.parseInt(status.substring(9, 12)) : 0;
+                boolean bodiless = record.getMethod().equals("HEAD") || code == 204 || code == 304;
+                if (!bodiless) {
+                    long remaining = length < 0 ? Long.MAX_VALUE : length;
+                    while (remaining > 0) {
+                        int count = in.read(discard, 0, (int) Math.min(discard.length, remaining));
+                        if (count < 0) {
+                            if (length >= 0)
+                                throw new EOFException();
+                            // No length: the body ran to the end of the connection
+                            close = true;
+                            break;
+                        }
+                        remaining -= count;
+                    }
+                }
+                latency.record(System.nanoTime() - scheduled.due);
+                completed.incrementAndGet();
+
+                if (code != record.getStatus()) {
+                    statusMismatches.incrementAndGet();
+                    report(record, "status " + code + ", captured " + record.getStatus());
+                } else if (length != record.getContentLength()) {
+                    sizeMismatches.incrementAndGet();
+                    report(record, "Content-Length " + length + ", captured " + record.getContentLength());
+                }
+
+                if (close) {
+                    socket.close();
+                    socket = null;
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                report(record, e.toString());
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                    socket = null;
+                }
+            }
+        }
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void report(TrafficCapture.Record record, String problem) {
+        if (reported.incrementAndGet() <= REPORTED_MISMATCHES)
+            System.out.println(record.getRequestLine() + ": " + problem);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * A request and when it was due to be sent.
+     */
+    private static final class Scheduled {
+        static final Scheduled END = new Scheduled(null, 0);
+
+        final TrafficCapture.Record record;
+        final long due;
+
+        Scheduled(TrafficCapture.Record record, long due) {
+            this.record = record;
+            this.due = due;
+        }
+    }
+}
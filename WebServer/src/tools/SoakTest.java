@@ -0,0 +1,497 @@
+package tools;
+
+import plugin.PluginLoader;
+import pluginAPI.IRequestHandler;
+import server.Server;
+
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the server under sustained mixed load and fails if its resource use keeps growing.
+ * <p/>
+ * <tt>SoakTest &lt;port&gt; &lt;minutes&gt; [connections]</tt> starts a server in this JVM,
+ * loading plugins from the plugin directory of the working directory every 5 seconds as the
+ * server does, and sends it keep-alive file requests (of the files under
+ * <tt>sws.files.root</tt>, if set), plugin GETs and POSTs, HEADs, 404s, malformed requests,
+ * unsupported versions and requests cut off halfway. Every 30 seconds a plugin jar is
+ * rewritten, or taken away for a scan and put back.
+ * <p/>
+ * Open file descriptors, live threads, loaded classes, Metaspace and the old generation after
+ * a full collection are sampled about 40 times over the run. The test fails, exiting with 1,
+ * if the median of the last third of the samples of any of them is above the median of the
+ * first third by more than its allowance, and then prints the classes whose instances grew
+ * the most on the heap between the first sample and the last.
+ */
+public class SoakTest {
+    private static final long SCAN_MILLIS = 5000;
+    private static final long CHURN_MILLIS = 30000;
+    private static final int SAMPLES = 40;
+    private static final int HISTOGRAM_ROWS = 20;
+
+    private static final String[] METRICS = {"File descriptors", "Threads", "Loaded classes",
+            "Metaspace (KB)", "Old gen after GC (KB)"};
+    // Growth tolerated in each metric, absolute and relative to the first third, whichever is larger
+    private static final long[] ALLOWANCE = {16, 8, 200, 4096, 16384};
+    private static final double[] RELATIVE_ALLOWANCE = {0.10, 0.10, 0.05, 0.10, 0.20};
+
+    private final int port;
+    private final List<String> files;
+    private final Map<String, AtomicLong> outcomes = new HashMap<String, AtomicLong>();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean running = true;
+
+    public SoakTest(int port, List<String> files) {
+        this.port = port;
+        this.files = files;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: SoakTest <port> <minutes> [connections]");
+            return;
+        }
+
+        List<String> files = new ArrayList<String>();
+        String root = System.getProperty("sws.files.root");
+        if (root != null)
+            list(new File(root), "/FileRequestPlugin", files);
+
+        int connections = args.length < 3 ? 16 : Integer.parseInt(args[2]);
+        boolean passed = new SoakTest(Integer.parseInt(args[0]), files)
+                .run(TimeUnit.MINUTES.toMillis(Long.parseLong(args[1])), connections);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void list(File directory, String prefix, List<String> paths) {
+        File[] entries = directory.listFiles();
+        if (entries == null)
+            return;
+        for (File entry : entries) {
+            if (entry.isDirectory())
+                list(entry, prefix + "/" + entry.getName(), paths);
+            else
+                paths.add(prefix + "/" + entry.getName());
+        }
+    }
+
+    /**
+     * Runs the test and prints the samples and the verdict.
+     *
+     * @return whether no metric grew beyond its allowance
+     */
+    public boolean run(long durationMillis, int connections) throws Exception {
+        final Server server = new Server(port);
+        final PluginLoader<IRequestHandler> pluginLoader = new PluginLoader<IRequestHandler>();
+        server.setRequestHandlers(pluginLoader.getPlugins(IRequestHandler.class), pluginLoader);
+        Thread serverThread = new Thread(server, "Server");
+        serverThread.start();
+        Thread.sleep(500);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    sleep(SCAN_MILLIS);
+                    server.setRequestHandlers(pluginLoader.getPlugins(IRequestHandler.class), pluginLoader);
+                }
+            }
+        }, "SoakTest-Scan"));
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                churn();
+            }
+        }, "SoakTest-Churn"));
+        for (int i = 0; i < connections; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client();
+                }
+            }, "SoakTest-Client-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long sampleMillis = Math.max(1000, durationMillis / SAMPLES);
+        List<long[]> samples = new ArrayList<long[]>();
+        Map<String, long[]> firstHistogram = null;
+        long start = System.currentTimeMillis();
+        System.out.println(String.format("%8s %8s  %s", "Seconds", "Requests", Arrays.toString(METRICS)));
+        while (System.currentTimeMillis() - start < durationMillis) {
+            sleep(sampleMillis);
+            long[] sample = sample();
+            samples.add(sample);
+            if (firstHistogram == null)
+                firstHistogram = histogram();
+            System.out.println(String.format("%8d %8d  %s", (System.currentTimeMillis() - start) / 1000,
+                    requests.get(), Arrays.toString(sample)));
+        }
+        Map<String, long[]> lastHistogram = histogram();
+
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        server.stop();
+        serverThread.join();
+        pluginLoader.close();
+
+        List<String> names = new ArrayList<String>(outcomes.keySet());
+        Collections.sort(names);
+        StringBuilder summary = new StringBuilder(requests.get() + " requests:");
+        for (String name : names) {
+            summary.append(' ').append(name).append('=').append(outcomes.get(name));
+        }
+        System.out.println(summary);
+
+        boolean passed = true;
+        int third = samples.size() / 3;
+        if (third < 2) {
+            System.out.println("Too few samples to judge; run for longer");
+            return true;
+        }
+        for (int i = 0; i < METRICS.length; i++) {
+            long first = median(samples.subList(0, third), i);
+            long last = median(samples.subList(samples.size() - third, samples.size()), i);
+            long allowed = Math.max(ALLOWANCE[i], (long) (first * RELATIVE_ALLOWANCE[i]));
+            boolean grew = last - first > allowed;
+            System.out.println(String.format("%-22s %10d -> %10d (allowed +%d) %s", METRICS[i], first, last, allowed,
+                    grew ? "GROWING" : "ok"));
+            passed &= !grew;
+        }
+
+        if (!passed && firstHistogram != null && lastHistogram != null)
+            printHistogramDiff(firstHistogram, lastHistogram);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /**
+     * Collects the heap first, so the memory figures are what is still reachable.
+     */
+    private static long[] sample() {
+        System.gc();
+
+        long descriptors = -1;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+            descriptors = ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+
+        long metaspace = 0;
+        long oldGen = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                metaspace = pool.getUsage().getUsed() / 1024;
+            } else if (pool.getType() == MemoryType.HEAP && (pool.getName().contains("Old")
+                    || pool.getName().contains("Tenured"))) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null)
+                    oldGen += usage.getUsed() / 1024;
+            }
+        }
+
+        return new long[]{descriptors, ManagementFactory.getThreadMXBean().getThreadCount(),
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(), metaspace, oldGen};
+    }
+
+    private static long median(List<long[]> samples, int metric) {
+        long[] values = new long[samples.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = samples.get(i)[metric];
+        }
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    /**
+     * @return the instance count and bytes of every class on the heap, or null if the JVM cannot tell
+     */
+    private static Map<String, long[]> histogram() {
+        String output;
+        try {
+            output = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                    new Object[]{new String[0]}, new String[]{String[].class.getName()});
+        } catch (Exception e) {
+            System.out.println("No heap histogram: " + e);
+            return null;
+        }
+
+        // "   1:         12345        678900  java.lang.String (java.base@11)"
+        Map<String, long[]> classes = new HashMap<String, long[]>();
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 4 || !fields[0].endsWith(":"))
+                continue;
+            try {
+                long[] counts = {Long.parseLong(fields[1]), Long.parseLong(fields[2])};
+                long[] previous = classes.put(fields[3], counts);
+                // Classes of the same name from different loaders
+                if (previous != null) {
+                    counts[0] += previous[0];
+                    counts[1] += previous[1];
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return classes;
+    }
+
+    private static void printHistogramDiff(Map<String, long[]> first, final Map<String, long[]> last) {
+        final Map<String, long[]> growth = new HashMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry : last.entrySet()) {
+            long[] before = first.get(entry.getKey());
+            long[] after = entry.getValue();
+            growth.put(entry.getKey(), before == null ? after : new long[]{after[0] - before[0], after[1] - before[1]});
+        }
+
+        List<String> names = new ArrayList<String>(growth.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(growth.get(b)[1], growth.get(a)[1]);
+            }
+        });
+
+        System.out.println("Heap growth since the first sample:");
+        System.out.println(String.format("%12s %14s  %s", "Instances", "Bytes", "Class"));
+        for (String name : names.subList(0, Math.min(HISTOGRAM_ROWS, names.size()))) {
+            long[] counts = growth.get(name);
+            if (counts[1] <= 0)
+                break;
+            System.out.println(String.format("%+12d %+14d  %s", counts[0], counts[1], name));
+        }
+    }
+
+    /**
+     * Alternately rewrites a plugin jar, so it is loaded again, and takes one away for a scan.
+     */
+    private void churn() {
+        File directory = new File(PluginLoader.PLUGIN_DIRECTORY);
+        int round = 0;
+        while (running) {
+            sleep(CHURN_MILLIS);
+            File[] jars = directory.listFiles();
+            if (!running || jars == null || jars.length == 0)
+                continue;
+            Arrays.sort(jars);
+            File jar = jars[round / 2 % jars.length];
+            File copy = new File(directory, jar.getName() + ".churn");
+            try {
+                if (round % 2 == 0) {
+                    Files.copy(jar.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(copy.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.move(jar.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    sleep(SCAN_MILLIS + 1000);
+                    Files.move(copy.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                System.out.println("Could not churn " + jar + ": " + e);
+            }
+            round++;
+        }
+    }
+
+    private void client() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Socket keepAlive = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        while (running) {
+            int kind = random.nextInt(100);
+            try {
+                if (kind < 50 && !files.isEmpty()) {
+                    // Static files over a kept-alive connection
+                    if (keepAlive == null) {
+                        keepAlive = connect();
+                        in = new BufferedInputStream(keepAlive.getInputStream(), 65536);
+                        out = keepAlive.getOutputStream();
+                    }
+                    String path = files.get(random.nextInt(files.size()));
+                    boolean head = kind < 5;
+                    send(out, (head ? "HEAD " : "GET ") + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                    if (readResponse(in, head, "file")) {
+                        keepAlive.close();
+                        keepAlive = null;
+                    }
+                } else if (kind < 65) {
+                    exchange("GET /TestPlugin/soak?n=" + random.nextInt(1000) + " HTTP/1.1\r\nHost: localhost\r\n\r\n",
+                            "plugin GET");
+                } else if (kind < 75) {
+                    String body = "name=soak&value=" + random.nextInt(1000);
+                    exchange("POST /TestPlugin HTTP/1.1\r\nHost: localhost\r\n"
+                            + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + body.length()
+                            + "\r\n\r\n" + body, "plugin POST");
+                } else if (kind < 85) {
+                    exchange("GET /NoSuchPlugin/missing HTTP/1.1\r\nHost: localhost\r\nConnection: Close\r\n\r\n",
+                            "not found");
+                } else if (kind < 90) {
+                    exchange("NONSENSE\r\n\r\n", "malformed");
+                } else if (kind < 95) {
+                    exchange("GET /TestPlugin HTTP/3.7\r\nHost: localhost\r\n\r\n", "bad version");
+                } else {
+                    // Cut off in the middle of the headers
+                    Socket socket = connect();
+                    try {
+                        send(socket.getOutputStream(), "GET /TestPlugin HTTP/1.1\r\nHost: local");
+                    } finally {
+                        socket.close();
+                    }
+                    count("disconnect");
+                }
+            } catch (IOException e) {
+                count("error");
+                if (keepAlive != null) {
+                    try {
+                        keepAlive.close();
+                    } catch (IOException ignored) {
+                    }
+                    keepAlive = null;
+                }
+            }
+            requests.incrementAndGet();
+        }
+
+        if (keepAlive != null) {
+            try {
+                keepAlive.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setSoTimeout(30000);
+        socket.connect(new InetSocketAddress("localhost", port));
+        return socket;
+    }
+
+    /**
+     * Sends a request on a connection of its own.
+     */
+    private void exchange(String request, String kind) throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket.getOutputStream(), request);
+            readResponse(new BufferedInputStream(socket.getInputStream()), false, kind);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void send(OutputStream out, String request) throws IOException {
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Reads a response and counts its status.
+     *
+     * @return whether the server will close the connection
+     */
+    private boolean readResponse(InputStream in, boolean head, String kind) throws IOException {
+        String status;
+        long length;
+        boolean close;
+        // Informational responses come before the real one
+        do {
+            status = readLine(in);
+            length = -1;
+            close = false;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    length = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Connection"))
+                    close = value.equalsIgnoreCase("Close");
+            }
+        } while (status.length() > 9 && status.charAt(9) == '1');
+
+        if (!head) {
+            byte[] discard = new byte[8192];
+            long remaining = length < 0 ? Long.MAX_VALUE : length;
+            while (remaining > 0) {
+                int read = in.read(discard, 0, (int) Math.min(discard.length, remaining));
+                if (read < 0) {
+                    if (length >= 0)
+                        throw new EOFException();
+                    close = true;
+                    break;
+                }
+                remaining -= read;
+            }
+        }
+
+        count(kind + " " + (status.length() >= 12 ? status.substring(9, 12) : "?"));
+        return close || length < 0;
+    }
+
+    private void count(String outcome) {
+        AtomicLong counter;
+        synchronized (outcomes) {
+            counter = outcomes.get(outcome);
+            if (counter == null) {
+                counter = new AtomicLong();
+                outcomes.put(outcome, counter);
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}